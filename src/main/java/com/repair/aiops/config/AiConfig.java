@@ -6,6 +6,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
 // 确保这是一个 Spring 配置类
@@ -52,6 +53,16 @@ public class AiConfig {
         return template;
     }
 
+    /**
+     * Redis 发布订阅监听容器（用于跨节点的本地缓存失效通知等）
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory factory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(factory);
+        return container;
+    }
+
     @Bean
     public org.springframework.boot.CommandLineRunner debugEnv(org.springframework.core.env.Environment env) {
         return args -> {
@@ -59,16 +70,4 @@ public class AiConfig {
             System.out.println("DEBUG: spring.cloud.ai.tongyi.api-key=" + env.getProperty("spring.cloud.ai.tongyi.api-key"));
         };
     }
-
-    /**
-     * 配置带超时的 RestTemplate
-     * 解决调用外部接口无响应导致的线程卡死问题
-     */
-    @Bean
-    public org.springframework.web.client.RestTemplate restTemplate() {
-        org.springframework.http.client.SimpleClientHttpRequestFactory factory = new org.springframework.http.client.SimpleClientHttpRequestFactory();
-        factory.setConnectTimeout(3000); // 连接超时：3秒
-        factory.setReadTimeout(10000);   // 读取超时：10秒
-        return new org.springframework.web.client.RestTemplate(factory);
-    }
 }
@@ -0,0 +1,136 @@
+package com.repair.aiops.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * HTTP 客户端配置
+ *
+ * 每个下游（企业微信 API、下单服务、群机器人 Webhook、图片下载）使用独立的连接池，
+ * 下单接口变慢时不会占满企业微信通知的连接；连接复用（keep-alive）避免每次调用都做 TLS 握手。
+ *
+ * 连接池参数按下游名读取：aiops.http.&lt;name&gt;.max-total / max-per-route / connect-timeout-ms /
+ * read-timeout-ms / pool-acquire-timeout-ms / idle-evict-seconds
+ * 连接池指标：httpcomponents.httpclient.pool.*（标签 httpclient=&lt;name&gt;）
+ */
+@Slf4j
+@Configuration
+public class HttpClientConfig {
+
+    public static final String WECOM = "wecomRestTemplate";
+    public static final String ORDER = "orderRestTemplate";
+    public static final String WEBHOOK = "webhookRestTemplate";
+    public static final String MEDIA = "mediaRestTemplate";
+
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+    private final List<CloseableHttpClient> clients = new CopyOnWriteArrayList<>();
+
+    public HttpClientConfig(Environment environment, MeterRegistry meterRegistry) {
+        this.environment = environment;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 企业微信 API（qyapi.weixin.qq.com）
+     */
+    @Bean(WECOM)
+    public RestTemplate wecomRestTemplate() {
+        return pooledRestTemplate("wecom", 50, 50, 3000, 10000);
+    }
+
+    /**
+     * 外部下单服务
+     */
+    @Bean(ORDER)
+    public RestTemplate orderRestTemplate() {
+        return pooledRestTemplate("order", 20, 20, 3000, 10000);
+    }
+
+    /**
+     * 群机器人 Webhook
+     */
+    @Bean(WEBHOOK)
+    public RestTemplate webhookRestTemplate() {
+        return pooledRestTemplate("webhook", 10, 10, 3000, 5000);
+    }
+
+    /**
+     * 图片下载（OSS 公网地址，用于图片预处理）
+     */
+    @Bean(MEDIA)
+    public RestTemplate mediaRestTemplate() {
+        return pooledRestTemplate("media", 20, 20, 3000, 15000);
+    }
+
+    private RestTemplate pooledRestTemplate(String name, int defaultMaxTotal, int defaultMaxPerRoute,
+                                            int defaultConnectTimeoutMs, int defaultReadTimeoutMs) {
+        int maxTotal = property(name, "max-total", defaultMaxTotal);
+        int maxPerRoute = property(name, "max-per-route", defaultMaxPerRoute);
+        int connectTimeoutMs = property(name, "connect-timeout-ms", defaultConnectTimeoutMs);
+        int readTimeoutMs = property(name, "read-timeout-ms", defaultReadTimeoutMs);
+        int acquireTimeoutMs = property(name, "pool-acquire-timeout-ms", 2000);
+        int idleEvictSeconds = property(name, "idle-evict-seconds", 30);
+
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxTotal)
+                .setMaxConnPerRoute(maxPerRoute)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMs))
+                        .setSocketTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                        // 复用前校验空闲过久的连接，避免拿到已被服务端关闭的连接
+                        .setValidateAfterInactivity(TimeValue.ofSeconds(5))
+                        .build())
+                .build();
+
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        // 从连接池取连接的等待上限：池满时快速失败，不无限排队
+                        .setConnectionRequestTimeout(Timeout.ofMilliseconds(acquireTimeoutMs))
+                        .setResponseTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofSeconds(idleEvictSeconds))
+                .build();
+        clients.add(httpClient);
+
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, name).bindTo(meterRegistry);
+        log.info("HTTP连接池已创建: name={}, maxTotal={}, maxPerRoute={}, connectTimeout={}ms, readTimeout={}ms",
+                name, maxTotal, maxPerRoute, connectTimeoutMs, readTimeoutMs);
+        return new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+    }
+
+    private int property(String name, String key, int defaultValue) {
+        return environment.getProperty("aiops.http." + name + "." + key, Integer.class, defaultValue);
+    }
+
+    @PreDestroy
+    public void close() {
+        for (CloseableHttpClient client : clients) {
+            try {
+                client.close();
+            } catch (Exception e) {
+                log.warn("关闭HTTP连接池异常: {}", e.getMessage());
+            }
+        }
+    }
+}
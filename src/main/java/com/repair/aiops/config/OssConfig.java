@@ -0,0 +1,37 @@
+package com.repair.aiops.config;
+
+import com.aliyun.oss.ClientBuilderConfiguration;
+import com.aliyun.oss.OSS;
+import com.aliyun.oss.OSSClientBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 阿里云 OSS 客户端配置
+ * OSSClient 线程安全，全局共享一个实例，复用其内部连接池；应用关闭时调用 shutdown 释放连接
+ */
+@Slf4j
+@Configuration
+@ConditionalOnProperty(name = "oss.enabled", havingValue = "true")
+public class OssConfig {
+
+    @Bean(destroyMethod = "shutdown")
+    public OSS ossClient(@Value("${oss.endpoint:}") String endpoint,
+                         @Value("${oss.access-key-id:}") String accessKeyId,
+                         @Value("${oss.access-key-secret:}") String accessKeySecret,
+                         @Value("${oss.client.max-connections:64}") int maxConnections,
+                         @Value("${oss.client.connect-timeout-ms:3000}") int connectTimeoutMs,
+                         @Value("${oss.client.socket-timeout-ms:30000}") int socketTimeoutMs,
+                         @Value("${oss.client.idle-connection-ms:60000}") long idleConnectionMs) {
+        ClientBuilderConfiguration conf = new ClientBuilderConfiguration();
+        conf.setMaxConnections(maxConnections);
+        conf.setConnectionTimeout(connectTimeoutMs);
+        conf.setSocketTimeout(socketTimeoutMs);
+        conf.setIdleConnectionTime(idleConnectionMs);
+        log.info("OSS客户端已创建: endpoint={}, maxConnections={}", endpoint, maxConnections);
+        return new OSSClientBuilder().build(endpoint, accessKeyId, accessKeySecret, conf);
+    }
+}
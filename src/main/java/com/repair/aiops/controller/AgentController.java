@@ -1,26 +1,20 @@
 package com.repair.aiops.controller;
 
-import com.alibaba.fastjson.JSON;
-import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.repair.aiops.model.dto.DraftPage;
 import com.repair.aiops.model.dto.GroupMsgDTO;
-import com.repair.aiops.model.dto.OrderRequest;
-import com.repair.aiops.model.dto.OrderResponse;
-import com.repair.aiops.model.dto.TicketDraft;
 import com.repair.aiops.model.entity.TicketDraftEntity;
+import com.repair.aiops.model.dto.wecom.ArchiveBackfillRequest;
 import com.repair.aiops.model.dto.wecom.WecomChatDataItem;
 import com.repair.aiops.model.dto.wecom.WecomChatDataResponse;
 import com.repair.aiops.model.dto.wecom.WecomChatFetchRequest;
-import com.repair.aiops.model.enums.IntentType;
-import com.repair.aiops.mapper.CUserMapper;
-import com.repair.aiops.model.dto.CommunityHouseOwnerInfo;
-import com.repair.aiops.service.business.ICommunityHouseService;
+import com.repair.aiops.model.enums.PipelineStatus;
 import com.repair.aiops.service.business.ITicketDraftService;
-import com.repair.aiops.service.client.IOrderService;
-import com.repair.aiops.service.core.AgentService;
-import com.repair.aiops.service.storage.OssStorageService;
+import com.repair.aiops.service.core.MessageDedupService;
+import com.repair.aiops.service.pipeline.MessagePipeline;
+import com.repair.aiops.service.wecom.WecomArchiveBackfillService;
 import com.repair.aiops.service.wecom.WecomChatArchiveService;
 import com.repair.aiops.service.wecom.WecomChatMessageParser;
-import com.repair.aiops.service.wecom.WecomRobotService;
+import com.repair.aiops.service.wecom.WecomMediaFile;
 import com.repair.aiops.utils.WXBizMsgCrypt;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.MDC;
@@ -29,30 +23,22 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.time.LocalDateTime;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/api/wechat")
 @Slf4j
 public class AgentController {
 
-    private final AgentService agentService;
-    private final IOrderService orderService;
-
-    @Autowired
-    private com.repair.aiops.service.business.IOwnerService ownerService;
-
-    @Autowired
-    private ICommunityHouseService communityHouseService;
-
-    @Autowired
-    private CUserMapper cUserMapper;
+    private final MessagePipeline messagePipeline;
 
     @Autowired
     private ITicketDraftService draftService; // MyBatis-Plus Service
@@ -64,10 +50,10 @@ public class AgentController {
     private WecomChatMessageParser wecomChatMessageParser;
 
     @Autowired
-    private OssStorageService ossStorageService;
+    private MessageDedupService dedupService;
 
     @Autowired
-    private WecomRobotService wecomRobotService;
+    private WecomArchiveBackfillService backfillService;
 
     @Value("${wecom.callback.token:}")
     private String callbackToken;
@@ -81,28 +67,38 @@ public class AgentController {
     @Value("${wecom.chat.archive.allowed-groups:}")
     private String allowedGroups;
 
-    @Value("${wecom.group.community-mapping:}")
-    private String groupCommunityMapping;
+    @Value("${aiops.draft.max-page-size:100}")
+    private int maxDraftPageSize;
 
-    public AgentController(AgentService agentService, IOrderService orderService) {
-        this.agentService = agentService;
-        this.orderService = orderService;
+    // 只传 cursor 不传 limit 时的分页大小
+    private static final int DEFAULT_DRAFT_PAGE_SIZE = 20;
+
+    public AgentController(MessagePipeline messagePipeline) {
+        this.messagePipeline = messagePipeline;
     }
 
     /**
      * 企业微信图片获取（通过 sdkfileid 拉取原始图片）
+     * 图片先分片下载到临时文件，再流式写回响应，写完即删除
      */
     @GetMapping("/media/{sdkfileid}")
-    public ResponseEntity<byte[]> fetchWecomMedia(@PathVariable("sdkfileid") String sdkFileId) {
-        ResponseEntity<byte[]> response = wecomChatArchiveService.fetchMedia(sdkFileId);
-        if (!response.getStatusCode().is2xxSuccessful() || response.getBody() == null) {
-            return ResponseEntity.status(response.getStatusCode()).build();
+    public ResponseEntity<StreamingResponseBody> fetchWecomMedia(@PathVariable("sdkfileid") String sdkFileId) {
+        if (!wecomChatArchiveService.isEnabled()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        WecomMediaFile media = wecomChatArchiveService.downloadMedia(sdkFileId);
+        if (media == null) {
+            return ResponseEntity.status(HttpStatus.BAD_GATEWAY).build();
         }
-        // 透传内容类型，默认为二进制
-        org.springframework.http.MediaType contentType = response.getHeaders().getContentType();
+        StreamingResponseBody body = out -> {
+            try (media) {
+                Files.copy(media.getPath(), out);
+            }
+        };
         return ResponseEntity.ok()
-                .contentType(contentType != null ? contentType : org.springframework.http.MediaType.APPLICATION_OCTET_STREAM)
-                .body(response.getBody());
+                .contentType(org.springframework.http.MediaType.parseMediaType(media.getContentType()))
+                .contentLength(media.getSize())
+                .body(body);
     }
 
     /**
@@ -174,6 +170,11 @@ public class AgentController {
 
         if (chatData != null) {
             for (WecomChatDataItem item : chatData) {
+                if (dedupService.isArchiveMsgProcessed(item.getMsgid())) {
+                    log.debug("[traceId={}] [跳过] 消息已处理过: seq={}, msgid={}", traceId, item.getSeq(), item.getMsgid());
+                    skipped++;
+                    continue;
+                }
                 String decrypted = item.getDecryptChatMsg();
                 if (decrypted == null || decrypted.trim().isEmpty()) {
                     log.warn("[traceId={}] [跳过] 消息解密为空或无内容: seq={}", traceId, item.getSeq());
@@ -205,38 +206,33 @@ public class AgentController {
                     }
                 }
 
-                // 图片处理：如果是 sdkfileid，则拉取并上传 OSS
-                if (msg.getImageUrl() != null && !msg.getImageUrl().isEmpty()) {
-                    String sdkFileId = extractSdkFileId(msg.getImageUrl());
-                    if (sdkFileId != null) {
-                        log.info("[traceId={}] [图片处理] 开始下载图片: sdkFileId={}", traceId, sdkFileId);
-                        ResponseEntity<byte[]> media = wecomChatArchiveService.fetchMedia(sdkFileId);
-                        if (media.getStatusCode().is2xxSuccessful() && media.getBody() != null) {
-                            String contentType = media.getHeaders().getContentType() != null
-                                    ? media.getHeaders().getContentType().toString()
-                                    : "image/jpeg";
-                            String ossUrl = ossStorageService.upload(media.getBody(), contentType);
-                            if (ossUrl != null) {
-                                log.info("[traceId={}] [图片处理] 上传OSS成功: url={}", traceId, ossUrl);
-                                msg.setImageUrl(ossUrl);
-                            } else {
-                                log.error("[traceId={}] [图片处理] 上传OSS失败", traceId);
-                            }
-                        } else {
-                            log.error("[traceId={}] [图片处理] 下载图片失败: status={}", traceId, media.getStatusCode());
-                        }
-                    }
-                }
-
-                log.info("[traceId={}] [开始分析] 处理单条消息: seq={}, senderId={}", traceId, item.getSeq(), msg.getSenderUserId());
-                ResponseEntity<?> analyzeResult = onGroupMessage(msg);
+                // 图片由流水线 ingest 阶段按 sdkfileid 拉取并上传 OSS
+                String sdkFileId = msg.getImageUrl() != null && !msg.getImageUrl().isEmpty()
+                        ? extractSdkFileId(msg.getImageUrl()) : null;
+                String msgTraceId = UUID.randomUUID().toString().replace("-", "");
 
                 Map<String, Object> result = new HashMap<>();
                 result.put("seq", item.getSeq());
                 result.put("senderUserId", msg.getSenderUserId());
                 result.put("groupId", msg.getGroupId());
-                result.put("httpStatus", analyzeResult.getStatusCode().value());
-                result.put("body", analyzeResult.getBody());
+                result.put("traceId", msgTraceId);
+                try {
+                    String msgId = item.getMsgid();
+                    messagePipeline.submit(msg, msgTraceId, sdkFileId).thenAccept(ctx -> {
+                        if (ctx.getStatus() != PipelineStatus.ERROR) {
+                            dedupService.markArchiveMsgProcessed(msgId);
+                        }
+                    });
+                    log.info("[traceId={}] [已受理] 单条消息已入队: seq={}, senderId={}, msgTraceId={}",
+                            traceId, item.getSeq(), msg.getSenderUserId(), msgTraceId);
+                    result.put("status", PipelineStatus.ACCEPTED.name());
+                } catch (RejectedExecutionException e) {
+                    log.warn("[traceId={}] [限流] 流水线入口队列已满: seq={}", traceId, item.getSeq());
+                    result.put("status", "BUSY");
+                    results.add(result);
+                    skipped++;
+                    continue;
+                }
                 results.add(result);
                 analyzed++;
             }
@@ -273,243 +269,101 @@ public class AgentController {
         return null;
     }
 
-
-    @PostMapping("/webhook")
-    public ResponseEntity<?> onGroupMessage(@RequestBody GroupMsgDTO msg) {
-        String traceId = UUID.randomUUID().toString().replace("-", "");
-        MDC.put("traceId", traceId);
-        // 参数校验
-        if (msg == null) {
-            log.warn("[traceId={}] 收到空消息请求", traceId);
-            MDC.remove("traceId");
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(Map.of("status", "ERROR", "message", "消息不能为空"));
+    /**
+     * 会话存档回放：按 seq 范围或时间范围后台回放，默认演练模式（只分析，不入库、不下单、不通知）
+     * 返回任务ID，进度通过 GET /archive/backfill/{jobId} 查询
+     */
+    @PostMapping("/archive/backfill")
+    public ResponseEntity<?> startBackfill(@RequestBody ArchiveBackfillRequest request) {
+        try {
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(backfillService.start(request));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("status", "BUSY", "message", e.getMessage()));
         }
+    }
 
-        if (msg.getSenderUserId() == null || msg.getSenderUserId().trim().isEmpty()) {
-            log.warn("[traceId={}] 收到无效消息：senderUserId为空", traceId);
-            MDC.remove("traceId");
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(Map.of("status", "ERROR", "message", "发送者ID不能为空"));
-        }
+    @GetMapping("/archive/backfill/{jobId}")
+    public ResponseEntity<?> getBackfill(@PathVariable("jobId") String jobId) {
+        Map<String, Object> progress = backfillService.progress(jobId);
+        return progress != null ? ResponseEntity.ok(progress) : ResponseEntity.notFound().build();
+    }
 
-        if (msg.getGroupId() == null || msg.getGroupId().trim().isEmpty()) {
-            log.warn("[traceId={}] 收到无效消息：groupId为空, senderId={}", traceId, msg.getSenderUserId());
-            MDC.remove("traceId");
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(Map.of("status", "ERROR", "message", "群ID不能为空"));
+    /**
+     * 演练结果（每条为一条消息的分析结果 JSON）
+     */
+    @GetMapping("/archive/backfill/{jobId}/results")
+    public ResponseEntity<List<String>> getBackfillResults(@PathVariable("jobId") String jobId,
+                                                           @RequestParam(value = "offset", defaultValue = "0") long offset,
+                                                           @RequestParam(value = "limit", defaultValue = "100") int limit) {
+        return ResponseEntity.ok(backfillService.results(jobId, offset, Math.min(limit, 1000)));
+    }
+
+    /**
+     * 从检查点继续执行中断的回放任务
+     */
+    @PostMapping("/archive/backfill/{jobId}/resume")
+    public ResponseEntity<?> resumeBackfill(@PathVariable("jobId") String jobId) {
+        try {
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(backfillService.resume(jobId));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("status", "BUSY", "message", e.getMessage()));
         }
+    }
 
-        log.info("[traceId={}] 收到群消息: content={}, groupId={}, senderId={}, hasImage={}",
-                traceId,
-                msg.getContent(),
-                msg.getGroupId(),
-                msg.getSenderUserId(),
-                msg.getImageUrl() != null && !msg.getImageUrl().isEmpty());
+    @PostMapping("/archive/backfill/{jobId}/cancel")
+    public ResponseEntity<?> cancelBackfill(@PathVariable("jobId") String jobId) {
+        return backfillService.cancel(jobId)
+                ? ResponseEntity.ok(Map.of("status", "CANCELLING", "jobId", jobId))
+                : ResponseEntity.notFound().build();
+    }
 
+    @PostMapping("/webhook")
+    public ResponseEntity<?> onGroupMessage(@RequestBody GroupMsgDTO msg) {
+        String traceId = UUID.randomUUID().toString().replace("-", "");
+        MDC.put("traceId", traceId);
         try {
-            // 1. 调用 AI 分析
-            TicketDraft draftResult = agentService.analyze(msg);
-
-            // 处理重复消息的情况
-            if (draftResult == null) {
-                log.info("[traceId={}] 消息已被过滤（重复或无效）：senderId={}", traceId, msg.getSenderUserId());
-                return ResponseEntity.ok(Map.of(
-                        "status", "FILTERED",
-                        "message", "消息已处理或为重复消息"
-                ));
+            // 参数校验
+            if (msg == null) {
+                log.warn("[traceId={}] 收到空消息请求", traceId);
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(Map.of("status", "ERROR", "message", "消息不能为空"));
             }
 
-            log.info("[traceId={}] AI 分析结果: 可处理={}, 意图={}, 缺失信息={}, 建议回复={}, 置信度={}",
-                    traceId,
-                    draftResult.isActionable(),
-                    draftResult.getIntent(),
-                    draftResult.getMissingInfo(),
-                    draftResult.getSuggestedReply(),
-                    draftResult.getConfidence());
-
-            // 只要拿到任何有效信息，就提前绑定到 owners（不依赖下单成功）
-            try {
-                String rawLocation = draftResult.getLocation() != null
-                        ? draftResult.getLocation()
-                        : draftResult.getRoomNumber();
-                if (rawLocation == null || rawLocation.trim().isEmpty()) {
-                    com.repair.aiops.model.entity.Owner owner = ownerService.getOne(
-                            new LambdaQueryWrapper<com.repair.aiops.model.entity.Owner>()
-                                    .eq(com.repair.aiops.model.entity.Owner::getSenderId, msg.getSenderUserId()));
-                    if (owner != null && owner.getRoomNumber() != null && !owner.getRoomNumber().trim().isEmpty()) {
-                        rawLocation = owner.getRoomNumber();
-                    }
-                }
-                String normalizedRoom = communityHouseService.normalizeLocation(rawLocation);
-                String wechatName = wecomRobotService.resolveSenderName(msg.getSenderUserId());
-                String ownerName = draftResult.getOwnerName();
-                if (ownerName == null || ownerName.trim().isEmpty()) {
-                    ownerName = wechatName;
-                }
-                ownerService.bindOwner(msg.getSenderUserId(), normalizedRoom, ownerName, wechatName);
-            } catch (Exception e) {
-                log.error("提前绑定业主失败", e);
+            if (msg.getSenderUserId() == null || msg.getSenderUserId().trim().isEmpty()) {
+                log.warn("[traceId={}] 收到无效消息：senderUserId为空", traceId);
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(Map.of("status", "ERROR", "message", "发送者ID不能为空"));
             }
 
-            // 2. 逻辑分流处理
-            if (draftResult.isActionable()) {
-                // 情况 A：AI 认为报修要素齐全 (位置+描述都有了)
-                log.info("[traceId={}] [决策] 信息完整，准备下单: intent={}", traceId, draftResult.getIntent());
-                try {
-                    // 先保存草稿
-                    TicketDraftEntity entity = new TicketDraftEntity();
-                    entity.setGroupId(msg.getGroupId());
-                    entity.setSenderId(msg.getSenderUserId());
-                    entity.setContent(msg.getContent() != null ? msg.getContent() : "");
-                    entity.setAiAnalysis(JSON.toJSONString(draftResult));
-                    entity.setStatus(0); // 0-待处理
-                    entity.setCreateTime(LocalDateTime.now());
-                    draftService.save(entity);
-                    log.info("[traceId={}] [入库] 草稿保存成功: id={}", traceId, entity.getId());
-
-                    // 调用外部下单接口
-                    log.info("[traceId={}] [调用] 开始调用外部下单接口...", traceId);
-                    long callStart = System.currentTimeMillis();
-                    OrderResponse orderResponse = callOrderService(draftResult, msg);
-                    long callDuration = System.currentTimeMillis() - callStart;
-
-                    // 构建响应
-                    Map<String, Object> responseData = new java.util.HashMap<>();
-                    responseData.put("status", "SAVED");
-                    responseData.put("message", "已存入草稿池");
-                    responseData.put("data", draftResult);
-
-                    // 如果下单成功，添加订单信息
-                    if (orderResponse != null && Boolean.TRUE.equals(orderResponse.getSuccess())) {
-                        responseData.put("orderId", orderResponse.getOrderId());
-                        responseData.put("orderMessage", "下单成功：" + orderResponse.getMessage());
-                        log.info("[traceId={}] [调用成功] 下单完成: orderId={}, duration={}ms, message={}",
-                                traceId, orderResponse.getOrderId(), callDuration, orderResponse.getMessage());
-
-                        // 下单成功后，自动绑定房号（标准化后写入）
-                        try {
-                            String rawLocation = draftResult.getLocation() != null
-                                    ? draftResult.getLocation()
-                                    : draftResult.getRoomNumber();
-                            String normalizedRoom = communityHouseService.normalizeLocation(rawLocation);
-                            if (normalizedRoom != null && !normalizedRoom.trim().isEmpty()) {
-                                String ownerName = draftResult.getOwnerName();
-                                String wechatName = wecomRobotService.resolveSenderName(msg.getSenderUserId());
-                                if (ownerName == null || ownerName.trim().isEmpty()) {
-                                    ownerName = wechatName;
-                                }
-                                ownerService.bindOwner(msg.getSenderUserId(), normalizedRoom, ownerName, wechatName);
-                            }
-                        } catch (Exception e) {
-                            log.error("自动绑定业主失败", e);
-                        }
-                        
-                        // --- 发送成功通知 ---
-                        try {
-                            wecomRobotService.sendOrderResultNotice(
-                                traceId, msg.getGroupId(), msg.getSenderUserId(),
-                                true, 
-                                "工单已生成，单号：" + orderResponse.getOrderId(), 
-                                orderResponse,
-                                msg.getContent() // 传入原始报修内容
-                            );
-                        } catch (Exception e) {
-                            log.error("发送下单成功通知失败", e);
-                        }
-
-                    } else if (orderResponse != null) {
-                        // 下单失败但不影响草稿保存
-                        String failMsg = (orderResponse.getErrorMessage() != null ? orderResponse.getErrorMessage() : orderResponse.getMessage());
-                        responseData.put("orderMessage", "下单失败：" + failMsg);
-                        log.warn("[traceId={}] [调用失败] 下单接口返回错误: duration={}ms, error={}",
-                                traceId, callDuration, failMsg);
-                                
-                        // --- 发送失败通知 ---
-                        try {
-                            wecomRobotService.sendOrderResultNotice(
-                                traceId, msg.getGroupId(), msg.getSenderUserId(),
-                                false, 
-                                "下单失败：" + failMsg, 
-                                orderResponse,
-                                msg.getContent() // 传入原始报修内容
-                            );
-                        } catch (Exception e) {
-                            log.error("发送下单失败通知失败", e);
-                        }
-
-                    } else {
-                         log.error("[traceId={}] [调用异常] 下单接口返回空响应: duration={}ms", traceId, callDuration);
-                         // --- 发送异常通知 ---
-                         try {
-                             wecomRobotService.sendOrderResultNotice(
-                                 traceId, msg.getGroupId(), msg.getSenderUserId(),
-                                 false, 
-                                 "下单接口无响应", 
-                                 null,
-                                 msg.getContent()
-                             );
-                         } catch (Exception e) {
-                             log.error("发送下单异常通知失败", e);
-                         }
-                    }
-
-                    return ResponseEntity.ok(responseData);
-                } catch (Exception e) {
-                    log.error("[traceId={}] 保存工单草稿失败：senderId={}, error={}",
-                            traceId, msg.getSenderUserId(), e.getMessage(), e);
-                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of(
-                            "status", "ERROR",
-                            "message", "保存工单草稿失败：" + e.getMessage()
-                    ));
-                }
-            } else {
-                if (draftResult.getIntent() == IntentType.NOISE) {
-                    log.info("[traceId={}] [过滤] 闲聊消息，不触发追问: senderId={}", traceId, msg.getSenderUserId());
-                    return ResponseEntity.ok(Map.of(
-                            "status", "NOISE",
-                            "message", "闲聊消息不处理"
-                    ));
-                }
-                // 情况 B：AI 认为信息不全 (actionable=false)
-                String missingInfoStr = draftResult.getMissingInfo() != null ? String.join(",", draftResult.getMissingInfo()) : "";
-                log.warn("[traceId={}] [拦截] 信息不全，拦截入库: missing={}, reply={}",
-                        traceId, missingInfoStr, draftResult.getSuggestedReply());
+            if (msg.getGroupId() == null || msg.getGroupId().trim().isEmpty()) {
+                log.warn("[traceId={}] 收到无效消息：groupId为空, senderId={}", traceId, msg.getSenderUserId());
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(Map.of("status", "ERROR", "message", "群ID不能为空"));
+            }
 
-                // 通知群机器人，提示缺失信息
-                try {
-                    wecomRobotService.sendMissingInfoNotice(
-                            traceId,
-                            msg.getGroupId(),
-                            msg.getSenderUserId(),
-                            missingInfoStr,
-                            draftResult.getSuggestedReply()
-                    );
-                    log.info("[traceId={}] [通知] 机器人通知发送成功", traceId);
-                } catch (Exception e) {
-                    log.error("[traceId={}] [通知] 机器人通知发送失败: error={}", traceId, e.getMessage());
-                }
+            log.info("[traceId={}] 收到群消息: content={}, groupId={}, senderId={}, hasImage={}",
+                    traceId,
+                    msg.getContent(),
+                    msg.getGroupId(),
+                    msg.getSenderUserId(),
+                    msg.getImageUrl() != null && !msg.getImageUrl().isEmpty());
 
-                // 虽然不入库，但我们返回 202 (Accepted)，并告诉调用方 AI 的追问语
-                return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of(
-                        "status", "NEED_MORE_INFO",
-                        "missing", missingInfoStr,
-                        "reply", draftResult.getSuggestedReply() != null ? draftResult.getSuggestedReply() : "",
-                        "data", draftResult
+            // 入队即返回，AI 分析、入库、下单、通知均由流水线异步完成
+            try {
+                messagePipeline.submit(msg, traceId);
+            } catch (RejectedExecutionException e) {
+                log.warn("[traceId={}] [限流] 流水线入口队列已满，拒绝消息: senderId={}", traceId, msg.getSenderUserId());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(Map.of(
+                        "status", "BUSY",
+                        "message", "系统繁忙，请稍后重试",
+                        "traceId", traceId
                 ));
             }
-        } catch (IllegalArgumentException e) {
-            log.warn("[traceId={}] 参数错误：{}", traceId, e.getMessage());
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(Map.of(
-                    "status", "ERROR",
-                    "message", e.getMessage()
-            ));
-        } catch (Exception e) {
-            log.error("[traceId={}] 处理消息异常：senderId={}, error={}",
-                    traceId, msg.getSenderUserId(), e.getMessage(), e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of(
-                    "status", "ERROR",
-                    "message", "处理消息失败：" + e.getMessage()
+
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of(
+                    "status", PipelineStatus.ACCEPTED.name(),
+                    "message", "消息已受理",
+                    "traceId", traceId
             ));
         } finally {
             MDC.remove("traceId");
@@ -518,166 +372,45 @@ public class AgentController {
 
     /**
      * 2. 供侧边栏调用的接口：获取当前群的 AI 建议
+     * 不传 cursor 和 limit 时保持原有行为：返回全部待处理草稿（含 aiAnalysis）；
+     * 传了其中任一参数即按创建时间倒序游标分页：下一页游标通过响应头 X-Next-Cursor 返回，
+     * 没有更多数据时不返回该响应头，分页时默认不返回 aiAnalysis，需要时传 includeAnalysis=true
      */
     @GetMapping("/drafts")
-    public ResponseEntity<List<TicketDraftEntity>> getGroupDrafts(@RequestParam(required = false) String groupId) {
+    public ResponseEntity<List<TicketDraftEntity>> getGroupDrafts(
+            @RequestParam(required = false) String groupId,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) Boolean includeAnalysis) {
         if (groupId == null || groupId.trim().isEmpty()) {
             log.warn("查询工单草稿失败：groupId为空");
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
         }
 
         try {
-            List<TicketDraftEntity> drafts = draftService.list(new LambdaQueryWrapper<TicketDraftEntity>()
-                    .eq(TicketDraftEntity::getGroupId, groupId)
-                    .eq(TicketDraftEntity::getStatus, 0) // 只看待处理的
-                    .orderByDesc(TicketDraftEntity::getCreateTime));
+            // 只看待处理的，优先由内存索引返回，不查库
+            if (cursor == null && limit == null) {
+                List<TicketDraftEntity> drafts = draftService.listAllPending(groupId, !Boolean.FALSE.equals(includeAnalysis));
+                log.debug("查询工单草稿成功：groupId={}, count={}", groupId, drafts.size());
+                return ResponseEntity.ok(drafts);
+            }
+            int pageSize = limit != null ? limit : DEFAULT_DRAFT_PAGE_SIZE;
+            DraftPage page = draftService.listPending(groupId, cursor,
+                    Math.max(1, Math.min(pageSize, maxDraftPageSize)), Boolean.TRUE.equals(includeAnalysis));
+            List<TicketDraftEntity> drafts = page.getItems();
             log.debug("查询工单草稿成功：groupId={}, count={}", groupId, drafts.size());
-            return ResponseEntity.ok(drafts);
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            if (page.getNextCursor() != null) {
+                response.header("X-Next-Cursor", page.getNextCursor());
+            }
+            return response.body(drafts);
+        } catch (IllegalArgumentException e) {
+            log.warn("查询工单草稿失败：groupId={}, error={}", groupId, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
         } catch (Exception e) {
             log.error("查询工单草稿异常：groupId={}, error={}", groupId, e.getMessage(), e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
     }
 
-    /**
-     * 调用外部下单服务
-     * @param draftResult AI分析结果
-     * @param msg 原始消息
-     * @return 下单响应
-     */
-    private OrderResponse callOrderService(TicketDraft draftResult, GroupMsgDTO msg) {
-        try {
-            // 获取房屋ID (假设Owner的ID即为houseId，或者需要另外的映射逻辑)
-            Long houseId = null;
-            Long userId = null;
-            try {
-                String communityId = resolveCommunityId(msg.getGroupId());
-                String rawLocation = draftResult.getLocation() != null
-                        ? draftResult.getLocation()
-                        : draftResult.getRoomNumber();
-                log.info("[traceId={}] houseId解析入参: rawLocation={}, senderId={}, communityId={}",
-                        MDC.get("traceId"), rawLocation, draftResult.getSenderId(), communityId);
-
-                CommunityHouseOwnerInfo info = communityHouseService.resolveHouseAndOwner(rawLocation, communityId);
-                if (info != null) {
-                    houseId = info.getHouseId();
-                    userId = resolveUserIdByPhone(info.getOwnerPhone());
-                }
-
-                if (houseId == null) {
-                    log.info("[traceId={}] houseId解析为空，尝试使用绑定房号: senderId={}",
-                            MDC.get("traceId"), msg.getSenderUserId());
-                    com.repair.aiops.model.entity.Owner owner = ownerService.getOne(
-                            new LambdaQueryWrapper<com.repair.aiops.model.entity.Owner>()
-                            .eq(com.repair.aiops.model.entity.Owner::getSenderId, msg.getSenderUserId()));
-                    if (owner != null && owner.getRoomNumber() != null && !owner.getRoomNumber().trim().isEmpty()) {
-                        log.info("[traceId={}] 使用绑定房号解析: roomNumber={}",
-                                MDC.get("traceId"), owner.getRoomNumber());
-                        CommunityHouseOwnerInfo fallbackInfo = communityHouseService.resolveHouseAndOwner(owner.getRoomNumber(), communityId);
-                        if (fallbackInfo != null) {
-                            houseId = fallbackInfo.getHouseId();
-                            if (userId == null) {
-                                userId = resolveUserIdByPhone(fallbackInfo.getOwnerPhone());
-                            }
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                log.warn("获取房屋ID失败：senderId={}", draftResult.getSenderId());
-            }
-
-            if (houseId == null) {
-                houseId = 918L; // 默认值，防止空指针
-                log.warn("未解析到houseId，使用默认值: senderId={}, location={}",
-                        draftResult.getSenderId(), draftResult.getLocation());
-            }
-            log.info("[traceId={}] 下单关键参数: communityId={}, houseId={}, userId={}, senderId={}",
-                    MDC.get("traceId"), resolveCommunityId(msg.getGroupId()), houseId, userId, draftResult.getSenderId());
-
-            // 处理图片
-            java.util.List<String> fileList = new java.util.ArrayList<>();
-            if (msg.getImageUrl() != null && !msg.getImageUrl().isEmpty()) {
-                fileList.add(msg.getImageUrl());
-            }
-
-            // 处理预约时间 (解析 scheduledTime 或使用默认值)
-            String startTime = "2026-01-21 08:00:00";
-            String endTime = "2026-01-21 09:00:00";
-            // TODO: 解析 draftResult.getScheduledTime()
-
-            log.info("[traceId={}] 下单参数预览: senderId={}, houseId={}, fileCount={}, startTime={}, endTime={}",
-                    MDC.get("traceId"),
-                    draftResult.getSenderId(),
-                    houseId,
-                    fileList.size(),
-                    startTime,
-                    endTime);
-
-            // 构建下单请求
-            OrderRequest orderRequest = OrderRequest.builder()
-                    .intent(draftResult.getIntent())
-                    .category(draftResult.getCategory())
-                    .location(draftResult.getLocation())
-                    .description(draftResult.getDescription())
-                    .urgency(draftResult.getUrgency())
-                    .senderId(draftResult.getSenderId())
-                    .ownerName(draftResult.getOwnerName())
-                    .roomNumber(draftResult.getRoomNumber())
-                    .scheduledTime(draftResult.getScheduledTime())
-                    .originalContent(msg.getContent())
-                    .groupId(msg.getGroupId())
-                    // 新增字段
-                    .houseId(houseId)
-                    .userId(userId)
-                    .fileList(fileList)
-                    .appointmentStartTime(startTime)
-                    .appointmentEndTime(endTime)
-                    .build();
-
-            // 调用下单服务
-            return orderService.createOrder(orderRequest);
-        } catch (Exception e) {
-            log.error("调用下单服务异常：senderId={}, error={}", msg.getSenderUserId(), e.getMessage(), e);
-            // 返回失败响应，但不抛出异常，保证草稿保存不受影响
-            return OrderResponse.builder()
-                    .success(false)
-                    .errorCode("SERVICE_ERROR")
-                    .errorMessage("调用下单服务异常：" + e.getMessage())
-                    .build();
-        }
-    }
-
-    private String resolveCommunityId(String groupId) {
-        if (groupId == null || groupId.trim().isEmpty() ||
-                groupCommunityMapping == null || groupCommunityMapping.trim().isEmpty()) {
-            return null;
-        }
-        String[] items = groupCommunityMapping.split(",");
-        for (String item : items) {
-            if (item == null || item.trim().isEmpty()) {
-                continue;
-            }
-            String[] parts = item.split("=");
-            if (parts.length == 2) {
-                String gid = parts[0].trim();
-                String cid = parts[1].trim();
-                if (!gid.isEmpty() && gid.equals(groupId)) {
-                    return cid.isEmpty() ? null : cid;
-                }
-            }
-        }
-        return null;
-    }
-
-    private Long resolveUserIdByPhone(String ownerPhone) {
-        if (ownerPhone == null || ownerPhone.trim().isEmpty()) {
-            return null;
-        }
-        try {
-            return cUserMapper.findUserIdByPhone(ownerPhone.trim());
-        } catch (Exception e) {
-            log.warn("根据手机号获取userId失败: phone={}", ownerPhone);
-            return null;
-        }
-    }
 }
@@ -0,0 +1,16 @@
+package com.repair.aiops.exception;
+
+/**
+ * 大模型暂不可用（熔断打开、并发已满或调用超时）
+ * 与普通调用失败区分：调用方应暂存消息稍后重试，而不是直接判定失败
+ */
+public class LlmUnavailableException extends RuntimeException {
+
+    public LlmUnavailableException(String message) {
+        super(message);
+    }
+
+    public LlmUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,9 @@
+package com.repair.aiops.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.repair.aiops.model.entity.OrderOutboxEntity;
+import org.apache.ibatis.annotations.Mapper;
+
+@Mapper
+public interface OrderOutboxMapper extends BaseMapper<OrderOutboxEntity> {
+}
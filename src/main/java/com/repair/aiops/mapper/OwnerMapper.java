@@ -2,9 +2,29 @@ package com.repair.aiops.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.repair.aiops.model.entity.Owner;
+import org.apache.ibatis.annotations.Insert;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 @Mapper
 public interface OwnerMapper extends BaseMapper<Owner> {
     // 基础的 CRUD 已经由 BaseMapper 自动提供
+
+    /**
+     * 按 sender_id 批量写入业主绑定信息（依赖 uk_owners_sender_id 唯一索引）
+     * 已存在时只覆盖本次非空的字段，与 bindOwner 的合并语义一致
+     */
+    @Insert("<script>"
+            + "INSERT INTO owners (sender_id, room_number, owner_name, wechat_name) VALUES "
+            + "<foreach collection='owners' item='o' separator=','>"
+            + "(#{o.senderId}, #{o.roomNumber}, #{o.ownerName}, #{o.wechatName})"
+            + "</foreach>"
+            + " ON DUPLICATE KEY UPDATE"
+            + " room_number = COALESCE(VALUES(room_number), room_number),"
+            + " owner_name = COALESCE(VALUES(owner_name), owner_name),"
+            + " wechat_name = COALESCE(VALUES(wechat_name), wechat_name)"
+            + "</script>")
+    int upsertBatch(@Param("owners") List<Owner> owners);
 }
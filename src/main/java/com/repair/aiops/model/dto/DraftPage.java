@@ -0,0 +1,21 @@
+package com.repair.aiops.model.dto;
+
+import com.repair.aiops.model.entity.TicketDraftEntity;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 待处理草稿分页结果（按创建时间、ID 倒序的游标分页）
+ */
+@Data
+@AllArgsConstructor
+public class DraftPage {
+    private List<TicketDraftEntity> items;
+
+    /**
+     * 下一页游标；没有更多数据时为 null
+     */
+    private String nextCursor;
+}
@@ -27,6 +27,16 @@ public class MessageContext {
      * 最后更新时间戳
      */
     private Long lastUpdateTime;
+
+    /**
+     * 早前消息的摘要：超出 token 预算的旧消息折叠而成（见 ContextWindowBuilder），随上下文一起缓存
+     */
+    private String summary;
+
+    /**
+     * 摘要覆盖的消息范围（首条时间戳-末条时间戳-条数），范围不变时直接复用摘要
+     */
+    private String summaryRange;
     
     /**
      * 消息项
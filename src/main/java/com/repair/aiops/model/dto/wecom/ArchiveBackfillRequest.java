@@ -0,0 +1,50 @@
+package com.repair.aiops.model.dto.wecom;
+
+import lombok.Data;
+
+/**
+ * 会话存档回放请求
+ * 按 seq 范围或消息时间范围回放，两者可同时指定；未指定 startSeq 时从 0 开始拉取
+ */
+@Data
+public class ArchiveBackfillRequest {
+    /**
+     * 起始 seq（不含，与拉取接口一致：返回大于该 seq 的消息）
+     */
+    private Long startSeq;
+
+    /**
+     * 结束 seq（含），为空表示不限
+     */
+    private Long endSeq;
+
+    /**
+     * 消息时间下限（毫秒时间戳，含），早于该时间的消息跳过
+     */
+    private Long startTime;
+
+    /**
+     * 消息时间上限（毫秒时间戳，含），遇到晚于该时间的消息即结束
+     */
+    private Long endTime;
+
+    /**
+     * 同时在流水线中处理的消息数，为空使用 aiops.backfill.parallelism
+     */
+    private Integer parallelism;
+
+    /**
+     * 每次拉取条数（最大 1000），为空使用 aiops.backfill.page-size
+     */
+    private Integer pageSize;
+
+    /**
+     * 演练模式（默认开启）：只做分析并记录结果，不绑定业主、不写草稿/下单、不发通知
+     */
+    private Boolean dryRun;
+
+    /**
+     * 是否包含已处理过的消息（演练模式总是包含；正式回放默认跳过，避免重复下单）
+     */
+    private Boolean includeProcessed;
+}
@@ -0,0 +1,33 @@
+package com.repair.aiops.model.dto.wecom;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * 待发送的企业微信通知（内容已渲染好，由通知分发器并行投递到各渠道）
+ */
+@Data
+@Builder
+public class WecomNotice {
+    private String traceId;
+
+    /**
+     * 通知类型（用于日志和指标）：missing_info / order_result
+     */
+    private String type;
+
+    /**
+     * 消息来源群ID（客户群渠道的发送目标）
+     */
+    private String groupId;
+
+    /**
+     * 发给管家的完整通知（应用消息、Webhook 渠道）
+     */
+    private String content;
+
+    /**
+     * 发到客户群的简短回复（带 @姓名）
+     */
+    private String customerGroupContent;
+}
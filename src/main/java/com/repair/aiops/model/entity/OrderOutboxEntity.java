@@ -0,0 +1,37 @@
+package com.repair.aiops.model.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * 下单发件箱：与工单草稿在同一事务中写入，由 OrderOutboxRelay 异步提交到外部下单接口
+ */
+@Data
+@TableName("order_outbox")
+public class OrderOutboxEntity {
+    public static final int STATUS_PENDING = 0;
+    public static final int STATUS_SENDING = 1;
+    public static final int STATUS_SUCCEEDED = 2;
+    public static final int STATUS_FAILED = 3;
+
+    @TableId(type = IdType.AUTO)
+    private Long id;
+    private Long draftId;              // 对应的工单草稿ID
+    private String traceId;            // 链路追踪ID（日志关联）
+    private String idempotencyKey;     // 幂等键，重试时不变，外部接口据此去重
+    private String groupId;            // 群ID（结果通知）
+    private String senderId;           // 发送人ID（结果通知）
+    private String content;            // 原始报修内容（结果通知）
+    private String payload;            // 下单请求 JSON（OrderRequest）
+    private Integer status;            // 0-待发送, 1-发送中, 2-成功, 3-失败
+    private Integer attempts;          // 已尝试次数
+    private LocalDateTime nextAttemptTime;
+    private String lastError;
+    private String orderId;            // 外部工单号
+    private LocalDateTime createTime;
+    private LocalDateTime updateTime;
+}
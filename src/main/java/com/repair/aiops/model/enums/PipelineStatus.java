@@ -0,0 +1,41 @@
+package com.repair.aiops.model.enums;
+
+/**
+ * 消息流水线处理状态枚举
+ */
+public enum PipelineStatus {
+    /**
+     * 已受理：消息已入队，尚未处理完成
+     */
+    ACCEPTED,
+
+    /**
+     * 已过滤：重复消息或无效消息
+     */
+    FILTERED,
+
+    /**
+     * 闲聊：不触发任何业务处理
+     */
+    NOISE,
+
+    /**
+     * 信息不全：已通知管家追问
+     */
+    NEED_MORE_INFO,
+
+    /**
+     * 已入草稿池：信息完整，已保存草稿并提交下单
+     */
+    SAVED,
+
+    /**
+     * 已暂存：大模型暂不可用（熔断、并发已满或超时），消息已暂存，稍后自动重新处理
+     */
+    PARKED,
+
+    /**
+     * 处理失败
+     */
+    ERROR
+}
@@ -0,0 +1,23 @@
+package com.repair.aiops.service.business;
+
+
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.repair.aiops.model.entity.OrderOutboxEntity;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * 下单发件箱
+ */
+public interface IOrderOutboxService extends IService<OrderOutboxEntity> {
+
+    // 查询到期待发送的记录
+    List<OrderOutboxEntity> listDue(LocalDateTime now, int limit);
+
+    // 认领一条待发送记录（待发送 -> 发送中），多节点同时认领时只有一个成功
+    boolean claim(Long id);
+
+    // 发送中超过租约时间的记录（节点宕机等）重新置为待发送
+    int releaseExpired(LocalDateTime leaseBefore);
+}
@@ -9,12 +9,15 @@ import com.repair.aiops.model.entity.Owner;
  */
 public interface IOwnerService extends IService<Owner> {
 
+    // 按发送者ID查询业主（走本地缓存，返回副本；不存在返回 null）
+    Owner getBySenderId(String senderId);
+
     // 获取业主描述，供 AI 使用
     String getOwnerInfo(String senderId);
 
     // 绑定业主身份
     void bindOwner(String senderId, String roomNumber, String name);
 
-    // 绑定业主身份（含微信昵称）
+    // 绑定业主身份（含微信昵称）；无变化时跳过，有变化时异步批量写库
     void bindOwner(String senderId, String roomNumber, String name, String wechatName);
 }
@@ -2,11 +2,30 @@ package com.repair.aiops.service.business;
 
 
 import com.baomidou.mybatisplus.extension.service.IService;
+import com.repair.aiops.model.dto.DraftPage;
+import com.repair.aiops.model.entity.OrderOutboxEntity;
 import com.repair.aiops.model.entity.TicketDraftEntity;
 
+import java.util.List;
+
 /**
  * 必须继承 IService<实体类>
  */
 public interface ITicketDraftService extends IService<TicketDraftEntity> {
-    // 这里可以定义你自己的业务方法
+
+    // 提交草稿：加入待处理索引后异步批量写库（写库后回填 id）
+    void submit(TicketDraftEntity entity);
+
+    // 提交草稿及其下单发件箱记录：两者在同一事务中同步写库（返回即已持久化，失败抛异常），发件箱记录的 draftId 写库时回填
+    void submit(TicketDraftEntity entity, OrderOutboxEntity outbox);
+
+    // 分页查询群内待处理草稿（status=0，按创建时间、ID 倒序的游标分页），优先由内存索引返回
+    // cursor 为上一页返回的 nextCursor，首页传 null；includeAnalysis=false 时不返回 aiAnalysis
+    DraftPage listPending(String groupId, String cursor, int limit, boolean includeAnalysis);
+
+    // 查询群内全部待处理草稿（不分页，按创建时间、ID 倒序），供未传分页参数的旧客户端使用
+    List<TicketDraftEntity> listAllPending(String groupId, boolean includeAnalysis);
+
+    // 更新草稿状态（0-待确认, 1-已转工单, 2-已忽略），同步维护待处理索引
+    boolean updateStatus(Long id, int status);
 }
@@ -0,0 +1,46 @@
+package com.repair.aiops.service.business.impl;
+
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.repair.aiops.mapper.OrderOutboxMapper;
+import com.repair.aiops.model.entity.OrderOutboxEntity;
+import com.repair.aiops.service.business.IOrderOutboxService;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Service
+public class OrderOutboxServiceImpl
+        extends ServiceImpl<OrderOutboxMapper, OrderOutboxEntity>
+        implements IOrderOutboxService {
+
+    @Override
+    public List<OrderOutboxEntity> listDue(LocalDateTime now, int limit) {
+        return this.list(new LambdaQueryWrapper<OrderOutboxEntity>()
+                .eq(OrderOutboxEntity::getStatus, OrderOutboxEntity.STATUS_PENDING)
+                .le(OrderOutboxEntity::getNextAttemptTime, now)
+                .orderByAsc(OrderOutboxEntity::getNextAttemptTime)
+                .last("LIMIT " + limit));
+    }
+
+    @Override
+    public boolean claim(Long id) {
+        return this.update(new LambdaUpdateWrapper<OrderOutboxEntity>()
+                .set(OrderOutboxEntity::getStatus, OrderOutboxEntity.STATUS_SENDING)
+                .set(OrderOutboxEntity::getUpdateTime, LocalDateTime.now())
+                .eq(OrderOutboxEntity::getId, id)
+                .eq(OrderOutboxEntity::getStatus, OrderOutboxEntity.STATUS_PENDING));
+    }
+
+    @Override
+    public int releaseExpired(LocalDateTime leaseBefore) {
+        return baseMapper.update(null, new LambdaUpdateWrapper<OrderOutboxEntity>()
+                .set(OrderOutboxEntity::getStatus, OrderOutboxEntity.STATUS_PENDING)
+                .set(OrderOutboxEntity::getUpdateTime, LocalDateTime.now())
+                .eq(OrderOutboxEntity::getStatus, OrderOutboxEntity.STATUS_SENDING)
+                .lt(OrderOutboxEntity::getUpdateTime, leaseBefore));
+    }
+}
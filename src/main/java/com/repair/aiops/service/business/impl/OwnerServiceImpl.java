@@ -3,34 +3,138 @@ package com.repair.aiops.service.business.impl;
 
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.repair.aiops.mapper.OwnerMapper;
 import com.repair.aiops.model.entity.Owner;
 import com.repair.aiops.service.business.IOwnerService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 业主服务
+ *
+ * 一条消息处理过程中会多次按 senderId 读取业主（AI 身份锚定、提前绑定、下单兜底房号），
+ * 这里用本地缓存（按数量淘汰 + 过期时间）承接读请求，不存在的业主也会缓存，避免反复查库。
+ * 缓存中的对象不对外暴露，读取时返回副本。
+ *
+ * 绑定（bindOwner）采用写后合并（write-behind）：
+ * - 与当前资料（缓存 + 待写入）比较，没有变化直接跳过，不写库
+ * - 有变化时只记录变化的字段，同一业主的多次变更在缓冲区中合并，调用方立即返回
+ * - 定时按批以 INSERT ... ON DUPLICATE KEY UPDATE 写库（依赖 owners.sender_id 唯一索引，
+ *   见 db/migration/V1__owners_sender_id_unique.sql），写库后通过 Redis 发布订阅通知其他节点失效
+ * - 待写入的变更对本节点的读取立即可见；应用关闭时会先写完缓冲区
+ * - 批量写库失败时逐条写入，被数据库多次拒绝的变更记录日志后丢弃，不会拖住其他业主的绑定
+ *
+ * 指标：cache.*{cache=aiops.owner}、aiops.owner.bind{result}、aiops.owner.flush.rows、aiops.owner.flush.failures、
+ * aiops.owner.dead.letter
+ */
 @Slf4j
 @Service
 public class OwnerServiceImpl extends ServiceImpl<OwnerMapper, Owner> implements IOwnerService {
 
+    private static final String INVALIDATE_CHANNEL = "aiops:owner:invalidate";
+    private static final String UNKNOWN_OWNER = "未知身份业主";
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final MeterRegistry meterRegistry;
+    private final Cache<String, Optional<Owner>> ownerCache;
+    // 待写库的绑定变更（只含变化的字段），按 senderId 合并
+    private final ConcurrentHashMap<String, Owner> pendingBindings = new ConcurrentHashMap<>();
+    // 单条写库被数据库拒绝的次数（只在 flush 中访问）
+    private final ConcurrentHashMap<String, Integer> writeAttempts = new ConcurrentHashMap<>();
+
+    @Value("${aiops.owner-bind.batch-size:200}")
+    private int flushBatchSize;
+
+    // 单个业主的变更被数据库拒绝的最多写入次数，超过后记录日志并丢弃
+    @Value("${aiops.owner-bind.max-write-attempts:3}")
+    private int maxWriteAttempts;
+    // 本节点标识，收到自己发出的失效通知时忽略
+    private final String nodeId = UUID.randomUUID().toString();
+
+    public OwnerServiceImpl(StringRedisTemplate redisTemplate,
+                            RedisMessageListenerContainer listenerContainer,
+                            MeterRegistry meterRegistry,
+                            @Value("${aiops.owner-cache.max-size:10000}") long maxSize,
+                            @Value("${aiops.owner-cache.ttl-seconds:600}") long ttlSeconds) {
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.meterRegistry = meterRegistry;
+        this.ownerCache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, ownerCache, "aiops.owner");
+    }
+
+    @PostConstruct
+    public void subscribeInvalidation() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int idx = body.indexOf('|');
+            if (idx <= 0 || body.substring(0, idx).equals(nodeId)) {
+                return;
+            }
+            String senderId = body.substring(idx + 1);
+            ownerCache.invalidate(senderId);
+            log.debug("收到业主缓存失效通知：senderId={}", senderId);
+        }, new ChannelTopic(INVALIDATE_CHANNEL));
+    }
+
+    @Override
+    public Owner getBySenderId(String senderId) {
+        if (senderId == null || senderId.trim().isEmpty()) {
+            return null;
+        }
+        Optional<Owner> cached = ownerCache.get(senderId, id -> Optional.ofNullable(
+                this.getOne(new LambdaQueryWrapper<Owner>().eq(Owner::getSenderId, id))));
+        Owner pending = pendingBindings.get(senderId);
+        if (pending != null) {
+            return merge(cached.orElse(null), pending);
+        }
+        return cached.map(OwnerServiceImpl::copy).orElse(null);
+    }
+
     @Override
     public String getOwnerInfo(String senderId) {
         if (senderId == null || senderId.trim().isEmpty()) {
-            return "未知身份业主";
+            return UNKNOWN_OWNER;
         }
         
         try {
-            // 使用 MyBatis-Plus 的 LambdaQuery 提高代码安全性
-            Owner owner = this.getOne(new LambdaQueryWrapper<Owner>()
-                    .eq(Owner::getSenderId, senderId));
+            Owner owner = getBySenderId(senderId);
 
             if (owner != null && owner.getRoomNumber() != null && owner.getOwnerName() != null) {
                 return String.format("%s室, %s", owner.getRoomNumber(), owner.getOwnerName());
             }
-            return "未知身份业主";
+            return UNKNOWN_OWNER;
         } catch (Exception e) {
             log.error("获取业主信息异常：senderId={}, error={}", senderId, e.getMessage(), e);
-            return "未知身份业主";
+            return UNKNOWN_OWNER;
         }
     }
 
@@ -46,31 +150,231 @@ public class OwnerServiceImpl extends ServiceImpl<OwnerMapper, Owner> implements
             throw new IllegalArgumentException("发送者ID不能为空");
         }
         
+        Owner change = new Owner();
+        change.setSenderId(senderId);
+        if (roomNumber != null && !roomNumber.trim().isEmpty()) {
+            change.setRoomNumber(roomNumber);
+        }
+        if (name != null && !name.trim().isEmpty()) {
+            change.setOwnerName(name);
+        }
+        if (wechatName != null && !wechatName.trim().isEmpty()) {
+            change.setWechatName(wechatName.trim());
+        }
+        if (change.getRoomNumber() == null && change.getOwnerName() == null && change.getWechatName() == null) {
+            return;
+        }
+
+        Owner current;
         try {
-            Owner owner = this.getOne(new LambdaQueryWrapper<Owner>()
-                    .eq(Owner::getSenderId, senderId));
+            current = getBySenderId(senderId);
+        } catch (Exception e) {
+            // 查不到当前资料时按有变化处理，写库时只覆盖非空字段，结果一致
+            log.warn("读取业主信息异常，直接提交绑定：senderId={}, error={}", senderId, e.getMessage());
+            current = null;
+        }
+        if (current != null && !changes(current, change)) {
+            countBind("skipped");
+            log.debug("业主信息无变化，跳过绑定：senderId={}", senderId);
+            return;
+        }
+
+        pendingBindings.merge(senderId, change, OwnerServiceImpl::merge);
+        countBind("queued");
+        log.info("绑定业主已提交：senderId={}, roomNumber={}, name={}, wechatName={}",
+                senderId, roomNumber, name, change.getWechatName());
+    }
+
+    @Scheduled(fixedDelayString = "${aiops.owner-bind.flush-interval-ms:1000}")
+    public void flushPendingBindings() {
+        flush();
+    }
+
+    /**
+     * 应用关闭前写完缓冲区
+     */
+    @PreDestroy
+    public void flushOnShutdown() {
+        int rows = flush();
+        if (rows > 0) {
+            log.info("关闭前已写入待绑定业主：count={}", rows);
+        }
+        if (!pendingBindings.isEmpty()) {
+            log.error("关闭前仍有业主绑定未写入：count={}, senderIds={}", pendingBindings.size(), pendingBindings.keySet());
+        }
+    }
 
-            if (owner == null) {
-                owner = new Owner();
+    /**
+     * 分批写入待绑定业主，写库成功后才移出缓冲区
+     * 数据库暂不可用时整批留在缓冲区等待下次写入；其他失败改为逐条写入（见 {@link #upsertRowByRow}）
+     * @return 本次写入的业主数
+     */
+    private synchronized int flush() {
+        int flushed = 0;
+        while (!pendingBindings.isEmpty()) {
+            List<Owner> batch = new ArrayList<>(flushBatchSize);
+            for (String senderId : pendingBindings.keySet()) {
+                // 写库完成前变更留在缓冲区，getBySenderId 以库中（或缓存中）的完整资料叠加变更返回；
+                // 不把只含变更字段的记录放进缓存，否则未缓存的老业主会暂时缺少 ID、姓名或房号
+                Owner change = pendingBindings.get(senderId);
+                if (change != null) {
+                    batch.add(change);
+                }
+                if (batch.size() >= flushBatchSize) {
+                    break;
+                }
+            }
+            if (batch.isEmpty()) {
+                break;
             }
 
-            owner.setSenderId(senderId);
-            if (roomNumber != null && !roomNumber.trim().isEmpty()) {
-                owner.setRoomNumber(roomNumber);
+            try {
+                baseMapper.upsertBatch(batch);
+            } catch (Exception e) {
+                Counter.builder("aiops.owner.flush.failures")
+                        .description("业主绑定批量写库失败次数")
+                        .register(meterRegistry)
+                        .increment();
+                if (isTransient(e)) {
+                    // 变更仍在缓冲区中，下次定时写入时整批重试
+                    log.error("批量写入业主绑定失败，稍后重试：count={}, error={}", batch.size(), e.getMessage(), e);
+                } else {
+                    log.error("批量写入业主绑定失败，改为逐条写入：count={}, error={}", batch.size(), e.getMessage(), e);
+                    flushed += upsertRowByRow(batch);
+                }
+                break;
             }
-            if (name != null && !name.trim().isEmpty()) {
-                owner.setOwnerName(name);
+
+            for (Owner change : batch) {
+                committed(change);
             }
-            if (wechatName != null && !wechatName.trim().isEmpty()) {
-                owner.setWechatName(wechatName.trim());
+            flushed += batch.size();
+            countFlushedRows(batch.size());
+            log.debug("批量写入业主绑定：count={}", batch.size());
+        }
+        return flushed;
+    }
+
+    /**
+     * 批量写库失败后逐条写入：个别被数据库拒绝的变更（超长、约束冲突等）不再拖住同批次的其他业主
+     * 数据库暂不可用时剩余变更留在缓冲区，不计失败次数；单条被拒绝时累计次数，达到上限后记录日志并丢弃（死信）
+     * @return 写入成功的业主数
+     */
+    private int upsertRowByRow(List<Owner> batch) {
+        int saved = 0;
+        for (Owner change : batch) {
+            String senderId = change.getSenderId();
+            try {
+                baseMapper.upsertBatch(List.of(change));
+            } catch (Exception e) {
+                if (isTransient(e)) {
+                    log.warn("数据库暂不可用，剩余业主绑定稍后重试：error={}", e.getMessage());
+                    break;
+                }
+                int attempts = writeAttempts.merge(senderId, 1, Integer::sum);
+                if (attempts >= maxWriteAttempts) {
+                    deadLetter(change, attempts, e);
+                } else {
+                    log.warn("业主绑定写库失败，稍后重试：senderId={}, attempts={}, error={}", senderId, attempts, e.getMessage());
+                }
+                continue;
             }
+            committed(change);
+            saved++;
+        }
+        countFlushedRows(saved);
+        return saved;
+    }
+
+    /**
+     * 变更已写库：先失效缓存再移出缓冲区，之后的读取从库中加载（新业主需要拿到自增ID）
+     */
+    private void committed(Owner change) {
+        String senderId = change.getSenderId();
+        ownerCache.invalidate(senderId);
+        // 写库期间又有新变更合并进来时保留，下一批写入
+        pendingBindings.remove(senderId, change);
+        writeAttempts.remove(senderId);
+        publishInvalidation(senderId);
+    }
+
+    /**
+     * 多次被数据库拒绝的变更：完整记录到错误日志后丢弃
+     */
+    private void deadLetter(Owner change, int attempts, Exception cause) {
+        String senderId = change.getSenderId();
+        pendingBindings.remove(senderId, change);
+        writeAttempts.remove(senderId);
+        Counter.builder("aiops.owner.dead.letter")
+                .description("多次写库失败被丢弃的业主绑定数")
+                .register(meterRegistry)
+                .increment();
+        log.error("业主绑定写库多次失败，已丢弃：senderId={}, roomNumber={}, name={}, wechatName={}, attempts={}, error={}",
+                senderId, change.getRoomNumber(), change.getOwnerName(), change.getWechatName(), attempts, cause.getMessage());
+    }
+
+    private static boolean isTransient(Exception e) {
+        return e instanceof TransientDataAccessException
+                || e instanceof RecoverableDataAccessException
+                || e instanceof DataAccessResourceFailureException;
+    }
 
-            this.saveOrUpdate(owner);
-            log.info("绑定业主成功：senderId={}, roomNumber={}, name={}, wechatName={}",
-                    senderId, roomNumber, name, owner.getWechatName());
+    private void countFlushedRows(int rows) {
+        if (rows <= 0) {
+            return;
+        }
+        Counter.builder("aiops.owner.flush.rows")
+                .description("业主绑定写库行数")
+                .register(meterRegistry)
+                .increment(rows);
+    }
+
+    /**
+     * change 中的非空字段是否与当前资料不同
+     */
+    private static boolean changes(Owner current, Owner change) {
+        return (change.getRoomNumber() != null && !change.getRoomNumber().equals(current.getRoomNumber()))
+                || (change.getOwnerName() != null && !change.getOwnerName().equals(current.getOwnerName()))
+                || (change.getWechatName() != null && !change.getWechatName().equals(current.getWechatName()));
+    }
+
+    /**
+     * 以 base 为底，用 newer 的非空字段覆盖，返回新对象（base 可为 null）
+     */
+    private static Owner merge(Owner base, Owner newer) {
+        Owner merged = base != null ? copy(base) : new Owner();
+        merged.setSenderId(newer.getSenderId());
+        if (newer.getRoomNumber() != null) {
+            merged.setRoomNumber(newer.getRoomNumber());
+        }
+        if (newer.getOwnerName() != null) {
+            merged.setOwnerName(newer.getOwnerName());
+        }
+        if (newer.getWechatName() != null) {
+            merged.setWechatName(newer.getWechatName());
+        }
+        return merged;
+    }
+
+    private void countBind(String result) {
+        Counter.builder("aiops.owner.bind")
+                .description("业主绑定请求数")
+                .tag("result", result)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    private void publishInvalidation(String senderId) {
+        try {
+            redisTemplate.convertAndSend(INVALIDATE_CHANNEL, nodeId + "|" + senderId);
         } catch (Exception e) {
-            log.error("绑定业主异常：senderId={}, error={}", senderId, e.getMessage(), e);
-            throw new RuntimeException("绑定业主失败：" + e.getMessage(), e);
+            // 其他节点最迟在缓存过期后读到新数据
+            log.warn("发布业主缓存失效通知失败：senderId={}, error={}", senderId, e.getMessage());
         }
     }
+
+    private static Owner copy(Owner owner) {
+        return new Owner(owner.getId(), owner.getSenderId(), owner.getRoomNumber(), owner.getOwnerName(),
+                owner.getWechatName(), owner.getPhoneNumber());
+    }
 }
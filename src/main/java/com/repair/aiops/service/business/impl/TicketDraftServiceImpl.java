@@ -1,14 +1,732 @@
 package com.repair.aiops.service.business.impl;
 
 
+import com.alibaba.fastjson.JSON;
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.repair.aiops.mapper.TicketDraftMapper;
+import com.repair.aiops.model.dto.DraftPage;
+import com.repair.aiops.model.entity.OrderOutboxEntity;
 import com.repair.aiops.model.entity.TicketDraftEntity;
+import com.repair.aiops.service.business.IOrderOutboxService;
 import com.repair.aiops.service.business.ITicketDraftService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service; // 必须有这个导入
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 工单草稿服务
+ *
+ * 写入：不带下单发件箱的草稿只放进写库队列，定时用 saveBatch 批量写入，管道线程不等待数据库，
+ * 队列满时退化为同步写入；带发件箱记录的草稿（要下单的）与发件箱记录在同一事务中同步写入，
+ * 返回即已持久化，不会因进程崩溃丢单（见 OrderOutboxRelay）。
+ * 批量写入失败时改为逐条写入，被数据库反复拒绝的草稿达到 aiops.draft.max-write-attempts 后记录日志并丢弃。
+ *
+ * 读取：按群维护待处理草稿（status=0）的内存索引，启动时从库中加载，
+ * submit / updateStatus 时同步更新，侧边栏查询直接读索引，不查 MySQL。
+ * 多节点部署时，草稿写库后和状态变更后通过 Redis 发布订阅通知其他节点更新各自的索引；
+ * 为兼容其他系统直接改库（以及漏掉的通知），索引会定期按库中数据重建：重建只查询列表需要的列（不含 aiAnalysis），
+ * 查询期间不持有写库锁，期间的写库和状态变更记在重建日志中，替换索引时合并。
+ * 侧边栏按 (create_time, id) 游标分页，默认不返回体积较大的 aiAnalysis，需要时只按当页 ID 查询；
+ * 索引未就绪时按同样的游标直接查库（见 db/migration/V4__work_order_drafts_status_index.sql）。
+ *
+ * 指标：aiops.draft.queue.size、aiops.draft.flush.rows、aiops.draft.flush.failures、aiops.draft.dead.letter
+ */
+@Slf4j
 @Service
 public class TicketDraftServiceImpl
         extends ServiceImpl<TicketDraftMapper, TicketDraftEntity>
         implements ITicketDraftService {
+
+    private static final int STATUS_PENDING = 0;
+    private static final String INDEX_CHANNEL = "aiops:draft:index";
+    // 通知类型：I-新草稿已写库（JSON 数组），S-状态变更（id:status）
+    private static final String EVENT_INSERTED = "I";
+    private static final String EVENT_STATUS = "S";
+
+    private final MeterRegistry meterRegistry;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final IOrderOutboxService outboxService;
+    private final TransactionTemplate transactionTemplate;
+    private final LinkedBlockingQueue<PendingDraft> writeQueue;
+    // groupId -> 待处理草稿
+    private volatile Map<String, ConcurrentLinkedDeque<TicketDraftEntity>> pendingIndex = new ConcurrentHashMap<>();
+    // 索引是否已从库中加载；未就绪时分页查询直接查库
+    private volatile boolean indexReady;
+    // 分页顺序：创建时间、ID 倒序
+    private static final Comparator<TicketDraftEntity> PAGE_ORDER = Comparator
+            .comparing(TicketDraftServiceImpl::sortTime, Comparator.reverseOrder())
+            .thenComparing(TicketDraftServiceImpl::sortId, Comparator.reverseOrder());
+    // 写库与替换索引互斥，避免替换时漏掉已出队、尚未提交的草稿
+    private final Object flushLock = new Object();
+    // 入队 + 加索引与索引替换互斥，避免重建时草稿重复或丢失（不含数据库操作，持有时间很短）
+    private final Object indexLock = new Object();
+    // 同一时间只做一次重建
+    private final Object rebuildLock = new Object();
+    // 重建查库期间的索引变化，替换索引时合并；不在重建时为 null
+    private volatile RebuildJournal rebuildJournal;
+    // 本节点标识，收到自己发出的索引通知时忽略
+    private final String nodeId = UUID.randomUUID().toString();
+
+    @Value("${aiops.draft.batch-size:100}")
+    private int batchSize;
+
+    // 单条草稿被数据库拒绝的最多重试次数，超过后记录日志并丢弃
+    @Value("${aiops.draft.max-write-attempts:3}")
+    private int maxWriteAttempts;
+
+    public TicketDraftServiceImpl(MeterRegistry meterRegistry,
+                                  IOrderOutboxService outboxService,
+                                  TransactionTemplate transactionTemplate,
+                                  StringRedisTemplate redisTemplate,
+                                  RedisMessageListenerContainer listenerContainer,
+                                  @Value("${aiops.draft.queue-capacity:10000}") int queueCapacity) {
+        this.meterRegistry = meterRegistry;
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.outboxService = outboxService;
+        this.transactionTemplate = transactionTemplate;
+        this.writeQueue = new LinkedBlockingQueue<>(queueCapacity);
+        Gauge.builder("aiops.draft.queue.size", writeQueue, LinkedBlockingQueue::size)
+                .description("待写库的草稿数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 启动时加载待处理草稿
+     */
+    @PostConstruct
+    public void warmPendingIndex() {
+        try {
+            rebuildPendingIndex();
+        } catch (Exception e) {
+            log.error("加载待处理草稿索引失败，侧边栏将只显示新提交的草稿：error={}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 订阅其他节点的索引通知：新草稿写库后加入索引，状态变更后移出索引
+     */
+    @PostConstruct
+    public void subscribeIndexEvents() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            String[] parts = body.split("\\|", 3);
+            if (parts.length < 3 || parts[0].equals(nodeId)) {
+                return;
+            }
+            try {
+                if (EVENT_INSERTED.equals(parts[1])) {
+                    for (TicketDraftEntity draft : JSON.parseArray(parts[2], TicketDraftEntity.class)) {
+                        addRemoteDraft(draft);
+                    }
+                } else if (EVENT_STATUS.equals(parts[1])) {
+                    int idx = parts[2].indexOf(':');
+                    removeFromIndex(Long.parseLong(parts[2].substring(0, idx)), Integer.parseInt(parts[2].substring(idx + 1)));
+                }
+            } catch (Exception e) {
+                log.warn("处理草稿索引通知失败，等待定期重建：body={}, error={}", body, e.getMessage());
+            }
+        }, new ChannelTopic(INDEX_CHANNEL));
+    }
+
+    @Override
+    public void submit(TicketDraftEntity entity) {
+        submit(entity, null);
+    }
+
+    @Override
+    public void submit(TicketDraftEntity entity, OrderOutboxEntity outbox) {
+        if (entity.getStatus() == null) {
+            entity.setStatus(STATUS_PENDING);
+        }
+        if (entity.getCreateTime() == null) {
+            entity.setCreateTime(LocalDateTime.now());
+        }
+        if (outbox != null) {
+            saveDurably(entity, outbox);
+            return;
+        }
+        boolean queued;
+        synchronized (indexLock) {
+            queued = writeQueue.offer(new PendingDraft(entity, outbox));
+            if (entity.getStatus() == STATUS_PENDING && entity.getGroupId() != null) {
+                pendingIndex.computeIfAbsent(entity.getGroupId(), k -> new ConcurrentLinkedDeque<>()).addFirst(entity);
+            }
+        }
+        if (!queued) {
+            log.warn("草稿写库队列已满，同步写入：groupId={}", entity.getGroupId());
+            synchronized (flushLock) {
+                saveInTransaction(List.of(new PendingDraft(entity, outbox)));
+            }
+        }
+    }
+
+    /**
+     * 同步写入草稿及其发件箱记录，写库成功后再加入索引；失败时异常抛给调用方
+     * 持有 flushLock，避免与替换索引交错导致草稿不在新索引中
+     */
+    private void saveDurably(TicketDraftEntity entity, OrderOutboxEntity outbox) {
+        synchronized (flushLock) {
+            PendingDraft pending = new PendingDraft(entity, outbox);
+            try {
+                saveInTransaction(List.of(pending));
+            } catch (RuntimeException e) {
+                resetIds(pending);
+                throw e;
+            }
+            countFlushedRows(1);
+            if (entity.getStatus() == STATUS_PENDING && entity.getGroupId() != null) {
+                synchronized (indexLock) {
+                    pendingIndex.computeIfAbsent(entity.getGroupId(), k -> new ConcurrentLinkedDeque<>()).addFirst(entity);
+                }
+            }
+        }
+    }
+
+    @Override
+    public DraftPage listPending(String groupId, String cursor, int limit, boolean includeAnalysis) {
+        DraftCursor after = DraftCursor.decode(cursor);
+        if (!indexReady) {
+            return listPendingFromDb(groupId, after, limit, includeAnalysis);
+        }
+        ConcurrentLinkedDeque<TicketDraftEntity> drafts = pendingIndex.get(groupId);
+        if (drafts == null) {
+            return new DraftPage(new ArrayList<>(), null);
+        }
+        List<TicketDraftEntity> sorted = new ArrayList<>(drafts);
+        sorted.sort(PAGE_ORDER);
+
+        List<TicketDraftEntity> page = new ArrayList<>(Math.min(limit, sorted.size()));
+        boolean hasMore = false;
+        for (TicketDraftEntity draft : sorted) {
+            if (after != null && !after.isBefore(draft)) {
+                continue;
+            }
+            // 尚未写库的草稿不作为分页边界：写库后 ID 变化，会在下一页再次出现，此时多取几条直到边界是已写库的草稿
+            if (page.size() >= limit && page.get(page.size() - 1).getId() != null) {
+                hasMore = true;
+                break;
+            }
+            page.add(draft);
+        }
+        DraftPage result = toPage(page, hasMore, includeAnalysis);
+        if (includeAnalysis) {
+            result.setItems(withAnalysis(page));
+        }
+        return result;
+    }
+
+    @Override
+    public List<TicketDraftEntity> listAllPending(String groupId, boolean includeAnalysis) {
+        if (!indexReady) {
+            LambdaQueryWrapper<TicketDraftEntity> wrapper = new LambdaQueryWrapper<TicketDraftEntity>()
+                    .eq(TicketDraftEntity::getGroupId, groupId)
+                    .eq(TicketDraftEntity::getStatus, STATUS_PENDING)
+                    .orderByDesc(TicketDraftEntity::getCreateTime)
+                    .orderByDesc(TicketDraftEntity::getId);
+            return toPage(this.list(wrapper), false, includeAnalysis).getItems();
+        }
+        ConcurrentLinkedDeque<TicketDraftEntity> drafts = pendingIndex.get(groupId);
+        if (drafts == null) {
+            return new ArrayList<>();
+        }
+        List<TicketDraftEntity> sorted = new ArrayList<>(drafts);
+        sorted.sort(PAGE_ORDER);
+        return includeAnalysis ? withAnalysis(sorted) : toPage(sorted, false, false).getItems();
+    }
+
+    /**
+     * 索引未就绪（启动加载失败）时按游标直接查库，依赖 idx_drafts_status_group_time 复合索引
+     */
+    private DraftPage listPendingFromDb(String groupId, DraftCursor after, int limit, boolean includeAnalysis) {
+        LambdaQueryWrapper<TicketDraftEntity> wrapper = new LambdaQueryWrapper<TicketDraftEntity>()
+                .eq(TicketDraftEntity::getGroupId, groupId)
+                .eq(TicketDraftEntity::getStatus, STATUS_PENDING);
+        if (!includeAnalysis) {
+            wrapper.select(TicketDraftEntity::getId, TicketDraftEntity::getGroupId, TicketDraftEntity::getSenderId,
+                    TicketDraftEntity::getContent, TicketDraftEntity::getStatus, TicketDraftEntity::getCreateTime);
+        }
+        if (after != null) {
+            wrapper.and(w -> w.lt(TicketDraftEntity::getCreateTime, after.createTime)
+                    .or(o -> o.eq(TicketDraftEntity::getCreateTime, after.createTime)
+                            .lt(TicketDraftEntity::getId, after.id)));
+        }
+        wrapper.orderByDesc(TicketDraftEntity::getCreateTime)
+                .orderByDesc(TicketDraftEntity::getId)
+                .last("LIMIT " + (limit + 1));
+        List<TicketDraftEntity> rows = this.list(wrapper);
+        boolean hasMore = rows.size() > limit;
+        return toPage(hasMore ? rows.subList(0, limit) : rows, hasMore, true);
+    }
+
+    /**
+     * 索引中的草稿（重建时加载的）不含 aiAnalysis，按 ID 补查后返回副本，不把大字段放进索引
+     */
+    private List<TicketDraftEntity> withAnalysis(List<TicketDraftEntity> drafts) {
+        List<Long> missing = new ArrayList<>();
+        for (TicketDraftEntity draft : drafts) {
+            if (draft.getId() != null && draft.getAiAnalysis() == null) {
+                missing.add(draft.getId());
+            }
+        }
+        Map<Long, String> analyses = new HashMap<>();
+        for (int from = 0; from < missing.size(); from += batchSize) {
+            List<Long> ids = missing.subList(from, Math.min(from + batchSize, missing.size()));
+            for (TicketDraftEntity row : this.list(new LambdaQueryWrapper<TicketDraftEntity>()
+                    .select(TicketDraftEntity::getId, TicketDraftEntity::getAiAnalysis)
+                    .in(TicketDraftEntity::getId, ids))) {
+                if (row.getAiAnalysis() != null) {
+                    analyses.put(row.getId(), row.getAiAnalysis());
+                }
+            }
+        }
+        List<TicketDraftEntity> result = new ArrayList<>(drafts.size());
+        for (TicketDraftEntity draft : drafts) {
+            TicketDraftEntity copy = lightCopy(draft);
+            copy.setAiAnalysis(draft.getAiAnalysis() != null ? draft.getAiAnalysis() : analyses.get(draft.getId()));
+            result.add(copy);
+        }
+        return result;
+    }
+
+    private static TicketDraftEntity lightCopy(TicketDraftEntity draft) {
+        TicketDraftEntity copy = new TicketDraftEntity();
+        copy.setId(draft.getId());
+        copy.setGroupId(draft.getGroupId());
+        copy.setSenderId(draft.getSenderId());
+        copy.setContent(draft.getContent());
+        copy.setStatus(draft.getStatus());
+        copy.setCreateTime(draft.getCreateTime());
+        return copy;
+    }
+
+    private DraftPage toPage(List<TicketDraftEntity> page, boolean hasMore, boolean includeAnalysis) {
+        String nextCursor = hasMore && !page.isEmpty() ? DraftCursor.of(page.get(page.size() - 1)).encode() : null;
+        if (includeAnalysis) {
+            return new DraftPage(new ArrayList<>(page), nextCursor);
+        }
+        List<TicketDraftEntity> light = new ArrayList<>(page.size());
+        for (TicketDraftEntity draft : page) {
+            light.add(lightCopy(draft));
+        }
+        return new DraftPage(light, nextCursor);
+    }
+
+    @Override
+    public boolean updateStatus(Long id, int status) {
+        if (id == null) {
+            return false;
+        }
+        // 先写完队列中的草稿，保证目标草稿已入库
+        flush();
+        TicketDraftEntity update = new TicketDraftEntity();
+        update.setId(id);
+        update.setStatus(status);
+        boolean updated = this.updateById(update);
+        if (updated) {
+            removeFromIndex(id, status);
+            publish(EVENT_STATUS, id + ":" + status);
+        }
+        return updated;
+    }
+
+    private void removeFromIndex(Long id, int status) {
+        synchronized (indexLock) {
+            RebuildJournal journal = rebuildJournal;
+            if (journal != null && status != STATUS_PENDING) {
+                journal.removed.add(id);
+            }
+            for (ConcurrentLinkedDeque<TicketDraftEntity> drafts : pendingIndex.values()) {
+                for (TicketDraftEntity draft : drafts) {
+                    if (id.equals(draft.getId())) {
+                        draft.setStatus(status);
+                        if (status != STATUS_PENDING) {
+                            drafts.remove(draft);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 其他节点写库的草稿加入本节点索引（已在索引中的跳过，例如重建时已从库中加载）
+     */
+    private void addRemoteDraft(TicketDraftEntity draft) {
+        if (draft.getId() == null || draft.getGroupId() == null
+                || draft.getStatus() == null || draft.getStatus() != STATUS_PENDING) {
+            return;
+        }
+        synchronized (indexLock) {
+            ConcurrentLinkedDeque<TicketDraftEntity> drafts =
+                    pendingIndex.computeIfAbsent(draft.getGroupId(), k -> new ConcurrentLinkedDeque<>());
+            for (TicketDraftEntity existing : drafts) {
+                if (draft.getId().equals(existing.getId())) {
+                    return;
+                }
+            }
+            drafts.addFirst(draft);
+            RebuildJournal journal = rebuildJournal;
+            if (journal != null) {
+                journal.added.add(draft);
+            }
+        }
+    }
+
+    private void publish(String type, String payload) {
+        try {
+            redisTemplate.convertAndSend(INDEX_CHANNEL, nodeId + "|" + type + "|" + payload);
+        } catch (Exception e) {
+            // 其他节点最迟在下次索引重建后看到变化
+            log.warn("发布草稿索引通知失败：type={}, error={}", type, e.getMessage());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${aiops.draft.flush-interval-ms:500}")
+    public void flushQueuedDrafts() {
+        flush();
+    }
+
+    /**
+     * 定期按库中数据重建索引（兼容其他系统直接修改草稿状态）
+     */
+    @Scheduled(initialDelayString = "${aiops.draft.index-resync-interval-ms:300000}",
+            fixedDelayString = "${aiops.draft.index-resync-interval-ms:300000}")
+    public void resyncPendingIndex() {
+        try {
+            rebuildPendingIndex();
+        } catch (Exception e) {
+            log.warn("重建待处理草稿索引失败：error={}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flush();
+        if (!writeQueue.isEmpty()) {
+            log.error("关闭前仍有草稿未写库：count={}", writeQueue.size());
+        }
+    }
+
+    /**
+     * 分批写入队列中的草稿，写库失败的草稿放回队列等待下次写入
+     */
+    private void flush() {
+        synchronized (flushLock) {
+            while (!writeQueue.isEmpty()) {
+                List<PendingDraft> batch = new ArrayList<>(batchSize);
+                writeQueue.drainTo(batch, batchSize);
+                if (batch.isEmpty()) {
+                    return;
+                }
+                try {
+                    saveInTransaction(batch);
+                } catch (Exception e) {
+                    Counter.builder("aiops.draft.flush.failures")
+                            .description("草稿批量写库失败次数")
+                            .register(meterRegistry)
+                            .increment();
+                    log.error("草稿批量写库失败，改为逐条写入：count={}, error={}", batch.size(), e.getMessage(), e);
+                    // 逐条写入：个别被数据库拒绝的草稿不再拖住同批次的其他草稿；失败的草稿放回队尾，下次再试
+                    saveRowByRow(batch);
+                    return;
+                }
+                countFlushedRows(batch.size());
+                log.debug("草稿批量写库完成：count={}", batch.size());
+            }
+        }
+    }
+
+    /**
+     * 批量写库失败后逐条写入
+     * 数据库不可用（连接失败、超时等临时错误）时整批放回队列，不计失败次数；
+     * 单条被数据库拒绝（超长、约束冲突等）时累计失败次数，达到上限后记录日志并丢弃（死信）
+     */
+    private void saveRowByRow(List<PendingDraft> batch) {
+        int saved = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            PendingDraft pending = batch.get(i);
+            try {
+                saveInTransaction(List.of(pending));
+                saved++;
+            } catch (Exception e) {
+                resetIds(pending);
+                if (isTransient(e)) {
+                    log.warn("数据库暂不可用，剩余草稿稍后重试：count={}, error={}", batch.size() - i, e.getMessage());
+                    for (PendingDraft remaining : batch.subList(i, batch.size())) {
+                        requeue(remaining);
+                    }
+                    break;
+                }
+                pending.attempts++;
+                if (pending.attempts >= maxWriteAttempts) {
+                    deadLetter(pending, e);
+                } else {
+                    log.warn("草稿写库失败，稍后重试：groupId={}, senderId={}, attempts={}, error={}",
+                            pending.entity.getGroupId(), pending.entity.getSenderId(), pending.attempts, e.getMessage());
+                    requeue(pending);
+                }
+            }
+        }
+        countFlushedRows(saved);
+    }
+
+    private static boolean isTransient(Exception e) {
+        return e instanceof TransientDataAccessException
+                || e instanceof RecoverableDataAccessException
+                || e instanceof DataAccessResourceFailureException;
+    }
+
+    /**
+     * 事务已回滚，清掉插入时回填的 ID
+     */
+    private static void resetIds(PendingDraft pending) {
+        pending.entity.setId(null);
+        if (pending.outbox != null) {
+            pending.outbox.setId(null);
+            pending.outbox.setDraftId(null);
+        }
+    }
+
+    private void requeue(PendingDraft pending) {
+        if (!writeQueue.offer(pending)) {
+            deadLetter(pending, null);
+        }
+    }
+
+    /**
+     * 多次写库失败（或无法重新入队）的草稿：完整记录到错误日志后丢弃，并从待处理索引中移除
+     */
+    private void deadLetter(PendingDraft pending, Exception cause) {
+        TicketDraftEntity draft = pending.entity;
+        synchronized (indexLock) {
+            ConcurrentLinkedDeque<TicketDraftEntity> drafts = draft.getGroupId() != null ? pendingIndex.get(draft.getGroupId()) : null;
+            if (drafts != null) {
+                drafts.removeIf(d -> d == draft);
+            }
+        }
+        Counter.builder("aiops.draft.dead.letter")
+                .description("多次写库失败被丢弃的草稿数")
+                .register(meterRegistry)
+                .increment();
+        log.error("草稿写库多次失败，已丢弃：groupId={}, senderId={}, attempts={}, content={}, aiAnalysis={}, idempotencyKey={}, error={}",
+                draft.getGroupId(), draft.getSenderId(), pending.attempts, draft.getContent(), draft.getAiAnalysis(),
+                pending.outbox != null ? pending.outbox.getIdempotencyKey() : null,
+                cause != null ? cause.getMessage() : "写库队列已满");
+    }
+
+    private void countFlushedRows(int rows) {
+        if (rows <= 0) {
+            return;
+        }
+        Counter.builder("aiops.draft.flush.rows")
+                .description("草稿写库行数")
+                .register(meterRegistry)
+                .increment(rows);
+    }
+
+    /**
+     * 分页游标：上一页最后一条的 (create_time, id)，Base64 编码后对调用方不透明
+     * 尚未写库的草稿没有 ID，按 Long.MAX_VALUE 排序（同一时间内排在最前），且不会作为游标边界
+     */
+    static final class DraftCursor {
+        private final LocalDateTime createTime;
+        private final long id;
+
+        private DraftCursor(LocalDateTime createTime, long id) {
+            this.createTime = createTime;
+            this.id = id;
+        }
+
+        static DraftCursor of(TicketDraftEntity draft) {
+            return new DraftCursor(sortTime(draft), sortId(draft));
+        }
+
+        static DraftCursor decode(String cursor) {
+            if (cursor == null || cursor.isEmpty()) {
+                return null;
+            }
+            try {
+                String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                int idx = raw.lastIndexOf('_');
+                return new DraftCursor(LocalDateTime.parse(raw.substring(0, idx)), Long.parseLong(raw.substring(idx + 1)));
+            } catch (Exception e) {
+                throw new IllegalArgumentException("无效的分页游标：" + cursor);
+            }
+        }
+
+        String encode() {
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString((createTime + "_" + id).getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * draft 是否排在游标之后（即属于下一页）
+         */
+        boolean isBefore(TicketDraftEntity draft) {
+            int cmp = sortTime(draft).compareTo(createTime);
+            return cmp < 0 || (cmp == 0 && sortId(draft) < id);
+        }
+    }
+
+    private static LocalDateTime sortTime(TicketDraftEntity draft) {
+        return draft.getCreateTime() != null ? draft.getCreateTime() : LocalDateTime.MIN;
+    }
+
+    private static long sortId(TicketDraftEntity draft) {
+        return draft.getId() != null ? draft.getId() : Long.MAX_VALUE;
+    }
+
+    /**
+     * 草稿和对应的下单发件箱记录在同一事务中写入：要么都写入，要么都不写入
+     */
+    private void saveInTransaction(List<PendingDraft> batch) {
+        transactionTemplate.executeWithoutResult(status -> {
+            List<TicketDraftEntity> drafts = new ArrayList<>(batch.size());
+            for (PendingDraft pending : batch) {
+                drafts.add(pending.entity);
+            }
+            this.saveBatch(drafts, batchSize);
+
+            List<OrderOutboxEntity> outboxes = new ArrayList<>();
+            for (PendingDraft pending : batch) {
+                if (pending.outbox != null) {
+                    pending.outbox.setDraftId(pending.entity.getId());
+                    outboxes.add(pending.outbox);
+                }
+            }
+            if (!outboxes.isEmpty()) {
+                outboxService.saveBatch(outboxes, batchSize);
+            }
+        });
+
+        // 事务已提交，通知其他节点（此时草稿已有 ID）
+        List<TicketDraftEntity> inserted = new ArrayList<>(batch.size());
+        for (PendingDraft pending : batch) {
+            if (pending.entity.getGroupId() != null && pending.entity.getStatus() == STATUS_PENDING) {
+                inserted.add(pending.entity);
+            }
+        }
+        if (!inserted.isEmpty()) {
+            RebuildJournal journal = rebuildJournal;
+            if (journal != null) {
+                journal.added.addAll(inserted);
+            }
+            publish(EVENT_INSERTED, JSON.toJSONString(inserted));
+        }
+    }
+
+    private static final class PendingDraft {
+        private final TicketDraftEntity entity;
+        private final OrderOutboxEntity outbox;
+        // 单条写库失败次数（不含数据库不可用的情况）
+        private int attempts;
+
+        private PendingDraft(TicketDraftEntity entity, OrderOutboxEntity outbox) {
+            this.entity = entity;
+            this.outbox = outbox;
+        }
+    }
+
+    /**
+     * 重建期间本节点的索引变化：查库开始后写库的草稿（含其他节点通知的）、变为非待处理的草稿 ID
+     */
+    private static final class RebuildJournal {
+        private final Queue<TicketDraftEntity> added = new ConcurrentLinkedQueue<>();
+        private final Set<Long> removed = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * 按库中数据重建索引
+     * 只查询列表需要的列（aiAnalysis 按需补查，见 {@link #withAnalysis}），依赖 idx_drafts_status_group_time；
+     * 查库时不持有 flushLock，只在合并写库队列、重建日志并替换索引时短暂持有
+     */
+    private void rebuildPendingIndex() {
+        synchronized (rebuildLock) {
+            RebuildJournal journal = new RebuildJournal();
+            rebuildJournal = journal;
+            List<TicketDraftEntity> pending;
+            try {
+                pending = this.list(new LambdaQueryWrapper<TicketDraftEntity>()
+                        .select(TicketDraftEntity::getId, TicketDraftEntity::getGroupId, TicketDraftEntity::getSenderId,
+                                TicketDraftEntity::getContent, TicketDraftEntity::getStatus, TicketDraftEntity::getCreateTime)
+                        .eq(TicketDraftEntity::getStatus, STATUS_PENDING));
+            } catch (RuntimeException e) {
+                rebuildJournal = null;
+                throw e;
+            }
+            Map<String, ConcurrentLinkedDeque<TicketDraftEntity>> index = new ConcurrentHashMap<>();
+            for (TicketDraftEntity draft : pending) {
+                if (draft.getGroupId() != null) {
+                    index.computeIfAbsent(draft.getGroupId(), k -> new ConcurrentLinkedDeque<>()).add(draft);
+                }
+            }
+            // 持有 flushLock：正在写库的草稿已出队但尚未提交，等它提交（记入重建日志）后再合并
+            synchronized (flushLock) {
+                synchronized (indexLock) {
+                    rebuildJournal = null;
+                    Set<Long> loaded = new HashSet<>();
+                    for (TicketDraftEntity draft : pending) {
+                        loaded.add(draft.getId());
+                    }
+                    // 查库开始后写库的草稿（查询可能没读到）
+                    for (TicketDraftEntity draft : journal.added) {
+                        if (draft.getGroupId() != null && draft.getStatus() != null && draft.getStatus() == STATUS_PENDING
+                                && loaded.add(draft.getId())) {
+                            index.computeIfAbsent(draft.getGroupId(), k -> new ConcurrentLinkedDeque<>()).add(draft);
+                        }
+                    }
+                    // 查库开始后状态已变更的草稿（查询可能读到的是旧状态）
+                    if (!journal.removed.isEmpty()) {
+                        for (ConcurrentLinkedDeque<TicketDraftEntity> drafts : index.values()) {
+                            drafts.removeIf(d -> d.getId() != null && journal.removed.contains(d.getId()));
+                        }
+                    }
+                    // 还在队列中未写库的草稿
+                    for (PendingDraft queued : writeQueue) {
+                        TicketDraftEntity draft = queued.entity;
+                        if (draft.getGroupId() != null && draft.getStatus() == STATUS_PENDING) {
+                            index.computeIfAbsent(draft.getGroupId(), k -> new ConcurrentLinkedDeque<>()).add(draft);
+                        }
+                    }
+                    pendingIndex = index;
+                    indexReady = true;
+                }
+            }
+            log.info("待处理草稿索引已加载：groups={}, drafts={}", index.size(),
+                    index.values().stream().mapToInt(ConcurrentLinkedDeque::size).sum());
+        }
+    }
 }
@@ -0,0 +1,18 @@
+package com.repair.aiops.service.classify;
+
+import com.repair.aiops.model.dto.GroupMsgDTO;
+import com.repair.aiops.model.dto.TicketDraft;
+
+/**
+ * 消息预分类服务接口
+ * 在调用大模型之前运行，对明显的闲聊直接给出结论，节省模型调用
+ */
+public interface IMessagePreClassifier {
+
+    /**
+     * 预分类
+     * @param msg 群消息
+     * @return 能确定结论时返回草稿（通常为 NOISE）；无法确定时返回 null，交由大模型分析
+     */
+    TicketDraft classify(GroupMsgDTO msg);
+}
@@ -0,0 +1,235 @@
+package com.repair.aiops.service.classify.impl;
+
+import com.repair.aiops.model.dto.GroupMsgDTO;
+import com.repair.aiops.model.dto.TicketDraft;
+import com.repair.aiops.model.enums.IntentType;
+import com.repair.aiops.service.classify.IMessagePreClassifier;
+import com.repair.aiops.service.memory.ISessionMemoryService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * 基于规则的消息预分类
+ *
+ * 规则偏保守：只有整条消息都由“确定无业务含义”的成分组成时才判定为闲聊，
+ * 带图片、超过长度上限、命中群放行规则的消息一律交给大模型。
+ * 发送人有进行中的会话（正在回答追问或确认）时，“对”“可以”“302”这类短回复是答案而不是闲聊，
+ * 除空内容和纯符号外的规则都不生效，交给结合上下文的大模型判断。
+ * 判定顺序：
+ * 1. 空内容 / 纯数字（沿用原有规则）
+ * 2. 去掉空白、标点、表情、[表情包] 占位后为空
+ * 3. 整条由客套词组成（收到、谢谢、好的、哈哈……，可重复组合）
+ * 4. 不含中文和数字的极短英文（ok、hi、666 之类）
+ *
+ * 群放行规则：aiops.preclassify.group-allow.&lt;groupId&gt;=正则，命中的消息不做预分类
+ */
+@Slf4j
+@Service
+public class RuleBasedPreClassifier implements IMessagePreClassifier {
+
+    /**
+     * 内置客套词（与会话记忆的闲聊过滤保持一致并扩充）
+     */
+    private static final List<String> DEFAULT_NOISE_WORDS = Arrays.asList(
+            "收到", "已收到", "收到了", "谢谢", "谢谢你", "谢谢您", "谢谢管家", "谢谢师傅", "多谢", "感谢", "辛苦了", "辛苦",
+            "好的", "好", "好滴", "好嘞", "好哒", "行", "可以", "没问题", "ok", "okay", "嗯", "嗯嗯", "哦", "噢", "喔",
+            "知道了", "明白", "明白了", "了解", "懂了", "是的", "对", "对的", "对对", "早", "早上好", "早安", "午安",
+            "晚上好", "晚安", "大家好", "你好", "您好", "哈", "呵", "嘿", "赞", "棒", "厉害", "客气", "不客气",
+            "麻烦了", "打扰了", "thanks", "thx", "谢", "👍", "🙏");
+
+    private static final Pattern PURE_DIGITS = Pattern.compile("^\\d{1,10}$");
+
+    /**
+     * 表情包/系统占位：[微笑]、[图片]、[动画表情] 等
+     */
+    private static final Pattern STICKER_PLACEHOLDER = Pattern.compile("\\[[^\\[\\]]{1,8}]");
+
+    /**
+     * 空白、标点、符号（含 emoji 所在的 So/Sk 类别及变体选择符、零宽连接符）
+     */
+    private static final Pattern NON_CONTENT = Pattern.compile("[\\s\\p{P}\\p{S}\\x{FE0F}\\x{200D}\\x{20E3}]+");
+
+    /**
+     * emoji 代理对（补充平面字符）
+     */
+    private static final Pattern SUPPLEMENTARY = Pattern.compile("[\\x{1F000}-\\x{1FAFF}]+");
+
+    /**
+     * 重复语气词：哈哈哈、嗯嗯嗯、666、hhh
+     */
+    private static final Pattern REPEATED_INTERJECTION = Pattern.compile("^(?:[哈呵嘿嗯哦噢喔啊嘻]|6|h)+$");
+
+    private static final Pattern LATIN_ONLY = Pattern.compile("^[a-z]+$");
+
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+    private final ISessionMemoryService memoryService;
+
+    /**
+     * 客套词字典编译成的正则：整条消息由一个或多个客套词组成
+     */
+    private final Pattern noiseWordsPattern;
+
+    /**
+     * 群放行规则缓存（未配置的群缓存为 empty，避免重复读取配置）
+     */
+    private final Map<String, Optional<Pattern>> groupAllowRules = new ConcurrentHashMap<>();
+
+    private final Map<String, Counter> avoidedCounters = new ConcurrentHashMap<>();
+    private final Counter passedCounter;
+
+    @Value("${aiops.preclassify.enabled:true}")
+    private boolean enabled;
+
+    // 超过该长度（去除标点后）的消息不做预分类
+    @Value("${aiops.preclassify.max-length:20}")
+    private int maxLength;
+
+    // 不含中文和数字的纯英文消息，长度不超过该值视为闲聊
+    @Value("${aiops.preclassify.latin-max-length:3}")
+    private int latinMaxLength;
+
+    public RuleBasedPreClassifier(Environment environment,
+                                  MeterRegistry meterRegistry,
+                                  ISessionMemoryService memoryService,
+                                  @Value("${aiops.preclassify.extra-noise-words:}") String extraNoiseWords) {
+        this.environment = environment;
+        this.meterRegistry = meterRegistry;
+        this.memoryService = memoryService;
+
+        Set<String> words = new LinkedHashSet<>(DEFAULT_NOISE_WORDS);
+        if (StringUtils.hasText(extraNoiseWords)) {
+            for (String w : extraNoiseWords.split(",")) {
+                if (StringUtils.hasText(w)) {
+                    words.add(w.trim().toLowerCase());
+                }
+            }
+        }
+        // 长词优先，避免“好的”被拆成“好”+“的”后匹配失败
+        List<String> sorted = new ArrayList<>(words);
+        sorted.sort((a, b) -> b.length() - a.length());
+        String alternation = sorted.stream().map(Pattern::quote).collect(Collectors.joining("|"));
+        this.noiseWordsPattern = Pattern.compile("^(?:" + alternation + ")+$");
+
+        this.passedCounter = Counter.builder("aiops.preclassify.passed")
+                .description("预分类未能判定、交由大模型分析的消息数")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public TicketDraft classify(GroupMsgDTO msg) {
+        if (!enabled || msg == null) {
+            return null;
+        }
+        // 带图片的消息可能是报修现场照片，必须交给大模型
+        if (StringUtils.hasText(msg.getImageUrl())) {
+            passedCounter.increment();
+            return null;
+        }
+
+        String raw = msg.getContent() != null ? msg.getContent().trim() : "";
+        if (isGroupAllowed(msg.getGroupId(), raw)) {
+            passedCounter.increment();
+            return null;
+        }
+
+        String rule = match(raw);
+        if (rule == null) {
+            passedCounter.increment();
+            return null;
+        }
+        // 会话进行中：短回复可能是对追问/确认的回答（最后才查，只有命中规则的消息多一次 Redis 查询）
+        if (!isContentFree(rule) && memoryService.hasMessageContext(msg.getSenderUserId())) {
+            log.debug("命中闲聊规则({})但会话进行中，交由大模型判断：senderId={}, content={}",
+                    rule, msg.getSenderUserId(), raw);
+            passedCounter.increment();
+            return null;
+        }
+
+        avoidedCounters.computeIfAbsent(rule, r -> Counter.builder("aiops.preclassify.llm.avoided")
+                .description("预分类直接判定为闲聊、省去的大模型调用次数")
+                .tag("rule", r)
+                .register(meterRegistry)).increment();
+        log.info("识别为闲聊({})，不触发处理：senderId={}, content={}", rule, msg.getSenderUserId(), raw);
+        return TicketDraft.builder()
+                .actionable(false)
+                .intent(IntentType.NOISE)
+                .confidence(0.2)
+                .suggestedReply(null)
+                .missingInfo(new ArrayList<>())
+                .senderId(msg.getSenderUserId())
+                .build();
+    }
+
+    /**
+     * 依次匹配规则，返回命中的规则名；未命中返回 null
+     */
+    private String match(String raw) {
+        if (raw.isEmpty()) {
+            return "empty";
+        }
+        if (PURE_DIGITS.matcher(raw).matches()) {
+            return "digits";
+        }
+
+        String normalized = STICKER_PLACEHOLDER.matcher(raw).replaceAll("");
+        normalized = SUPPLEMENTARY.matcher(normalized).replaceAll("");
+        normalized = NON_CONTENT.matcher(normalized).replaceAll("").toLowerCase();
+        if (normalized.isEmpty()) {
+            return "symbols";
+        }
+        if (normalized.length() > maxLength) {
+            return null;
+        }
+        if (noiseWordsPattern.matcher(normalized).matches()
+                || REPEATED_INTERJECTION.matcher(normalized).matches()) {
+            return "keyword";
+        }
+        if (normalized.length() <= latinMaxLength && LATIN_ONLY.matcher(normalized).matches()) {
+            return "short-latin";
+        }
+        return null;
+    }
+
+    /**
+     * 空内容、纯符号无论上下文如何都不是有效回答
+     */
+    private static boolean isContentFree(String rule) {
+        return "empty".equals(rule) || "symbols".equals(rule);
+    }
+
+    private boolean isGroupAllowed(String groupId, String content) {
+        if (!StringUtils.hasText(groupId)) {
+            return false;
+        }
+        Optional<Pattern> rule = groupAllowRules.computeIfAbsent(groupId, id -> {
+            String regex = environment.getProperty("aiops.preclassify.group-allow." + id);
+            if (!StringUtils.hasText(regex)) {
+                return Optional.empty();
+            }
+            try {
+                return Optional.of(Pattern.compile(regex));
+            } catch (Exception e) {
+                log.warn("群放行规则格式错误，已忽略：groupId={}, regex={}", id, regex);
+                return Optional.empty();
+            }
+        });
+        return rule.isPresent() && rule.get().matcher(content).find();
+    }
+}
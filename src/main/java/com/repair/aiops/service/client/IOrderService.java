@@ -15,4 +15,13 @@ public interface IOrderService {
      * @return 下单响应
      */
     OrderResponse createOrder(OrderRequest request);
+
+    /**
+     * 创建工单（带幂等键）
+     * 幂等键通过 Idempotency-Key 请求头传给外部系统，同一工单重试时保持不变
+     * @param request        下单请求
+     * @param idempotencyKey 幂等键，可为 null
+     * @return 下单响应
+     */
+    OrderResponse createOrder(OrderRequest request, String idempotencyKey);
 }
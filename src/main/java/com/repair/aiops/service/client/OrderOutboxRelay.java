@@ -0,0 +1,263 @@
+package com.repair.aiops.service.client;
+
+import com.alibaba.fastjson.JSON;
+import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
+import com.repair.aiops.model.dto.OrderRequest;
+import com.repair.aiops.model.dto.OrderResponse;
+import com.repair.aiops.model.entity.OrderOutboxEntity;
+import com.repair.aiops.service.business.IOrderOutboxService;
+import com.repair.aiops.service.business.ITicketDraftService;
+import com.repair.aiops.service.wecom.WecomNotificationDispatcher;
+import com.repair.aiops.service.wecom.WecomRobotService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 下单发件箱中继
+ *
+ * 定时轮询到期的发件箱记录，认领后（待发送 -> 发送中，多节点只有一个认领成功）交给固定大小的线程池
+ * 调用外部下单接口，同一时刻最多 concurrency 个请求在途，下单接口变慢不会拖住流水线或接口线程。
+ *
+ * - 请求携带 Idempotency-Key（记录创建时生成，重试不变），外部系统据此去重
+ * - 网络/HTTP 错误按指数退避重试，超过最大次数记为失败；外部系统明确返回失败的不重试
+ * - 节点宕机留下的"发送中"记录超过租约时间后重新置为待发送
+ * - 最终结果回写草稿状态（成功 -> 已转工单），并发送下单结果通知
+ *
+ * 指标：aiops.order.outbox.delivery{outcome}、aiops.order.outbox.retries、aiops.order.outbox.inflight
+ */
+@Slf4j
+@Component
+public class OrderOutboxRelay {
+
+    // 可重试的错误码（见 OrderServiceImpl）：网络/HTTP 错误、内部异常
+    private static final Set<String> RETRYABLE_ERROR_CODES = Set.of("API_CALL_ERROR", "INTERNAL_ERROR");
+    private static final int DRAFT_STATUS_ORDERED = 1;
+
+    private final IOrderOutboxService outboxService;
+    private final IOrderService orderService;
+    private final ITicketDraftService draftService;
+    private final WecomRobotService wecomRobotService;
+    private final WecomNotificationDispatcher notificationDispatcher;
+    private final MeterRegistry meterRegistry;
+
+    private final ThreadPoolExecutor executor;
+    private final int concurrency;
+
+    @Value("${aiops.order-outbox.max-attempts:8}")
+    private int maxAttempts;
+
+    @Value("${aiops.order-outbox.backoff-ms:2000}")
+    private long backoffMs;
+
+    @Value("${aiops.order-outbox.max-backoff-ms:300000}")
+    private long maxBackoffMs;
+
+    // 发送中租约（毫秒），需大于下单接口超时时间
+    @Value("${aiops.order-outbox.lease-ms:120000}")
+    private long leaseMs;
+
+    public OrderOutboxRelay(IOrderOutboxService outboxService,
+                            IOrderService orderService,
+                            ITicketDraftService draftService,
+                            WecomRobotService wecomRobotService,
+                            WecomNotificationDispatcher notificationDispatcher,
+                            MeterRegistry meterRegistry,
+                            @Value("${aiops.order-outbox.concurrency:4}") int concurrency) {
+        this.outboxService = outboxService;
+        this.orderService = orderService;
+        this.draftService = draftService;
+        this.wecomRobotService = wecomRobotService;
+        this.notificationDispatcher = notificationDispatcher;
+        this.meterRegistry = meterRegistry;
+        this.concurrency = Math.max(1, concurrency);
+        AtomicInteger counter = new AtomicInteger(1);
+        this.executor = new ThreadPoolExecutor(this.concurrency, this.concurrency, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(this.concurrency), r -> {
+                    Thread t = new Thread(r, "order-outbox-" + counter.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                });
+        Gauge.builder("aiops.order.outbox.inflight", executor, e -> e.getActiveCount() + e.getQueue().size())
+                .description("已认领、正在发送或等待发送的下单请求数")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${aiops.order-outbox.poll-interval-ms:1000}")
+    public void relay() {
+        try {
+            int released = outboxService.releaseExpired(LocalDateTime.now().minusNanos(leaseMs * 1_000_000));
+            if (released > 0) {
+                log.warn("[下单发件箱] 发送超时未完成的记录已重新置为待发送: count={}", released);
+            }
+
+            // 线程池最多积压 concurrency 个任务，只认领能立即处理的数量
+            int free = concurrency * 2 - executor.getActiveCount() - executor.getQueue().size();
+            if (free <= 0) {
+                return;
+            }
+            List<OrderOutboxEntity> due = outboxService.listDue(LocalDateTime.now(), free);
+            for (OrderOutboxEntity entry : due) {
+                if (!outboxService.claim(entry.getId())) {
+                    continue;
+                }
+                try {
+                    executor.execute(() -> deliver(entry));
+                } catch (RejectedExecutionException e) {
+                    // 已认领但未能提交，租约到期后会重新发送
+                    log.warn("[下单发件箱] 线程池已满，稍后重试: id={}", entry.getId());
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            log.error("[下单发件箱] 轮询异常: error={}", e.getMessage(), e);
+        }
+    }
+
+    private void deliver(OrderOutboxEntity entry) {
+        MDC.put("traceId", entry.getTraceId() != null ? entry.getTraceId() : "outbox-" + entry.getId());
+        long start = System.nanoTime();
+        String outcome = "failure";
+        try {
+            int attempts = (entry.getAttempts() != null ? entry.getAttempts() : 0) + 1;
+            OrderResponse response;
+            try {
+                OrderRequest request = JSON.parseObject(entry.getPayload(), OrderRequest.class);
+                response = orderService.createOrder(request, entry.getIdempotencyKey());
+            } catch (Exception e) {
+                response = OrderResponse.builder()
+                        .success(false)
+                        .errorCode("INTERNAL_ERROR")
+                        .errorMessage("调用下单服务异常：" + e.getMessage())
+                        .build();
+            }
+
+            if (response != null && Boolean.TRUE.equals(response.getSuccess())) {
+                outcome = "success";
+                complete(entry, OrderOutboxEntity.STATUS_SUCCEEDED, attempts, response.getOrderId(), null);
+                log.info("[traceId={}] [下单发件箱] 下单成功: draftId={}, orderId={}, attempts={}",
+                        entry.getTraceId(), entry.getDraftId(), response.getOrderId(), attempts);
+                try {
+                    draftService.updateStatus(entry.getDraftId(), DRAFT_STATUS_ORDERED);
+                } catch (Exception e) {
+                    log.error("[traceId={}] [下单发件箱] 回写草稿状态失败: draftId={}, error={}",
+                            entry.getTraceId(), entry.getDraftId(), e.getMessage());
+                }
+                notifyResult(entry, response);
+                return;
+            }
+
+            String error = response != null ? failMessage(response) : "下单接口无响应";
+            boolean retryable = response == null || RETRYABLE_ERROR_CODES.contains(response.getErrorCode());
+            if (retryable && attempts < maxAttempts) {
+                outcome = "retry";
+                long delay = Math.min(maxBackoffMs, backoffMs << Math.min(attempts - 1, 20));
+                retryLater(entry, attempts, delay, error);
+                Counter.builder("aiops.order.outbox.retries")
+                        .description("下单重试次数")
+                        .register(meterRegistry)
+                        .increment();
+                log.warn("[traceId={}] [下单发件箱] 下单失败，{}ms 后重试: draftId={}, attempts={}, error={}",
+                        entry.getTraceId(), delay, entry.getDraftId(), attempts, error);
+                return;
+            }
+
+            complete(entry, OrderOutboxEntity.STATUS_FAILED, attempts, null, error);
+            log.error("[traceId={}] [下单发件箱] 下单失败，不再重试: draftId={}, attempts={}, error={}",
+                    entry.getTraceId(), entry.getDraftId(), attempts, error);
+            notifyResult(entry, response);
+        } catch (Exception e) {
+            // 状态未能回写，租约到期后会重新发送（幂等键保证外部不重复建单）
+            log.error("[traceId={}] [下单发件箱] 处理异常: id={}, error={}", entry.getTraceId(), entry.getId(), e.getMessage(), e);
+        } finally {
+            Timer.builder("aiops.order.outbox.delivery")
+                    .description("下单发件箱单次发送耗时")
+                    .tag("outcome", outcome)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            MDC.remove("traceId");
+        }
+    }
+
+    private void complete(OrderOutboxEntity entry, int status, int attempts, String orderId, String error) {
+        outboxService.update(new LambdaUpdateWrapper<OrderOutboxEntity>()
+                .set(OrderOutboxEntity::getStatus, status)
+                .set(OrderOutboxEntity::getAttempts, attempts)
+                .set(OrderOutboxEntity::getOrderId, orderId)
+                .set(OrderOutboxEntity::getLastError, truncate(error))
+                .set(OrderOutboxEntity::getUpdateTime, LocalDateTime.now())
+                .eq(OrderOutboxEntity::getId, entry.getId()));
+    }
+
+    private void retryLater(OrderOutboxEntity entry, int attempts, long delayMs, String error) {
+        LocalDateTime now = LocalDateTime.now();
+        outboxService.update(new LambdaUpdateWrapper<OrderOutboxEntity>()
+                .set(OrderOutboxEntity::getStatus, OrderOutboxEntity.STATUS_PENDING)
+                .set(OrderOutboxEntity::getAttempts, attempts)
+                .set(OrderOutboxEntity::getNextAttemptTime, now.plusNanos(delayMs * 1_000_000))
+                .set(OrderOutboxEntity::getLastError, truncate(error))
+                .set(OrderOutboxEntity::getUpdateTime, now)
+                .eq(OrderOutboxEntity::getId, entry.getId()));
+    }
+
+    private void notifyResult(OrderOutboxEntity entry, OrderResponse response) {
+        boolean success = response != null && Boolean.TRUE.equals(response.getSuccess());
+        String noticeMessage;
+        if (success) {
+            noticeMessage = "工单已生成，单号：" + response.getOrderId();
+        } else if (response != null) {
+            noticeMessage = "下单失败：" + failMessage(response);
+        } else {
+            noticeMessage = "下单接口无响应";
+        }
+        try {
+            notificationDispatcher.dispatch(wecomRobotService.buildOrderResultNotice(
+                    entry.getTraceId(), entry.getGroupId(), entry.getSenderId(),
+                    success,
+                    noticeMessage,
+                    response,
+                    entry.getContent()
+            ));
+        } catch (Exception e) {
+            log.error("[traceId={}] 发送下单结果通知失败", entry.getTraceId(), e);
+        }
+    }
+
+    private static String failMessage(OrderResponse response) {
+        return response.getErrorMessage() != null ? response.getErrorMessage() : response.getMessage();
+    }
+
+    private static String truncate(String error) {
+        return error != null && error.length() > 500 ? error.substring(0, 500) : error;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(15, TimeUnit.SECONDS)) {
+                log.warn("[下单发件箱] 关闭超时，未完成的记录将在租约到期后重新发送");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package com.repair.aiops.service.client.impl;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.repair.aiops.config.HttpClientConfig;
 import com.repair.aiops.model.dto.OrderRequest;
 import com.repair.aiops.model.dto.OrderResponse;
 import com.repair.aiops.service.client.IOrderService;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
@@ -40,13 +42,18 @@ public class OrderServiceImpl implements IOrderService {
     @Value("${aiops.order.enabled:false}")
     private boolean orderEnabled;
 
-    public OrderServiceImpl(RestTemplate restTemplate, ObjectMapper objectMapper) {
+    public OrderServiceImpl(@Qualifier(HttpClientConfig.ORDER) RestTemplate restTemplate, ObjectMapper objectMapper) {
         this.restTemplate = restTemplate;
         this.objectMapper = objectMapper;
     }
 
     @Override
     public OrderResponse createOrder(OrderRequest request) {
+        return createOrder(request, null);
+    }
+
+    @Override
+    public OrderResponse createOrder(OrderRequest request, String idempotencyKey) {
         if (!orderEnabled) {
             log.info("自动下单功能未启用，跳过下单调用：senderId={}",
                     request != null ? request.getSenderId() : "unknown");
@@ -75,6 +82,9 @@ public class OrderServiceImpl implements IOrderService {
             if (apiToken != null && !apiToken.trim().isEmpty()) {
                 headers.set("Authorization", "Bearer " + apiToken);
             }
+            if (idempotencyKey != null && !idempotencyKey.isEmpty()) {
+                headers.set("Idempotency-Key", idempotencyKey);
+            }
             
             // 创建请求实体
             // 构造外部API需要的特定JSON结构
@@ -1,22 +1,33 @@
 package com.repair.aiops.service.core;
 
+import com.repair.aiops.exception.LlmUnavailableException;
 import com.repair.aiops.model.dto.GroupMsgDTO;
 import com.repair.aiops.model.dto.TicketDraft;
 import com.repair.aiops.model.enums.IntentType;
 import com.repair.aiops.service.business.IOwnerService;
+import com.repair.aiops.service.classify.IMessagePreClassifier;
+import com.repair.aiops.service.memory.ContextWindowBuilder;
 import com.repair.aiops.service.memory.ISessionMemoryService;
+import com.repair.aiops.service.storage.ImagePreprocessService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.messages.Media;
 import org.springframework.ai.converter.BeanOutputConverter;
 import org.springframework.ai.chat.messages.UserMessage;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.MimeTypeUtils;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
 
 @Slf4j
 @Service
@@ -24,45 +35,80 @@ public class AgentService {
     private final ChatClient chatClient;
     private final PromptService promptService;
     private final MessageDedupService dedupService;
+    private final LlmDecisionCache decisionCache;
     
     @Autowired
     private ISessionMemoryService memoryService;
     
     @Autowired
     private IOwnerService ownerService;
+
+    @Autowired
+    private IMessagePreClassifier preClassifier;
+
+    @Autowired
+    private ImagePreprocessService imagePreprocessService;
+
+    @Autowired
+    private LlmCallGuard llmCallGuard;
+
+    @Autowired
+    private ContextWindowBuilder contextWindowBuilder;
+
+    @Autowired
+    private LlmBatchClassifier batchClassifier;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 流式模式：边接收边解析，intent / actionable 一完整就给出提前决策
+    @Value("${aiops.llm.streaming.enabled:false}")
+    private boolean streamingEnabled;
+
+    // 流式模式下识别为闲聊后立即中断输出，不再等待剩余字段
+    @Value("${aiops.llm.streaming.early-noise-cutoff:true}")
+    private boolean earlyNoiseCutoff;
     
     private final BeanOutputConverter<TicketDraft> converter = new BeanOutputConverter<>(TicketDraft.class);
+
+    // 输出格式说明由 TicketDraft 的 JSON Schema 生成，内容固定，只计算一次
+    private final String outputFormat = converter.getFormat();
     
     private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
-    public AgentService(ChatClient chatClient, PromptService promptService, MessageDedupService dedupService) {
+    public AgentService(ChatClient chatClient, PromptService promptService, MessageDedupService dedupService,
+                        LlmDecisionCache decisionCache) {
         this.chatClient = chatClient;
         this.promptService = promptService;
         this.dedupService = dedupService;
+        this.decisionCache = decisionCache;
     }
 
     public TicketDraft analyze(GroupMsgDTO msg) {
+        return analyze(msg, AnalyzeOptions.DEFAULT);
+    }
+
+    /**
+     * 分析消息
+     * @param options 提前决策回调、批量分类、演练模式等可选项
+     */
+    public TicketDraft analyze(GroupMsgDTO msg, AnalyzeOptions options) {
+        BiConsumer<IntentType, Boolean> earlyDecision = options.getEarlyDecision();
+        boolean dryRun = options.isDryRun();
         if (msg == null || msg.getSenderUserId() == null) {
             log.error("分析消息失败：消息或发送者ID为空");
             throw new IllegalArgumentException("消息或发送者ID不能为空");
         }
 
         try {
-            // 0.1 纯数字/无效内容直接视为闲聊，避免误触发追问
-            String rawContent = msg.getContent() != null ? msg.getContent().trim() : "";
-            if (rawContent.matches("^\\d{1,10}$") && (msg.getImageUrl() == null || msg.getImageUrl().isEmpty())) {
-                log.info("识别为闲聊(纯数字)，不触发处理：senderId={}, content={}", msg.getSenderUserId(), rawContent);
-                return TicketDraft.builder()
-                        .actionable(false)
-                        .intent(IntentType.NOISE)
-                        .confidence(0.2)
-                        .suggestedReply(null)
-                        .missingInfo(new java.util.ArrayList<>())
-                        .build();
+            // 0.1 规则预分类：明显的闲聊（纯数字、客套话、表情等）直接返回，不调用大模型
+            TicketDraft preClassified = preClassifier.classify(msg);
+            if (preClassified != null) {
+                return preClassified;
             }
 
-            // 0. 消息去重检查
-            if (dedupService.isDuplicate(msg.getSenderUserId(), msg.getContent())) {
+            // 0. 消息去重检查（演练模式不占用去重标记）
+            if (!dryRun && dedupService.isDuplicate(msg.getSenderUserId(), msg.getContent())) {
                 log.info("检测到重复消息，跳过处理：senderId={}, content={}", 
                         msg.getSenderUserId(), msg.getContent());
                 // 返回一个标记为重复的草稿（或返回null，由Controller处理）
@@ -78,22 +124,12 @@ public class AgentService {
                 ownerInfo = "未知身份业主";
             }
             
-            // 获取消息上下文（支持多条消息收集）
-            com.repair.aiops.model.dto.MessageContext messageContext = 
-                    memoryService.getMessageContext(msg.getSenderUserId());
+            // 获取消息上下文（支持多条消息收集）；演练模式下业主当前的会话记忆与回放的历史消息无关，不读取
+            com.repair.aiops.model.dto.MessageContext messageContext = dryRun ? null
+                    : memoryService.getMessageContext(msg.getSenderUserId());
             
-            // 构建历史记忆文本（用于AI分析）
-            String history;
-            if (messageContext != null && messageContext.getMessages() != null 
-                    && !messageContext.getMessages().isEmpty()) {
-                // 使用消息上下文的合并内容
-                history = messageContext.getMergedContent();
-                log.debug("使用消息上下文：senderId={}, 消息数={}, 合并内容长度={}", 
-                        msg.getSenderUserId(), messageContext.getMessages().size(), history);
-            } else {
-                // 降级到简单记忆方式（兼容旧版本）
-                history = memoryService.getMemory(msg.getSenderUserId());
-            }
+            // 构建历史记忆文本（用于AI分析）：按 token 预算保留最近的消息，更早的折叠为摘要
+            String history = contextWindowBuilder.build(msg.getSenderUserId(), messageContext, msg.getContent());
 
             // 2. 格式化时间信息
             String currentTime;
@@ -106,8 +142,8 @@ public class AgentService {
             }
 
             // 3. 准备提示词 (System Prompt)
-            String systemPrompt = promptService.buildSystemPrompt(ownerInfo, history, 
-                    converter.getFormat(), currentTime);
+            String systemPrompt = promptService.buildSystemPrompt(ownerInfo, history,
+                    outputFormat, currentTime);
 
             // 4. 构建用户消息 (User Message) - 支持多模态图片
             // 如果有多条消息的图片，需要合并所有图片
@@ -115,12 +151,13 @@ public class AgentService {
             try {
                 List<Media> imageMedias = new java.util.ArrayList<>();
                 
-                // 收集所有图片（包括历史消息和当前消息）
+                // 收集所有图片（包括历史消息和当前消息），交给模型前先缩小（见 ImagePreprocessService）
                 if (messageContext != null && messageContext.getImageUrls() != null) {
                     for (String imageUrl : messageContext.getImageUrls()) {
                         if (imageUrl != null && imageUrl.startsWith("http")) {
                             try {
-                                imageMedias.add(new Media(MimeTypeUtils.IMAGE_JPEG, new java.net.URL(imageUrl)));
+                                imageMedias.add(new Media(MimeTypeUtils.IMAGE_JPEG,
+                                        new java.net.URL(imagePreprocessService.preprocess(imageUrl))));
                             } catch (Exception e) {
                                 log.warn("添加历史图片失败：imageUrl={}, error={}", imageUrl, e.getMessage());
                             }
@@ -132,7 +169,8 @@ public class AgentService {
                 if (msg.getImageUrl() != null && !msg.getImageUrl().isEmpty()) {
                     if (msg.getImageUrl().startsWith("http")) {
                         try {
-                            imageMedias.add(new Media(MimeTypeUtils.IMAGE_JPEG, new java.net.URL(msg.getImageUrl())));
+                            imageMedias.add(new Media(MimeTypeUtils.IMAGE_JPEG,
+                                    new java.net.URL(imagePreprocessService.preprocess(msg.getImageUrl()))));
                         } catch (Exception e) {
                             log.warn("添加当前图片失败：imageUrl={}, error={}", msg.getImageUrl(), e.getMessage());
                         }
@@ -141,18 +179,8 @@ public class AgentService {
                     }
                 }
                 
-                // 构建用户消息（合并历史上下文，避免上下文丢失）
-                String userContent = msg.getContent() != null ? msg.getContent() : "";
-                String combinedContent = userContent;
-                if (history != null && !history.isEmpty()) {
-                    if (userContent == null || userContent.trim().isEmpty()) {
-                        combinedContent = history;
-                    } else if (!history.contains(userContent)) {
-                        combinedContent = history + "；" + userContent;
-                    } else {
-                        combinedContent = history;
-                    }
-                }
+                // 构建用户消息：只放当前消息，历史上下文已在系统提示词的会话上下文中，不再重复发送
+                String combinedContent = msg.getContent() != null ? msg.getContent() : "";
                 if (!imageMedias.isEmpty()) {
                     userMessage = new UserMessage(combinedContent, imageMedias);
                     log.debug("构建多模态消息：senderId={}, 图片数={}", msg.getSenderUserId(), imageMedias.size());
@@ -166,7 +194,7 @@ public class AgentService {
             }
 
             // 5. 调用 AI 决策大脑
-            TicketDraft draft;
+            TicketDraft draft = null;
             try {
                 String traceId = org.slf4j.MDC.get("traceId");
                 String contentPreview = msg.getContent() != null ? msg.getContent().trim() : "";
@@ -188,23 +216,72 @@ public class AgentService {
                 }
                 
                 long aiStart = System.currentTimeMillis();
-                
-                // 实际调用
-                org.springframework.ai.chat.model.ChatResponse response = chatClient.prompt()
-                        .system(systemPrompt)
-                        .messages(userMessage)
-                        .call()
-                        .chatResponse();
-                
-                // 提取实体对象
-                draft = converter.convert(response.getResult().getOutput().getContent());
-                
+
+                // 相同输入（业主信息、上下文、内容、图片）直接复用之前的模型输出
+                List<String> analyzedImages = new java.util.ArrayList<>();
+                if (messageContext != null) {
+                    analyzedImages.addAll(messageContext.getImageUrls());
+                }
+                if (msg.getImageUrl() != null && !msg.getImageUrl().isEmpty()) {
+                    analyzedImages.add(msg.getImageUrl());
+                }
+                String cacheKey = decisionCache.keyOf(ownerInfo, history, msg.getContent(), analyzedImages);
+                String modelOutput = decisionCache.get(cacheKey);
+                String tokenUsage;
+                // 存档批量模式：纯文本消息与其他业主的消息合并成一次请求；批量失败时返回 null，继续走单条调用
+                boolean batched = false;
+                if (modelOutput == null && options.isBatchable() && analyzedImages.isEmpty() && batchClassifier.isEnabled()) {
+                    modelOutput = batchClassifier.classify(ownerInfo, history, currentTime, msg.getContent());
+                    batched = modelOutput != null;
+                }
+                if (batched) {
+                    tokenUsage = "batch";
+                } else if (modelOutput != null) {
+                    tokenUsage = "cached";
+                    log.info("[traceId={}] [AI缓存] 命中决策缓存，跳过模型调用：senderId={}", traceId, msg.getSenderUserId());
+                } else if (streamingEnabled) {
+                    // 流式调用（经舱壁、超时、熔断保护）
+                    UserMessage request = userMessage;
+                    TicketDraftStreamScanner scanner = llmCallGuard.call(
+                            () -> streamModelOutput(systemPrompt, request, traceId, earlyDecision));
+                    if (scanner.isCutOff()) {
+                        draft = new TicketDraft();
+                        draft.setIntent(IntentType.NOISE);
+                        draft.setActionable(false);
+                        tokenUsage = "stream(noise-cutoff)";
+                    } else {
+                        modelOutput = scanner.text();
+                        tokenUsage = "stream";
+                    }
+                } else {
+                    // 实际调用（经舱壁、超时、熔断保护）
+                    UserMessage request = userMessage;
+                    long callStart = System.nanoTime();
+                    org.springframework.ai.chat.model.ChatResponse response = llmCallGuard.call(() -> chatClient.prompt()
+                            .system(systemPrompt)
+                            .messages(request)
+                            .call()
+                            .chatResponse());
+                    modelOutput = response.getResult().getOutput().getContent();
+                    long elapsed = System.nanoTime() - callStart;
+                    recordLatency("aiops.llm.first-decision", "call", "complete", elapsed);
+                    recordLatency("aiops.llm.completion", "call", "complete", elapsed);
+
+                    // 获取 Token 使用情况 (如果支持)
+                    org.springframework.ai.chat.metadata.Usage usage = response.getMetadata().getUsage();
+                    // 简化处理：直接转字符串，避免因 Spring AI 版本差异导致的方法名报错
+                    tokenUsage = (usage != null) ? usage.toString() : "unknown";
+                }
+
+                // 提取实体对象（流式提前中断时已直接得到闲聊结果，输出不完整，不缓存）
+                if (draft == null) {
+                    draft = converter.convert(modelOutput);
+                    if (draft != null) {
+                        decisionCache.put(cacheKey, modelOutput);
+                    }
+                }
+
                 long aiDuration = System.currentTimeMillis() - aiStart;
-                
-                // 获取 Token 使用情况 (如果支持)
-                org.springframework.ai.chat.metadata.Usage usage = response.getMetadata().getUsage();
-                // 简化处理：直接转字符串，避免因 Spring AI 版本差异导致的方法名报错
-                String tokenUsage = (usage != null) ? usage.toString() : "unknown";
 
                 log.info("[traceId={}] [AI响应] 分析完成: duration={}ms, usage=[{}], result={actionable={}, intent={}, confidence={}}",
                         traceId, aiDuration, tokenUsage,
@@ -215,13 +292,22 @@ public class AgentService {
                     log.info("[traceId={}] [AI响应] NOISE内容: {}", traceId, contentPreview);
                 }
 
+            } catch (LlmUnavailableException e) {
+                // 模型暂不可用：释放去重标记，消息暂存后重放时不会被当成重复消息过滤
+                log.warn("[traceId={}] [AI异常] 大模型暂不可用：senderId={}, reason={}", org.slf4j.MDC.get("traceId"), msg.getSenderUserId(), e.getMessage());
+                if (!dryRun) {
+                    dedupService.release(msg.getSenderUserId(), msg.getContent());
+                }
+                throw e;
             } catch (Exception e) {
                 log.error("[AI异常] AI分析调用失败：senderId={}, error={}", msg.getSenderUserId(), e.getMessage(), e);
                 throw new RuntimeException("AI分析失败: " + e.getMessage(), e);
             }
 
-            // 6. 闭环记忆处理逻辑
-            if (draft != null) {
+            // 6. 闭环记忆处理逻辑（演练模式不写记忆）
+            if (draft != null && dryRun) {
+                draft.setSenderId(msg.getSenderUserId());
+            } else if (draft != null) {
                 // 处理更正消息：如果是更正消息，清除之前的记忆
                 if (dedupService.isCorrection(msg.getContent())) {
                     log.info("检测到更正消息，清除历史记忆：senderId={}", msg.getSenderUserId());
@@ -240,8 +326,6 @@ public class AgentService {
                             msg.getTimestamp() != null ? msg.getTimestamp() : System.currentTimeMillis(),
                             msg.getImageUrl()
                     );
-                    // 同时保存简单记忆（兼容性）
-                    memoryService.saveMemory(msg.getSenderUserId(), msg.getContent());
                 }
 
                 // 补充元数据
@@ -254,4 +338,64 @@ public class AgentService {
             throw e;
         }
     }
+
+    /**
+     * 流式调用模型并增量解析输出（在模型调用线程上执行）
+     * intent 与 actionable 都完整时记录首个决策耗时并回调 earlyDecision；
+     * 开启 early-noise-cutoff 时识别为闲聊即关闭流（取消订阅），返回的扫描器标记为已中断
+     */
+    private TicketDraftStreamScanner streamModelOutput(String systemPrompt, UserMessage request, String traceId,
+                                                       BiConsumer<IntentType, Boolean> earlyDecision) {
+        long start = System.nanoTime();
+        TicketDraftStreamScanner scanner = new TicketDraftStreamScanner();
+        boolean decided = false;
+        try (Stream<String> chunks = chatClient.prompt()
+                .system(systemPrompt)
+                .messages(request)
+                .stream()
+                .content()
+                .toStream()) {
+            Iterator<String> iterator = chunks.iterator();
+            while (iterator.hasNext()) {
+                scanner.feed(iterator.next());
+                if (decided) {
+                    continue;
+                }
+                IntentType intent = scanner.intent();
+                if (intent == IntentType.NOISE && earlyNoiseCutoff) {
+                    scanner.markCutOff();
+                    recordLatency("aiops.llm.first-decision", "stream", "noise-cutoff", System.nanoTime() - start);
+                    log.info("[traceId={}] [AI流式] 识别为闲聊，提前结束输出: elapsed={}ms",
+                            traceId, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    break;
+                }
+                Boolean actionable = scanner.actionable();
+                if (intent != null && actionable != null) {
+                    decided = true;
+                    recordLatency("aiops.llm.first-decision", "stream", "complete", System.nanoTime() - start);
+                    log.info("[traceId={}] [AI流式] 提前决策: intent={}, actionable={}, elapsed={}ms",
+                            traceId, intent, actionable, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    if (earlyDecision != null) {
+                        try {
+                            earlyDecision.accept(intent, actionable);
+                        } catch (Exception e) {
+                            log.warn("[traceId={}] [AI流式] 提前决策回调异常: {}", traceId, e.getMessage());
+                        }
+                    }
+                }
+            }
+        }
+        recordLatency("aiops.llm.completion", "stream", scanner.isCutOff() ? "noise-cutoff" : "complete",
+                System.nanoTime() - start);
+        return scanner;
+    }
+
+    private void recordLatency(String name, String mode, String outcome, long nanos) {
+        Timer.builder(name)
+                .description("aiops.llm.first-decision".equals(name) ? "模型给出 intent/actionable 的耗时" : "模型输出完成耗时")
+                .tag("mode", mode)
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
 }
@@ -0,0 +1,33 @@
+package com.repair.aiops.service.core;
+
+import com.repair.aiops.model.enums.IntentType;
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.function.BiConsumer;
+
+/**
+ * 单次消息分析的可选项（见 {@link AgentService#analyze(com.repair.aiops.model.dto.GroupMsgDTO, AnalyzeOptions)}）
+ */
+@Getter
+@Builder
+public class AnalyzeOptions {
+
+    public static final AnalyzeOptions DEFAULT = AnalyzeOptions.builder().build();
+
+    /**
+     * 提前决策回调（仅流式模式）：intent 和 actionable 输出完整时调用一次，
+     * 此时其余字段可能仍在生成；在模型调用线程上执行，不应阻塞
+     */
+    private final BiConsumer<IntentType, Boolean> earlyDecision;
+
+    /**
+     * 是否允许合并到批量分类（存档消息；仅纯文本消息会实际合并，见 {@link LlmBatchClassifier}）
+     */
+    private final boolean batchable;
+
+    /**
+     * 演练模式（存档回放）：不做内容去重，不读写业主会话记忆，只返回分析结果
+     */
+    private final boolean dryRun;
+}
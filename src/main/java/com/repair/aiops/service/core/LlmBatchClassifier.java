@@ -0,0 +1,306 @@
+package com.repair.aiops.service.core;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.repair.aiops.exception.LlmUnavailableException;
+import com.repair.aiops.model.dto.TicketDraft;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.converter.BeanOutputConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 存档消息批量分类（可选，aiops.llm.batch.enabled）
+ *
+ * 存档追赶时有大量短小、互不相关的消息，逐条调用时每条都要带一份完整的系统提示词。
+ * 批量模式把不同业主的多条纯文本消息打包成一次请求：系统提示词只发一次，
+ * 每条消息的业主信息、会话上下文、时间和内容放在用户消息中，模型返回按消息编号对应的结果数组。
+ *
+ * - 攒批：凑满 batch-size 条或等待 linger-ms 后发出；同一业主的消息在流水线中串行，一批内天然来自不同业主
+ * - 校验：结果必须是数组，每个元素的 id 属于本批、draft 能转换为 {@link TicketDraft}；
+ *   整批校验失败或某条缺失时，对应消息返回 null，由调用方退回单条调用
+ * - 请求经 {@link LlmCallGuard} 保护，模型不可用时抛出 {@link LlmUnavailableException}（消息被暂存）
+ *
+ * 指标：aiops.llm.batch.size、aiops.llm.batch.items{outcome=batched|fallback}
+ */
+@Slf4j
+@Component
+public class LlmBatchClassifier {
+
+    private static final String NOT_APPLICABLE = "见用户消息中每条消息各自的信息";
+
+    private final ChatClient chatClient;
+    private final PromptService promptService;
+    private final LlmCallGuard llmCallGuard;
+    private final MeterRegistry meterRegistry;
+    private final DistributionSummary batchSizes;
+
+    private final BeanOutputConverter<TicketDraft> converter = new BeanOutputConverter<>(TicketDraft.class);
+    private final LinkedBlockingQueue<Item> queue = new LinkedBlockingQueue<>();
+
+    @Getter
+    @Value("${aiops.llm.batch.enabled:false}")
+    private boolean enabled;
+
+    @Value("${aiops.llm.batch.batch-size:8}")
+    private int batchSize;
+
+    @Value("${aiops.llm.batch.linger-ms:200}")
+    private long lingerMs;
+
+    // 同时在途的批量请求数
+    @Value("${aiops.llm.batch.concurrency:2}")
+    private int concurrency;
+
+    // 调用方等待本条结果的最长时间（含攒批、排队和模型调用）
+    @Value("${aiops.llm.batch.wait-timeout-ms:90000}")
+    private long waitTimeoutMs;
+
+    private ExecutorService batchExecutor;
+    private Thread collector;
+    private volatile boolean running;
+
+    public LlmBatchClassifier(ChatClient chatClient, PromptService promptService, LlmCallGuard llmCallGuard,
+                              MeterRegistry meterRegistry) {
+        this.chatClient = chatClient;
+        this.promptService = promptService;
+        this.llmCallGuard = llmCallGuard;
+        this.meterRegistry = meterRegistry;
+        this.batchSizes = DistributionSummary.builder("aiops.llm.batch.size")
+                .description("批量分类每次请求包含的消息数")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        AtomicInteger counter = new AtomicInteger(1);
+        batchExecutor = Executors.newFixedThreadPool(Math.max(1, concurrency), r -> {
+            Thread t = new Thread(r, "llm-batch-" + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        running = true;
+        collector = new Thread(this::collect, "llm-batch-collector");
+        collector.setDaemon(true);
+        collector.start();
+        log.info("[批量分类] 已启用: batchSize={}, lingerMs={}, concurrency={}", batchSize, lingerMs, concurrency);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (collector != null) {
+            collector.interrupt();
+        }
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+        }
+        // 未发出的消息退回单条调用
+        Item item;
+        while ((item = queue.poll()) != null) {
+            item.result.complete(null);
+        }
+    }
+
+    /**
+     * 加入批量分类并等待结果
+     * @return 本条消息的模型输出（单个 TicketDraft 的 JSON）；未启用、批量失败或校验不通过时返回 null，调用方应退回单条调用
+     * @throws LlmUnavailableException 模型暂不可用
+     */
+    public String classify(String ownerInfo, String history, String currentTime, String content) {
+        if (!enabled || !running) {
+            return null;
+        }
+        Item item = new Item(ownerInfo, history, currentTime, content);
+        queue.offer(item);
+        try {
+            String output = item.result.get(waitTimeoutMs, TimeUnit.MILLISECONDS);
+            count(output != null ? "batched" : "fallback");
+            return output;
+        } catch (TimeoutException e) {
+            item.result.complete(null);
+            throw new LlmUnavailableException("等待批量分类结果超时（" + waitTimeoutMs + "ms）", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LlmUnavailableException) {
+                throw (LlmUnavailableException) e.getCause();
+            }
+            count("fallback");
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LlmUnavailableException("等待批量分类结果被中断", e);
+        }
+    }
+
+    private void collect() {
+        while (running) {
+            try {
+                Item first = queue.take();
+                List<Item> batch = new ArrayList<>(batchSize);
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMs);
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Item next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                batchExecutor.execute(() -> run(batch));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("[批量分类] 攒批异常: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private void run(List<Item> batch) {
+        // 只有一条时批量没有收益，直接退回单条调用
+        if (batch.size() == 1) {
+            batch.get(0).result.complete(null);
+            return;
+        }
+        batchSizes.record(batch.size());
+        Map<String, Item> byId = new HashMap<>();
+        StringBuilder userContent = new StringBuilder();
+        for (int i = 0; i < batch.size(); i++) {
+            Item item = batch.get(i);
+            String id = "m" + (i + 1);
+            byId.put(id, item);
+            userContent.append("【消息 ").append(id).append("】\n")
+                    .append("当前业主: ").append(item.ownerInfo != null ? item.ownerInfo : "未知身份业主").append('\n')
+                    .append("会话上下文记录: ").append(item.history == null || item.history.isEmpty() ? "无历史记录" : item.history).append('\n')
+                    .append("当前消息时间: ").append(item.currentTime).append('\n')
+                    .append("当前用户发送的内容: ").append(item.content != null ? item.content : "").append("\n\n");
+        }
+        String systemPrompt = buildSystemPrompt();
+
+        String output;
+        try {
+            output = llmCallGuard.call(() -> chatClient.prompt()
+                    .system(systemPrompt)
+                    .user(userContent.toString())
+                    .call()
+                    .content());
+        } catch (LlmUnavailableException e) {
+            batch.forEach(item -> item.result.completeExceptionally(e));
+            return;
+        } catch (Exception e) {
+            log.warn("[批量分类] 批量请求失败，退回单条调用: size={}, error={}", batch.size(), e.getMessage());
+            batch.forEach(item -> item.result.complete(null));
+            return;
+        }
+
+        Map<String, String> drafts = parse(output, byId.keySet());
+        if (drafts.size() < batch.size()) {
+            log.warn("[批量分类] 结果不完整，缺失的消息退回单条调用: size={}, valid={}", batch.size(), drafts.size());
+        }
+        byId.forEach((id, item) -> item.result.complete(drafts.get(id)));
+    }
+
+    /**
+     * 批量请求的系统提示词：模板中的 {format} 渲染为数组格式说明（每个元素带消息编号）
+     */
+    String buildSystemPrompt() {
+        return promptService.buildSystemPrompt(NOT_APPLICABLE, NOT_APPLICABLE, batchFormat(), NOT_APPLICABLE);
+    }
+
+    /**
+     * 解析并校验批量结果，只返回 id 属于本批且能转换为 TicketDraft 的元素
+     */
+    Map<String, String> parse(String output, Set<String> ids) {
+        Map<String, String> drafts = new HashMap<>();
+        if (output == null) {
+            return drafts;
+        }
+        int start = output.indexOf('[');
+        int end = output.lastIndexOf(']');
+        int brace = output.indexOf('{');
+        // 先出现 '{' 说明返回的是单个对象（其中的 missingInfo 等数组不是结果数组）
+        if (start < 0 || end <= start || (brace >= 0 && brace < start)) {
+            log.warn("[批量分类] 结果不是数组: {}", output.length() > 200 ? output.substring(0, 200) + "..." : output);
+            return drafts;
+        }
+        try {
+            JSONArray array = JSON.parseArray(output.substring(start, end + 1));
+            for (int i = 0; i < array.size(); i++) {
+                JSONObject element = array.getJSONObject(i);
+                String id = element != null ? element.getString("id") : null;
+                JSONObject draft = element != null ? element.getJSONObject("draft") : null;
+                if (id == null || draft == null || !ids.contains(id) || drafts.containsKey(id)) {
+                    continue;
+                }
+                String json = draft.toJSONString();
+                TicketDraft converted = converter.convert(json);
+                if (converted != null && converted.getIntent() != null) {
+                    drafts.put(id, json);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("[批量分类] 结果解析失败: {}", e.getMessage());
+            drafts.clear();
+        }
+        return drafts;
+    }
+
+    private String batchFormat() {
+        return "本次请求包含多条相互独立的消息（来自不同业主），请逐条分析，消息之间不要互相参考；"
+                + "每条消息的“当前业主”“会话上下文记录”“当前消息时间”以该消息下给出的为准。\n"
+                + "只输出一个 JSON 数组，不要输出其他内容。每条消息对应数组中的一个元素：{\"id\": \"消息编号\", \"draft\": 分析结果}，"
+                + "其中分析结果对象的格式如下：\n" + converter.getFormat();
+    }
+
+    private void count(String outcome) {
+        Counter.builder("aiops.llm.batch.items")
+                .description("批量分类处理的消息数（batched-批量得到结果, fallback-退回单条调用）")
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    private static class Item {
+        private final String ownerInfo;
+        private final String history;
+        private final String currentTime;
+        private final String content;
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Item(String ownerInfo, String history, String currentTime, String content) {
+            this.ownerInfo = ownerInfo;
+            this.history = history;
+            this.currentTime = currentTime;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.repair.aiops.service.core;
+
+import com.repair.aiops.exception.LlmUnavailableException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 大模型调用保护：舱壁 + 超时 + 熔断
+ *
+ * - 舱壁：同时在途的模型调用不超过 max-concurrent，等待许可超过 acquire-timeout-ms 即放弃；
+ *   许可在调用真正结束时才归还，超时后仍在执行的调用也计入并发数
+ * - 超时：单次调用超过 call-timeout-ms 不再等待
+ * - 熔断：按最近 window-size 次调用统计，失败（含超时、慢调用）比例达到 failure-rate-threshold 时打开，
+ *   open-duration-ms 后进入半开，放行 half-open-calls 次试探调用，全部成功才关闭，否则重新打开
+ *
+ * 熔断打开、并发已满、调用超时时抛出 {@link LlmUnavailableException}，由调用方暂存消息稍后重试。
+ *
+ * 指标：aiops.llm.circuit.state（0-关闭, 1-打开, 2-半开）、aiops.llm.call{outcome}、aiops.llm.guard.rejected{reason}
+ */
+@Slf4j
+@Component
+public class LlmCallGuard {
+
+    enum State {
+        CLOSED(0), OPEN(1), HALF_OPEN(2);
+
+        private final int code;
+
+        State(int code) {
+            this.code = code;
+        }
+    }
+
+    private final MeterRegistry meterRegistry;
+    private final Semaphore permits;
+    private final ThreadPoolExecutor executor;
+
+    @Value("${aiops.llm.guard.acquire-timeout-ms:2000}")
+    private long acquireTimeoutMs;
+
+    @Value("${aiops.llm.guard.call-timeout-ms:60000}")
+    private long callTimeoutMs;
+
+    // 超过该耗时的成功调用按失败计入熔断统计
+    @Value("${aiops.llm.guard.slow-call-ms:30000}")
+    private long slowCallMs;
+
+    @Value("${aiops.llm.guard.min-calls:10}")
+    private int minCalls;
+
+    @Value("${aiops.llm.guard.failure-rate-threshold:0.5}")
+    private double failureRateThreshold;
+
+    @Value("${aiops.llm.guard.open-duration-ms:30000}")
+    private long openDurationMs;
+
+    @Value("${aiops.llm.guard.half-open-calls:2}")
+    private int halfOpenCalls;
+
+    // 熔断状态（以下字段均在 this 上同步访问）
+    private State state = State.CLOSED;
+    private final boolean[] window;
+    private int windowPos;
+    private int windowCount;
+    private int windowFailures;
+    private long openedAt;
+    private int halfOpenStarted;
+    private int halfOpenSucceeded;
+
+    public LlmCallGuard(MeterRegistry meterRegistry,
+                        @Value("${aiops.llm.guard.max-concurrent:8}") int maxConcurrent,
+                        @Value("${aiops.llm.guard.window-size:20}") int windowSize) {
+        this.meterRegistry = meterRegistry;
+        this.permits = new Semaphore(Math.max(1, maxConcurrent));
+        this.window = new boolean[Math.max(1, windowSize)];
+        AtomicInteger counter = new AtomicInteger(1);
+        // 任务数受舱壁许可限制，队列不会无限增长
+        this.executor = new ThreadPoolExecutor(Math.max(1, maxConcurrent), Math.max(1, maxConcurrent),
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "llm-call-" + counter.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+        Gauge.builder("aiops.llm.circuit.state", this, g -> g.currentState().code)
+                .description("大模型熔断状态：0-关闭, 1-打开, 2-半开")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 在保护下执行一次模型调用
+     * @throws LlmUnavailableException 熔断打开、并发已满或调用超时
+     */
+    public <T> T call(Supplier<T> call) {
+        if (!tryEnter()) {
+            reject("open");
+            throw new LlmUnavailableException("大模型熔断中，暂停调用");
+        }
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelTrial();
+            throw new LlmUnavailableException("等待大模型调用许可被中断", e);
+        }
+        if (!acquired) {
+            cancelTrial();
+            reject("bulkhead");
+            throw new LlmUnavailableException("大模型并发调用已满");
+        }
+
+        long start = System.nanoTime();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                try {
+                    return call.get();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            cancelTrial();
+            throw e;
+        }
+
+        try {
+            T result = future.get(callTimeoutMs, TimeUnit.MILLISECONDS);
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            record(elapsedMs <= slowCallMs, "success", start);
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            record(false, "timeout", start);
+            throw new LlmUnavailableException("大模型调用超时（" + callTimeoutMs + "ms）", e);
+        } catch (ExecutionException e) {
+            record(false, "failure", start);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            cancelTrial();
+            throw new LlmUnavailableException("大模型调用被中断", e);
+        }
+    }
+
+    /**
+     * 当前是否允许调用（熔断未打开，或打开时长已到、可以半开试探）
+     */
+    public synchronized boolean isCallPermitted() {
+        return currentState() != State.OPEN;
+    }
+
+    /**
+     * 熔断是否处于关闭（正常）状态
+     */
+    public synchronized boolean isClosed() {
+        return currentState() == State.CLOSED;
+    }
+
+    private synchronized State currentState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDurationMs) {
+            transition(State.HALF_OPEN);
+        }
+        return state;
+    }
+
+    private synchronized boolean tryEnter() {
+        State current = currentState();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.HALF_OPEN && halfOpenStarted < halfOpenCalls) {
+            halfOpenStarted++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 半开试探名额未真正调用模型就放弃时归还
+     */
+    private synchronized void cancelTrial() {
+        if (state == State.HALF_OPEN && halfOpenStarted > 0) {
+            halfOpenStarted--;
+        }
+    }
+
+    private void record(boolean success, String outcome, long startNanos) {
+        Timer.builder("aiops.llm.call")
+                .description("大模型调用耗时")
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        onResult(success);
+    }
+
+    private synchronized void onResult(boolean success) {
+        if (state == State.HALF_OPEN) {
+            if (!success) {
+                transition(State.OPEN);
+            } else if (++halfOpenSucceeded >= halfOpenCalls) {
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // 打开前已发出的调用，结果不再计入
+            return;
+        }
+        if (windowCount == window.length) {
+            if (!window[windowPos]) {
+                windowFailures--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowPos] = success;
+        if (!success) {
+            windowFailures++;
+        }
+        windowPos = (windowPos + 1) % window.length;
+
+        if (windowCount >= minCalls && (double) windowFailures / windowCount >= failureRateThreshold) {
+            log.error("[AI熔断] 失败率过高，暂停调用大模型: failures={}, calls={}, openDuration={}ms",
+                    windowFailures, windowCount, openDurationMs);
+            transition(State.OPEN);
+        }
+    }
+
+    private void transition(State target) {
+        if (state == target) {
+            return;
+        }
+        log.warn("[AI熔断] 状态变更: {} -> {}", state, target);
+        state = target;
+        if (target == State.OPEN) {
+            openedAt = System.currentTimeMillis();
+        }
+        if (target == State.HALF_OPEN) {
+            halfOpenStarted = 0;
+            halfOpenSucceeded = 0;
+        }
+        if (target == State.CLOSED) {
+            windowPos = 0;
+            windowCount = 0;
+            windowFailures = 0;
+        }
+    }
+
+    private void reject(String reason) {
+        Counter.builder("aiops.llm.guard.rejected")
+                .description("被熔断或舱壁拒绝的大模型调用数")
+                .tag("reason", reason)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
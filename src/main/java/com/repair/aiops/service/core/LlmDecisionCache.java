@@ -0,0 +1,135 @@
+package com.repair.aiops.service.core;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.repair.aiops.service.storage.OssStorageService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * 大模型决策缓存
+ *
+ * 存档重放、超过去重窗口的重复发送、Webhook 重试都会让同样的输入再次调用大模型。
+ * 以“业主信息 + 合并上下文 + 当前内容 + 图片”归一化后的哈希为键，缓存模型返回的原始 JSON，
+ * 命中时由调用方重新解析为 TicketDraft（每次得到新对象，调用方可以放心修改）。
+ *
+ * 图片按内容参与缓存键：只认本服务转存到 OSS 的内容寻址地址（地址中带内容摘要）；
+ * 任一图片是外部地址时无法确认内容是否变化，不读不写缓存。
+ *
+ * 注意：当前消息时间不参与缓存键，同样内容在 TTL 内重放会得到相同的紧急程度判断。
+ */
+@Slf4j
+@Service
+public class LlmDecisionCache {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final char FIELD_SEPARATOR = '\u0001';
+
+    private final Cache<String, String> cache;
+    private final OssStorageService ossStorageService;
+
+    // 调试用：为 true 时不读不写缓存，每次都调用大模型
+    @Value("${aiops.llm-cache.bypass:false}")
+    private volatile boolean bypass;
+
+    public LlmDecisionCache(MeterRegistry meterRegistry,
+                            OssStorageService ossStorageService,
+                            @Value("${aiops.llm-cache.max-size:10000}") long maxSize,
+                            @Value("${aiops.llm-cache.ttl-minutes:30}") long ttlMinutes) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofMinutes(ttlMinutes))
+                .recordStats()
+                .build();
+        this.ossStorageService = ossStorageService;
+        // 暴露 cache.gets{result=hit|miss}、cache.size、cache.evictions 等指标
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "aiops.llm.decision");
+    }
+
+    /**
+     * 计算缓存键
+     * @param ownerInfo 业主信息
+     * @param history   合并后的上下文内容
+     * @param content   当前消息内容
+     * @param imageUrls 参与分析的全部图片（历史 + 当前）
+     * @return 缓存键；有图片不是内容寻址地址时返回 null（不使用缓存）
+     */
+    public String keyOf(String ownerInfo, String history, String content, List<String> imageUrls) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(normalize(ownerInfo)).append(FIELD_SEPARATOR)
+                .append(normalize(history)).append(FIELD_SEPARATOR)
+                .append(normalize(content));
+        if (imageUrls != null) {
+            for (String url : imageUrls) {
+                // 同一地址的内容可能被替换，只有地址本身带内容摘要时才能作为键
+                String contentId = ossStorageService.contentIdOf(url);
+                if (contentId == null) {
+                    log.debug("图片不是内容寻址地址，跳过决策缓存: url={}", url);
+                    return null;
+                }
+                sb.append(FIELD_SEPARATOR).append(contentId);
+            }
+        }
+        return sha256(sb.toString());
+    }
+
+    /**
+     * 查询缓存的模型输出
+     * @return 命中时返回模型原始 JSON，否则返回 null
+     */
+    public String get(String key) {
+        if (bypass || key == null) {
+            return null;
+        }
+        return cache.getIfPresent(key);
+    }
+
+    public void put(String key, String modelOutput) {
+        if (bypass || key == null || modelOutput == null || modelOutput.isEmpty()) {
+            return;
+        }
+        cache.put(key, modelOutput);
+    }
+
+    /**
+     * 清空缓存（提示词模板变更后调用，避免旧决策继续生效）
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+        log.info("大模型决策缓存已清空");
+    }
+
+    public void setBypass(boolean bypass) {
+        this.bypass = bypass;
+        log.info("大模型决策缓存旁路开关: bypass={}", bypass);
+    }
+
+    private static String normalize(String value) {
+        if (value == null) {
+            return "";
+        }
+        return WHITESPACE.matcher(value.trim()).replaceAll(" ").toLowerCase(Locale.ROOT);
+    }
+
+    private static String sha256(String input) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(md.digest(input.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // JDK 必须提供 SHA-256，理论上不会发生
+            throw new IllegalStateException("SHA-256 不可用", e);
+        }
+    }
+}
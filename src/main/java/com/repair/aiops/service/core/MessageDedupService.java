@@ -1,13 +1,20 @@
 package com.repair.aiops.service.core;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.repair.aiops.utils.HashUtils;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -19,19 +26,60 @@ import java.util.concurrent.TimeUnit;
 public class MessageDedupService {
 
     private final RedisTemplate<String, Object> redisTemplate;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
     
     private static final String DEDUP_KEY_PREFIX = "aiops:dedup:";
+    private static final String MSGID_KEY_PREFIX = "aiops:dedup:msgid:";
+    private static final String INFLIGHT_KEY_PREFIX = "aiops:dedup:inflight:";
+    private static final String FAILURES_KEY_PREFIX = "aiops:dedup:failures:";
+    private static final String RELEASE_CHANNEL = "aiops:dedup:release";
     
     // 去重时间窗口（秒），从配置文件读取，默认60秒
-    @Value("${aiops.message.dedup-window:60}")
-    private long dedupWindow;
+    private final long dedupWindow;
 
-    public MessageDedupService(RedisTemplate<String, Object> redisTemplate) {
+    // 存档消息 msgid 去重保留时间（小时）
+    @Value("${aiops.message.msgid-dedup-ttl-hours:72}")
+    private long msgIdTtlHours;
+
+    /**
+     * 本机近端缓存：同一节点窗口期内的重复消息不必访问 Redis
+     * 只缓存本节点占位成功的键，过期时间与 Redis 窗口一致；释放时通过 Redis 发布订阅通知其他节点
+     */
+    private final Cache<String, Boolean> nearCache;
+    // 本节点标识，收到自己发出的释放通知时忽略
+    private final String nodeId = UUID.randomUUID().toString();
+
+    public MessageDedupService(RedisTemplate<String, Object> redisTemplate,
+                               StringRedisTemplate stringRedisTemplate,
+                               RedisMessageListenerContainer listenerContainer,
+                               @Value("${aiops.message.dedup-window:60}") long dedupWindow,
+                               @Value("${aiops.message.dedup-near-cache-size:10000}") long nearCacheSize) {
         this.redisTemplate = redisTemplate;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.dedupWindow = dedupWindow;
+        this.nearCache = Caffeine.newBuilder()
+                .maximumSize(nearCacheSize)
+                .expireAfterWrite(Duration.ofSeconds(dedupWindow))
+                .build();
+    }
+
+    @PostConstruct
+    public void subscribeRelease() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int idx = body.indexOf('|');
+            if (idx <= 0 || body.substring(0, idx).equals(nodeId)) {
+                return;
+            }
+            nearCache.invalidate(body.substring(idx + 1));
+        }, new ChannelTopic(RELEASE_CHANNEL));
     }
 
     /**
      * 检查消息是否重复
+     * 先查本机近端缓存，未命中再用 SET NX EX 原子占位：只有第一个占位成功的调用返回 false
      * @param senderId 发送者ID
      * @param content 消息内容
      * @return true表示是重复消息，false表示新消息
@@ -41,19 +89,21 @@ public class MessageDedupService {
             return false;
         }
         
+        String hash = calculateHash(senderId, content);
+        String key = DEDUP_KEY_PREFIX + senderId + ":" + hash;
+        if (nearCache.getIfPresent(key) != null) {
+            log.debug("检测到重复消息(本机)：senderId={}, hash={}", senderId, hash);
+            return true;
+        }
+
         try {
-            String hash = calculateHash(senderId, content);
-            String key = DEDUP_KEY_PREFIX + senderId + ":" + hash;
-            
-            // 检查Redis中是否存在
-            Object existing = redisTemplate.opsForValue().get(key);
-            if (existing != null) {
+            Boolean acquired = redisTemplate.opsForValue().setIfAbsent(key, "1", dedupWindow, TimeUnit.SECONDS);
+            if (Boolean.FALSE.equals(acquired)) {
+                // 不写近端缓存：键由其他调用占位，剩余有效期短于窗口，重新计时会让本机拦截得比 Redis 更久
                 log.debug("检测到重复消息：senderId={}, hash={}", senderId, hash);
                 return true;
             }
-            
-            // 不存在则存储，设置过期时间
-            redisTemplate.opsForValue().set(key, "1", dedupWindow, TimeUnit.SECONDS);
+            nearCache.put(key, Boolean.TRUE);
             return false;
         } catch (Exception e) {
             log.error("检查消息重复异常：senderId={}, error={}", senderId, e.getMessage(), e);
@@ -62,6 +112,113 @@ public class MessageDedupService {
         }
     }
 
+    /**
+     * 释放内容去重标记（消息未真正处理、稍后重放时调用）
+     * 重放可能落在其他节点，除删除 Redis 标记外还通知其他节点清除近端缓存
+     */
+    public void release(String senderId, String content) {
+        if (senderId == null || content == null || content.trim().isEmpty()) {
+            return;
+        }
+        String key = DEDUP_KEY_PREFIX + senderId + ":" + calculateHash(senderId, content);
+        nearCache.invalidate(key);
+        try {
+            redisTemplate.delete(key);
+        } catch (Exception e) {
+            log.error("释放消息去重标记异常：senderId={}, error={}", senderId, e.getMessage(), e);
+        }
+        try {
+            stringRedisTemplate.convertAndSend(RELEASE_CHANNEL, nodeId + "|" + key);
+        } catch (Exception e) {
+            // 其他节点最迟在近端缓存过期后放行
+            log.warn("发布消息去重释放通知失败：senderId={}, error={}", senderId, e.getMessage());
+        }
+    }
+
+    /**
+     * 存档消息是否已处理过（按企业微信 msgid 判断）
+     */
+    public boolean isArchiveMsgProcessed(String msgId) {
+        if (msgId == null || msgId.isEmpty()) {
+            return false;
+        }
+        try {
+            return Boolean.TRUE.equals(redisTemplate.hasKey(MSGID_KEY_PREFIX + msgId));
+        } catch (Exception e) {
+            log.error("检查存档消息去重异常：msgId={}, error={}", msgId, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 标记存档消息已处理（在流水线处理完成后调用，未完成的消息重新拉取时仍会处理）
+     */
+    public void markArchiveMsgProcessed(String msgId) {
+        if (msgId == null || msgId.isEmpty()) {
+            return;
+        }
+        try {
+            redisTemplate.opsForValue().set(MSGID_KEY_PREFIX + msgId, "1", msgIdTtlHours, TimeUnit.HOURS);
+        } catch (Exception e) {
+            log.error("标记存档消息已处理异常：msgId={}, error={}", msgId, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 占位“处理中”的存档消息（投递到流水线前调用）
+     * 用 SET NX PX 原子占位，只有第一个占位成功的调用返回 true；
+     * 批次等待超时后重新拉取到同一条消息时占位失败，避免仍在流水线中的消息被重复投递
+     * @param ttl 占位过期时间，须大于批次等待时间；节点宕机时占位到期后消息会被重新处理
+     */
+    public boolean tryMarkArchiveMsgInFlight(String msgId, Duration ttl) {
+        if (msgId == null || msgId.isEmpty()) {
+            return true;
+        }
+        try {
+            Boolean acquired = redisTemplate.opsForValue().setIfAbsent(INFLIGHT_KEY_PREFIX + msgId, "1", ttl);
+            return !Boolean.FALSE.equals(acquired);
+        } catch (Exception e) {
+            log.error("标记存档消息处理中异常：msgId={}, error={}", msgId, e.getMessage(), e);
+            // 异常情况不拦截，允许投递
+            return true;
+        }
+    }
+
+    /**
+     * 清除存档消息“处理中”占位（处理结束或未能投递时调用）
+     */
+    public void clearArchiveMsgInFlight(String msgId) {
+        if (msgId == null || msgId.isEmpty()) {
+            return;
+        }
+        try {
+            redisTemplate.delete(INFLIGHT_KEY_PREFIX + msgId);
+        } catch (Exception e) {
+            log.error("清除存档消息处理中标记异常：msgId={}, error={}", msgId, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 累计存档消息处理失败次数（与已处理标记同样的保留时间）
+     * @return 累计后的次数；Redis 异常时返回 0（不计数，按首次失败处理）
+     */
+    public long incrementArchiveMsgFailures(String msgId) {
+        if (msgId == null || msgId.isEmpty()) {
+            return 0;
+        }
+        String key = FAILURES_KEY_PREFIX + msgId;
+        try {
+            Long count = redisTemplate.opsForValue().increment(key);
+            if (count != null && count == 1) {
+                redisTemplate.expire(key, msgIdTtlHours, TimeUnit.HOURS);
+            }
+            return count != null ? count : 0;
+        } catch (Exception e) {
+            log.error("累计存档消息失败次数异常：msgId={}, error={}", msgId, e.getMessage(), e);
+            return 0;
+        }
+    }
+
     /**
      * 检查消息是否为更正消息
      * 通过识别更正关键词来判断
@@ -90,23 +247,9 @@ public class MessageDedupService {
     }
 
     /**
-     * 计算消息内容的哈希值（用于去重）
+     * 计算消息内容的哈希值（用于去重，非加密哈希即可）
      */
     private String calculateHash(String senderId, String content) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            String input = senderId + ":" + content.trim();
-            byte[] hashBytes = md.digest(input.getBytes(StandardCharsets.UTF_8));
-            
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hashBytes) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            log.error("计算哈希值失败", e);
-            // 降级方案：使用简单的字符串
-            return String.valueOf((senderId + content).hashCode());
-        }
+        return HashUtils.fnv1a64Hex(senderId + ":" + content.trim());
     }
 }
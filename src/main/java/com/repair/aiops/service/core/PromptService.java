@@ -1,30 +1,190 @@
 package com.repair.aiops.service.core;
 
-import org.springframework.ai.chat.prompt.PromptTemplate;
-import org.springframework.ai.chat.prompt.SystemPromptTemplate;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * 系统提示词渲染
+ *
+ * 模板在启动时读取并编译为“静态片段 + 变量槽位”，每次渲染只做字符串拼接，
+ * 不再为每条消息重新解析模板。模板文件变更后可通过 {@link #reload()} 或定时检查自动生效。
+ * 变量语法与原 StringTemplate 模板一致：{变量名}，未提供的变量渲染为空。
+ */
+@Slf4j
 @Service
 public class PromptService {
     @Value("classpath:prompt/system-prompt.st")
     private Resource systemPromptResource;
 
+    @Autowired
+    private LlmDecisionCache decisionCache;
+
+    // 模板热加载开关（关闭后只能通过 reload() 手动刷新）
+    @Value("${aiops.prompt.hot-reload.enabled:true}")
+    private boolean hotReloadEnabled;
+
+    /**
+     * 当前生效的编译结果（整体替换，渲染线程无需加锁）
+     */
+    private volatile CompiledTemplate compiled;
+
+    private volatile long lastModified = -1L;
+
+    @PostConstruct
+    public void init() throws IOException {
+        this.compiled = compile(readTemplate());
+        this.lastModified = resolveLastModified();
+        log.info("系统提示词模板已加载: segments={}, slots={}", compiled.segments.size(), compiled.slotCount);
+    }
+
     public String buildSystemPrompt(String ownerInfo, String history, String format, String currentTime) {
-        // 创建模板对象
-        PromptTemplate template = new PromptTemplate(systemPromptResource);
+        Map<String, String> vars = Map.of(
+                "ownerInfo", ownerInfo != null ? ownerInfo : "未知身份业主",
+                "format", format != null ? format : "",
+                "historyContext", (history == null || history.isEmpty()) ? "无历史记录" : history,
+                "currentTime", currentTime != null ? currentTime : "未知时间"
+        );
+        return compiled.render(vars);
+    }
+
+    /**
+     * 重新读取并编译模板，失败时保留旧模板
+     * @return 是否重新加载成功
+     */
+    public synchronized boolean reload() {
+        try {
+            CompiledTemplate fresh = compile(readTemplate());
+            this.compiled = fresh;
+            this.lastModified = resolveLastModified();
+            log.info("系统提示词模板已重新加载: segments={}, slots={}", fresh.segments.size(), fresh.slotCount);
+            // 提示词变了，旧的模型决策不再可信
+            decisionCache.invalidateAll();
+            return true;
+        } catch (Exception e) {
+            log.error("系统提示词模板重新加载失败，继续使用旧模板: {}", e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 定时检查模板文件修改时间，变更后自动重新加载
+     * 打包在 jar 内的模板通常无法获取修改时间，此时跳过检查
+     */
+    @Scheduled(fixedDelayString = "${aiops.prompt.reload-check-interval-ms:30000}")
+    public void checkForChanges() {
+        if (!hotReloadEnabled) {
+            return;
+        }
+        long current = resolveLastModified();
+        if (current > 0 && current != lastModified) {
+            log.info("检测到系统提示词模板变更: lastModified={} -> {}", lastModified, current);
+            reload();
+        }
+    }
+
+    private String readTemplate() throws IOException {
+        try (InputStream in = systemPromptResource.getInputStream()) {
+            return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    private long resolveLastModified() {
+        try {
+            return systemPromptResource.lastModified();
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * 把模板拆分为静态片段和变量槽位：{name} 为槽位，其余按原样保留
+     */
+    static CompiledTemplate compile(String source) {
+        List<String> segments = new ArrayList<>();
+        List<String> slots = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (c == '{') {
+                int end = source.indexOf('}', i + 1);
+                if (end > i + 1 && isIdentifier(source, i + 1, end)) {
+                    segments.add(literal.toString());
+                    slots.add(source.substring(i + 1, end));
+                    literal.setLength(0);
+                    i = end + 1;
+                    continue;
+                }
+            }
+            literal.append(c);
+            i++;
+        }
+        segments.add(literal.toString());
+        return new CompiledTemplate(segments, slots);
+    }
+
+    private static boolean isIdentifier(String s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 编译后的模板：segments 比 slots 多一个，渲染时交替拼接
+     */
+    static final class CompiledTemplate {
+        private final List<String> segments;
+        private final String[] slots;
+        private final int slotCount;
+        private final int staticLength;
 
-        // 关键：把变量塞进去
-        Map<String, Object> map = new HashMap<>();
-        map.put("ownerInfo", ownerInfo != null ? ownerInfo : "未知身份业主");
-        map.put("format", format);
-        map.put("historyContext", (history == null || history.isEmpty()) ? "无历史记录" : history);
-        map.put("currentTime", currentTime != null ? currentTime : "未知时间");
+        CompiledTemplate(List<String> segments, List<String> slots) {
+            this.segments = List.copyOf(segments);
+            this.slots = slots.toArray(new String[0]);
+            this.slotCount = this.slots.length;
+            int length = 0;
+            for (String segment : segments) {
+                length += segment.length();
+            }
+            this.staticLength = length;
+        }
 
-        return template.render(map);
+        String render(Map<String, String> vars) {
+            // 预估长度：静态部分 + 各槽位实际值，避免扩容拷贝
+            int capacity = staticLength;
+            for (String slot : slots) {
+                String value = vars.get(slot);
+                if (value != null) {
+                    capacity += value.length();
+                }
+            }
+            StringBuilder sb = new StringBuilder(capacity);
+            for (int i = 0; i < slotCount; i++) {
+                sb.append(segments.get(i));
+                String value = vars.get(slots[i]);
+                if (value != null) {
+                    sb.append(value);
+                }
+            }
+            sb.append(segments.get(slotCount));
+            return sb.toString();
+        }
     }
 }
@@ -0,0 +1,169 @@
+package com.repair.aiops.service.core;
+
+import com.alibaba.fastjson.JSON;
+import com.repair.aiops.model.enums.IntentType;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 流式模型输出的增量 JSON 扫描器
+ *
+ * 逐段喂入模型输出，只跟踪最外层对象：某个顶层字段的值一旦完整（字符串闭合、嵌套对象/数组闭合、
+ * 字面量遇到逗号或右括号）就记录下来，不必等整个 JSON 结束。用于提前拿到 intent / actionable。
+ * 第一个 '{' 之前的内容（如 ```json 围栏）直接跳过。非线程安全，一次调用一个实例。
+ */
+class TicketDraftStreamScanner {
+
+    private final StringBuilder buffer = new StringBuilder();
+    private final Map<String, String> completed = new HashMap<>();
+
+    private int pos;
+    private int depth;
+    private boolean inString;
+    private boolean escape;
+    private boolean finished;
+    private boolean cutOff;
+
+    // 最外层当前字段：键的起始位置、键名、值的起始位置、值是否为字符串
+    private int keyStart = -1;
+    private String currentKey;
+    private int valueStart = -1;
+    private boolean stringValue;
+
+    void feed(String chunk) {
+        if (chunk == null || chunk.isEmpty() || finished) {
+            return;
+        }
+        buffer.append(chunk);
+        for (; pos < buffer.length() && !finished; pos++) {
+            scan(buffer.charAt(pos));
+        }
+    }
+
+    private void scan(char c) {
+        if (inString) {
+            if (escape) {
+                escape = false;
+            } else if (c == '\\') {
+                escape = true;
+            } else if (c == '"') {
+                inString = false;
+                if (depth == 1) {
+                    if (keyStart >= 0) {
+                        currentKey = buffer.substring(keyStart + 1, pos);
+                        keyStart = -1;
+                    } else if (stringValue) {
+                        complete(pos + 1);
+                    }
+                }
+            }
+            return;
+        }
+        switch (c) {
+            case '"':
+                inString = true;
+                if (depth == 1) {
+                    if (currentKey == null) {
+                        keyStart = pos;
+                    } else if (valueStart < 0) {
+                        valueStart = pos;
+                        stringValue = true;
+                    }
+                }
+                break;
+            case '{':
+            case '[':
+                if (depth == 1 && currentKey != null && valueStart < 0) {
+                    valueStart = pos;
+                }
+                depth++;
+                break;
+            case '}':
+            case ']':
+                if (depth == 0) {
+                    break;
+                }
+                depth--;
+                if (depth == 1 && valueStart >= 0) {
+                    complete(pos + 1);
+                } else if (depth == 0) {
+                    if (valueStart >= 0) {
+                        complete(pos);
+                    }
+                    finished = true;
+                }
+                break;
+            case ',':
+                if (depth == 1 && valueStart >= 0) {
+                    complete(pos);
+                }
+                break;
+            case ':':
+                break;
+            default:
+                if (depth == 1 && currentKey != null && valueStart < 0 && !Character.isWhitespace(c)) {
+                    valueStart = pos;
+                }
+        }
+    }
+
+    private void complete(int end) {
+        if (currentKey != null) {
+            completed.put(currentKey, buffer.substring(valueStart, end).trim());
+        }
+        currentKey = null;
+        valueStart = -1;
+        stringValue = false;
+    }
+
+    /**
+     * 意图（字段尚未输出完整或无法识别时为 null）
+     */
+    IntentType intent() {
+        Object value = value("intent");
+        if (!(value instanceof String)) {
+            return null;
+        }
+        try {
+            return IntentType.valueOf((String) value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 是否可处理（字段尚未输出完整时为 null）
+     */
+    Boolean actionable() {
+        Object value = value("actionable");
+        return value instanceof Boolean ? (Boolean) value : null;
+    }
+
+    private Object value(String key) {
+        String raw = completed.get(key);
+        if (raw == null) {
+            return null;
+        }
+        try {
+            return JSON.parse(raw);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 调用方提前结束了输出（识别为闲聊后不再读取）
+     */
+    void markCutOff() {
+        cutOff = true;
+    }
+
+    boolean isCutOff() {
+        return cutOff;
+    }
+
+    String text() {
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,189 @@
+package com.repair.aiops.service.memory;
+
+import com.repair.aiops.model.dto.MessageContext;
+import com.repair.aiops.utils.TokenEstimator;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 会话上下文构建（按 token 预算截取）
+ *
+ * 从最新的消息往前取，直到估算的 token 数用完 aiops.memory.context.token-budget；
+ * 更早的消息折叠成一段简短摘要放在最前面（每个片段截断、总长受 summary-token-budget 限制），
+ * 摘要按覆盖范围缓存在上下文上，范围不变时不再重新生成。
+ * 与当前消息相同或被其包含的片段、彼此重复的片段只保留一次，同一段文字不会在提示词中出现两次。
+ *
+ * 摘要为抽取式（去重 + 截断），不额外调用大模型，避免分析链路上多一次模型调用。
+ */
+@Slf4j
+@Component
+public class ContextWindowBuilder {
+
+    private static final String SEPARATOR = "；";
+    private static final String SUMMARY_PREFIX = "（早前消息摘要）";
+    private static final String ELLIPSIS = "…";
+
+    private final ISessionMemoryService memoryService;
+    private final DistributionSummary contextTokens;
+
+    @Value("${aiops.memory.context.token-budget:600}")
+    private int tokenBudget;
+
+    @Value("${aiops.memory.context.summary-token-budget:150}")
+    private int summaryTokenBudget;
+
+    // 摘要中每个片段保留的最大字符数
+    @Value("${aiops.memory.context.summary-fragment-chars:30}")
+    private int summaryFragmentChars;
+
+    public ContextWindowBuilder(ISessionMemoryService memoryService, MeterRegistry meterRegistry) {
+        this.memoryService = memoryService;
+        this.contextTokens = DistributionSummary.builder("aiops.llm.context.tokens")
+                .description("提示词中会话上下文的估算 token 数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 构建会话上下文文本
+     * @param currentContent 当前消息内容（单独作为用户消息发送，不再重复放入上下文）
+     * @return 上下文文本，没有历史时返回空字符串
+     */
+    public String build(String senderId, MessageContext context, String currentContent) {
+        if (context == null || context.getMessages() == null || context.getMessages().isEmpty()) {
+            return "";
+        }
+        String current = currentContent != null ? currentContent.trim() : "";
+        List<MessageContext.MessageItem> items = context.getMessages();
+
+        // 1. 从新到旧保留预算内的消息
+        List<String> kept = new ArrayList<>();
+        int used = 0;
+        int index = items.size() - 1;
+        for (; index >= 0; index--) {
+            String fragment = contentOf(items.get(index));
+            if (fragment.isEmpty() || isCovered(fragment, current, kept)) {
+                continue;
+            }
+            int tokens = TokenEstimator.estimate(fragment);
+            if (used + tokens > tokenBudget) {
+                if (kept.isEmpty()) {
+                    // 最新一条本身就超出预算：截断后保留，其余全部折叠
+                    kept.add(truncate(fragment, tokenBudget));
+                    used = tokenBudget;
+                    index--;
+                }
+                break;
+            }
+            kept.add(fragment);
+            used += tokens;
+        }
+        Collections.reverse(kept);
+
+        // 2. 更早的消息折叠为摘要
+        String summary = "";
+        if (index >= 0) {
+            List<MessageContext.MessageItem> older = items.subList(0, index + 1);
+            summary = summarize(senderId, context, older, current, kept);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        if (!summary.isEmpty()) {
+            sb.append(SUMMARY_PREFIX).append(summary);
+        }
+        for (String fragment : kept) {
+            if (sb.length() > 0) {
+                sb.append(SEPARATOR);
+            }
+            sb.append(fragment);
+        }
+        String history = sb.toString();
+        int total = TokenEstimator.estimate(history);
+        contextTokens.record(total);
+        log.debug("构建会话上下文：senderId={}, 消息数={}, 保留={}, 折叠={}, 估算tokens={}",
+                senderId, items.size(), kept.size(), index + 1, total);
+        return history;
+    }
+
+    private String summarize(String senderId, MessageContext context, List<MessageContext.MessageItem> older,
+                             String current, List<String> kept) {
+        String range = rangeOf(older);
+        if (range.equals(context.getSummaryRange()) && context.getSummary() != null) {
+            return context.getSummary();
+        }
+
+        // 从新到旧取片段（越新越可能是更正后的信息），截断后放入，直到摘要预算用完
+        List<String> fragments = new ArrayList<>();
+        int used = 0;
+        for (int i = older.size() - 1; i >= 0; i--) {
+            String fragment = contentOf(older.get(i));
+            if (fragment.isEmpty() || isCovered(fragment, current, kept) || isCovered(fragment, "", fragments)) {
+                continue;
+            }
+            String shortened = fragment;
+            if (fragment.length() > summaryFragmentChars) {
+                String head = fragment.substring(0, summaryFragmentChars);
+                // 截断后剩下的部分已经出现过，放进摘要也没有新信息
+                if (isCovered(head, current, kept)) {
+                    continue;
+                }
+                shortened = head + ELLIPSIS;
+            }
+            int tokens = TokenEstimator.estimate(shortened);
+            if (used + tokens > summaryTokenBudget) {
+                break;
+            }
+            fragments.add(shortened);
+            used += tokens;
+        }
+        Collections.reverse(fragments);
+        String summary = String.join(SEPARATOR, fragments);
+
+        context.setSummary(summary);
+        context.setSummaryRange(range);
+        memoryService.saveContextSummary(senderId, range, summary);
+        return summary;
+    }
+
+    /**
+     * 片段已在当前消息或已保留的片段中出现过
+     */
+    private static boolean isCovered(String fragment, String current, List<String> kept) {
+        if (!current.isEmpty() && current.contains(fragment)) {
+            return true;
+        }
+        for (String other : kept) {
+            if (other.contains(fragment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String contentOf(MessageContext.MessageItem item) {
+        return item.getContent() != null ? item.getContent().trim() : "";
+    }
+
+    private static String rangeOf(List<MessageContext.MessageItem> older) {
+        MessageContext.MessageItem first = older.get(0);
+        MessageContext.MessageItem last = older.get(older.size() - 1);
+        return first.getTimestamp() + "-" + last.getTimestamp() + "-" + older.size();
+    }
+
+    /**
+     * 按估算 token 数截断（从头保留）
+     */
+    private static String truncate(String text, int budget) {
+        int end = text.length();
+        while (end > 0 && TokenEstimator.estimate(text.substring(0, end)) > budget) {
+            end = Math.max(0, end - Math.max(1, (end - budget) / 2));
+        }
+        return end < text.length() ? text.substring(0, end) + ELLIPSIS : text;
+    }
+}
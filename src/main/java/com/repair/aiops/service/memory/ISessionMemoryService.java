@@ -42,4 +42,17 @@ public interface ISessionMemoryService {
      * @return 消息上下文
      */
     MessageContext getMessageContext(String senderId);
+
+    /**
+     * 业主是否有进行中的会话（存在未过期的消息上下文，例如正在回答追问）
+     * @param senderId 业主ID
+     * @return 有上下文返回 true；查询异常时也返回 true（宁可交给大模型判断）
+     */
+    boolean hasMessageContext(String senderId);
+
+    /**
+     * 缓存早前消息的摘要（与上下文同有效期，清除记忆时一并删除）
+     * @param range 摘要覆盖的消息范围
+     */
+    void saveContextSummary(String senderId, String range, String summary);
 }
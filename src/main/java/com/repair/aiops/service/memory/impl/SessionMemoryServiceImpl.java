@@ -2,29 +2,63 @@ package com.repair.aiops.service.memory.impl;
 
 
 import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
 import com.repair.aiops.model.dto.MessageContext;
 import com.repair.aiops.service.memory.ISessionMemoryService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * 业主会话记忆服务实现
+ *
+ * 每个业主的消息上下文存放在一个 Redis List 中（每个元素是一条消息的 JSON），
+ * 追加、裁剪、刷新有效期由 Lua 脚本在服务端一次原子完成，不再整体读取-修改-写回。
+ * 简单文本记忆不再单独存储，由上下文中的消息拼接得到。
+ */
 @Slf4j
 @Service
 public class SessionMemoryServiceImpl implements ISessionMemoryService {
 
     private final RedisTemplate<String, Object> redisTemplate;
 
-    // Redis Key 的前缀
+    // Redis Key 的前缀（旧版 String/JSON 结构的 key，仅用于清理）
     private static final String MEMORY_KEY_PREFIX = "aiops:memory:";
     private static final String CONTEXT_KEY_PREFIX = "aiops:context:";
+    // 新版 List 结构的上下文 key
+    private static final String CONTEXT_LIST_KEY_PREFIX = "aiops:context:v2:";
+    // 早前消息摘要（JSON：range + summary）
+    private static final String CONTEXT_SUMMARY_KEY_PREFIX = "aiops:context:v2:summary:";
+
+    /**
+     * 追加一条消息：RPUSH + LTRIM（只保留最近 N 条）+ PEXPIRE，返回当前条数
+     * KEYS[1] 上下文 key；ARGV[1] 消息 JSON；ARGV[2] 最大条数；ARGV[3] 有效期（毫秒）
+     */
+    private static final RedisScript<Long> APPEND_SCRIPT = new DefaultRedisScript<>(
+            "local n = redis.call('RPUSH', KEYS[1], ARGV[1]) " +
+            "local max = tonumber(ARGV[2]) " +
+            "if n > max then redis.call('LTRIM', KEYS[1], -max, -1) n = max end " +
+            "redis.call('PEXPIRE', KEYS[1], ARGV[3]) " +
+            "return n",
+            Long.class);
     
     // 记忆有效期（分钟），从配置文件读取，默认30分钟
     @Value("${aiops.memory.expire-time:30}")
     private long expireTime;
 
+    // 每个业主最多保留的上下文消息条数
+    @Value("${aiops.memory.max-messages:20}")
+    private int maxMessages;
+
     public SessionMemoryServiceImpl(RedisTemplate<String, Object> redisTemplate) {
         this.redisTemplate = redisTemplate;
     }
@@ -35,34 +69,8 @@ public class SessionMemoryServiceImpl implements ISessionMemoryService {
             log.warn("保存记忆失败：senderId或content为空");
             return;
         }
-        
-        try {
-            String key = MEMORY_KEY_PREFIX + senderId;
-            // 获取现有的记忆内容
-            Object existing = redisTemplate.opsForValue().get(key);
-
-            String newContent;
-            if (existing == null) {
-                newContent = content.trim();
-            } else {
-                // 将新内容追加到旧内容后面，用分号隔开，方便 AI 理解
-                // 过滤掉明显的闲聊内容（如"收到"、"谢谢"等）
-                String filteredContent = filterNoiseContent(content);
-                if (filteredContent != null && !filteredContent.isEmpty()) {
-                    newContent = existing.toString() + "；" + filteredContent;
-                } else {
-                    // 如果是闲聊内容，不追加，但保持现有记忆
-                    newContent = existing.toString();
-                }
-            }
-
-            // 存入 Redis 并设置/刷新有效期
-            redisTemplate.opsForValue().set(key, newContent, expireTime, TimeUnit.MINUTES);
-            log.debug("保存记忆成功：senderId={}, 有效期={}分钟", senderId, expireTime);
-        } catch (Exception e) {
-            log.error("保存记忆异常：senderId={}, error={}", senderId, e.getMessage(), e);
-            // 不影响主流程，只记录日志
-        }
+        // 简单记忆由上下文派生，这里直接追加一条无图片的消息
+        saveMessageContext(senderId, content, System.currentTimeMillis(), null);
     }
 
     @Override
@@ -70,14 +78,8 @@ public class SessionMemoryServiceImpl implements ISessionMemoryService {
         if (senderId == null) {
             return "";
         }
-        
-        try {
-            Object memory = redisTemplate.opsForValue().get(MEMORY_KEY_PREFIX + senderId);
-            return memory != null ? memory.toString() : "";
-        } catch (Exception e) {
-            log.error("获取记忆异常：senderId={}, error={}", senderId, e.getMessage(), e);
-            return "";
-        }
+        MessageContext context = getMessageContext(senderId);
+        return context != null ? context.getMergedContent() : "";
     }
 
     /**
@@ -114,28 +116,25 @@ public class SessionMemoryServiceImpl implements ISessionMemoryService {
             return;
         }
         
+        // 过滤闲聊内容
+        String filteredContent = filterNoiseContent(content);
+        if (filteredContent == null || filteredContent.isEmpty()) {
+            return;
+        }
+
         try {
-            String key = CONTEXT_KEY_PREFIX + senderId;
-            
-            // 获取现有的消息上下文
-            MessageContext context = getMessageContext(senderId);
-            if (context == null) {
-                context = MessageContext.builder()
-                        .messages(new java.util.ArrayList<>())
-                        .build();
-            }
-            
-            // 过滤闲聊内容
-            String filteredContent = filterNoiseContent(content);
-            if (filteredContent != null && !filteredContent.isEmpty()) {
-                // 添加新消息
-                context.addMessage(filteredContent, timestamp, imageUrl);
-                
-                // 序列化并存储
-                String contextJson = JSON.toJSONString(context);
-                redisTemplate.opsForValue().set(key, contextJson, expireTime, TimeUnit.MINUTES);
-                log.debug("保存消息上下文成功：senderId={}, 消息数={}", senderId, context.getMessages().size());
-            }
+            MessageContext.MessageItem item = MessageContext.MessageItem.builder()
+                    .content(filteredContent)
+                    .timestamp(timestamp != null ? timestamp : System.currentTimeMillis())
+                    .hasImage(imageUrl != null && !imageUrl.isEmpty())
+                    .imageUrl(imageUrl)
+                    .build();
+            Long size = redisTemplate.execute(APPEND_SCRIPT,
+                    Collections.singletonList(CONTEXT_LIST_KEY_PREFIX + senderId),
+                    JSON.toJSONString(item),
+                    String.valueOf(maxMessages),
+                    String.valueOf(TimeUnit.MINUTES.toMillis(expireTime)));
+            log.debug("保存消息上下文成功：senderId={}, 消息数={}", senderId, size);
         } catch (Exception e) {
             log.error("保存消息上下文异常：senderId={}, error={}", senderId, e.getMessage(), e);
         }
@@ -148,25 +147,64 @@ public class SessionMemoryServiceImpl implements ISessionMemoryService {
         }
         
         try {
-            String key = CONTEXT_KEY_PREFIX + senderId;
-            Object contextObj = redisTemplate.opsForValue().get(key);
-            
-            if (contextObj == null) {
+            List<Object> raw = redisTemplate.opsForList().range(CONTEXT_LIST_KEY_PREFIX + senderId, 0, -1);
+            if (raw == null || raw.isEmpty()) {
                 return null;
             }
-            
-            // 反序列化
-            if (contextObj instanceof String) {
-                return JSON.parseObject((String) contextObj, MessageContext.class);
+
+            List<MessageContext.MessageItem> items = new ArrayList<>(raw.size());
+            for (Object element : raw) {
+                if (element instanceof String) {
+                    items.add(JSON.parseObject((String) element, MessageContext.MessageItem.class));
+                }
             }
-            
-            return null;
+            MessageContext.MessageItem last = items.isEmpty() ? null : items.get(items.size() - 1);
+            MessageContext context = MessageContext.builder()
+                    .messages(items)
+                    .lastUpdateTime(last != null ? last.getTimestamp() : null)
+                    .build();
+            Object summary = redisTemplate.opsForValue().get(CONTEXT_SUMMARY_KEY_PREFIX + senderId);
+            if (summary instanceof String) {
+                JSONObject cached = JSON.parseObject((String) summary);
+                context.setSummary(cached.getString("summary"));
+                context.setSummaryRange(cached.getString("range"));
+            }
+            return context;
         } catch (Exception e) {
             log.error("获取消息上下文异常：senderId={}, error={}", senderId, e.getMessage(), e);
             return null;
         }
     }
     
+    @Override
+    public boolean hasMessageContext(String senderId) {
+        if (senderId == null) {
+            return false;
+        }
+        try {
+            return Boolean.TRUE.equals(redisTemplate.hasKey(CONTEXT_LIST_KEY_PREFIX + senderId));
+        } catch (Exception e) {
+            log.error("查询消息上下文异常：senderId={}, error={}", senderId, e.getMessage(), e);
+            return true;
+        }
+    }
+
+    @Override
+    public void saveContextSummary(String senderId, String range, String summary) {
+        if (senderId == null || range == null || summary == null) {
+            return;
+        }
+        try {
+            JSONObject cached = new JSONObject();
+            cached.put("range", range);
+            cached.put("summary", summary);
+            redisTemplate.opsForValue().set(CONTEXT_SUMMARY_KEY_PREFIX + senderId, cached.toJSONString(),
+                    expireTime, TimeUnit.MINUTES);
+        } catch (Exception e) {
+            log.error("缓存上下文摘要异常：senderId={}, error={}", senderId, e.getMessage(), e);
+        }
+    }
+
     @Override
     public void clearMemory(String senderId) {
         if (senderId == null) {
@@ -174,10 +212,12 @@ public class SessionMemoryServiceImpl implements ISessionMemoryService {
         }
         
         try {
-            // 清除简单记忆
-            redisTemplate.delete(MEMORY_KEY_PREFIX + senderId);
-            // 清除消息上下文
-            redisTemplate.delete(CONTEXT_KEY_PREFIX + senderId);
+            // 清除消息上下文（连同旧版结构的 key 一并删除，一次往返）
+            redisTemplate.delete(Arrays.asList(
+                    CONTEXT_LIST_KEY_PREFIX + senderId,
+                    CONTEXT_SUMMARY_KEY_PREFIX + senderId,
+                    MEMORY_KEY_PREFIX + senderId,
+                    CONTEXT_KEY_PREFIX + senderId));
             log.debug("清除记忆成功：senderId={}", senderId);
         } catch (Exception e) {
             log.error("清除记忆异常：senderId={}, error={}", senderId, e.getMessage(), e);
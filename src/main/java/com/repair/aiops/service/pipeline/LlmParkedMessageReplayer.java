@@ -0,0 +1,72 @@
+package com.repair.aiops.service.pipeline;
+
+import com.repair.aiops.service.core.LlmCallGuard;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 暂存消息重放
+ *
+ * 定时检查熔断状态：熔断关闭时每轮最多取出 batch-size 条暂存消息重新提交到流水线；
+ * 半开时只取 1 条作为试探，避免一次放出大量消息又被重新暂存。
+ * 流水线入口队列已满时把消息放回队首，下一轮再试。
+ */
+@Slf4j
+@Component
+public class LlmParkedMessageReplayer {
+
+    private final LlmParkingLot parkingLot;
+    private final LlmCallGuard llmCallGuard;
+    private final MessagePipeline messagePipeline;
+
+    @Value("${aiops.llm.parking.replay-batch-size:20}")
+    private int batchSize;
+
+    public LlmParkedMessageReplayer(LlmParkingLot parkingLot, LlmCallGuard llmCallGuard,
+                                    MessagePipeline messagePipeline) {
+        this.parkingLot = parkingLot;
+        this.llmCallGuard = llmCallGuard;
+        this.messagePipeline = messagePipeline;
+    }
+
+    @Scheduled(fixedDelayString = "${aiops.llm.parking.replay-interval-ms:5000}")
+    public void replay() {
+        if (!llmCallGuard.isCallPermitted()) {
+            return;
+        }
+        int limit = llmCallGuard.isClosed() ? batchSize : 1;
+        int replayed = 0;
+        try {
+            for (; replayed < limit; replayed++) {
+                LlmParkingLot.ParkedMessage parked = parkingLot.poll();
+                if (parked == null || parked.getMsg() == null) {
+                    break;
+                }
+                try {
+                    MDC.put("traceId", parked.getTraceId());
+                    messagePipeline.submit(parked.getMsg(), parked.getTraceId());
+                    parkingLot.markReplayed();
+                    log.info("[traceId={}] [消息暂存] 重新提交分析: senderId={}, parkedFor={}ms",
+                            parked.getTraceId(), parked.getMsg().getSenderUserId(),
+                            System.currentTimeMillis() - parked.getParkedAt());
+                } catch (RejectedExecutionException e) {
+                    parkingLot.pushBack(parked);
+                    log.warn("[traceId={}] [消息暂存] 流水线队列已满，下一轮再重放", parked.getTraceId());
+                    break;
+                } finally {
+                    MDC.remove("traceId");
+                }
+            }
+            if (replayed > 0) {
+                parkingLot.refreshSize();
+            }
+        } catch (Exception e) {
+            log.error("[消息暂存] 重放暂存消息异常: {}", e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.repair.aiops.service.pipeline;
+
+import com.alibaba.fastjson.JSON;
+import com.repair.aiops.model.dto.GroupMsgDTO;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 大模型不可用期间的消息暂存区
+ *
+ * 熔断打开、并发已满或调用超时时，analyze 阶段把消息（图片已转存为 OSS 地址）放入 Redis 列表，
+ * 由 {@link LlmParkedMessageReplayer} 在熔断恢复后重新提交到流水线。多节点共用同一个列表，LPOP 保证每条只被取走一次。
+ *
+ * 指标：aiops.llm.parked{action=park|replay|overflow}、aiops.llm.parked.size
+ */
+@Slf4j
+@Component
+public class LlmParkingLot {
+
+    private static final String PARKED_KEY = "aiops:llm:parked";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final MeterRegistry meterRegistry;
+    private final AtomicLong size = new AtomicLong();
+
+    @Value("${aiops.llm.parking.max-size:10000}")
+    private long maxSize;
+
+    public LlmParkingLot(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("aiops.llm.parked.size", size, AtomicLong::get)
+                .description("暂存等待重新分析的消息数（最近一次读写时的值）")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 暂存消息
+     * @return false 表示暂存区已满或 Redis 不可用，消息未暂存
+     */
+    public boolean park(GroupMsgDTO msg, String traceId) {
+        ParkedMessage parked = new ParkedMessage();
+        parked.setTraceId(traceId);
+        parked.setMsg(msg);
+        parked.setParkedAt(System.currentTimeMillis());
+        try {
+            Long length = stringRedisTemplate.opsForList().rightPush(PARKED_KEY, JSON.toJSONString(parked));
+            if (length != null && length > maxSize) {
+                stringRedisTemplate.opsForList().rightPop(PARKED_KEY);
+                size.set(length - 1);
+                count("overflow");
+                log.error("[traceId={}] [消息暂存] 暂存区已满，无法暂存: maxSize={}", traceId, maxSize);
+                return false;
+            }
+            size.set(length != null ? length : 0);
+            count("park");
+            return true;
+        } catch (Exception e) {
+            log.error("[traceId={}] [消息暂存] 写入暂存区失败: {}", traceId, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 取出最早暂存的一条消息，没有时返回 null
+     */
+    ParkedMessage poll() {
+        String json = stringRedisTemplate.opsForList().leftPop(PARKED_KEY);
+        if (json == null) {
+            size.set(0);
+            return null;
+        }
+        try {
+            return JSON.parseObject(json, ParkedMessage.class);
+        } catch (Exception e) {
+            log.error("[消息暂存] 暂存消息无法解析，已丢弃: {}", json, e);
+            return null;
+        }
+    }
+
+    /**
+     * 重新提交失败（流水线队列已满）时放回队首，保持原有顺序
+     */
+    void pushBack(ParkedMessage parked) {
+        stringRedisTemplate.opsForList().leftPush(PARKED_KEY, JSON.toJSONString(parked));
+    }
+
+    void markReplayed() {
+        count("replay");
+    }
+
+    void refreshSize() {
+        Long length = stringRedisTemplate.opsForList().size(PARKED_KEY);
+        size.set(length != null ? length : 0);
+    }
+
+    private void count(String action) {
+        Counter.builder("aiops.llm.parked")
+                .description("大模型不可用时暂存/重放的消息数")
+                .tag("action", action)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    @Data
+    public static class ParkedMessage {
+        private String traceId;
+        private GroupMsgDTO msg;
+        private long parkedAt;
+    }
+}
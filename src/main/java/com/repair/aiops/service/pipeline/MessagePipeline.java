@@ -0,0 +1,567 @@
+package com.repair.aiops.service.pipeline;
+
+import com.alibaba.fastjson.JSON;
+import com.repair.aiops.exception.LlmUnavailableException;
+import com.repair.aiops.mapper.CUserMapper;
+import com.repair.aiops.model.dto.CommunityHouseOwnerInfo;
+import com.repair.aiops.model.dto.GroupMsgDTO;
+import com.repair.aiops.model.dto.OrderRequest;
+import com.repair.aiops.model.dto.TicketDraft;
+import com.repair.aiops.model.entity.OrderOutboxEntity;
+import com.repair.aiops.model.entity.Owner;
+import com.repair.aiops.model.entity.TicketDraftEntity;
+import com.repair.aiops.model.enums.IntentType;
+import com.repair.aiops.model.enums.PipelineStatus;
+import com.repair.aiops.service.business.ICommunityHouseService;
+import com.repair.aiops.service.business.IOwnerService;
+import com.repair.aiops.service.business.ITicketDraftService;
+import com.repair.aiops.service.client.OrderOutboxRelay;
+import com.repair.aiops.service.core.AgentService;
+import com.repair.aiops.service.core.AnalyzeOptions;
+import com.repair.aiops.service.storage.OssStorageService;
+import com.repair.aiops.service.wecom.WecomChatArchiveService;
+import com.repair.aiops.service.wecom.WecomMediaFile;
+import com.repair.aiops.service.wecom.WecomNotificationDispatcher;
+import com.repair.aiops.service.wecom.WecomRobotService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 群消息分阶段异步处理流水线
+ *
+ * ingest -> analyze -> persist -> notify
+ *
+ * 每个阶段独立的队列和线程池（见 {@link PipelineStage}），可通过
+ * aiops.pipeline.{stage}.threads / aiops.pipeline.{stage}.queue-capacity 分别调整。
+ * 接口线程只负责入队，AI 分析、入库、通知均在后台阶段完成。
+ * 下单不在流水线中同步调用：persist 阶段把草稿和下单发件箱记录一起提交（同一事务写库），
+ * 由 {@link OrderOutboxRelay} 异步发送并负责重试和下单结果通知。
+ *
+ * AI 分析依赖业主维度的状态（去重、消息上下文读写），因此 ingest 与 analyze 两个阶段
+ * 按 senderUserId 分片（aiops.pipeline.{stage}.shards），同一业主的消息严格串行、
+ * 不同业主之间并行；后续阶段使用共享线程池。
+ *
+ * 大模型暂不可用（熔断、并发已满、超时）时，analyze 阶段把消息放入 {@link LlmParkingLot}（状态 PARKED），
+ * 熔断恢复后由 {@link LlmParkedMessageReplayer} 重新提交。
+ * 开启流式分析（aiops.llm.streaming.enabled）时，闲聊在模型输出 intent 后即结束，
+ * 其余消息在 suggestedReply 仍在生成时就开始准备通知。
+ * 存档回放的演练消息（{@link PipelineContext#isDryRun()}）只走到分析结果，不绑定业主、不入库、不通知。
+ */
+@Slf4j
+@Service
+public class MessagePipeline {
+
+    private final AgentService agentService;
+    private final IOwnerService ownerService;
+    private final ICommunityHouseService communityHouseService;
+    private final CUserMapper cUserMapper;
+    private final ITicketDraftService draftService;
+    private final WecomRobotService wecomRobotService;
+    private final WecomNotificationDispatcher notificationDispatcher;
+    private final WecomChatArchiveService wecomChatArchiveService;
+    private final OssStorageService ossStorageService;
+    private final LlmParkingLot parkingLot;
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+
+    // 端到端耗时，按最终状态预先创建，完成回调中不再构建、查找
+    private final Map<PipelineStatus, Timer> totalTimers = new EnumMap<>(PipelineStatus.class);
+    private final Timer unknownTotalTimer;
+
+    @Value("${wecom.group.community-mapping:}")
+    private String groupCommunityMapping;
+
+    @Value("${aiops.pipeline.shutdown-timeout-ms:30000}")
+    private long shutdownTimeoutMs;
+
+    private PipelineStage ingestStage;
+    private PipelineStage analyzeStage;
+    private PipelineStage persistStage;
+    private PipelineStage notifyStage;
+
+    public MessagePipeline(AgentService agentService,
+                           IOwnerService ownerService,
+                           ICommunityHouseService communityHouseService,
+                           CUserMapper cUserMapper,
+                           ITicketDraftService draftService,
+                           WecomRobotService wecomRobotService,
+                           WecomNotificationDispatcher notificationDispatcher,
+                           WecomChatArchiveService wecomChatArchiveService,
+                           OssStorageService ossStorageService,
+                           LlmParkingLot parkingLot,
+                           Environment environment,
+                           MeterRegistry meterRegistry) {
+        this.agentService = agentService;
+        this.ownerService = ownerService;
+        this.communityHouseService = communityHouseService;
+        this.cUserMapper = cUserMapper;
+        this.draftService = draftService;
+        this.wecomRobotService = wecomRobotService;
+        this.notificationDispatcher = notificationDispatcher;
+        this.wecomChatArchiveService = wecomChatArchiveService;
+        this.ossStorageService = ossStorageService;
+        this.parkingLot = parkingLot;
+        this.environment = environment;
+        this.meterRegistry = meterRegistry;
+        for (PipelineStatus status : PipelineStatus.values()) {
+            totalTimers.put(status, totalTimer(status.name()));
+        }
+        this.unknownTotalTimer = totalTimer("UNKNOWN");
+    }
+
+    private Timer totalTimer(String status) {
+        return Timer.builder("aiops.pipeline.total")
+                .description("消息端到端处理耗时")
+                .tag("status", status)
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        // 按处理顺序的逆序创建，便于各阶段直接引用下一阶段
+        notifyStage = createStage("notify", 4, 500, false, this::notifyStep);
+        persistStage = createStage("persist", 4, 500, false, this::persistStep);
+        analyzeStage = createShardedStage("analyze", 8, 50, false, this::analyzeStep);
+        ingestStage = createShardedStage("ingest", 2, 500, true, this::ingestStep);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // 从入口开始依次关闭，保证上游排空后下游再关闭
+        for (PipelineStage stage : List.of(ingestStage, analyzeStage, persistStage, notifyStage)) {
+            stage.shutdown(shutdownTimeoutMs);
+        }
+        log.info("[流水线] 已关闭");
+    }
+
+    /**
+     * 提交消息到流水线
+     * @param msg 已校验的群消息
+     * @param traceId 链路追踪ID
+     * @return 处理完成信号（以上下文完成，不会异常结束）
+     * @throws RejectedExecutionException 入口队列已满
+     */
+    public CompletableFuture<PipelineContext> submit(GroupMsgDTO msg, String traceId) {
+        return dispatch(new PipelineContext(traceId, msg, null, false, false));
+    }
+
+    /**
+     * 提交会话存档消息到流水线
+     * @param sdkFileId 图片消息的 sdkfileid，由 ingest 阶段拉取并上传 OSS；非图片消息传 null
+     */
+    public CompletableFuture<PipelineContext> submit(GroupMsgDTO msg, String traceId, String sdkFileId) {
+        return submit(msg, traceId, sdkFileId, false);
+    }
+
+    /**
+     * 提交会话存档消息到流水线（存档回放）
+     * @param dryRun 演练模式：只做分析，不绑定业主、不写草稿/下单、不发通知，模型不可用时直接失败而不暂存
+     */
+    public CompletableFuture<PipelineContext> submit(GroupMsgDTO msg, String traceId, String sdkFileId, boolean dryRun) {
+        return dispatch(new PipelineContext(traceId, msg, sdkFileId, true, dryRun));
+    }
+
+    private CompletableFuture<PipelineContext> dispatch(PipelineContext ctx) {
+        ingestStage.dispatch(ctx);
+        ctx.getCompletion().whenComplete((c, e) -> (c != null ? totalTimers.get(c.getStatus()) : unknownTotalTimer)
+                .record(System.nanoTime() - ctx.getAcceptedAtNanos(), TimeUnit.NANOSECONDS));
+        return ctx.getCompletion();
+    }
+
+    private PipelineStage createStage(String name, int defaultThreads, int defaultQueueCapacity, boolean rejectWhenFull,
+                                      java.util.function.Function<PipelineContext, PipelineStage> handler) {
+        int threads = environment.getProperty("aiops.pipeline." + name + ".threads", Integer.class, defaultThreads);
+        int queueCapacity = environment.getProperty("aiops.pipeline." + name + ".queue-capacity", Integer.class, defaultQueueCapacity);
+        log.info("[流水线] 初始化阶段: stage={}, threads={}, queueCapacity={}", name, threads, queueCapacity);
+        return PipelineStage.pooled(name, threads, queueCapacity, rejectWhenFull, handler, meterRegistry);
+    }
+
+    private PipelineStage createShardedStage(String name, int defaultShards, int defaultQueueCapacity, boolean rejectWhenFull,
+                                             java.util.function.Function<PipelineContext, PipelineStage> handler) {
+        int shards = environment.getProperty("aiops.pipeline." + name + ".shards", Integer.class, defaultShards);
+        int queueCapacity = environment.getProperty("aiops.pipeline." + name + ".queue-capacity", Integer.class, defaultQueueCapacity);
+        log.info("[流水线] 初始化分片阶段: stage={}, shards={}, queueCapacityPerShard={}", name, shards, queueCapacity);
+        return PipelineStage.sharded(name, shards, queueCapacity, rejectWhenFull, handler, meterRegistry);
+    }
+
+    // ------------------------------------------------------------------
+    // 各阶段处理逻辑
+    // ------------------------------------------------------------------
+
+    /**
+     * 入口阶段：消息规整 + 存档图片转存
+     */
+    private PipelineStage ingestStep(PipelineContext ctx) {
+        GroupMsgDTO msg = ctx.getMsg();
+        if (msg.getContent() != null) {
+            msg.setContent(msg.getContent().trim());
+        }
+        if (msg.getTimestamp() == null || msg.getTimestamp() <= 0) {
+            msg.setTimestamp(System.currentTimeMillis());
+        }
+        if (ctx.getSdkFileId() != null) {
+            resolveArchiveMedia(ctx);
+        }
+        return analyzeStage;
+    }
+
+    /**
+     * 图片处理：通过 sdkfileid 拉取图片并上传 OSS，成功后替换消息中的图片地址
+     * 同一个 sdkfileid 已转存过（存档重放、重试）时直接复用已有地址，不再拉取
+     */
+    private void resolveArchiveMedia(PipelineContext ctx) {
+        String traceId = ctx.getTraceId();
+        String sdkFileId = ctx.getSdkFileId();
+        String existingUrl = ossStorageService.findBySdkFileId(sdkFileId);
+        if (existingUrl != null) {
+            log.info("[traceId={}] [图片处理] 图片已转存，跳过下载: sdkFileId={}, url={}", traceId, sdkFileId, existingUrl);
+            ctx.getMsg().setImageUrl(existingUrl);
+            return;
+        }
+        log.info("[traceId={}] [图片处理] 开始下载图片: sdkFileId={}", traceId, sdkFileId);
+        try (WecomMediaFile media = wecomChatArchiveService.downloadMedia(sdkFileId)) {
+            if (media == null) {
+                log.error("[traceId={}] [图片处理] 下载图片失败: sdkFileId={}", traceId, sdkFileId);
+                return;
+            }
+            String ossUrl = ossStorageService.upload(media.getPath(), media.getContentType());
+            if (ossUrl != null) {
+                log.info("[traceId={}] [图片处理] 上传OSS成功: url={}", traceId, ossUrl);
+                ossStorageService.indexSdkFileId(sdkFileId, ossUrl);
+                ctx.getMsg().setImageUrl(ossUrl);
+            } else {
+                log.error("[traceId={}] [图片处理] 上传OSS失败", traceId);
+            }
+        }
+    }
+
+    /**
+     * 分析阶段：调用 AI 分析
+     */
+    private PipelineStage analyzeStep(PipelineContext ctx) {
+        String traceId = ctx.getTraceId();
+        GroupMsgDTO msg = ctx.getMsg();
+
+        TicketDraft draftResult;
+        try {
+            // 流式模式下模型给出 intent/actionable 后，趁回复还在生成时提前解析通知用到的群名、昵称
+            draftResult = agentService.analyze(msg, AnalyzeOptions.builder()
+                    .earlyDecision((intent, actionable) -> {
+                        if (intent != IntentType.NOISE && !ctx.isDryRun()) {
+                            notificationDispatcher.prepare(traceId, msg.getGroupId(), msg.getSenderUserId());
+                        }
+                    })
+                    .batchable(ctx.isFromArchive())
+                    .dryRun(ctx.isDryRun())
+                    .build());
+        } catch (LlmUnavailableException e) {
+            // 演练消息不暂存：重放时会按正常消息处理
+            if (ctx.isDryRun() || !parkingLot.park(msg, traceId)) {
+                throw e;
+            }
+            log.warn("[traceId={}] 大模型暂不可用，消息已暂存待重放：senderId={}, reason={}",
+                    traceId, msg.getSenderUserId(), e.getMessage());
+            ctx.setStatus(PipelineStatus.PARKED);
+            ctx.setMessage("大模型暂不可用，消息已暂存，稍后自动处理");
+            return null;
+        }
+        if (draftResult == null) {
+            log.info("[traceId={}] 消息已被过滤（重复或无效）：senderId={}", traceId, msg.getSenderUserId());
+            ctx.setStatus(PipelineStatus.FILTERED);
+            ctx.setMessage("消息已处理或为重复消息");
+            return null;
+        }
+
+        log.info("[traceId={}] AI 分析结果: 可处理={}, 意图={}, 缺失信息={}, 建议回复={}, 置信度={}",
+                traceId,
+                draftResult.isActionable(),
+                draftResult.getIntent(),
+                draftResult.getMissingInfo(),
+                draftResult.getSuggestedReply(),
+                draftResult.getConfidence());
+        ctx.setDraft(draftResult);
+        return persistStage;
+    }
+
+    /**
+     * 入库阶段：绑定业主 + 保存草稿
+     */
+    private PipelineStage persistStep(PipelineContext ctx) {
+        String traceId = ctx.getTraceId();
+        GroupMsgDTO msg = ctx.getMsg();
+        TicketDraft draftResult = ctx.getDraft();
+
+        if (ctx.isDryRun()) {
+            return dryRunStep(ctx);
+        }
+
+        // 只要拿到任何有效信息，就提前绑定到 owners（不依赖下单成功）
+        try {
+            String rawLocation = draftResult.getLocation() != null
+                    ? draftResult.getLocation()
+                    : draftResult.getRoomNumber();
+            if (rawLocation == null || rawLocation.trim().isEmpty()) {
+                Owner owner = ownerService.getBySenderId(msg.getSenderUserId());
+                if (owner != null && owner.getRoomNumber() != null && !owner.getRoomNumber().trim().isEmpty()) {
+                    rawLocation = owner.getRoomNumber();
+                }
+            }
+            String normalizedRoom = communityHouseService.normalizeLocation(rawLocation);
+            String wechatName = wecomRobotService.resolveSenderName(msg.getSenderUserId());
+            String ownerName = draftResult.getOwnerName();
+            if (ownerName == null || ownerName.trim().isEmpty()) {
+                ownerName = wechatName;
+            }
+            ownerService.bindOwner(msg.getSenderUserId(), normalizedRoom, ownerName, wechatName);
+        } catch (Exception e) {
+            log.error("提前绑定业主失败", e);
+        }
+
+        if (!draftResult.isActionable()) {
+            if (draftResult.getIntent() == IntentType.NOISE) {
+                log.info("[traceId={}] [过滤] 闲聊消息，不触发追问: senderId={}", traceId, msg.getSenderUserId());
+                ctx.setStatus(PipelineStatus.NOISE);
+                ctx.setMessage("闲聊消息不处理");
+                return null;
+            }
+            // 信息不全：不入库，转通知阶段追问
+            ctx.setStatus(PipelineStatus.NEED_MORE_INFO);
+            return notifyStage;
+        }
+
+        // AI 认为报修要素齐全 (位置+描述都有了)
+        log.info("[traceId={}] [决策] 信息完整，准备下单: intent={}", traceId, draftResult.getIntent());
+        try {
+            TicketDraftEntity entity = new TicketDraftEntity();
+            entity.setGroupId(msg.getGroupId());
+            entity.setSenderId(msg.getSenderUserId());
+            entity.setContent(msg.getContent() != null ? msg.getContent() : "");
+            entity.setAiAnalysis(JSON.toJSONString(draftResult));
+            entity.setStatus(0); // 0-待处理
+            entity.setCreateTime(LocalDateTime.now());
+
+            OrderRequest orderRequest = buildOrderRequest(draftResult, msg);
+            OrderOutboxEntity outbox = new OrderOutboxEntity();
+            outbox.setTraceId(traceId);
+            outbox.setIdempotencyKey(UUID.randomUUID().toString());
+            outbox.setGroupId(msg.getGroupId());
+            outbox.setSenderId(msg.getSenderUserId());
+            outbox.setContent(msg.getContent());
+            outbox.setPayload(JSON.toJSONString(orderRequest));
+            outbox.setStatus(OrderOutboxEntity.STATUS_PENDING);
+            outbox.setAttempts(0);
+            outbox.setNextAttemptTime(entity.getCreateTime());
+            outbox.setCreateTime(entity.getCreateTime());
+            outbox.setUpdateTime(entity.getCreateTime());
+
+            draftService.submit(entity, outbox);
+            log.info("[traceId={}] [入库] 草稿及下单请求已写库（异步下单）: groupId={}, idempotencyKey={}",
+                    traceId, entity.getGroupId(), outbox.getIdempotencyKey());
+            ctx.setDraftEntity(entity);
+        } catch (Exception e) {
+            log.error("[traceId={}] 保存工单草稿失败：senderId={}, error={}",
+                    traceId, msg.getSenderUserId(), e.getMessage(), e);
+            ctx.setStatus(PipelineStatus.ERROR);
+            ctx.setMessage("保存工单草稿失败：" + e.getMessage());
+            return null;
+        }
+
+        ctx.setStatus(PipelineStatus.SAVED);
+        ctx.setMessage("已存入草稿池");
+        return null;
+    }
+
+    /**
+     * 演练模式的入库阶段：按正常规则得出处理结果，但不绑定业主、不写草稿/发件箱，也不进入通知阶段
+     */
+    private PipelineStage dryRunStep(PipelineContext ctx) {
+        TicketDraft draftResult = ctx.getDraft();
+        if (draftResult.isActionable()) {
+            ctx.setStatus(PipelineStatus.SAVED);
+        } else if (draftResult.getIntent() == IntentType.NOISE) {
+            ctx.setStatus(PipelineStatus.NOISE);
+        } else {
+            ctx.setStatus(PipelineStatus.NEED_MORE_INFO);
+        }
+        ctx.setMessage("演练模式，未入库、未通知");
+        log.info("[traceId={}] [演练] 分析结果: status={}, intent={}", ctx.getTraceId(), ctx.getStatus(), draftResult.getIntent());
+        return null;
+    }
+
+    /**
+     * 通知阶段：信息不全时解析群名/昵称并渲染追问通知，交给通知分发器按渠道并行投递
+     * （下单结果通知由 OrderOutboxRelay 在拿到最终结果后发送）
+     */
+    private PipelineStage notifyStep(PipelineContext ctx) {
+        String traceId = ctx.getTraceId();
+        GroupMsgDTO msg = ctx.getMsg();
+        TicketDraft draftResult = ctx.getDraft();
+
+        if (ctx.getStatus() != PipelineStatus.NEED_MORE_INFO) {
+            return null;
+        }
+        String missingInfoStr = draftResult.getMissingInfo() != null ? String.join(",", draftResult.getMissingInfo()) : "";
+        log.warn("[traceId={}] [拦截] 信息不全，拦截入库: missing={}, reply={}",
+                traceId, missingInfoStr, draftResult.getSuggestedReply());
+        try {
+            notificationDispatcher.dispatch(wecomRobotService.buildMissingInfoNotice(
+                    traceId,
+                    msg.getGroupId(),
+                    msg.getSenderUserId(),
+                    missingInfoStr,
+                    draftResult.getSuggestedReply()
+            ));
+            log.info("[traceId={}] [通知] 机器人通知已投递", traceId);
+        } catch (Exception e) {
+            log.error("[traceId={}] [通知] 机器人通知投递失败: error={}", traceId, e.getMessage());
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------
+    // 下单参数组装
+    // ------------------------------------------------------------------
+
+    /**
+     * 组装外部下单请求（房屋、业主解析失败时使用默认值，不抛出异常）
+     * @param draftResult AI分析结果
+     * @param msg 原始消息
+     * @return 下单请求
+     */
+    private OrderRequest buildOrderRequest(TicketDraft draftResult, GroupMsgDTO msg) {
+        // 获取房屋ID (假设Owner的ID即为houseId，或者需要另外的映射逻辑)
+        Long houseId = null;
+        Long userId = null;
+        try {
+            String communityId = resolveCommunityId(msg.getGroupId());
+            String rawLocation = draftResult.getLocation() != null
+                    ? draftResult.getLocation()
+                    : draftResult.getRoomNumber();
+            log.info("[traceId={}] houseId解析入参: rawLocation={}, senderId={}, communityId={}",
+                    MDC.get("traceId"), rawLocation, draftResult.getSenderId(), communityId);
+
+            CommunityHouseOwnerInfo info = communityHouseService.resolveHouseAndOwner(rawLocation, communityId);
+            if (info != null) {
+                houseId = info.getHouseId();
+                userId = resolveUserIdByPhone(info.getOwnerPhone());
+            }
+
+            if (houseId == null) {
+                log.info("[traceId={}] houseId解析为空，尝试使用绑定房号: senderId={}",
+                        MDC.get("traceId"), msg.getSenderUserId());
+                Owner owner = ownerService.getBySenderId(msg.getSenderUserId());
+                if (owner != null && owner.getRoomNumber() != null && !owner.getRoomNumber().trim().isEmpty()) {
+                    log.info("[traceId={}] 使用绑定房号解析: roomNumber={}",
+                            MDC.get("traceId"), owner.getRoomNumber());
+                    CommunityHouseOwnerInfo fallbackInfo = communityHouseService.resolveHouseAndOwner(owner.getRoomNumber(), communityId);
+                    if (fallbackInfo != null) {
+                        houseId = fallbackInfo.getHouseId();
+                        if (userId == null) {
+                            userId = resolveUserIdByPhone(fallbackInfo.getOwnerPhone());
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.warn("获取房屋ID失败：senderId={}", draftResult.getSenderId());
+        }
+
+        if (houseId == null) {
+            houseId = 918L; // 默认值，防止空指针
+            log.warn("未解析到houseId，使用默认值: senderId={}, location={}",
+                    draftResult.getSenderId(), draftResult.getLocation());
+        }
+        log.info("[traceId={}] 下单关键参数: communityId={}, houseId={}, userId={}, senderId={}",
+                MDC.get("traceId"), resolveCommunityId(msg.getGroupId()), houseId, userId, draftResult.getSenderId());
+
+        // 处理图片
+        List<String> fileList = new ArrayList<>();
+        if (msg.getImageUrl() != null && !msg.getImageUrl().isEmpty()) {
+            fileList.add(msg.getImageUrl());
+        }
+
+        // 处理预约时间 (解析 scheduledTime 或使用默认值)
+        String startTime = "2026-01-21 08:00:00";
+        String endTime = "2026-01-21 09:00:00";
+        // TODO: 解析 draftResult.getScheduledTime()
+
+        log.info("[traceId={}] 下单参数预览: senderId={}, houseId={}, fileCount={}, startTime={}, endTime={}",
+                MDC.get("traceId"),
+                draftResult.getSenderId(),
+                houseId,
+                fileList.size(),
+                startTime,
+                endTime);
+
+        // 构建下单请求
+        return OrderRequest.builder()
+                .intent(draftResult.getIntent())
+                .category(draftResult.getCategory())
+                .location(draftResult.getLocation())
+                .description(draftResult.getDescription())
+                .urgency(draftResult.getUrgency())
+                .senderId(draftResult.getSenderId())
+                .ownerName(draftResult.getOwnerName())
+                .roomNumber(draftResult.getRoomNumber())
+                .scheduledTime(draftResult.getScheduledTime())
+                .originalContent(msg.getContent())
+                .groupId(msg.getGroupId())
+                .houseId(houseId)
+                .userId(userId)
+                .fileList(fileList)
+                .appointmentStartTime(startTime)
+                .appointmentEndTime(endTime)
+                .build();
+    }
+
+    private String resolveCommunityId(String groupId) {
+        if (groupId == null || groupId.trim().isEmpty() ||
+                groupCommunityMapping == null || groupCommunityMapping.trim().isEmpty()) {
+            return null;
+        }
+        String[] items = groupCommunityMapping.split(",");
+        for (String item : items) {
+            if (item == null || item.trim().isEmpty()) {
+                continue;
+            }
+            String[] parts = item.split("=");
+            if (parts.length == 2) {
+                String gid = parts[0].trim();
+                String cid = parts[1].trim();
+                if (!gid.isEmpty() && gid.equals(groupId)) {
+                    return cid.isEmpty() ? null : cid;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Long resolveUserIdByPhone(String ownerPhone) {
+        if (ownerPhone == null || ownerPhone.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return cUserMapper.findUserIdByPhone(ownerPhone.trim());
+        } catch (Exception e) {
+            log.warn("根据手机号获取userId失败: phone={}", ownerPhone);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.repair.aiops.service.pipeline;
+
+import com.repair.aiops.model.dto.GroupMsgDTO;
+import com.repair.aiops.model.dto.TicketDraft;
+import com.repair.aiops.model.entity.TicketDraftEntity;
+import com.repair.aiops.model.enums.PipelineStatus;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 流水线上下文
+ * 一条消息在各阶段之间流转时携带的全部状态，同一时刻只会被一个阶段的线程持有
+ */
+@Getter
+@Setter
+public class PipelineContext {
+    /**
+     * 链路追踪ID（入队时生成，贯穿所有阶段）
+     */
+    private final String traceId;
+
+    /**
+     * 原始消息
+     */
+    private final GroupMsgDTO msg;
+
+    /**
+     * 会话存档图片的 sdkfileid（仅存档来源的图片消息有值，由 ingest 阶段拉取并上传 OSS）
+     */
+    private final String sdkFileId;
+
+    /**
+     * 是否来自会话存档（存档消息可合并到批量分类）
+     */
+    private final boolean fromArchive;
+
+    /**
+     * 演练模式（存档回放）：只做分析，不绑定业主、不写草稿/下单、不发通知
+     */
+    private final boolean dryRun;
+
+    /**
+     * 入队时间（纳秒，用于统计端到端耗时）
+     */
+    private final long acceptedAtNanos = System.nanoTime();
+
+    /**
+     * 处理完成信号：无论成功失败都会以上下文本身完成，不会异常结束
+     */
+    @Setter(lombok.AccessLevel.NONE)
+    private final CompletableFuture<PipelineContext> completion = new CompletableFuture<>();
+
+    private volatile PipelineStatus status = PipelineStatus.ACCEPTED;
+
+    /**
+     * 状态说明（失败时为错误信息）
+     */
+    private volatile String message;
+
+    /**
+     * AI 分析结果
+     */
+    private volatile TicketDraft draft;
+
+    /**
+     * 已保存的草稿
+     */
+    private volatile TicketDraftEntity draftEntity;
+
+    public PipelineContext(String traceId, GroupMsgDTO msg, String sdkFileId, boolean fromArchive, boolean dryRun) {
+        this.traceId = traceId;
+        this.msg = msg;
+        this.sdkFileId = sdkFileId;
+        this.fromArchive = fromArchive;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * 标记处理完成
+     */
+    public void complete() {
+        completion.complete(this);
+    }
+
+    /**
+     * 标记处理失败（仍以上下文完成，便于调用方统一处理）
+     */
+    public void fail(String stage, Throwable e) {
+        this.status = PipelineStatus.ERROR;
+        this.message = "[" + stage + "] " + (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        completion.complete(this);
+    }
+}
@@ -0,0 +1,242 @@
+package com.repair.aiops.service.pipeline;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * 流水线阶段
+ * 每个阶段拥有独立的有界队列和工作线程池，处理完成后由本阶段线程把消息交给下一阶段。
+ *
+ * 两种线程模型：
+ * - 共享池（{@link #pooled}）：一个队列 + N 个线程，消息之间无顺序保证
+ * - 按发送者分片（{@link #sharded}）：N 个单线程分片，每个分片独立的有界队列，
+ *   同一 senderUserId 固定落在同一分片，保证同一业主的消息严格按入队顺序处理，
+ *   不同业主之间并行
+ *
+ * 队列满时的策略：
+ * - 入口阶段直接拒绝（抛出 RejectedExecutionException），由接口返回繁忙
+ * - 内部阶段阻塞上游线程，形成逐级背压，保证已受理的消息不会被丢弃
+ */
+@Slf4j
+public class PipelineStage {
+
+    @Getter
+    private final String name;
+    private final ThreadPoolExecutor[] executors;
+    private final Function<PipelineContext, PipelineStage> handler;
+
+    private final Timer processTimer;
+    private final Timer waitTimer;
+    private final Counter rejectedCounter;
+
+    /**
+     * 共享线程池阶段
+     * @param name          阶段名（用于线程名和指标标签）
+     * @param threads       工作线程数
+     * @param queueCapacity 队列容量
+     * @param rejectWhenFull 队列满时是否直接拒绝（false 则阻塞提交方）
+     * @param handler       阶段处理逻辑，返回下一阶段；返回 null 表示流程结束
+     */
+    public static PipelineStage pooled(String name, int threads, int queueCapacity, boolean rejectWhenFull,
+                                       Function<PipelineContext, PipelineStage> handler, MeterRegistry registry) {
+        ThreadPoolExecutor executor = newExecutor(threads, queueCapacity, rejectWhenFull, new StageThreadFactory(name));
+        return new PipelineStage(name, new ThreadPoolExecutor[]{executor}, handler, registry);
+    }
+
+    /**
+     * 按发送者分片的阶段
+     * @param shards               分片数（每个分片一个线程）
+     * @param queueCapacityPerShard 每个分片的队列容量
+     */
+    public static PipelineStage sharded(String name, int shards, int queueCapacityPerShard, boolean rejectWhenFull,
+                                        Function<PipelineContext, PipelineStage> handler, MeterRegistry registry) {
+        ThreadPoolExecutor[] executors = new ThreadPoolExecutor[shards];
+        for (int i = 0; i < shards; i++) {
+            executors[i] = newExecutor(1, queueCapacityPerShard, rejectWhenFull,
+                    new StageThreadFactory(name + "-shard" + i));
+            Gauge.builder("aiops.pipeline.shard.queue.depth", executors[i], e -> e.getQueue().size())
+                    .description("分片队列深度")
+                    .tag("stage", name)
+                    .tag("shard", String.valueOf(i))
+                    .register(registry);
+        }
+        return new PipelineStage(name, executors, handler, registry);
+    }
+
+    private PipelineStage(String name, ThreadPoolExecutor[] executors,
+                          Function<PipelineContext, PipelineStage> handler, MeterRegistry registry) {
+        this.name = name;
+        this.executors = executors;
+        this.handler = handler;
+
+        this.processTimer = Timer.builder("aiops.pipeline.stage.latency")
+                .description("阶段处理耗时")
+                .tag("stage", name)
+                .register(registry);
+        this.waitTimer = Timer.builder("aiops.pipeline.stage.wait")
+                .description("阶段排队等待耗时")
+                .tag("stage", name)
+                .register(registry);
+        this.rejectedCounter = Counter.builder("aiops.pipeline.stage.rejected")
+                .description("队列已满被拒绝的消息数")
+                .tag("stage", name)
+                .register(registry);
+        Gauge.builder("aiops.pipeline.queue.depth", this, PipelineStage::getQueueDepth)
+                .description("阶段队列深度")
+                .tag("stage", name)
+                .register(registry);
+        Gauge.builder("aiops.pipeline.stage.active", this, PipelineStage::getActiveCount)
+                .description("阶段正在处理的消息数")
+                .tag("stage", name)
+                .register(registry);
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads, int queueCapacity, boolean rejectWhenFull,
+                                                  ThreadFactory threadFactory) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory,
+                rejectWhenFull ? new ThreadPoolExecutor.AbortPolicy() : new BlockingHandoffPolicy());
+    }
+
+    /**
+     * 将消息投递到本阶段
+     * @throws RejectedExecutionException 入口阶段队列已满或阶段已关闭
+     */
+    public void dispatch(PipelineContext ctx) {
+        long enqueuedAt = System.nanoTime();
+        try {
+            executorFor(ctx).execute(() -> run(ctx, enqueuedAt));
+        } catch (RejectedExecutionException e) {
+            rejectedCounter.increment();
+            throw e;
+        }
+    }
+
+    private void run(PipelineContext ctx, long enqueuedAt) {
+        long start = System.nanoTime();
+        waitTimer.record(start - enqueuedAt, TimeUnit.NANOSECONDS);
+
+        PipelineStage next;
+        MDC.put("traceId", ctx.getTraceId());
+        try {
+            next = handler.apply(ctx);
+        } catch (Exception e) {
+            log.error("[traceId={}] [流水线] 阶段处理异常: stage={}, error={}", ctx.getTraceId(), name, e.getMessage(), e);
+            ctx.fail(name, e);
+            return;
+        } finally {
+            processTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            MDC.remove("traceId");
+        }
+
+        if (next == null) {
+            ctx.complete();
+            return;
+        }
+        try {
+            next.dispatch(ctx);
+        } catch (RejectedExecutionException e) {
+            log.error("[traceId={}] [流水线] 投递下一阶段失败: from={}, to={}", ctx.getTraceId(), name, next.getName());
+            ctx.fail(next.getName(), e);
+        }
+    }
+
+    /**
+     * 选择执行器：分片模式下按 senderUserId 取模，同一发送者始终落在同一分片
+     */
+    private ThreadPoolExecutor executorFor(PipelineContext ctx) {
+        if (executors.length == 1) {
+            return executors[0];
+        }
+        String key = ctx.getMsg().getSenderUserId();
+        int h = key != null ? key.hashCode() : 0;
+        h ^= (h >>> 16);
+        return executors[Math.floorMod(h, executors.length)];
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor executor : executors) {
+            depth += executor.getQueue().size();
+        }
+        return depth;
+    }
+
+    public int getActiveCount() {
+        int active = 0;
+        for (ThreadPoolExecutor executor : executors) {
+            active += executor.getActiveCount();
+        }
+        return active;
+    }
+
+    /**
+     * 停止接收新消息并等待队列中的消息处理完毕
+     */
+    public void shutdown(long timeoutMillis) {
+        for (ThreadPoolExecutor executor : executors) {
+            executor.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (ThreadPoolExecutor executor : executors) {
+            try {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                if (!executor.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                    log.warn("[流水线] 阶段未能在超时时间内处理完毕: stage={}, remaining={}", name, executor.getQueue().size());
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * 队列满时阻塞提交线程，直到有空位
+     */
+    private static class BlockingHandoffPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("阶段已关闭");
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("等待阶段队列时被中断", e);
+            }
+        }
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger(1);
+
+        StageThreadFactory(String stage) {
+            this.prefix = "pipeline-" + stage + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + counter.getAndIncrement());
+            t.setDaemon(false);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.repair.aiops.service.storage;
+
+import com.repair.aiops.config.HttpClientConfig;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import org.springframework.web.client.RestTemplate;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 图片预处理服务（多模态大模型调用前）
+ *
+ * 手机拍摄的原图动辄 4000 像素、数 MB，直接交给模型会被完整下载和编码，图片 token 多、耗时长。
+ * 这里先按 EXIF Orientation 把像素转正（手机竖拍的照片像素是横着存的，靠该标记显示），
+ * 再把图片缩到最长边不超过 max-edge，按目标质量重新编码为 JPEG（重新编码不写入 EXIF 等元数据），
+ * 以源图内容摘要 + 规格作为派生对象名上传 OSS，模型拿到的是缩小后的地址。
+ *
+ * 缓存：
+ * - aiops:image:derived:url:&lt;sha256(源地址)&gt;:&lt;规格&gt; -&gt; 派生地址（同一地址不再下载）
+ * - aiops:image:derived:&lt;源内容摘要&gt;:&lt;规格&gt; -&gt; 派生地址（不同地址、相同内容不再处理）
+ *
+ * 任何一步失败都返回原地址，不影响分析。
+ * 指标：aiops.image.preprocess.latency{outcome}、aiops.image.preprocess.bytes{stage}
+ */
+@Slf4j
+@Service
+public class ImagePreprocessService {
+
+    private static final String URL_INDEX_PREFIX = "aiops:image:derived:url:";
+    private static final String DIGEST_INDEX_PREFIX = "aiops:image:derived:";
+
+    private final RestTemplate restTemplate;
+    private final OssStorageService ossStorageService;
+    private final StringRedisTemplate redisTemplate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${aiops.image.preprocess.enabled:true}")
+    private boolean enabled;
+
+    // 最长边像素上限
+    @Value("${aiops.image.preprocess.max-edge:1280}")
+    private int maxEdge;
+
+    // JPEG 编码质量（1-100）
+    @Value("${aiops.image.preprocess.quality:80}")
+    private int quality;
+
+    // 源图大小上限（字节），超过不处理，直接使用原地址
+    @Value("${aiops.image.preprocess.max-source-bytes:20971520}")
+    private long maxSourceBytes;
+
+    @Value("${aiops.image.preprocess.cache-ttl-days:30}")
+    private long cacheTtlDays;
+
+    public ImagePreprocessService(@Qualifier(HttpClientConfig.MEDIA) RestTemplate restTemplate,
+                                  OssStorageService ossStorageService,
+                                  StringRedisTemplate redisTemplate,
+                                  MeterRegistry meterRegistry) {
+        this.restTemplate = restTemplate;
+        this.ossStorageService = ossStorageService;
+        this.redisTemplate = redisTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 预处理图片
+     * @param imageUrl 原图地址
+     * @return 缩小后的派生图地址；未启用或处理失败时返回原地址
+     */
+    public String preprocess(String imageUrl) {
+        if (!enabled || !StringUtils.hasText(imageUrl) || !imageUrl.startsWith("http")) {
+            return imageUrl;
+        }
+        String variant = variant();
+        String urlKey = URL_INDEX_PREFIX + OssStorageService.digest(imageUrl.getBytes(StandardCharsets.UTF_8))
+                + ":" + variant;
+        String cached = getCached(urlKey);
+        if (cached != null) {
+            return cached;
+        }
+
+        long start = System.nanoTime();
+        String outcome = "error";
+        try {
+            byte[] source = download(imageUrl);
+            if (source == null) {
+                outcome = "too_large";
+                return imageUrl;
+            }
+            String sourceDigest = OssStorageService.digest(source);
+            String digestKey = DIGEST_INDEX_PREFIX + sourceDigest + ":" + variant;
+            String derivedUrl = getCached(digestKey);
+            if (derivedUrl != null) {
+                outcome = "cached";
+            } else {
+                byte[] derived = resize(source);
+                if (derived == null) {
+                    outcome = "unsupported";
+                    return imageUrl;
+                }
+                record("source", source.length);
+                record("derived", derived.length);
+                derivedUrl = ossStorageService.uploadDerived(sourceDigest, variant, derived, "image/jpeg");
+                if (derivedUrl == null) {
+                    return imageUrl;
+                }
+                putCached(digestKey, derivedUrl);
+                outcome = "success";
+                log.info("[图片预处理] 完成: source={}, bytes={} -> {}, url={}",
+                        imageUrl, source.length, derived.length, derivedUrl);
+            }
+            putCached(urlKey, derivedUrl);
+            return derivedUrl;
+        } catch (Exception e) {
+            log.warn("[图片预处理] 处理失败，使用原图: url={}, error={}", imageUrl, e.getMessage());
+            return imageUrl;
+        } finally {
+            Timer.builder("aiops.image.preprocess.latency")
+                    .description("图片预处理耗时（不含地址缓存命中）")
+                    .tag("outcome", outcome)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 下载原图，超过大小上限返回 null
+     */
+    private byte[] download(String imageUrl) {
+        return restTemplate.execute(imageUrl, HttpMethod.GET, null, response -> {
+            long declared = response.getHeaders().getContentLength();
+            if (declared > maxSourceBytes) {
+                return null;
+            }
+            try (InputStream in = response.getBody()) {
+                byte[] data = in.readNBytes((int) Math.min(Integer.MAX_VALUE - 8, maxSourceBytes + 1));
+                return data.length > maxSourceBytes ? null : data;
+            }
+        });
+    }
+
+    /**
+     * 按 EXIF 方向转正后缩放并重新编码为 JPEG
+     * @return 编码结果；无法解码的格式返回 null
+     */
+    private byte[] resize(byte[] source) throws IOException {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(source));
+        if (decoded == null) {
+            return null;
+        }
+        // ImageIO 不处理 Orientation 标记，重新编码又会丢掉它，必须先把像素转正
+        BufferedImage image = orient(decoded, readExifOrientation(source));
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double scale = Math.min(1.0, (double) maxEdge / Math.max(width, height));
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+
+        // 大比例缩小时逐级减半，避免一次双线性插值产生明显锯齿
+        BufferedImage current = image;
+        int w = width;
+        int h = height;
+        do {
+            w = Math.max(targetWidth, w / 2);
+            h = Math.max(targetHeight, h / 2);
+            current = draw(current, w, h);
+        } while (w != targetWidth || h != targetHeight);
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(Math.max(1, Math.min(100, quality)) / 100f);
+            // 不传入源图元数据，EXIF（拍摄位置等）不会写入派生图
+            writer.write(null, new IIOImage(current, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 绘制到 RGB 画布（JPEG 不支持透明通道，透明区域填充白色）
+     */
+    private static BufferedImage draw(BufferedImage src, int width, int height) {
+        BufferedImage dst = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = dst.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(src, 0, 0, width, height, Color.WHITE, null);
+        } finally {
+            g.dispose();
+        }
+        return dst;
+    }
+
+    /**
+     * 按 EXIF Orientation（1-8）旋转/翻转像素，返回正向显示的图片；1 或无法识别时原样返回
+     */
+    static BufferedImage orient(BufferedImage src, int orientation) {
+        if (orientation < 2 || orientation > 8) {
+            return src;
+        }
+        int w = src.getWidth();
+        int h = src.getHeight();
+        AffineTransform t = new AffineTransform();
+        switch (orientation) {
+            case 2: // 水平翻转
+                t.translate(w, 0);
+                t.scale(-1, 1);
+                break;
+            case 3: // 旋转 180°
+                t.translate(w, h);
+                t.rotate(Math.PI);
+                break;
+            case 4: // 垂直翻转
+                t.translate(0, h);
+                t.scale(1, -1);
+                break;
+            case 5: // 沿主对角线翻转
+                t.rotate(Math.PI / 2);
+                t.scale(1, -1);
+                break;
+            case 6: // 顺时针旋转 90°
+                t.translate(h, 0);
+                t.rotate(Math.PI / 2);
+                break;
+            case 7: // 沿副对角线翻转
+                t.translate(h, w);
+                t.rotate(Math.PI / 2);
+                t.scale(-1, 1);
+                break;
+            default: // 8：逆时针旋转 90°
+                t.translate(0, w);
+                t.rotate(-Math.PI / 2);
+                break;
+        }
+        boolean swap = orientation >= 5;
+        BufferedImage dst = new BufferedImage(swap ? h : w, swap ? w : h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = dst.createGraphics();
+        try {
+            g.drawImage(src, t, null);
+        } finally {
+            g.dispose();
+        }
+        return dst;
+    }
+
+    /**
+     * 从 JPEG 的 APP1(Exif) 段读取 IFD0 中的 Orientation 标记（0x0112）
+     * @return 1-8；不是 JPEG、没有 EXIF 或格式不正确时返回 1（正常方向）
+     */
+    static int readExifOrientation(byte[] jpeg) {
+        if (jpeg == null || jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+            return 1;
+        }
+        int pos = 2;
+        while (pos + 4 <= jpeg.length) {
+            if ((jpeg[pos] & 0xFF) != 0xFF) {
+                return 1;
+            }
+            int marker = jpeg[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // 填充字节
+                pos++;
+                continue;
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                // 图像数据开始（SOS）或结束，后面不会再有 EXIF
+                return 1;
+            }
+            int length = readUnsignedShort(jpeg, pos + 2, true);
+            int segmentEnd = pos + 2 + length;
+            if (length < 2 || segmentEnd > jpeg.length) {
+                return 1;
+            }
+            if (marker == 0xE1 && length >= 16 && jpeg[pos + 4] == 'E' && jpeg[pos + 5] == 'x'
+                    && jpeg[pos + 6] == 'i' && jpeg[pos + 7] == 'f' && jpeg[pos + 8] == 0 && jpeg[pos + 9] == 0) {
+                return readTiffOrientation(jpeg, pos + 10, segmentEnd);
+            }
+            pos = segmentEnd;
+        }
+        return 1;
+    }
+
+    /**
+     * 解析 TIFF 头和 IFD0（偏移量均相对 TIFF 头起始位置）
+     */
+    private static int readTiffOrientation(byte[] data, int start, int end) {
+        if (start + 8 > end) {
+            return 1;
+        }
+        boolean bigEndian;
+        if (data[start] == 'M' && data[start + 1] == 'M') {
+            bigEndian = true;
+        } else if (data[start] == 'I' && data[start + 1] == 'I') {
+            bigEndian = false;
+        } else {
+            return 1;
+        }
+        long ifdOffset = readUnsignedInt(data, start + 4, bigEndian);
+        if (ifdOffset < 8 || ifdOffset > end - start - 2) {
+            return 1;
+        }
+        int ifd = start + (int) ifdOffset;
+        int entries = readUnsignedShort(data, ifd, bigEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > end) {
+                return 1;
+            }
+            if (readUnsignedShort(data, entry, bigEndian) == 0x0112) {
+                // 类型应为 SHORT(3)，值直接存放在条目的值字段中
+                int value = readUnsignedShort(data, entry + 2, bigEndian) == 3
+                        ? readUnsignedShort(data, entry + 8, bigEndian) : 1;
+                return value >= 1 && value <= 8 ? value : 1;
+            }
+        }
+        return 1;
+    }
+
+    private static int readUnsignedShort(byte[] data, int pos, boolean bigEndian) {
+        int b0 = data[pos] & 0xFF;
+        int b1 = data[pos + 1] & 0xFF;
+        return bigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private static long readUnsignedInt(byte[] data, int pos, boolean bigEndian) {
+        long hi = readUnsignedShort(data, bigEndian ? pos : pos + 2, bigEndian);
+        long lo = readUnsignedShort(data, bigEndian ? pos + 2 : pos, bigEndian);
+        return (hi << 16) | lo;
+    }
+
+    /**
+     * 派生规格：o 表示已按 EXIF 方向转正（与早期未转正的派生图区分，不复用旧缓存）
+     */
+    private String variant() {
+        return maxEdge + "q" + quality + "o";
+    }
+
+    private String getCached(String key) {
+        try {
+            return redisTemplate.opsForValue().get(key);
+        } catch (Exception e) {
+            log.warn("[图片预处理] 读取缓存异常: key={}, error={}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    private void putCached(String key, String url) {
+        try {
+            redisTemplate.opsForValue().set(key, url, cacheTtlDays, TimeUnit.DAYS);
+        } catch (Exception e) {
+            log.warn("[图片预处理] 写入缓存异常: key={}, error={}", key, e.getMessage());
+        }
+    }
+
+    private void record(String stage, long bytes) {
+        DistributionSummary.builder("aiops.image.preprocess.bytes")
+                .description("图片预处理前后字节数")
+                .baseUnit("bytes")
+                .tag("stage", stage)
+                .register(meterRegistry)
+                .record(bytes);
+    }
+}
@@ -1,32 +1,68 @@
 package com.repair.aiops.service.storage;
 
 import com.aliyun.oss.OSS;
-import com.aliyun.oss.OSSClientBuilder;
+import com.aliyun.oss.model.AbortMultipartUploadRequest;
+import com.aliyun.oss.model.CompleteMultipartUploadRequest;
+import com.aliyun.oss.model.InitiateMultipartUploadRequest;
 import com.aliyun.oss.model.ObjectMetadata;
+import com.aliyun.oss.model.PartETag;
+import com.aliyun.oss.model.UploadPartRequest;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
 import java.io.ByteArrayInputStream;
-import java.time.LocalDate;
-import java.util.UUID;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * OSS 上传服务
+ * 使用全局共享的 OSS 客户端（见 OssConfig）；超过分片阈值的内容走分片上传，避免单次请求过大
+ *
+ * 内容寻址：对象名由内容的 SHA-256 决定（&lt;prefix&gt;sha256/&lt;前两位&gt;/&lt;digest&gt;.&lt;ext&gt;），
+ * 并在 Redis 中维护 digest -&gt; URL、sdkfileid -&gt; URL 两个索引（不过期）。
+ * 同一张图片重复上传、存档重放同一个 sdkfileid 时直接返回已有地址，不再上传；
+ * 同一张图片始终得到同一个 URL，后续环节（如大模型决策缓存）也能据此识别。
+ *
+ * 指标：aiops.oss.upload.latency{mode, outcome}、aiops.oss.upload.bytes{mode}、aiops.oss.dedup.hits{index}
+ */
 @Slf4j
 @Service
 public class OssStorageService {
+    private final ObjectProvider<OSS> ossClientProvider;
+    private final MeterRegistry meterRegistry;
+    private final StringRedisTemplate redisTemplate;
+
+    private static final String DIGEST_INDEX_PREFIX = "aiops:oss:digest:";
+    private static final String SDK_FILE_INDEX_PREFIX = "aiops:oss:sdkfile:";
+    // 内容寻址对象名（去掉 objectPrefix 后）：sha256/<前两位>/<digest>.<ext> 或 derived/<前两位>/<digest>_<variant>.<ext>
+    private static final Pattern CONTENT_ADDRESSED_OBJECT =
+            Pattern.compile("(sha256|derived)/([0-9a-f]{2})/(\\2[0-9a-f]{62}(?:_[A-Za-z0-9]+)?)\\.[a-z]+");
+
     @Value("${oss.enabled:false}")
     private boolean enabled;
 
     @Value("${oss.endpoint:}")
     private String endpoint;
 
-    @Value("${oss.access-key-id:}")
-    private String accessKeyId;
-
-    @Value("${oss.access-key-secret:}")
-    private String accessKeySecret;
-
     @Value("${oss.bucket:}")
     private String bucket;
 
@@ -36,46 +72,352 @@ public class OssStorageService {
     @Value("${oss.object-prefix:wecom/images/}")
     private String objectPrefix;
 
+    // 超过该大小（字节）使用分片上传
+    @Value("${oss.multipart.threshold-bytes:5242880}")
+    private long multipartThreshold;
+
+    // 分片大小（字节），OSS 要求除最后一片外不小于 100KB
+    @Value("${oss.multipart.part-size-bytes:1048576}")
+    private long partSize;
+
+    public OssStorageService(ObjectProvider<OSS> ossClientProvider, MeterRegistry meterRegistry,
+                             StringRedisTemplate redisTemplate) {
+        this.ossClientProvider = ossClientProvider;
+        this.meterRegistry = meterRegistry;
+        this.redisTemplate = redisTemplate;
+    }
+
     public String upload(byte[] content, String contentType) {
-        if (!enabled) {
-            log.warn("OSS 上传未启用");
+        if (content == null || content.length == 0) {
             return null;
         }
-        if (!StringUtils.hasText(endpoint) || !StringUtils.hasText(accessKeyId)
-                || !StringUtils.hasText(accessKeySecret) || !StringUtils.hasText(bucket)) {
-            log.warn("OSS 配置不完整，无法上传");
+        OSS ossClient = resolveClient();
+        if (ossClient == null) {
             return null;
         }
-        if (content == null || content.length == 0) {
+        String digest = sha256Hex(content);
+        return uploadContentAddressed(ossClient, digest, content.length, contentType,
+                () -> new ByteArrayInputStream(content));
+    }
+
+    /**
+     * 上传本地文件（先流式计算摘要，再流式上传，不整体读入内存）
+     */
+    public String upload(Path file, String contentType) {
+        if (file == null) {
+            return null;
+        }
+        OSS ossClient = resolveClient();
+        if (ossClient == null) {
+            return null;
+        }
+        try {
+            String digest;
+            try (InputStream in = Files.newInputStream(file)) {
+                digest = sha256Hex(in);
+            }
+            return uploadContentAddressed(ossClient, digest, Files.size(file), contentType,
+                    () -> Files.newInputStream(file));
+        } catch (Exception e) {
+            log.error("OSS 上传失败: file={}, error={}", file, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 流式上传
+     * 内容需先算出摘要才能决定对象名：不超过分片阈值的内容读入内存，更大的内容先落到临时文件
+     * @param in            内容流（由调用方关闭）
+     * @param contentLength 内容长度（字节）
+     * @return 公网访问地址；失败返回 null
+     */
+    public String upload(InputStream in, long contentLength, String contentType) {
+        if (in == null || contentLength <= 0) {
+            return null;
+        }
+        try {
+            if (contentLength <= multipartThreshold) {
+                return upload(in.readAllBytes(), contentType);
+            }
+            Path temp = Files.createTempFile("oss-upload-", ".tmp");
+            try {
+                Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+                return upload(temp, contentType);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (Exception e) {
+            log.error("OSS 上传失败: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 上传派生图片（如预处理后的缩略图），对象名由源内容摘要和派生规格决定：
+     * &lt;prefix&gt;derived/&lt;前两位&gt;/&lt;digest&gt;_&lt;variant&gt;.&lt;ext&gt;
+     * 同一源图、同一规格只上传一次
+     * @param sourceDigest 源图内容的 SHA-256
+     * @param variant      派生规格标识（如 1280q80o）
+     * @return 公网访问地址；失败返回 null
+     */
+    public String uploadDerived(String sourceDigest, String variant, byte[] content, String contentType) {
+        if (!StringUtils.hasText(sourceDigest) || content == null || content.length == 0) {
+            return null;
+        }
+        OSS ossClient = resolveClient();
+        if (ossClient == null) {
+            return null;
+        }
+        String prefix = StringUtils.hasText(objectPrefix) ? objectPrefix : "";
+        String objectName = prefix + "derived/" + sourceDigest.substring(0, 2) + "/" + sourceDigest
+                + "_" + variant + guessExtension(contentType);
+        try {
+            if (ossClient.doesObjectExist(bucket, objectName)) {
+                countDedupHit("derived");
+                return buildPublicUrl(objectName);
+            }
+        } catch (Exception e) {
+            log.warn("检查派生图片是否存在异常，继续上传: object={}, error={}", objectName, e.getMessage());
+        }
+        return putObject(ossClient, objectName, new ByteArrayInputStream(content), content.length, contentType);
+    }
+
+    /**
+     * 计算内容的 SHA-256（十六进制），与内容寻址对象名使用同一摘要
+     */
+    public static String digest(byte[] content) {
+        return sha256Hex(content);
+    }
+
+    /**
+     * 从本服务生成的内容寻址地址中取出内容标识：原图为内容摘要，派生图为源图摘要 + 规格
+     * @return 不是本服务生成的内容寻址地址时返回 null
+     */
+    public String contentIdOf(String url) {
+        if (!StringUtils.hasText(url) || !StringUtils.hasText(bucket)
+                || !StringUtils.hasText(publicUrl) && !StringUtils.hasText(endpoint)) {
+            return null;
+        }
+        String base = buildPublicUrl(StringUtils.hasText(objectPrefix) ? objectPrefix : "");
+        String trimmed = url.trim();
+        if (!trimmed.startsWith(base)) {
+            return null;
+        }
+        Matcher matcher = CONTENT_ADDRESSED_OBJECT.matcher(trimmed.substring(base.length()));
+        return matcher.matches() ? matcher.group(1) + ":" + matcher.group(3) : null;
+    }
+
+    /**
+     * 按 sdkfileid 查询已转存的图片地址
+     * @return 已转存返回 URL，否则返回 null
+     */
+    public String findBySdkFileId(String sdkFileId) {
+        if (!StringUtils.hasText(sdkFileId)) {
             return null;
         }
+        try {
+            String url = redisTemplate.opsForValue().get(SDK_FILE_INDEX_PREFIX + sdkFileId);
+            if (url != null) {
+                countDedupHit("sdkfile");
+            }
+            return url;
+        } catch (Exception e) {
+            log.warn("查询 sdkfileid 索引异常: sdkFileId={}, error={}", sdkFileId, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 记录 sdkfileid 与图片地址的对应关系
+     */
+    public void indexSdkFileId(String sdkFileId, String url) {
+        if (!StringUtils.hasText(sdkFileId) || !StringUtils.hasText(url)) {
+            return;
+        }
+        try {
+            redisTemplate.opsForValue().set(SDK_FILE_INDEX_PREFIX + sdkFileId, url);
+        } catch (Exception e) {
+            log.warn("写入 sdkfileid 索引异常: sdkFileId={}, error={}", sdkFileId, e.getMessage());
+        }
+    }
+
+    /**
+     * 内容寻址上传：索引命中或对象已存在时跳过上传
+     */
+    private String uploadContentAddressed(OSS ossClient, String digest, long contentLength, String contentType,
+                                          ContentSource source) {
+        String digestKey = DIGEST_INDEX_PREFIX + digest;
+        try {
+            String indexed = redisTemplate.opsForValue().get(digestKey);
+            if (indexed != null) {
+                countDedupHit("digest");
+                log.debug("图片已存在（摘要索引命中），跳过上传: digest={}", digest);
+                return indexed;
+            }
+        } catch (Exception e) {
+            log.warn("查询摘要索引异常，继续上传: digest={}, error={}", digest, e.getMessage());
+        }
+
+        String objectName = buildObjectName(digest, guessExtension(contentType));
+        boolean exists = false;
+        try {
+            exists = ossClient.doesObjectExist(bucket, objectName);
+        } catch (Exception e) {
+            log.warn("检查图片是否存在异常，继续上传: object={}, error={}", objectName, e.getMessage());
+        }
+        String url;
+        if (exists) {
+            // 索引丢失但对象还在（例如 Redis 被清空），补上索引即可
+            countDedupHit("object");
+            url = buildPublicUrl(objectName);
+        } else {
+            try (InputStream in = source.open()) {
+                url = putObject(ossClient, objectName, in, contentLength, contentType);
+            } catch (Exception e) {
+                log.error("OSS 上传失败: {}", e.getMessage(), e);
+                return null;
+            }
+        }
+        if (url != null) {
+            try {
+                redisTemplate.opsForValue().set(digestKey, url);
+            } catch (Exception e) {
+                log.warn("写入摘要索引异常: digest={}, error={}", digest, e.getMessage());
+            }
+        }
+        return url;
+    }
 
-        String extension = guessExtension(contentType);
-        String objectName = buildObjectName(extension);
+    private String putObject(OSS ossClient, String objectName, InputStream in, long contentLength, String contentType) {
+        String type = contentType != null ? contentType : "application/octet-stream";
+        boolean multipart = contentLength > multipartThreshold;
+        String mode = multipart ? "multipart" : "simple";
 
-        OSS ossClient = null;
+        long start = System.nanoTime();
+        boolean ok = false;
         try {
-            ossClient = new OSSClientBuilder().build(endpoint, accessKeyId, accessKeySecret);
-            ObjectMetadata metadata = new ObjectMetadata();
-            metadata.setContentType(contentType != null ? contentType : "application/octet-stream");
-            metadata.setContentLength(content.length);
-            ossClient.putObject(bucket, objectName, new ByteArrayInputStream(content), metadata);
+            if (multipart) {
+                multipartUpload(ossClient, objectName, in, contentLength, type);
+            } else {
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentType(type);
+                metadata.setContentLength(contentLength);
+                ossClient.putObject(bucket, objectName, in, metadata);
+            }
+            ok = true;
+            DistributionSummary.builder("aiops.oss.upload.bytes")
+                    .description("OSS 上传字节数")
+                    .baseUnit("bytes")
+                    .tag("mode", mode)
+                    .register(meterRegistry)
+                    .record(contentLength);
             return buildPublicUrl(objectName);
         } catch (Exception e) {
             log.error("OSS 上传失败: {}", e.getMessage(), e);
             return null;
         } finally {
-            if (ossClient != null) {
-                ossClient.shutdown();
+            Timer.builder("aiops.oss.upload.latency")
+                    .description("OSS 上传耗时")
+                    .tag("mode", mode)
+                    .tag("outcome", ok ? "success" : "failure")
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 分片上传：按 partSize 顺序读取流并逐片上传，任一分片失败则取消整个上传
+     */
+    private void multipartUpload(OSS ossClient, String objectName, InputStream in,
+                                 long contentLength, String contentType) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(contentType);
+        String uploadId = ossClient.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(bucket, objectName, metadata)).getUploadId();
+        try {
+            List<PartETag> partETags = new ArrayList<>();
+            long remaining = contentLength;
+            int partNumber = 1;
+            while (remaining > 0) {
+                long size = Math.min(partSize, remaining);
+                UploadPartRequest request = new UploadPartRequest();
+                request.setBucketName(bucket);
+                request.setKey(objectName);
+                request.setUploadId(uploadId);
+                request.setInputStream(in);
+                request.setPartSize(size);
+                request.setPartNumber(partNumber);
+                partETags.add(ossClient.uploadPart(request).getPartETag());
+                remaining -= size;
+                partNumber++;
             }
+            ossClient.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucket, objectName, uploadId, partETags));
+            log.info("OSS 分片上传完成: object={}, parts={}, bytes={}", objectName, partETags.size(), contentLength);
+        } catch (RuntimeException e) {
+            try {
+                ossClient.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, objectName, uploadId));
+            } catch (Exception abortError) {
+                log.warn("取消分片上传失败: uploadId={}, error={}", uploadId, abortError.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    private OSS resolveClient() {
+        if (!enabled) {
+            log.warn("OSS 上传未启用");
+            return null;
+        }
+        OSS ossClient = ossClientProvider.getIfAvailable();
+        if (ossClient == null || !StringUtils.hasText(endpoint) || !StringUtils.hasText(bucket)) {
+            log.warn("OSS 配置不完整，无法上传");
+            return null;
         }
+        return ossClient;
     }
 
-    private String buildObjectName(String extension) {
-        String datePath = LocalDate.now().toString().replace("-", "/");
-        String name = UUID.randomUUID().toString().replace("-", "");
+    /**
+     * 内容寻址对象名：按摘要前两位分目录，避免单目录对象过多
+     */
+    private String buildObjectName(String digest, String extension) {
         String prefix = StringUtils.hasText(objectPrefix) ? objectPrefix : "";
-        return prefix + datePath + "/" + name + extension;
+        return prefix + "sha256/" + digest.substring(0, 2) + "/" + digest + extension;
+    }
+
+    private void countDedupHit(String index) {
+        Counter.builder("aiops.oss.dedup.hits")
+                .description("图片去重命中次数（省去的上传）")
+                .tag("index", index)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    private static String sha256Hex(byte[] content) {
+        return HexFormat.of().formatHex(newSha256().digest(content));
+    }
+
+    private static String sha256Hex(InputStream in) throws IOException {
+        MessageDigest md = newSha256();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            md.update(buffer, 0, n);
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 不可用", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface ContentSource {
+        InputStream open() throws IOException;
     }
 
     private String buildPublicUrl(String objectName) {
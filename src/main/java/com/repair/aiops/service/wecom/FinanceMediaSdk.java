@@ -0,0 +1,26 @@
+package com.repair.aiops.service.wecom;
+
+import com.tencent.wework.Finance;
+import org.springframework.stereotype.Component;
+
+/**
+ * 基于 Finance 本地方法的媒体分片读取实现
+ */
+@Component
+public class FinanceMediaSdk implements WecomMediaSdk {
+
+    @Override
+    public MediaChunk readChunk(long sdk, String sdkFileId, String indexBuf, long timeoutSeconds) {
+        long mediaData = Finance.NewMediaData();
+        try {
+            int ret = Finance.GetMediaData(sdk, indexBuf, sdkFileId, null, null, timeoutSeconds, mediaData);
+            if (ret != 0) {
+                return MediaChunk.failed(ret);
+            }
+            return new MediaChunk(0, Finance.GetData(mediaData), Finance.GetOutIndexBuf(mediaData),
+                    Finance.IsMediaDataFinish(mediaData) == 1);
+        } finally {
+            Finance.FreeMediaData(mediaData);
+        }
+    }
+}
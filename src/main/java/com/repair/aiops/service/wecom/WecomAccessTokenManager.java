@@ -0,0 +1,302 @@
+package com.repair.aiops.service.wecom;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.repair.aiops.config.HttpClientConfig;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 企业微信应用 access_token 管理
+ *
+ * - 本机缓存到过期前 refresh-ahead 秒，期间不再请求 gettoken
+ * - 多节点通过 Redis 共享同一个 token，刷新时用分布式锁保证只有一个节点调用 gettoken
+ * - 同一节点上并发的刷新请求共享同一次调用（single-flight）
+ * - 后台定时任务在即将过期时主动刷新，业务线程通常不会遇到刷新等待
+ * - 调用方遇到 40014/42001（token 无效/过期）时调用 {@link #invalidate(String)} 丢弃旧 token
+ */
+@Slf4j
+@Component
+public class WecomAccessTokenManager {
+
+    private static final String TOKEN_KEY_PREFIX = "wecom:access-token:";
+    private static final String LOCK_KEY_PREFIX = "wecom:access-token:lock:";
+    private static final Duration LOCK_TTL = Duration.ofSeconds(10);
+    private static final long SINGLE_FLIGHT_WAIT_MS = 10_000L;
+    // 等待其他节点刷新 token 的轮询次数与间隔
+    private static final int PEER_WAIT_ROUNDS = 10;
+    private static final long PEER_WAIT_INTERVAL_MS = 200L;
+
+    /**
+     * 值相等时才删除（比较与删除在 Redis 中原子执行），返回删除的 key 数
+     * KEYS[1] 待删除的 key；ARGV[1] 期望的值
+     */
+    private static final RedisScript<Long> COMPARE_AND_DELETE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+            "return redis.call('DEL', KEYS[1]) end " +
+            "return 0",
+            Long.class);
+
+    private final RestTemplate restTemplate;
+    private final ObjectMapper objectMapper;
+    private final StringRedisTemplate redisTemplate;
+
+    @Value("${wecom.corp-id:}")
+    private String corpId;
+
+    @Value("${wecom.app.secret:}")
+    private String appSecret;
+
+    @Value("${wecom.app.agent-id:}")
+    private String agentId;
+
+    // 提前多少秒视为过期并刷新（企业微信 token 有效期为 7200 秒）
+    @Value("${wecom.token.refresh-ahead-seconds:300}")
+    private long refreshAheadSeconds;
+
+    // 本节点标识，作为刷新锁的值，释放时只删除自己持有的锁
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private volatile CachedToken cached;
+    private final AtomicReference<CompletableFuture<String>> inFlight = new AtomicReference<>();
+
+    public WecomAccessTokenManager(@Qualifier(HttpClientConfig.WECOM) RestTemplate restTemplate, ObjectMapper objectMapper,
+                                   StringRedisTemplate redisTemplate) {
+        this.restTemplate = restTemplate;
+        this.objectMapper = objectMapper;
+        this.redisTemplate = redisTemplate;
+    }
+
+    /**
+     * 获取可用的 access_token
+     * @return token；获取失败返回 null
+     */
+    public String getToken() {
+        CachedToken current = cached;
+        if (current != null && current.isFresh(refreshAheadSeconds)) {
+            return current.token;
+        }
+        String token = refreshShared();
+        // 刷新失败时，尚未真正过期的旧 token 仍可使用
+        if (token == null && current != null && current.isValid()) {
+            return current.token;
+        }
+        return token;
+    }
+
+    /**
+     * 丢弃失效的 token（仅当它仍是当前 token 时，避免把别人刚刷新的新 token 删掉）
+     */
+    public void invalidate(String token) {
+        if (token == null) {
+            return;
+        }
+        CachedToken current = cached;
+        if (current != null && token.equals(current.token)) {
+            cached = null;
+        }
+        try {
+            compareAndDelete(tokenKey(), token);
+        } catch (Exception e) {
+            log.warn("清除共享AccessToken异常: {}", e.getMessage());
+        }
+        log.warn("AccessToken已失效，下次调用将重新获取");
+    }
+
+    /**
+     * 判断企业微信接口返回是否为 token 无效/过期
+     */
+    public static boolean isTokenExpired(JsonNode root) {
+        if (root == null || !root.has("errcode")) {
+            return false;
+        }
+        int errcode = root.get("errcode").asInt();
+        return errcode == 40014 || errcode == 42001;
+    }
+
+    /**
+     * 后台主动刷新：token 即将过期时提前换新
+     */
+    @Scheduled(fixedDelayString = "${wecom.token.refresh-check-interval-ms:60000}")
+    public void refreshIfNeeded() {
+        if (!StringUtils.hasText(corpId) || !StringUtils.hasText(appSecret)) {
+            return;
+        }
+        CachedToken current = cached;
+        if (current == null || !current.isFresh(refreshAheadSeconds)) {
+            refreshShared();
+        }
+    }
+
+    /**
+     * 同一节点的并发刷新只发起一次
+     */
+    private String refreshShared() {
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.compareAndExchange(null, mine);
+        if (existing != null) {
+            try {
+                return existing.get(SINGLE_FLIGHT_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (Exception e) {
+                log.warn("等待AccessToken刷新失败: {}", e.getMessage());
+                return null;
+            }
+        }
+        try {
+            String token = loadToken();
+            mine.complete(token);
+            return token;
+        } catch (RuntimeException e) {
+            mine.complete(null);
+            throw e;
+        } finally {
+            inFlight.set(null);
+        }
+    }
+
+    /**
+     * 先读 Redis 共享 token；没有（或即将过期）时抢锁调用 gettoken，抢不到则等待持锁节点写入
+     */
+    private String loadToken() {
+        String key = tokenKey();
+        CachedToken shared = readShared(key);
+        if (shared != null && shared.isFresh(refreshAheadSeconds)) {
+            cached = shared;
+            return shared.token;
+        }
+
+        String lockKey = LOCK_KEY_PREFIX + corpId + ":" + agentId;
+        Boolean locked = null;
+        try {
+            locked = redisTemplate.opsForValue().setIfAbsent(lockKey, nodeId, LOCK_TTL);
+        } catch (Exception e) {
+            log.warn("获取AccessToken刷新锁异常，直接调用接口: {}", e.getMessage());
+        }
+
+        if (Boolean.FALSE.equals(locked)) {
+            // 其他节点正在刷新，等待其写入 Redis
+            for (int i = 0; i < PEER_WAIT_ROUNDS; i++) {
+                try {
+                    Thread.sleep(PEER_WAIT_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                CachedToken peer = readShared(key);
+                if (peer != null && peer.isFresh(refreshAheadSeconds)) {
+                    cached = peer;
+                    return peer.token;
+                }
+            }
+            log.warn("等待其他节点刷新AccessToken超时，本节点直接获取");
+        }
+
+        try {
+            CachedToken fresh = fetchFromWecom();
+            if (fresh == null) {
+                // 接口失败时，尚未真正过期的旧 token 仍可使用
+                return shared != null && shared.isValid() ? shared.token : null;
+            }
+            cached = fresh;
+            long ttlMillis = fresh.expiresAtMillis - System.currentTimeMillis();
+            if (ttlMillis > 0) {
+                try {
+                    redisTemplate.opsForValue().set(key, fresh.token, ttlMillis, TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                    log.warn("写入共享AccessToken异常: {}", e.getMessage());
+                }
+            }
+            return fresh.token;
+        } finally {
+            if (Boolean.TRUE.equals(locked)) {
+                // gettoken 较慢时锁可能已过期并被其他节点取得，只释放自己的锁
+                try {
+                    compareAndDelete(lockKey, nodeId);
+                } catch (Exception e) {
+                    log.warn("释放AccessToken刷新锁异常: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void compareAndDelete(String key, String expected) {
+        redisTemplate.execute(COMPARE_AND_DELETE_SCRIPT, Collections.singletonList(key), expected);
+    }
+
+    private CachedToken readShared(String key) {
+        try {
+            String token = redisTemplate.opsForValue().get(key);
+            if (!StringUtils.hasText(token)) {
+                return null;
+            }
+            Long ttl = redisTemplate.getExpire(key, TimeUnit.MILLISECONDS);
+            if (ttl == null || ttl <= 0) {
+                return null;
+            }
+            return new CachedToken(token, System.currentTimeMillis() + ttl);
+        } catch (Exception e) {
+            log.warn("读取共享AccessToken异常: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private CachedToken fetchFromWecom() {
+        String url = "https://qyapi.weixin.qq.com/cgi-bin/gettoken?corpid=" + corpId + "&corpsecret=" + appSecret;
+        try {
+            ResponseEntity<String> response = restTemplate.getForEntity(url, String.class);
+            JsonNode root = objectMapper.readTree(response.getBody());
+            if (root.has("access_token")) {
+                long expiresIn = root.has("expires_in") ? root.get("expires_in").asLong() : 7200L;
+                log.info("AccessToken已刷新: expiresIn={}s", expiresIn);
+                return new CachedToken(root.get("access_token").asText(),
+                        System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expiresIn));
+            }
+            log.error("获取AccessToken失败: {}", response.getBody());
+            return null;
+        } catch (Exception e) {
+            log.error("获取AccessToken异常: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private String tokenKey() {
+        return TOKEN_KEY_PREFIX + corpId + ":" + agentId;
+    }
+
+    private static final class CachedToken {
+        private final String token;
+        private final long expiresAtMillis;
+
+        CachedToken(String token, long expiresAtMillis) {
+            this.token = token;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        boolean isFresh(long refreshAheadSeconds) {
+            return System.currentTimeMillis() < expiresAtMillis - TimeUnit.SECONDS.toMillis(refreshAheadSeconds);
+        }
+
+        boolean isValid() {
+            return System.currentTimeMillis() < expiresAtMillis;
+        }
+    }
+}
@@ -0,0 +1,672 @@
+package com.repair.aiops.service.wecom;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.repair.aiops.model.dto.GroupMsgDTO;
+import com.repair.aiops.model.dto.TicketDraft;
+import com.repair.aiops.model.dto.wecom.ArchiveBackfillRequest;
+import com.repair.aiops.model.dto.wecom.WecomChatDataItem;
+import com.repair.aiops.model.dto.wecom.WecomChatDataResponse;
+import com.repair.aiops.model.enums.PipelineStatus;
+import com.repair.aiops.service.core.MessageDedupService;
+import com.repair.aiops.service.pipeline.MessagePipeline;
+import com.repair.aiops.service.pipeline.PipelineContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 会话存档回放（补处理历史消息 / 用历史流量评估提示词改动）
+ *
+ * 按 seq 范围或消息时间范围逐页拉取存档，消息投递到 {@link MessagePipeline}，同时在途的消息数不超过 parallelism。
+ * 每页处理完成后把进度（下一页起始 seq）和各项计数写入 Redis，任务中断后可从断点继续（resume）。
+ *
+ * - 演练模式（默认）：只做分析，不绑定业主、不写草稿/下单、不发通知；每条消息的分析结果写入结果列表，便于对比
+ * - 正式回放：与定时拉取相同的处理，默认跳过已处理过的 msgid，处理完成后标记；
+ *   投递前同样写入“处理中”占位，与定时拉取（或其他节点）同时处理到同一条消息时只投递一次
+ * - 同一时刻全局只允许一个回放任务（Redis 锁）
+ * - 运行中按页输出吞吐（条/秒）和预计剩余时间，也可通过接口查询
+ *
+ * 指标：aiops.backfill.messages{outcome}
+ */
+@Slf4j
+@Service
+public class WecomArchiveBackfillService {
+
+    private static final String JOB_KEY_PREFIX = "aiops:backfill:job:";
+    private static final String RESULTS_SUFFIX = ":results";
+    private static final String LOCK_KEY = "aiops:backfill:lock";
+    private static final Duration LOCK_TTL = Duration.ofMinutes(10);
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final long SUBMIT_RETRY_MS = 200L;
+
+    static final String STATUS_RUNNING = "RUNNING";
+    static final String STATUS_DONE = "DONE";
+    static final String STATUS_CANCELLED = "CANCELLED";
+    static final String STATUS_FAILED = "FAILED";
+
+    private final WecomChatArchiveService wecomChatArchiveService;
+    private final WecomChatMessageParser wecomChatMessageParser;
+    private final MessagePipeline messagePipeline;
+    private final MessageDedupService dedupService;
+    private final StringRedisTemplate redisTemplate;
+    private final MeterRegistry meterRegistry;
+
+    private final ExecutorService runner = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "archive-backfill");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicReference<Job> current = new AtomicReference<>();
+
+    @Value("${wecom.chat.archive.allowed-groups:}")
+    private String allowedGroups;
+
+    @Value("${aiops.backfill.parallelism:8}")
+    private int defaultParallelism;
+
+    @Value("${aiops.backfill.page-size:100}")
+    private int defaultPageSize;
+
+    // 单页等待处理完成的最长时间，超时后任务失败（进度停在该页之前，可 resume）
+    @Value("${aiops.backfill.page-timeout-ms:600000}")
+    private long pageTimeoutMs;
+
+    // 演练结果最多保留的条数、任务状态和结果的保留时间
+    @Value("${aiops.backfill.max-results:20000}")
+    private long maxResults;
+
+    @Value("${aiops.backfill.retention-hours:72}")
+    private long retentionHours;
+
+    public WecomArchiveBackfillService(WecomChatArchiveService wecomChatArchiveService,
+                                       WecomChatMessageParser wecomChatMessageParser,
+                                       MessagePipeline messagePipeline,
+                                       MessageDedupService dedupService,
+                                       StringRedisTemplate redisTemplate,
+                                       MeterRegistry meterRegistry) {
+        this.wecomChatArchiveService = wecomChatArchiveService;
+        this.wecomChatMessageParser = wecomChatMessageParser;
+        this.messagePipeline = messagePipeline;
+        this.dedupService = dedupService;
+        this.redisTemplate = redisTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 创建并启动回放任务
+     * @throws IllegalArgumentException 参数不合法
+     * @throws IllegalStateException 已有回放任务在运行
+     */
+    public Map<String, Object> start(ArchiveBackfillRequest request) {
+        ArchiveBackfillRequest normalized = normalize(request);
+        String jobId = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+        Job job = new Job(jobId, normalized, normalized.getStartSeq());
+        launch(job);
+        return progress(job);
+    }
+
+    /**
+     * 从上次的检查点继续执行中断（取消、失败、节点重启）的任务
+     */
+    public Map<String, Object> resume(String jobId) {
+        Map<Object, Object> saved = redisTemplate.opsForHash().entries(JOB_KEY_PREFIX + jobId);
+        if (saved.isEmpty()) {
+            throw new IllegalArgumentException("回放任务不存在或已过期: " + jobId);
+        }
+        if (STATUS_DONE.equals(saved.get("status"))) {
+            throw new IllegalArgumentException("回放任务已完成: " + jobId);
+        }
+        Job running = current.get();
+        if (running != null && running.id.equals(jobId)) {
+            return progress(running);
+        }
+        ArchiveBackfillRequest request = JSON.parseObject((String) saved.get("request"), ArchiveBackfillRequest.class);
+        Job job = new Job(jobId, request, Long.parseLong((String) saved.get("cursorSeq")));
+        job.restore(saved);
+        launch(job);
+        return progress(job);
+    }
+
+    /**
+     * 取消任务：当前页处理完成并记录检查点后停止
+     */
+    public boolean cancel(String jobId) {
+        Job job = current.get();
+        if (job == null || !job.id.equals(jobId)) {
+            return false;
+        }
+        job.cancelled = true;
+        return true;
+    }
+
+    /**
+     * 任务进度：运行中的任务取内存中的实时值，否则取最近一次检查点
+     */
+    public Map<String, Object> progress(String jobId) {
+        Job job = current.get();
+        if (job != null && job.id.equals(jobId)) {
+            return progress(job);
+        }
+        Map<Object, Object> saved = redisTemplate.opsForHash().entries(JOB_KEY_PREFIX + jobId);
+        if (saved.isEmpty()) {
+            return null;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        saved.forEach((k, v) -> result.put(String.valueOf(k), v));
+        return result;
+    }
+
+    /**
+     * 演练结果（按处理完成顺序）
+     */
+    public List<String> results(String jobId, long offset, int limit) {
+        List<String> range = redisTemplate.opsForList().range(JOB_KEY_PREFIX + jobId + RESULTS_SUFFIX,
+                Math.max(0, offset), Math.max(0, offset) + Math.max(1, limit) - 1);
+        return range != null ? range : List.of();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        Job job = current.get();
+        if (job != null) {
+            job.cancelled = true;
+        }
+        runner.shutdown();
+        try {
+            if (!runner.awaitTermination(30, TimeUnit.SECONDS)) {
+                runner.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            runner.shutdownNow();
+        }
+    }
+
+    private ArchiveBackfillRequest normalize(ArchiveBackfillRequest request) {
+        if (request == null) {
+            throw new IllegalArgumentException("回放参数不能为空");
+        }
+        if (request.getStartSeq() == null) {
+            request.setStartSeq(0L);
+        }
+        if (request.getStartSeq() < 0) {
+            throw new IllegalArgumentException("startSeq 不能为负数");
+        }
+        if (request.getEndSeq() != null && request.getEndSeq() <= request.getStartSeq()) {
+            throw new IllegalArgumentException("endSeq 必须大于 startSeq");
+        }
+        if (request.getStartTime() != null && request.getEndTime() != null
+                && request.getEndTime() < request.getStartTime()) {
+            throw new IllegalArgumentException("endTime 不能早于 startTime");
+        }
+        if (request.getParallelism() == null) {
+            request.setParallelism(defaultParallelism);
+        }
+        if (request.getParallelism() < 1) {
+            throw new IllegalArgumentException("parallelism 必须大于 0");
+        }
+        if (request.getPageSize() == null) {
+            request.setPageSize(defaultPageSize);
+        }
+        if (request.getPageSize() < 1 || request.getPageSize() > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("pageSize 取值范围 1-" + MAX_PAGE_SIZE);
+        }
+        if (request.getDryRun() == null) {
+            request.setDryRun(true);
+        }
+        if (request.getIncludeProcessed() == null || request.getDryRun()) {
+            request.setIncludeProcessed(request.getDryRun());
+        }
+        return request;
+    }
+
+    private void launch(Job job) {
+        if (!current.compareAndSet(null, job)) {
+            throw new IllegalStateException("已有回放任务在运行: " + current.get().id);
+        }
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(LOCK_KEY, job.id, LOCK_TTL);
+        if (!Boolean.TRUE.equals(locked)) {
+            current.set(null);
+            throw new IllegalStateException("其他节点正在执行回放任务: " + redisTemplate.opsForValue().get(LOCK_KEY));
+        }
+        job.status = STATUS_RUNNING;
+        checkpoint(job);
+        try {
+            runner.execute(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            release(job, STATUS_FAILED, "服务正在关闭");
+            throw new IllegalStateException("服务正在关闭，无法启动回放任务");
+        }
+        log.info("[回放] 任务已启动: jobId={}, request={}", job.id, JSON.toJSONString(job.request));
+    }
+
+    private void run(Job job) {
+        ArchiveBackfillRequest request = job.request;
+        Semaphore inFlight = new Semaphore(request.getParallelism());
+        try {
+            while (!job.cancelled) {
+                WecomChatDataResponse response = wecomChatArchiveService.fetchChatData(job.cursorSeq, request.getPageSize());
+                if (response == null) {
+                    release(job, STATUS_FAILED, "会话存档拉取失败或未启用");
+                    return;
+                }
+                List<WecomChatDataItem> chatData = response.getChatdata();
+                if (chatData == null || chatData.isEmpty()) {
+                    release(job, STATUS_DONE, "已到达存档末尾");
+                    return;
+                }
+
+                boolean reachedEnd = false;
+                boolean interrupted = false;
+                long pageEndSeq = job.cursorSeq;
+                List<CompletableFuture<PipelineContext>> futures = new ArrayList<>(chatData.size());
+                for (WecomChatDataItem item : chatData) {
+                    if (request.getEndSeq() != null && item.getSeq() != null && item.getSeq() > request.getEndSeq()) {
+                        reachedEnd = true;
+                        break;
+                    }
+                    if (item.getSeq() != null) {
+                        pageEndSeq = Math.max(pageEndSeq, item.getSeq());
+                    }
+                    GroupMsgDTO msg = parse(item);
+                    if (msg != null && msg.getTimestamp() != null) {
+                        job.lastMsgTime = msg.getTimestamp();
+                        if (job.firstMsgTime <= 0) {
+                            job.firstMsgTime = msg.getTimestamp();
+                        }
+                    }
+                    if (msg != null && request.getEndTime() != null && msg.getTimestamp() != null
+                            && msg.getTimestamp() > request.getEndTime()) {
+                        reachedEnd = true;
+                        break;
+                    }
+                    if (msg == null
+                            || request.getStartTime() != null && (msg.getTimestamp() == null || msg.getTimestamp() < request.getStartTime())
+                            || !request.getIncludeProcessed() && dedupService.isArchiveMsgProcessed(item.getMsgid())) {
+                        job.skipped.incrementAndGet();
+                        count("skipped");
+                        continue;
+                    }
+                    String msgId = item.getMsgid();
+                    if (!request.getDryRun() && !markInFlight(job, msgId)) {
+                        continue;
+                    }
+                    CompletableFuture<PipelineContext> future = submit(job, item, msg, inFlight);
+                    if (future == null) {
+                        // 等待流水线入口时任务被取消：本页剩余消息不再投递
+                        if (!request.getDryRun()) {
+                            dedupService.clearArchiveMsgInFlight(msgId);
+                        }
+                        interrupted = true;
+                        break;
+                    }
+                    futures.add(future);
+                }
+
+                awaitPage(job, futures);
+                if (interrupted) {
+                    // 本页未投递完：检查点停在本页之前，resume 时重新拉取（已处理的消息按 msgid 跳过）
+                    checkpoint(job);
+                    break;
+                }
+                // 本页全部处理完成才推进检查点；到达结束位置时停在最后一条已处理的消息
+                job.cursorSeq = reachedEnd || response.getNext_seq() == null ? pageEndSeq : response.getNext_seq();
+                job.pages.incrementAndGet();
+                checkpoint(job);
+                logProgress(job);
+                if (reachedEnd) {
+                    release(job, STATUS_DONE, "已到达回放范围终点");
+                    return;
+                }
+                redisTemplate.expire(LOCK_KEY, LOCK_TTL);
+            }
+            release(job, STATUS_CANCELLED, "已取消");
+        } catch (Exception e) {
+            log.error("[回放] 任务异常终止: jobId={}, cursorSeq={}, error={}", job.id, job.cursorSeq, e.getMessage(), e);
+            release(job, STATUS_FAILED, e.getMessage());
+        }
+    }
+
+    /**
+     * 正式回放投递前写入“处理中”占位（与定时拉取相同），占位失败或占位后发现已处理时跳过该消息
+     */
+    private boolean markInFlight(Job job, String msgId) {
+        Duration ttl = Duration.ofMillis(pageTimeoutMs * 2);
+        if (!dedupService.tryMarkArchiveMsgInFlight(msgId, ttl)) {
+            log.debug("[回放] 存档消息正在其他流程中处理，跳过: jobId={}, msgId={}", job.id, msgId);
+            job.skipped.incrementAndGet();
+            count("in_flight");
+            return false;
+        }
+        // 占位前其他流程恰好处理完成（先标记已处理、再清除占位）：再确认一次
+        if (!job.request.getIncludeProcessed() && dedupService.isArchiveMsgProcessed(msgId)) {
+            dedupService.clearArchiveMsgInFlight(msgId);
+            job.skipped.incrementAndGet();
+            count("skipped");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 投递到流水线，入口已满时等待重试
+     * @return 等待期间任务被取消时返回 null
+     */
+    private CompletableFuture<PipelineContext> submit(Job job, WecomChatDataItem item, GroupMsgDTO msg,
+                                                      Semaphore inFlight) throws InterruptedException {
+        boolean dryRun = job.request.getDryRun();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            if (!dryRun) {
+                dedupService.clearArchiveMsgInFlight(item.getMsgid());
+            }
+            throw e;
+        }
+        String sdkFileId = StringUtils.hasText(msg.getImageUrl()) ? extractSdkFileId(msg.getImageUrl()) : null;
+        String traceId = UUID.randomUUID().toString().replace("-", "");
+        CompletableFuture<PipelineContext> future;
+        while (true) {
+            if (job.cancelled) {
+                inFlight.release();
+                return null;
+            }
+            try {
+                future = messagePipeline.submit(msg, traceId, sdkFileId, dryRun);
+                break;
+            } catch (RejectedExecutionException e) {
+                // 流水线入口已满（实时消息优先），稍后重试
+                try {
+                    Thread.sleep(SUBMIT_RETRY_MS);
+                } catch (InterruptedException ie) {
+                    inFlight.release();
+                    if (!dryRun) {
+                        dedupService.clearArchiveMsgInFlight(item.getMsgid());
+                    }
+                    throw ie;
+                }
+            }
+        }
+        job.submitted.incrementAndGet();
+        return future.whenComplete((ctx, e) -> {
+            inFlight.release();
+            try {
+                onCompleted(job, item, ctx);
+            } finally {
+                if (!dryRun) {
+                    dedupService.clearArchiveMsgInFlight(item.getMsgid());
+                }
+            }
+        });
+    }
+
+    private void onCompleted(Job job, WecomChatDataItem item, PipelineContext ctx) {
+        if (ctx == null) {
+            return;
+        }
+        job.processed.incrementAndGet();
+        job.statusCounts.computeIfAbsent(ctx.getStatus().name(), k -> new AtomicLong()).incrementAndGet();
+        count(ctx.getStatus().name());
+        if (ctx.getStatus() == PipelineStatus.ERROR) {
+            job.failed.incrementAndGet();
+        } else if (!job.request.getDryRun()) {
+            dedupService.markArchiveMsgProcessed(item.getMsgid());
+        }
+        if (job.request.getDryRun()) {
+            recordResult(job, item, ctx);
+        }
+    }
+
+    private void recordResult(Job job, WecomChatDataItem item, PipelineContext ctx) {
+        try {
+            TicketDraft draft = ctx.getDraft();
+            JSONObject result = new JSONObject(true);
+            result.put("seq", item.getSeq());
+            result.put("msgid", item.getMsgid());
+            result.put("traceId", ctx.getTraceId());
+            result.put("senderId", ctx.getMsg().getSenderUserId());
+            result.put("groupId", ctx.getMsg().getGroupId());
+            result.put("content", ctx.getMsg().getContent());
+            result.put("status", ctx.getStatus().name());
+            result.put("message", ctx.getMessage());
+            result.put("draft", draft);
+            String key = JOB_KEY_PREFIX + job.id + RESULTS_SUFFIX;
+            Long size = redisTemplate.opsForList().rightPush(key, result.toJSONString());
+            if (size != null && size > maxResults) {
+                redisTemplate.opsForList().trim(key, -maxResults, -1);
+            }
+        } catch (Exception e) {
+            log.warn("[回放] 记录演练结果失败: jobId={}, seq={}, error={}", job.id, item.getSeq(), e.getMessage());
+        }
+    }
+
+    private void awaitPage(Job job, List<CompletableFuture<PipelineContext>> futures) throws Exception {
+        if (futures.isEmpty()) {
+            return;
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+        long deadline = System.currentTimeMillis() + pageTimeoutMs;
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new TimeoutException("本页未在" + pageTimeoutMs + "ms内处理完成");
+            }
+            try {
+                all.get(Math.min(remaining, 10_000L), TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // 页内消息仍在处理，续期锁并输出一次进度
+                redisTemplate.expire(LOCK_KEY, LOCK_TTL);
+                logProgress(job);
+            }
+        }
+    }
+
+    /**
+     * 解析存档消息并做群白名单过滤，返回 null 表示跳过
+     */
+    private GroupMsgDTO parse(WecomChatDataItem item) {
+        String decrypted = item.getDecryptChatMsg();
+        if (!StringUtils.hasText(decrypted)) {
+            return null;
+        }
+        GroupMsgDTO msg = wecomChatMessageParser.parse(decrypted);
+        if (msg == null) {
+            return null;
+        }
+        if (StringUtils.hasText(allowedGroups)) {
+            boolean allowed = false;
+            for (String g : allowedGroups.split(",")) {
+                if (g.trim().equals(msg.getGroupId())) {
+                    allowed = true;
+                    break;
+                }
+            }
+            if (!allowed) {
+                return null;
+            }
+        }
+        if (msg.getTimestamp() != null && msg.getTimestamp() > 0) {
+            msg.setTimestamp(WecomChatArchiveScheduler.normalizeTimestamp(msg.getTimestamp()));
+        }
+        return msg;
+    }
+
+    private String extractSdkFileId(String imageUrl) {
+        if (!imageUrl.startsWith("http")) {
+            return imageUrl;
+        }
+        int idx = imageUrl.lastIndexOf('/');
+        return idx >= 0 && idx + 1 < imageUrl.length() ? imageUrl.substring(idx + 1) : null;
+    }
+
+    private void release(Job job, String status, String message) {
+        job.status = status;
+        job.message = message;
+        job.finishedAt = System.currentTimeMillis();
+        checkpoint(job);
+        logProgress(job);
+        try {
+            if (job.id.equals(redisTemplate.opsForValue().get(LOCK_KEY))) {
+                redisTemplate.delete(LOCK_KEY);
+            }
+        } finally {
+            current.compareAndSet(job, null);
+        }
+    }
+
+    private void checkpoint(Job job) {
+        try {
+            Map<String, String> fields = new HashMap<>();
+            progress(job).forEach((k, v) -> fields.put(k, v instanceof String ? (String) v : JSON.toJSONString(v)));
+            fields.put("request", JSON.toJSONString(job.request));
+            String key = JOB_KEY_PREFIX + job.id;
+            redisTemplate.opsForHash().putAll(key, fields);
+            redisTemplate.expire(key, retentionHours, TimeUnit.HOURS);
+            redisTemplate.expire(key + RESULTS_SUFFIX, retentionHours, TimeUnit.HOURS);
+        } catch (Exception e) {
+            log.error("[回放] 保存检查点失败: jobId={}, cursorSeq={}, error={}", job.id, job.cursorSeq, e.getMessage(), e);
+        }
+    }
+
+    private void logProgress(Job job) {
+        Map<String, Object> p = progress(job);
+        log.info("[回放] 进度: jobId={}, status={}, cursorSeq={}, processed={}, skipped={}, failed={}, rate={}条/秒, eta={}秒",
+                job.id, job.status, job.cursorSeq, job.processed.get(), job.skipped.get(), job.failed.get(),
+                p.get("ratePerSecond"), p.get("etaSeconds"));
+    }
+
+    /**
+     * 任务进度快照：计数、吞吐（条/秒）和预计剩余时间
+     * 预计剩余时间按已处理的 seq（指定了 endSeq）或消息时间（指定了 endTime）的推进速度估算，都未指定时为空
+     */
+    private Map<String, Object> progress(Job job) {
+        long now = job.finishedAt > 0 ? job.finishedAt : System.currentTimeMillis();
+        double elapsedSeconds = Math.max(0.001, (now - job.startedAt) / 1000.0);
+        long handled = job.processed.get() + job.skipped.get() - job.baseHandled;
+
+        Long etaSeconds = null;
+        ArchiveBackfillRequest request = job.request;
+        if (STATUS_RUNNING.equals(job.status)) {
+            if (request.getEndSeq() != null && job.cursorSeq > job.baseSeq) {
+                double seqPerSecond = (job.cursorSeq - job.baseSeq) / elapsedSeconds;
+                etaSeconds = Math.round(Math.max(0, request.getEndSeq() - job.cursorSeq) / seqPerSecond);
+            } else if (request.getEndTime() != null && job.firstMsgTime > 0 && job.lastMsgTime > job.firstMsgTime) {
+                double msgMillisPerSecond = (job.lastMsgTime - job.firstMsgTime) / elapsedSeconds;
+                etaSeconds = Math.round(Math.max(0, request.getEndTime() - job.lastMsgTime) / msgMillisPerSecond);
+            }
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("jobId", job.id);
+        result.put("status", job.status);
+        result.put("message", job.message);
+        result.put("dryRun", String.valueOf(request.getDryRun()));
+        result.put("cursorSeq", String.valueOf(job.cursorSeq));
+        result.put("pages", String.valueOf(job.pages.get()));
+        result.put("submitted", String.valueOf(job.submitted.get()));
+        result.put("processed", String.valueOf(job.processed.get()));
+        result.put("skipped", String.valueOf(job.skipped.get()));
+        result.put("failed", String.valueOf(job.failed.get()));
+        Map<String, Long> statusCounts = new HashMap<>();
+        job.statusCounts.forEach((k, v) -> statusCounts.put(k, v.get()));
+        result.put("statusCounts", statusCounts);
+        result.put("ratePerSecond", String.format("%.2f", handled / elapsedSeconds));
+        result.put("etaSeconds", etaSeconds != null ? String.valueOf(etaSeconds) : null);
+        result.put("lastMsgTime", String.valueOf(job.lastMsgTime));
+        result.put("startedAt", String.valueOf(job.startedAt));
+        result.put("finishedAt", String.valueOf(job.finishedAt));
+        return result;
+    }
+
+    private void count(String outcome) {
+        Counter.builder("aiops.backfill.messages")
+                .description("存档回放处理的消息数")
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    /**
+     * 回放任务的运行状态（计数在流水线回调线程中更新）
+     */
+    private static class Job {
+        private final String id;
+        private final ArchiveBackfillRequest request;
+        private final long startedAt = System.currentTimeMillis();
+        // 本次运行（含 resume）开始时的 seq 和已处理数，用于计算吞吐和剩余时间
+        private final long baseSeq;
+        private long baseHandled;
+
+        private volatile long cursorSeq;
+        private volatile String status;
+        private volatile String message;
+        private volatile boolean cancelled;
+        private volatile long finishedAt;
+        private volatile long firstMsgTime;
+        private volatile long lastMsgTime;
+
+        private final AtomicLong pages = new AtomicLong();
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final Map<String, AtomicLong> statusCounts = new ConcurrentHashMap<>();
+
+        Job(String id, ArchiveBackfillRequest request, long cursorSeq) {
+            this.id = id;
+            this.request = request;
+            this.cursorSeq = cursorSeq;
+            this.baseSeq = cursorSeq;
+        }
+
+        /**
+         * 从检查点恢复累计计数
+         */
+        void restore(Map<Object, Object> saved) {
+            pages.set(parseLong(saved.get("pages")));
+            submitted.set(parseLong(saved.get("submitted")));
+            processed.set(parseLong(saved.get("processed")));
+            skipped.set(parseLong(saved.get("skipped")));
+            failed.set(parseLong(saved.get("failed")));
+            Object counts = saved.get("statusCounts");
+            if (counts instanceof String) {
+                JSON.parseObject((String) counts).forEach((k, v) ->
+                        statusCounts.put(k, new AtomicLong(Long.parseLong(String.valueOf(v)))));
+            }
+            baseHandled = processed.get() + skipped.get();
+        }
+
+        private static long parseLong(Object value) {
+            try {
+                return value != null ? Long.parseLong(String.valueOf(value)) : 0L;
+            } catch (NumberFormatException e) {
+                return 0L;
+            }
+        }
+    }
+}
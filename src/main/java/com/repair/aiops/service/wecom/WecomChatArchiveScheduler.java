@@ -1,30 +1,81 @@
 package com.repair.aiops.service.wecom;
 
-import com.repair.aiops.controller.AgentController;
 import com.repair.aiops.model.dto.GroupMsgDTO;
 import com.repair.aiops.model.dto.wecom.WecomChatDataItem;
 import com.repair.aiops.model.dto.wecom.WecomChatDataResponse;
-import com.repair.aiops.service.storage.OssStorageService;
+import com.repair.aiops.model.enums.PipelineStatus;
+import com.repair.aiops.service.core.MessageDedupService;
+import com.repair.aiops.service.pipeline.MessagePipeline;
+import com.repair.aiops.service.pipeline.PipelineContext;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.ResponseEntity;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * 企业微信会话存档定时拉取
+ *
+ * 一批消息全部投递到 {@link MessagePipeline} 并发处理（同一业主的消息由流水线保证顺序），
+ * 处理完成后只把 seq 进度推进到“连续完成”的最高位置：
+ * 中间有未完成的消息时，进度停在它之前，下次拉取会从该位置重新开始，保证不丢消息。
+ * 投递前为每条消息写入带过期时间的“处理中”占位，重新拉取到仍在流水线中的消息时不再重复投递，
+ * 进度同样停在它之前，等首次处理完成（标记为已处理）后再越过。
+ * 处理失败（流水线以 ERROR 结束，例如草稿写库失败）的消息同样挡住进度，下次拉取时重试；
+ * 累计失败 max-attempts 次后记录错误日志并标记为已处理（死信），不再挡住后续消息。
+ *
+ * 分布式锁的值为本节点标识，续期和释放都先比较值（Lua 原子执行），锁过期后被其他节点取得时不会误续、误删。
+ */
 @Slf4j
 @Component
 public class WecomChatArchiveScheduler {
     private final WecomChatArchiveService wecomChatArchiveService;
     private final WecomChatMessageParser wecomChatMessageParser;
-    private final OssStorageService ossStorageService;
-    private final AgentController agentController;
+    private final MessagePipeline messagePipeline;
+    private final MessageDedupService dedupService;
     private final StringRedisTemplate redisTemplate;
     
     private static final String REDIS_SEQ_KEY = "wecom:chat:archive:seq";
+    private static final String LOCK_KEY = "wecom:chat:archive:lock";
+    // 锁过期时间（略大于定时任务间隔，防止死锁；批次处理期间会定期续期）
+    private static final Duration LOCK_TTL = Duration.ofSeconds(50);
+    private static final long LOCK_RENEW_INTERVAL_MS = 10_000L;
+
+    /**
+     * 值相等时才续期，返回 1 表示续期成功
+     * KEYS[1] 锁；ARGV[1] 本节点标识；ARGV[2] 过期时间（毫秒）
+     */
+    private static final RedisScript<Long> COMPARE_AND_RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+            "return redis.call('PEXPIRE', KEYS[1], ARGV[2]) end " +
+            "return 0",
+            Long.class);
+
+    /**
+     * 值相等时才删除，返回删除的 key 数
+     * KEYS[1] 锁；ARGV[1] 本节点标识
+     */
+    private static final RedisScript<Long> COMPARE_AND_DELETE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+            "return redis.call('DEL', KEYS[1]) end " +
+            "return 0",
+            Long.class);
+
+    // 本节点标识，作为分布式锁的值
+    private final String nodeId = UUID.randomUUID().toString();
 
     @Value("${wecom.chat.archive.poll.enabled:false}")
     private boolean enabled;
@@ -41,15 +92,27 @@ public class WecomChatArchiveScheduler {
     @Value("${wecom.chat.archive.poll.cutoff-hour:-1}")
     private int cutOffHour;
 
+    // 单批次等待处理完成的最长时间（毫秒），超时后按已完成部分提交进度
+    @Value("${wecom.chat.archive.poll.batch-timeout-ms:120000}")
+    private long batchTimeoutMs;
+
+    // “处理中”占位的过期时间（毫秒），至少为批次等待时间的两倍
+    @Value("${wecom.chat.archive.poll.inflight-ttl-ms:600000}")
+    private long inflightTtlMs;
+
+    // 单条消息处理失败（ERROR）的最多次数，超过后记录日志并越过
+    @Value("${wecom.chat.archive.poll.max-attempts:3}")
+    private int maxAttempts;
+
     public WecomChatArchiveScheduler(WecomChatArchiveService wecomChatArchiveService,
                                      WecomChatMessageParser wecomChatMessageParser,
-                                     OssStorageService ossStorageService,
-                                     AgentController agentController,
+                                     MessagePipeline messagePipeline,
+                                     MessageDedupService dedupService,
                                      StringRedisTemplate redisTemplate) {
         this.wecomChatArchiveService = wecomChatArchiveService;
         this.wecomChatMessageParser = wecomChatMessageParser;
-        this.ossStorageService = ossStorageService;
-        this.agentController = agentController;
+        this.messagePipeline = messagePipeline;
+        this.dedupService = dedupService;
         this.redisTemplate = redisTemplate;
     }
 
@@ -59,10 +122,8 @@ public class WecomChatArchiveScheduler {
             return;
         }
 
-        // 分布式锁 Key
-        String lockKey = "wecom:chat:archive:lock";
-        // 尝试获取锁（过期时间设为 50秒，略大于定时任务间隔30秒，防止死锁）
-        Boolean locked = redisTemplate.opsForValue().setIfAbsent(lockKey, "1", java.time.Duration.ofSeconds(50));
+        // 尝试获取分布式锁
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(LOCK_KEY, nodeId, LOCK_TTL);
         
         if (Boolean.FALSE.equals(locked)) {
             log.debug("上一次任务尚未结束或锁未释放，跳过本次拉取");
@@ -97,96 +158,233 @@ public class WecomChatArchiveScheduler {
                 return;
             }
 
+            // 2. 逐条过滤后投递到流水线（按 seq 顺序投递，流水线按业主分片保证同一业主有序）
             List<WecomChatDataItem> chatData = response.getChatdata();
-            int analyzed = 0;
+            List<BatchEntry> entries = new ArrayList<>(chatData.size());
+            int submitted = 0;
             int skipped = 0;
+            int inFlight = 0;
+            boolean rejected = false;
+            Duration inflightTtl = Duration.ofMillis(Math.max(inflightTtlMs, batchTimeoutMs * 2));
             for (WecomChatDataItem item : chatData) {
-                // ... (原有逻辑保持不变)
-                String decrypted = item.getDecryptChatMsg();
-                if (!StringUtils.hasText(decrypted)) {
-                    skipped++;
+                if (rejected) {
+                    // 流水线已满：后续消息不再投递，留待下次从断点重新拉取
+                    entries.add(new BatchEntry(item.getSeq(), null));
                     continue;
                 }
-                GroupMsgDTO msg = wecomChatMessageParser.parse(decrypted);
+                // 已处理过的存档消息（重放、进度回退后重新拉取）直接跳过
+                GroupMsgDTO msg = dedupService.isArchiveMsgProcessed(item.getMsgid()) ? null : filter(item, cutOffTime);
                 if (msg == null) {
                     skipped++;
+                    entries.add(new BatchEntry(item.getSeq(), CompletableFuture.completedFuture(true)));
                     continue;
                 }
 
-                // --- 新增：提前进行白名单过滤（静默跳过无关群） ---
-                if (StringUtils.hasText(allowedGroups)) {
-                    boolean allowed = false;
-                    String[] groups = allowedGroups.split(",");
-                    for (String g : groups) {
-                        if (g.trim().equals(msg.getGroupId())) {
-                            allowed = true;
-                            break;
-                        }
-                    }
-                    if (!allowed) {
-                        // 不在白名单，直接跳过，不打印日志
-                        skipped++;
-                        continue;
-                    }
-                }
-                
-                long rawTs = msg.getTimestamp() != null ? msg.getTimestamp() : 0L;
-                long normalizedTs = normalizeTimestamp(rawTs);
-                if (normalizedTs > 0) {
-                    msg.setTimestamp(normalizedTs);
+                // 上一批次等待超时后仍在流水线中的消息：不重复投递，进度停在它之前
+                String msgId = item.getMsgid();
+                if (!dedupService.tryMarkArchiveMsgInFlight(msgId, inflightTtl)) {
+                    log.debug("存档消息仍在处理中，跳过重复投递: seq={}, msgId={}", item.getSeq(), msgId);
+                    inFlight++;
+                    entries.add(new BatchEntry(item.getSeq(), null));
+                    continue;
                 }
-                // 调试日志：打印每条消息的时间戳
-                log.info("检查消息时间: seq={}, msgTimeRaw={}, msgTime={}, cutOffTime={}, content={}",
-                        item.getSeq(), rawTs, normalizedTs, cutOffTime,
-                        (msg.getContent() != null && msg.getContent().length() > 10) ? msg.getContent().substring(0, 10) + "..." : msg.getContent());
-                
-                // --- 修改：只处理指定时间之后的消息 ---
-                // 如果时间戳为空，或者早于截止时间，跳过
-                if (cutOffTime > 0) {
-                    if (msg.getTimestamp() == null || msg.getTimestamp() < cutOffTime) {
-                        if (msg.getTimestamp() == null) {
-                            log.warn("跳过无时间戳消息: seq={}", item.getSeq());
-                        } else {
-                            log.info("跳过早于截止时间的消息: seq={}, msgTime={}, cutOffTime={}",
-                                    item.getSeq(), msg.getTimestamp(), cutOffTime);
-                        }
-                        skipped++;
-                        continue;
-                    }
+                // 占位前首次处理恰好完成（先标记已处理、再清除占位）：再确认一次，避免重复投递
+                if (dedupService.isArchiveMsgProcessed(msgId)) {
+                    dedupService.clearArchiveMsgInFlight(msgId);
+                    skipped++;
+                    entries.add(new BatchEntry(item.getSeq(), CompletableFuture.completedFuture(true)));
+                    continue;
                 }
 
-                // 图片处理：如果是 sdkfileid，则拉取并上传 OSS
-                if (StringUtils.hasText(msg.getImageUrl())) {
-                    String sdkFileId = extractSdkFileId(msg.getImageUrl());
-                    if (sdkFileId != null) {
-                        ResponseEntity<byte[]> media = wecomChatArchiveService.fetchMedia(sdkFileId);
-                        if (media.getStatusCode().is2xxSuccessful() && media.getBody() != null) {
-                            String contentType = media.getHeaders().getContentType() != null
-                                    ? media.getHeaders().getContentType().toString()
-                                    : "image/jpeg";
-                            String ossUrl = ossStorageService.upload(media.getBody(), contentType);
-                            if (ossUrl != null) {
-                                msg.setImageUrl(ossUrl);
-                            }
-                        }
-                    }
+                String sdkFileId = StringUtils.hasText(msg.getImageUrl()) ? extractSdkFileId(msg.getImageUrl()) : null;
+                String traceId = UUID.randomUUID().toString().replace("-", "");
+                Long itemSeq = item.getSeq();
+                try {
+                    // 先记录结果再完成：等待批次时拿到的就是最终结论
+                    CompletableFuture<Boolean> settled = messagePipeline.submit(msg, traceId, sdkFileId)
+                            .handle((ctx, ex) -> {
+                                try {
+                                    return settle(ctx, itemSeq, msgId);
+                                } finally {
+                                    dedupService.clearArchiveMsgInFlight(msgId);
+                                }
+                            });
+                    entries.add(new BatchEntry(itemSeq, settled));
+                    submitted++;
+                } catch (RejectedExecutionException e) {
+                    log.warn("流水线入口已满，本批次剩余消息留待下次处理: seq={}", item.getSeq());
+                    dedupService.clearArchiveMsgInFlight(msgId);
+                    entries.add(new BatchEntry(item.getSeq(), null));
+                    rejected = true;
                 }
-                // 调用 AgentController 处理消息 (利用其白名单逻辑)
-                agentController.onGroupMessage(msg);
-                analyzed++;
             }
 
-            // 2. 更新 seq 到 Redis
-            if (response.getNext_seq() != null && response.getNext_seq() > seq) {
-                redisTemplate.opsForValue().set(REDIS_SEQ_KEY, String.valueOf(response.getNext_seq()));
-                log.info("企业微信存档进度已更新: oldSeq={}, newSeq={}", seq, response.getNext_seq());
+            // 3. 等待本批次处理完成（期间续期分布式锁）
+            awaitBatch(entries);
+
+            // 4. 只把 seq 推进到连续完成的最高位置
+            long newSeq = computeWatermark(entries, seq, response.getNext_seq());
+            if (newSeq > seq) {
+                redisTemplate.opsForValue().set(REDIS_SEQ_KEY, String.valueOf(newSeq));
+                log.info("企业微信存档进度已更新: oldSeq={}, newSeq={}", seq, newSeq);
             }
             
-            log.info("企业微信存档定时拉取完成: seq={}, nextSeq={}, analyzed={}, skipped={}",
-                    seq, response.getNext_seq(), analyzed, skipped);
+            log.info("企业微信存档定时拉取完成: seq={}, nextSeq={}, committedSeq={}, submitted={}, skipped={}, inFlight={}",
+                    seq, response.getNext_seq(), newSeq, submitted, skipped, inFlight);
         } finally {
-            // 释放锁
-            redisTemplate.delete(lockKey);
+            // 只释放本节点持有的锁（批次处理超时后锁可能已被其他节点取得）
+            try {
+                redisTemplate.execute(COMPARE_AND_DELETE_SCRIPT, Collections.singletonList(LOCK_KEY), nodeId);
+            } catch (Exception e) {
+                log.warn("释放存档拉取锁异常，等待锁过期: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 记录单条消息的处理结果
+     * @return true 表示已了结（成功、或失败次数达到上限后死信），进度可以越过；false 表示下次拉取时重试
+     */
+    private boolean settle(PipelineContext ctx, Long seq, String msgId) {
+        if (ctx != null && ctx.getStatus() != PipelineStatus.ERROR) {
+            dedupService.markArchiveMsgProcessed(msgId);
+            return true;
+        }
+        String error = ctx != null ? ctx.getMessage() : "流水线未返回上下文";
+        long failures = dedupService.incrementArchiveMsgFailures(msgId);
+        if (failures >= maxAttempts) {
+            log.error("存档消息多次处理失败，已越过（死信）: seq={}, msgId={}, failures={}, content={}, error={}",
+                    seq, msgId, failures, ctx != null && ctx.getMsg() != null ? ctx.getMsg().getContent() : null, error);
+            dedupService.markArchiveMsgProcessed(msgId);
+            return true;
+        }
+        log.warn("存档消息处理失败，进度停在该消息之前，下次拉取时重试: seq={}, msgId={}, failures={}, error={}",
+                seq, msgId, failures, error);
+        return false;
+    }
+
+    /**
+     * 解析并过滤单条存档消息，返回 null 表示跳过
+     */
+    private GroupMsgDTO filter(WecomChatDataItem item, long cutOffTime) {
+        String decrypted = item.getDecryptChatMsg();
+        if (!StringUtils.hasText(decrypted)) {
+            return null;
+        }
+        GroupMsgDTO msg = wecomChatMessageParser.parse(decrypted);
+        if (msg == null) {
+            return null;
+        }
+
+        // 提前进行白名单过滤（静默跳过无关群）
+        if (StringUtils.hasText(allowedGroups)) {
+            boolean allowed = false;
+            String[] groups = allowedGroups.split(",");
+            for (String g : groups) {
+                if (g.trim().equals(msg.getGroupId())) {
+                    allowed = true;
+                    break;
+                }
+            }
+            if (!allowed) {
+                // 不在白名单，直接跳过，不打印日志
+                return null;
+            }
+        }
+
+        long rawTs = msg.getTimestamp() != null ? msg.getTimestamp() : 0L;
+        long normalizedTs = normalizeTimestamp(rawTs);
+        if (normalizedTs > 0) {
+            msg.setTimestamp(normalizedTs);
+        }
+        // 调试日志：打印每条消息的时间戳
+        log.info("检查消息时间: seq={}, msgTimeRaw={}, msgTime={}, cutOffTime={}, content={}",
+                item.getSeq(), rawTs, normalizedTs, cutOffTime,
+                (msg.getContent() != null && msg.getContent().length() > 10) ? msg.getContent().substring(0, 10) + "..." : msg.getContent());
+
+        // 只处理指定时间之后的消息：如果时间戳为空，或者早于截止时间，跳过
+        if (cutOffTime > 0) {
+            if (msg.getTimestamp() == null || msg.getTimestamp() < cutOffTime) {
+                if (msg.getTimestamp() == null) {
+                    log.warn("跳过无时间戳消息: seq={}", item.getSeq());
+                } else {
+                    log.info("跳过早于截止时间的消息: seq={}, msgTime={}, cutOffTime={}",
+                            item.getSeq(), msg.getTimestamp(), cutOffTime);
+                }
+                return null;
+            }
+        }
+        return msg;
+    }
+
+    /**
+     * 等待批次内所有消息处理完成，超过 batchTimeoutMs 后放弃等待
+     */
+    private void awaitBatch(List<BatchEntry> entries) {
+        CompletableFuture<?>[] futures = entries.stream()
+                .filter(e -> e.settled != null)
+                .map(e -> e.settled)
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture<Void> all = CompletableFuture.allOf(futures);
+        long deadline = System.currentTimeMillis() + batchTimeoutMs;
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                log.warn("本批次未在{}ms内全部处理完成，按已完成部分提交进度（未完成消息保留处理中占位）", batchTimeoutMs);
+                return;
+            }
+            try {
+                all.get(Math.min(remaining, LOCK_RENEW_INTERVAL_MS), TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // 批次仍在处理，续期锁，防止其他节点重复拉取同一批
+                renewLock();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // 流水线以上下文完成，不会异常结束；这里仅防御
+                log.warn("等待批次完成异常: {}", e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void renewLock() {
+        try {
+            Long renewed = redisTemplate.execute(COMPARE_AND_RENEW_SCRIPT, Collections.singletonList(LOCK_KEY),
+                    nodeId, String.valueOf(LOCK_TTL.toMillis()));
+            if (renewed == null || renewed == 0) {
+                log.warn("存档拉取锁已过期或被其他节点持有，续期失败");
+            }
+        } catch (Exception e) {
+            log.warn("续期存档拉取锁异常: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 计算可提交的 seq：从头开始找第一条未了结的消息（未投递、处理中、失败待重试），
+     * 进度停在它之前（拉取接口返回大于 seq 的消息）；全部了结则使用 nextSeq
+     */
+    static long computeWatermark(List<BatchEntry> entries, long currentSeq, Long nextSeq) {
+        for (BatchEntry entry : entries) {
+            if (entry.settled == null || !entry.settled.isDone() || !Boolean.TRUE.equals(entry.settled.getNow(false))) {
+                return entry.seq != null ? Math.max(currentSeq, entry.seq - 1) : currentSeq;
+            }
+        }
+        return nextSeq != null ? nextSeq : currentSeq;
+    }
+
+    /**
+     * 批次内单条消息的处理状态（settled 为 null 表示未投递；完成值 true 表示已了结，false 表示需要重试）
+     */
+    static class BatchEntry {
+        private final Long seq;
+        private final CompletableFuture<Boolean> settled;
+
+        BatchEntry(Long seq, CompletableFuture<Boolean> settled) {
+            this.seq = seq;
+            this.settled = settled;
         }
     }
 
@@ -204,7 +402,10 @@ public class WecomChatArchiveScheduler {
         return null;
     }
 
-    private long normalizeTimestamp(long ts) {
+    /**
+     * 消息时间戳统一为毫秒（存档消息可能是秒、毫秒或微秒）
+     */
+    static long normalizeTimestamp(long ts) {
         if (ts <= 0) {
             return ts;
         }
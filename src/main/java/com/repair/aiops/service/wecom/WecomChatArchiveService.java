@@ -6,6 +6,9 @@ import com.alibaba.fastjson.JSONObject;
 import com.repair.aiops.model.dto.wecom.WecomChatDataItem;
 import com.repair.aiops.model.dto.wecom.WecomChatDataResponse;
 import com.tencent.wework.Finance;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
@@ -14,13 +17,18 @@ import org.springframework.util.StreamUtils;
 import org.springframework.util.StringUtils;
 
 import javax.crypto.Cipher;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.KeyFactory;
 import java.security.PrivateKey;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Service
@@ -39,9 +47,68 @@ public class WecomChatArchiveService {
     // @Value("${wecom.chat.archive.private-key:}")
     // private String privateKeyPem;
 
-    private long sdk = 0;
+    // 单个媒体文件大小上限（字节），超过即中止下载
+    @Value("${wecom.chat.archive.media.max-bytes:20971520}")
+    private long mediaMaxBytes;
+
+    // 单次 GetMediaData 调用超时（秒）
+    @Value("${wecom.chat.archive.media.chunk-timeout-seconds:10}")
+    private long mediaChunkTimeoutSeconds;
+
+    // 单个分片失败后的重试次数
+    @Value("${wecom.chat.archive.media.chunk-retries:2}")
+    private int mediaChunkRetries;
+
+    // 等待下载许可的最长时间（毫秒）
+    @Value("${wecom.chat.archive.media.acquire-timeout-ms:5000}")
+    private long mediaAcquireTimeoutMs;
+
+    private final WecomMediaSdk mediaSdk;
+    private final MeterRegistry meterRegistry;
+    // 限制同时进行的本地媒体下载数，避免大量图片同时占满本地库线程和带宽
+    private final Semaphore mediaPermits;
+
+    private volatile long sdk = 0;
     private PrivateKey rsaPrivateKey;
 
+    public WecomChatArchiveService(WecomMediaSdk mediaSdk, MeterRegistry meterRegistry,
+                                   @Value("${wecom.chat.archive.media.max-concurrency:4}") int mediaMaxConcurrency) {
+        this.mediaSdk = mediaSdk;
+        this.meterRegistry = meterRegistry;
+        this.mediaPermits = new Semaphore(Math.max(1, mediaMaxConcurrency));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 初始化 SDK（只初始化一次，拉取消息和下载媒体共用同一个句柄）
+     */
+    private synchronized boolean ensureSdk() {
+        if (sdk != 0) {
+            return true;
+        }
+        try {
+            long handle = Finance.NewSdk();
+            int ret = Finance.Init(handle, corpId, corpSecret);
+            if (ret != 0) {
+                log.error("初始化企业微信SDK失败: ret={}", ret);
+                Finance.DestroySdk(handle);
+                return false;
+            }
+            sdk = handle;
+            log.info("企业微信SDK初始化成功");
+            return true;
+        } catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
+            log.error("无法加载企业微信SDK库文件，请确保已下载并配置好 .dll 或 .so 文件: {}", e.getMessage());
+            return false;
+        } catch (Exception e) {
+            log.error("初始化企业微信SDK异常: {}", e.getMessage(), e);
+            return false;
+        }
+    }
+
     public WecomChatDataResponse fetchChatData(Long seq, Integer limit) {
         if (!enabled) {
             log.warn("企业微信会话存档未启用，跳过拉取");
@@ -53,24 +120,8 @@ public class WecomChatArchiveService {
         }
 
         // 初始化SDK
-        if (sdk == 0) {
-            try {
-                sdk = Finance.NewSdk();
-                int ret = Finance.Init(sdk, corpId, corpSecret);
-                if (ret != 0) {
-                    log.error("初始化企业微信SDK失败: ret={}", ret);
-                    Finance.DestroySdk(sdk);
-                    sdk = 0;
-                    return null;
-                }
-                log.info("企业微信SDK初始化成功");
-            } catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
-                log.error("无法加载企业微信SDK库文件，请确保已下载并配置好 .dll 或 .so 文件: {}", e.getMessage());
-                return null;
-            } catch (Exception e) {
-                log.error("初始化企业微信SDK异常: {}", e.getMessage(), e);
-                return null;
-            }
+        if (!ensureSdk()) {
+            return null;
         }
 
         // 初始化私钥
@@ -203,13 +254,157 @@ public class WecomChatArchiveService {
         }
     }
 
-    public org.springframework.http.ResponseEntity<byte[]> fetchMedia(String sdkFileId) {
-        if (!enabled) {
-            return org.springframework.http.ResponseEntity.status(503).build();
+    /**
+     * 通过 sdkfileid 下载媒体文件
+     * 按 GetMediaData 的分片协议循环拉取（indexbuf 从空串开始，直到 IsMediaDataFinish），
+     * 每个分片直接追加写入临时文件，不在内存中拼接整个文件
+     *
+     * 指标：aiops.wecom.media.download.latency{outcome}、aiops.wecom.media.download.bytes、
+     * aiops.wecom.media.chunk.latency
+     *
+     * @return 下载成功返回媒体文件（调用方负责 close 删除临时文件）；失败返回 null
+     */
+    public WecomMediaFile downloadMedia(String sdkFileId) {
+        if (!enabled || !StringUtils.hasText(sdkFileId)) {
+            return null;
+        }
+        if (!StringUtils.hasText(corpId) || !StringUtils.hasText(corpSecret) || !ensureSdk()) {
+            return null;
+        }
+
+        String traceId = org.slf4j.MDC.get("traceId");
+        long start = System.nanoTime();
+        String outcome = "error";
+        boolean acquired = false;
+        Path temp = null;
+        try {
+            acquired = mediaPermits.tryAcquire(mediaAcquireTimeoutMs, TimeUnit.MILLISECONDS);
+            if (!acquired) {
+                outcome = "busy";
+                log.warn("[traceId={}] [媒体下载] 并发下载数已满，放弃: sdkFileId={}", traceId, sdkFileId);
+                return null;
+            }
+
+            temp = Files.createTempFile("wecom-media-", ".tmp");
+            long total = 0;
+            int chunks = 0;
+            byte[] head = null;
+            String indexBuf = "";
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                while (true) {
+                    WecomMediaSdk.MediaChunk chunk = readChunkWithRetry(sdkFileId, indexBuf);
+                    if (chunk.getRet() != 0) {
+                        log.error("[traceId={}] [媒体下载] GetMediaData返回错误: ret={}, sdkFileId={}, chunks={}",
+                                traceId, chunk.getRet(), sdkFileId, chunks);
+                        return null;
+                    }
+                    byte[] data = chunk.getData();
+                    if (data != null && data.length > 0) {
+                        total += data.length;
+                        if (total > mediaMaxBytes) {
+                            outcome = "too_large";
+                            log.warn("[traceId={}] [媒体下载] 文件超过大小上限，已中止: sdkFileId={}, limit={}",
+                                    traceId, sdkFileId, mediaMaxBytes);
+                            return null;
+                        }
+                        if (head == null) {
+                            head = data;
+                        }
+                        out.write(data);
+                    }
+                    chunks++;
+                    if (chunk.isFinished()) {
+                        break;
+                    }
+                    if (!StringUtils.hasText(chunk.getOutIndexBuf())) {
+                        log.error("[traceId={}] [媒体下载] 分片未结束但未返回索引: sdkFileId={}, chunks={}",
+                                traceId, sdkFileId, chunks);
+                        return null;
+                    }
+                    indexBuf = chunk.getOutIndexBuf();
+                }
+            }
+            if (total == 0) {
+                log.warn("[traceId={}] [媒体下载] 文件为空: sdkFileId={}", traceId, sdkFileId);
+                return null;
+            }
+
+            outcome = "success";
+            DistributionSummary.builder("aiops.wecom.media.download.bytes")
+                    .description("会话存档媒体下载字节数")
+                    .baseUnit("bytes")
+                    .register(meterRegistry)
+                    .record(total);
+            log.info("[traceId={}] [媒体下载] 下载完成: sdkFileId={}, bytes={}, chunks={}, duration={}ms",
+                    traceId, sdkFileId, total, chunks, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            WecomMediaFile file = new WecomMediaFile(temp, total, detectContentType(head));
+            temp = null;
+            return file;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            log.error("[traceId={}] [媒体下载] 下载异常: sdkFileId={}, error={}", traceId, sdkFileId, e.getMessage(), e);
+            return null;
+        } finally {
+            if (acquired) {
+                mediaPermits.release();
+            }
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (Exception ignore) {
+                    // 临时目录会定期清理
+                }
+            }
+            Timer.builder("aiops.wecom.media.download.latency")
+                    .description("会话存档媒体下载耗时")
+                    .tag("outcome", outcome)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 读取单个分片，失败时按原索引重试（SDK 的分片读取是幂等的）
+     */
+    private WecomMediaSdk.MediaChunk readChunkWithRetry(String sdkFileId, String indexBuf) {
+        Timer chunkTimer = Timer.builder("aiops.wecom.media.chunk.latency")
+                .description("GetMediaData 单个分片耗时")
+                .register(meterRegistry);
+        WecomMediaSdk.MediaChunk chunk = null;
+        for (int attempt = 0; attempt <= mediaChunkRetries; attempt++) {
+            long start = System.nanoTime();
+            chunk = mediaSdk.readChunk(sdk, sdkFileId, indexBuf, mediaChunkTimeoutSeconds);
+            chunkTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (chunk.getRet() == 0) {
+                return chunk;
+            }
+            log.warn("[媒体下载] 分片读取失败: ret={}, sdkFileId={}, attempt={}", chunk.getRet(), sdkFileId, attempt + 1);
+        }
+        return chunk;
+    }
+
+    /**
+     * 根据文件头判断图片类型，SDK 不返回内容类型
+     */
+    private static String detectContentType(byte[] head) {
+        if (head == null || head.length < 4) {
+            return "application/octet-stream";
+        }
+        if ((head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xD8) {
+            return "image/jpeg";
+        }
+        if ((head[0] & 0xFF) == 0x89 && head[1] == 'P' && head[2] == 'N' && head[3] == 'G') {
+            return "image/png";
+        }
+        if (head[0] == 'G' && head[1] == 'I' && head[2] == 'F') {
+            return "image/gif";
+        }
+        if (head.length >= 12 && head[0] == 'R' && head[1] == 'I' && head[2] == 'F' && head[3] == 'F'
+                && head[8] == 'W' && head[9] == 'E' && head[10] == 'B' && head[11] == 'P') {
+            return "image/webp";
         }
-        // 媒体文件下载也需要通过SDK的 GetMediaData 接口，这里暂时保留空实现或抛出异常
-        // 因为GetMediaData比较复杂，需要处理分片下载和回调
-        log.warn("暂未实现通过SDK下载媒体文件功能");
-        return org.springframework.http.ResponseEntity.status(501).build();
+        return "application/octet-stream";
     }
 }
@@ -0,0 +1,35 @@
+package com.repair.aiops.service.wecom;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 已下载到本地临时文件的会话存档媒体
+ * 使用方用完后调用 close() 删除临时文件（建议 try-with-resources）
+ */
+@Slf4j
+@Getter
+public class WecomMediaFile implements AutoCloseable {
+    private final Path path;
+    private final long size;
+    private final String contentType;
+
+    public WecomMediaFile(Path path, long size, String contentType) {
+        this.path = path;
+        this.size = size;
+        this.contentType = contentType;
+    }
+
+    @Override
+    public void close() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("删除媒体临时文件失败: path={}, error={}", path, e.getMessage());
+        }
+    }
+}
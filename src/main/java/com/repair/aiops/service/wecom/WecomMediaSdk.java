@@ -0,0 +1,39 @@
+package com.repair.aiops.service.wecom;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 会话存档媒体分片读取接口
+ * 默认实现（FinanceMediaSdk）调用 Finance 本地方法；下载逻辑只依赖该接口，可替换为不依赖本地库的实现
+ */
+public interface WecomMediaSdk {
+
+    /**
+     * 读取一个分片
+     * @param sdk            已初始化的 SDK 句柄
+     * @param sdkFileId      媒体文件 sdkfileid
+     * @param indexBuf       分片索引，首次传空字符串，之后传上一次返回的 outIndexBuf
+     * @param timeoutSeconds 单次调用超时（秒）
+     */
+    MediaChunk readChunk(long sdk, String sdkFileId, String indexBuf, long timeoutSeconds);
+
+    /**
+     * 单个分片的读取结果
+     */
+    @Getter
+    @AllArgsConstructor
+    class MediaChunk {
+        /**
+         * SDK 返回码，0 表示成功
+         */
+        private final int ret;
+        private final byte[] data;
+        private final String outIndexBuf;
+        private final boolean finished;
+
+        public static MediaChunk failed(int ret) {
+            return new MediaChunk(ret, null, null, false);
+        }
+    }
+}
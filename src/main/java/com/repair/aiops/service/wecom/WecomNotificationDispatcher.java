@@ -0,0 +1,286 @@
+package com.repair.aiops.service.wecom;
+
+import com.repair.aiops.model.dto.wecom.WecomNotice;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * 企业微信通知分发器
+ *
+ * 一条通知按已启用的渠道（应用消息、群机器人 Webhook、客户群）拆成独立任务并行投递，
+ * 各渠道单独重试（指数退避，由调度线程延迟重投，不占用发送线程），互不影响。
+ * 客户群消息（add_msg_template）不是幂等接口，只在企业微信明确返回可重试的错误码时重试，
+ * 超时、网络异常等无法确认是否已发出的失败不重试，避免居民收到重复消息。
+ * 调用方只负责投递：发送队列满时最多等待 aiops.notify.enqueue-timeout-ms，仍满则放弃该通知，
+ * 发送任务不会在调用方线程（流水线、模型调用、重试调度线程）上执行。
+ *
+ * 指标：
+ * - aiops.notify.latency{channel, outcome}：单次发送耗时
+ * - aiops.notify.retries{channel}：重试次数
+ * - aiops.notify.failures{channel}：重试耗尽后仍失败的通知数
+ * - aiops.notify.rejected{channel}：发送队列已满被放弃的通知数
+ */
+@Slf4j
+@Component
+public class WecomNotificationDispatcher {
+
+    /**
+     * 通知渠道
+     */
+    enum Channel {
+        APP("app"),
+        WEBHOOK("webhook"),
+        CUSTOMER_GROUP("customer_group");
+
+        private final String tag;
+
+        Channel(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private final WecomRobotService wecomRobotService;
+    private final MeterRegistry meterRegistry;
+
+    private final ThreadPoolExecutor sendExecutor;
+    private final ScheduledThreadPoolExecutor retryScheduler;
+
+    @Value("${aiops.notify.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${aiops.notify.backoff-ms:1000}")
+    private long backoffMs;
+
+    // 发送队列满时调用方最多等待的时间（毫秒）
+    @Value("${aiops.notify.enqueue-timeout-ms:200}")
+    private long enqueueTimeoutMs;
+
+    public WecomNotificationDispatcher(WecomRobotService wecomRobotService,
+                                       MeterRegistry meterRegistry,
+                                       @Value("${aiops.notify.threads:4}") int threads,
+                                       @Value("${aiops.notify.queue-capacity:1000}") int queueCapacity) {
+        this.wecomRobotService = wecomRobotService;
+        this.meterRegistry = meterRegistry;
+        // 队列满时拒绝，由各调用点决定等待、放弃或稍后重投，不在调用方线程上发送
+        this.sendExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new NamedThreadFactory("notify-send-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        // 核心线程预先启动，等待入队时直接放入队列也能被处理
+        this.sendExecutor.prestartAllCoreThreads();
+        this.retryScheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("notify-retry-"));
+    }
+
+    /**
+     * 投递通知：为每个已启用的渠道提交一个发送任务后立即返回
+     */
+    public void dispatch(WecomNotice notice) {
+        if (notice == null) {
+            return;
+        }
+        if (wecomRobotService.isAppChannelEnabled()) {
+            submit(Channel.APP, notice, 1);
+        }
+        if (wecomRobotService.isWebhookChannelEnabled()) {
+            submit(Channel.WEBHOOK, notice, 1);
+        }
+        if (wecomRobotService.isCustomerGroupChannelEnabled(notice.getGroupId())) {
+            submit(Channel.CUSTOMER_GROUP, notice, 1);
+        }
+    }
+
+    /**
+     * 通知内容尚未生成时（模型仍在输出回复）提前解析群名、昵称，缩短随后渲染通知的耗时
+     * 只是优化：队列已满时直接跳过，不等待（调用方是持有模型并发许可的模型调用线程）
+     */
+    public void prepare(String traceId, String groupId, String senderId) {
+        try {
+            sendExecutor.execute(() -> {
+                try {
+                    wecomRobotService.warmNoticeNames(groupId, senderId);
+                } catch (Exception e) {
+                    log.warn("[traceId={}] [通知] 预解析群名/昵称失败: {}", traceId, e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("[traceId={}] [通知] 发送队列已满或分发器已关闭，跳过预解析", traceId);
+        }
+    }
+
+    /**
+     * 首次投递：队列满时最多等待 enqueueTimeoutMs，仍满则放弃
+     */
+    private void submit(Channel channel, WecomNotice notice, int attempt) {
+        if (enqueue(() -> send(channel, notice, attempt), enqueueTimeoutMs)) {
+            return;
+        }
+        if (sendExecutor.isShutdown()) {
+            log.warn("[traceId={}] [通知] 分发器已关闭，放弃发送: channel={}", notice.getTraceId(), channel.tag);
+            return;
+        }
+        Counter.builder("aiops.notify.rejected")
+                .description("发送队列已满被放弃的通知数")
+                .tag("channel", channel.tag)
+                .register(meterRegistry)
+                .increment();
+        log.error("[traceId={}] [通知] 发送队列已满，放弃发送: type={}, channel={}",
+                notice.getTraceId(), notice.getType(), channel.tag);
+    }
+
+    /**
+     * 重试投递（在重试调度线程上调用）：不等待，队列满时交回调度线程稍后再投，发送始终在发送线程上执行
+     */
+    private void resubmit(Channel channel, WecomNotice notice, int attempt) {
+        if (enqueue(() -> send(channel, notice, attempt), 0)) {
+            return;
+        }
+        if (sendExecutor.isShutdown()) {
+            log.warn("[traceId={}] [通知] 分发器已关闭，放弃重试: channel={}", notice.getTraceId(), channel.tag);
+            return;
+        }
+        log.debug("[traceId={}] [通知] 发送队列已满，{}ms 后再投递重试: channel={}", notice.getTraceId(), backoffMs, channel.tag);
+        scheduleRetry(channel, notice, attempt, backoffMs);
+    }
+
+    /**
+     * 提交发送任务，队列满时最多等待 waitMs 毫秒
+     * @return 是否已提交
+     */
+    private boolean enqueue(Runnable task, long waitMs) {
+        try {
+            sendExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (waitMs <= 0 || sendExecutor.isShutdown()) {
+                return false;
+            }
+        }
+        try {
+            return sendExecutor.getQueue().offer(task, waitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void scheduleRetry(Channel channel, WecomNotice notice, int attempt, long delay) {
+        try {
+            retryScheduler.schedule(() -> resubmit(channel, notice, attempt), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("[traceId={}] [通知] 分发器已关闭，放弃重试: channel={}", notice.getTraceId(), channel.tag);
+        }
+    }
+
+    private void send(Channel channel, WecomNotice notice, int attempt) {
+        long start = System.nanoTime();
+        WecomRobotService.SendResult result;
+        try {
+            result = sender(channel).apply(notice);
+        } catch (Exception e) {
+            log.warn("[traceId={}] [通知] 发送异常: channel={}, attempt={}, error={}",
+                    notice.getTraceId(), channel.tag, attempt, e.getMessage());
+            result = channel == Channel.CUSTOMER_GROUP
+                    ? WecomRobotService.SendResult.FAILED : WecomRobotService.SendResult.RETRYABLE;
+        }
+        boolean ok = result == WecomRobotService.SendResult.SENT;
+        Timer.builder("aiops.notify.latency")
+                .description("通知单次发送耗时")
+                .tag("channel", channel.tag)
+                .tag("outcome", ok ? "success" : "failure")
+                .register(meterRegistry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+        if (ok) {
+            log.info("[traceId={}] [通知] 发送成功: type={}, channel={}, attempt={}",
+                    notice.getTraceId(), notice.getType(), channel.tag, attempt);
+            return;
+        }
+        if (attempt >= maxAttempts || result == WecomRobotService.SendResult.FAILED) {
+            Counter.builder("aiops.notify.failures")
+                    .description("重试耗尽后仍失败的通知数")
+                    .tag("channel", channel.tag)
+                    .register(meterRegistry)
+                    .increment();
+            log.error("[traceId={}] [通知] 发送失败，已放弃: type={}, channel={}, attempts={}",
+                    notice.getTraceId(), notice.getType(), channel.tag, attempt);
+            return;
+        }
+
+        long delay = backoffMs << (attempt - 1);
+        Counter.builder("aiops.notify.retries")
+                .description("通知重试次数")
+                .tag("channel", channel.tag)
+                .register(meterRegistry)
+                .increment();
+        log.warn("[traceId={}] [通知] 发送失败，{}ms 后重试: channel={}, attempt={}",
+                notice.getTraceId(), delay, channel.tag, attempt);
+        scheduleRetry(channel, notice, attempt + 1, delay);
+    }
+
+    /**
+     * 应用消息、群机器人失败时均可重试（重复投递只影响管家，不影响居民）
+     */
+    private Function<WecomNotice, WecomRobotService.SendResult> sender(Channel channel) {
+        switch (channel) {
+            case APP:
+                return n -> retryable(wecomRobotService.sendAppMessage(n.getContent()));
+            case WEBHOOK:
+                return n -> retryable(wecomRobotService.sendWebhookMessage(n.getContent()));
+            case CUSTOMER_GROUP:
+            default:
+                return n -> wecomRobotService.sendCustomerGroupMessage(n.getTraceId(), n.getGroupId(),
+                        n.getCustomerGroupContent());
+        }
+    }
+
+    private static WecomRobotService.SendResult retryable(boolean ok) {
+        return ok ? WecomRobotService.SendResult.SENT : WecomRobotService.SendResult.RETRYABLE;
+    }
+
+    /**
+     * 停止重试调度并尽量发完已排队的通知
+     */
+    @PreDestroy
+    public void shutdown() {
+        retryScheduler.shutdownNow();
+        sendExecutor.shutdown();
+        try {
+            if (!sendExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("[通知] 分发器未能在超时时间内发完: remaining={}", sendExecutor.getQueue().size());
+                sendExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendExecutor.shutdownNow();
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger(1);
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -2,8 +2,11 @@ package com.repair.aiops.service.wecom;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.repair.aiops.config.HttpClientConfig;
+import com.repair.aiops.model.dto.wecom.WecomNotice;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.env.Environment;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -25,9 +28,11 @@ import java.util.concurrent.TimeUnit;
 @Service
 public class WecomRobotService {
     private final RestTemplate restTemplate;
+    private final RestTemplate webhookRestTemplate;
     private final ObjectMapper objectMapper;
     private final Environment environment;
     private final StringRedisTemplate redisTemplate;
+    private final WecomAccessTokenManager tokenManager;
 
     @Value("${wecom.bot.enabled:false}")
     private boolean webhookEnabled;
@@ -62,15 +67,23 @@ public class WecomRobotService {
     private String customerGroupSender;
 
     @Autowired
-    public WecomRobotService(RestTemplate restTemplate, ObjectMapper objectMapper, Environment environment, StringRedisTemplate redisTemplate) {
+    public WecomRobotService(@Qualifier(HttpClientConfig.WECOM) RestTemplate restTemplate,
+                             @Qualifier(HttpClientConfig.WEBHOOK) RestTemplate webhookRestTemplate,
+                             ObjectMapper objectMapper, Environment environment,
+                             StringRedisTemplate redisTemplate, WecomAccessTokenManager tokenManager) {
         this.restTemplate = restTemplate;
+        this.webhookRestTemplate = webhookRestTemplate;
         this.objectMapper = objectMapper;
         this.environment = environment;
         this.redisTemplate = redisTemplate;
+        this.tokenManager = tokenManager;
     }
 
-    public void sendMissingInfoNotice(String traceId, String groupId, String senderId,
-                                      String missingInfo, String suggestedReply) {
+    /**
+     * 渲染信息不全通知（解析群名、昵称），由 {@link WecomNotificationDispatcher} 投递
+     */
+    public WecomNotice buildMissingInfoNotice(String traceId, String groupId, String senderId,
+                                              String missingInfo, String suggestedReply) {
         // 尝试解析名称
         String groupName = resolveGroupName(groupId);
         String senderName = resolveUserName(senderId);
@@ -111,24 +124,17 @@ public class WecomRobotService {
             content.append("TraceId: ").append(traceId);
         }
 
-        // 1. 尝试发送应用消息 (私聊)
-        if (appEnabled && StringUtils.hasText(agentId) && StringUtils.hasText(appSecret)) {
-            sendAppMessage(content.toString());
-        }
-
-        // 2. 尝试发送 Webhook 消息 (群聊，仅限内部群)
-        if (webhookEnabled && StringUtils.hasText(webhookUrl)) {
-            sendWebhookMessage(content.toString());
-        }
+        // 客户群（外部群）消息：优先使用AI建议回复，其次回退到通知文本，并带上“@姓名”提示
+        String reply = StringUtils.hasText(suggestedReply) ? suggestedReply : content.toString();
+        String mentionName = StringUtils.hasText(senderName) ? senderName : senderId;
 
-        // 3. 客户群（外部群）消息：直接发到对应群
-        if (customerGroupEnabled && StringUtils.hasText(groupId)) {
-            // 优先使用AI建议回复，其次回退到通知文本，并带上“@姓名”提示
-            String reply = StringUtils.hasText(suggestedReply) ? suggestedReply : content.toString();
-            String mentionName = StringUtils.hasText(senderName) ? senderName : senderId;
-            String customerReply = buildCustomerGroupMention(mentionName, reply);
-            sendCustomerGroupMessage(traceId, groupId, customerReply);
-        }
+        return WecomNotice.builder()
+                .traceId(traceId)
+                .type("missing_info")
+                .groupId(groupId)
+                .content(content.toString())
+                .customerGroupContent(buildCustomerGroupMention(mentionName, reply))
+                .build();
     }
 
     /**
@@ -145,11 +151,19 @@ public class WecomRobotService {
     }
 
     /**
-     * 发送工单处理结果通知
+     * 预先解析群名和发送者昵称（写入 Redis 缓存），随后渲染通知时直接命中缓存
+     */
+    public void warmNoticeNames(String groupId, String senderId) {
+        resolveGroupName(groupId);
+        resolveUserName(senderId);
+    }
+
+    /**
+     * 渲染工单处理结果通知，由 {@link WecomNotificationDispatcher} 投递
      * @param originalContent 原始报修内容（新增参数）
      */
-    public void sendOrderResultNotice(String traceId, String groupId, String senderId,
-                                      boolean success, String message, Object orderData, String originalContent) {
+    public WecomNotice buildOrderResultNotice(String traceId, String groupId, String senderId,
+                                              boolean success, String message, Object orderData, String originalContent) {
         // 尝试解析名称（失败则回退到ID）
         String groupName = resolveGroupName(groupId);
         String senderName = resolveUserName(senderId);
@@ -200,22 +214,45 @@ public class WecomRobotService {
             content.append("TraceId: ").append(traceId);
         }
 
-        if (appEnabled) {
-            sendAppMessage(content.toString());
-        }
-        if (webhookEnabled) {
-            sendWebhookMessage(content.toString());
-        }
-        if (customerGroupEnabled && StringUtils.hasText(groupId)) {
-            // 对客户群只发送简短结果，避免过多内部字段，并带上“@姓名”提示
-            String brief = success ? "工单已提交成功，我们已安排人员处理。" : "工单提交失败，请稍后重试或联系管理员。";
-            String mentionName = StringUtils.hasText(senderName) ? senderName : senderId;
-            String customerReply = buildCustomerGroupMention(mentionName, brief);
-            sendCustomerGroupMessage(traceId, groupId, customerReply);
-        }
+        // 对客户群只发送简短结果，避免过多内部字段，并带上“@姓名”提示
+        String brief = success ? "工单已提交成功，我们已安排人员处理。" : "工单提交失败，请稍后重试或联系管理员。";
+        String mentionName = StringUtils.hasText(senderName) ? senderName : senderId;
+
+        return WecomNotice.builder()
+                .traceId(traceId)
+                .type("order_result")
+                .groupId(groupId)
+                .content(content.toString())
+                .customerGroupContent(buildCustomerGroupMention(mentionName, brief))
+                .build();
+    }
+
+    /**
+     * 应用消息渠道是否可用
+     */
+    public boolean isAppChannelEnabled() {
+        return appEnabled && StringUtils.hasText(agentId) && StringUtils.hasText(appSecret);
+    }
+
+    /**
+     * 群机器人 Webhook 渠道是否可用
+     */
+    public boolean isWebhookChannelEnabled() {
+        return webhookEnabled && StringUtils.hasText(webhookUrl);
     }
 
-    private void sendWebhookMessage(String content) {
+    /**
+     * 客户群渠道是否可用
+     */
+    public boolean isCustomerGroupChannelEnabled(String groupId) {
+        return customerGroupEnabled && StringUtils.hasText(groupId);
+    }
+
+    /**
+     * 发送群机器人 Webhook 消息
+     * @return 是否发送成功（失败由分发器重试）
+     */
+    public boolean sendWebhookMessage(String content) {
         Map<String, Object> payload = new HashMap<>();
         payload.put("msgtype", "text");
         payload.put("text", Map.of("content", content));
@@ -225,25 +262,30 @@ public class WecomRobotService {
         HttpEntity<Map<String, Object>> entity = new HttpEntity<>(payload, headers);
 
         try {
-            restTemplate.postForEntity(webhookUrl, entity, String.class);
-            log.info("Webhook消息发送成功");
+            ResponseEntity<byte[]> response = webhookRestTemplate.postForEntity(webhookUrl, entity, byte[].class);
+            String responseBody = decode(response);
+            if (isOk(responseBody)) {
+                log.info("Webhook消息发送成功");
+                return true;
+            }
+            log.warn("Webhook消息发送失败: {}", responseBody);
         } catch (RestClientException e) {
             log.warn("Webhook消息发送失败: {}", e.getMessage());
         }
+        return false;
     }
 
-    private void sendAppMessage(String content) {
+    /**
+     * 发送应用消息（私聊通知接收人）
+     * @return 是否发送成功；未配置接收人视为无需发送，返回 true
+     */
+    public boolean sendAppMessage(String content) {
         if (!StringUtils.hasText(notifyUser)) {
             log.warn("未配置通知接收人(notify-user)，无法发送应用消息");
-            return;
+            return true;
         }
 
         try {
-            String token = getAccessToken();
-            if (token == null) return;
-
-            String url = "https://qyapi.weixin.qq.com/cgi-bin/message/send?access_token=" + token;
-
             Map<String, Object> payload = new HashMap<>();
             payload.put("touser", notifyUser);
             payload.put("msgtype", "text");
@@ -254,26 +296,45 @@ public class WecomRobotService {
             headers.setContentType(MediaType.APPLICATION_JSON);
             HttpEntity<Map<String, Object>> entity = new HttpEntity<>(payload, headers);
 
-            ResponseEntity<String> response = restTemplate.postForEntity(url, entity, String.class);
-            log.info("应用消息发送结果: {}", response.getBody());
+            String responseBody = callWithToken(token -> restTemplate.postForEntity(
+                    "https://qyapi.weixin.qq.com/cgi-bin/message/send?access_token=" + token, entity, byte[].class));
+            if (responseBody == null) return false;
+            log.info("应用消息发送结果: {}", responseBody);
+            return isOk(responseBody);
 
         } catch (Exception e) {
             log.error("应用消息发送异常: {}", e.getMessage());
+            return false;
         }
     }
 
-    private void sendCustomerGroupMessage(String traceId, String chatId, String content) {
+    /**
+     * 客户群消息发送结果
+     */
+    public enum SendResult {
+        /** 发送成功（或无需发送） */
+        SENT,
+        /** 企业微信明确拒绝且未处理该请求（系统繁忙、频率限制）或请求未发出，可以安全重试 */
+        RETRYABLE,
+        /** 发送失败；包括超时、网络异常等无法确认是否已发出的情况，不可重试，否则居民可能收到重复消息 */
+        FAILED
+    }
+
+    // 明确表示请求未被处理、可安全重试的错误码：-1 系统繁忙、45009 接口调用超过限制、45033 接口并发调用超过限制
+    private static final java.util.Set<Integer> SAFE_RETRY_ERRCODES = java.util.Set.of(-1, 45009, 45033);
+
+    /**
+     * 发送客户群消息（add_msg_template）
+     * add_msg_template 不是幂等接口：超时、网络异常时请求可能已经成功，只有明确的错误码才返回 RETRYABLE
+     * @return 发送结果；未配置发送人视为无需发送，返回 SENT
+     */
+    public SendResult sendCustomerGroupMessage(String traceId, String chatId, String content) {
         if (!StringUtils.hasText(customerGroupSender)) {
             log.warn("未配置客户群发送人(sender-userid)，无法发送客户群消息");
-            return;
+            return SendResult.SENT;
         }
-        String url = null;
+        String url = "https://qyapi.weixin.qq.com/cgi-bin/externalcontact/add_msg_template";
         try {
-            String token = getAccessToken();
-            if (token == null) return;
-
-            String urlFallback = "https://qyapi.weixin.qq.com/cgi-bin/externalcontact/add_msg_template?access_token=" + token;
-
             Map<String, Object> payload = new HashMap<>();
             payload.put("chat_type", "group");
             payload.put("sender", customerGroupSender);
@@ -285,19 +346,26 @@ public class WecomRobotService {
             headers.setContentType(MediaType.APPLICATION_JSON);
             HttpEntity<Map<String, Object>> entity = new HttpEntity<>(payload, headers);
 
-            url = urlFallback;
-            ResponseEntity<byte[]> response = restTemplate.postForEntity(url, entity, byte[].class);
-            String responseBody = response.getBody() != null
-                    ? new String(response.getBody(), java.nio.charset.StandardCharsets.UTF_8)
-                    : "";
-            log.info("客户群消息发送结果: traceId={}, status={}, body={}", traceId, response.getStatusCode(), responseBody);
+            String responseBody = callWithToken(token -> restTemplate.postForEntity(
+                    "https://qyapi.weixin.qq.com/cgi-bin/externalcontact/add_msg_template?access_token=" + token,
+                    entity, byte[].class));
+            // 拿不到 token 时请求没有发出
+            if (responseBody == null) return SendResult.RETRYABLE;
+            log.info("客户群消息发送结果: traceId={}, body={}", traceId, responseBody);
+            if (isOk(responseBody)) {
+                return SendResult.SENT;
+            }
+            JsonNode root = objectMapper.readTree(responseBody);
+            return root != null && root.has("errcode") && SAFE_RETRY_ERRCODES.contains(root.get("errcode").asInt())
+                    ? SendResult.RETRYABLE : SendResult.FAILED;
         } catch (org.springframework.web.client.HttpStatusCodeException e) {
             String responseBody = e.getResponseBodyAsString();
             log.warn("客户群消息发送失败: traceId={}, status={}, url={}, body={}",
                     traceId, e.getStatusCode(), url, responseBody);
         } catch (Exception e) {
-            log.warn("客户群消息发送异常: traceId={}, url={}, error={}", traceId, url, e.getMessage());
+            log.warn("客户群消息发送异常（可能已发出，不重试）: traceId={}, url={}, error={}", traceId, url, e.getMessage());
         }
+        return SendResult.FAILED;
     }
 
     private String buildCustomerGroupMention(String mentionName, String content) {
@@ -315,23 +383,48 @@ public class WecomRobotService {
         return prefix + content;
     }
 
-    private String getAccessToken() {
-        String url = "https://qyapi.weixin.qq.com/cgi-bin/gettoken?corpid=" + corpId + "&corpsecret=" + appSecret;
-        try {
-            ResponseEntity<String> response = restTemplate.getForEntity(url, String.class);
-            JsonNode root = objectMapper.readTree(response.getBody());
-            if (root.has("access_token")) {
-                return root.get("access_token").asText();
-            } else {
-                log.error("获取AccessToken失败: {}", response.getBody());
-                return null;
+    /**
+     * 携带 access_token 调用企业微信接口，返回 UTF-8 解码后的响应体
+     * 遇到 token 无效/过期（40014/42001）时丢弃旧 token，换新 token 重试一次
+     * @return 响应体；无法获取 token 时返回 null
+     */
+    private String callWithToken(java.util.function.Function<String, ResponseEntity<byte[]>> call) throws Exception {
+        String token = tokenManager.getToken();
+        if (token == null) {
+            log.warn("AccessToken为空，跳过企业微信接口调用");
+            return null;
+        }
+        String responseBody = decode(call.apply(token));
+        if (WecomAccessTokenManager.isTokenExpired(objectMapper.readTree(responseBody))) {
+            tokenManager.invalidate(token);
+            token = tokenManager.getToken();
+            if (token == null) {
+                return responseBody;
             }
+            responseBody = decode(call.apply(token));
+        }
+        return responseBody;
+    }
+
+    /**
+     * 企业微信接口返回 errcode=0（或不带 errcode）视为成功
+     */
+    private boolean isOk(String responseBody) {
+        try {
+            JsonNode root = objectMapper.readTree(responseBody);
+            return root != null && (!root.has("errcode") || root.get("errcode").asInt() == 0);
         } catch (Exception e) {
-            log.error("获取AccessToken异常: {}", e.getMessage());
-            return null;
+            return false;
         }
     }
 
+    private static String decode(ResponseEntity<byte[]> response) {
+        // 强制使用 byte[] 接收，避免 RestTemplate 默认字符集导致的乱码
+        return response.getBody() != null
+                ? new String(response.getBody(), java.nio.charset.StandardCharsets.UTF_8)
+                : "";
+    }
+
     private String resolveGroupName(String chatId) {
         if (!StringUtils.hasText(chatId)) return null;
         log.info(">> 开始解析群名: id={}", chatId);
@@ -359,14 +452,7 @@ public class WecomRobotService {
         }
 
         try {
-            String token = getAccessToken();
-            if (token == null) {
-                log.warn("<< 无法解析: AccessToken为空");
-                return null;
-            }
-
             // 3. 调用客户群详情接口 (API)
-            String url = "https://qyapi.weixin.qq.com/cgi-bin/externalcontact/groupchat/get?access_token=" + token;
             Map<String, Object> payload = new HashMap<>();
             payload.put("chat_id", chatId);
 
@@ -374,10 +460,14 @@ public class WecomRobotService {
             headers.setContentType(MediaType.APPLICATION_JSON);
             HttpEntity<Map<String, Object>> entity = new HttpEntity<>(payload, headers);
 
-            log.info("调用企业微信API查询群详情: url={}", url);
-            // 强制使用 byte[] 接收，避免 RestTemplate 默认字符集导致的乱码
-            ResponseEntity<byte[]> response = restTemplate.postForEntity(url, entity, byte[].class);
-            String responseBody = new String(response.getBody(), java.nio.charset.StandardCharsets.UTF_8);
+            log.info("调用企业微信API查询群详情: chatId={}", chatId);
+            String responseBody = callWithToken(token -> restTemplate.postForEntity(
+                    "https://qyapi.weixin.qq.com/cgi-bin/externalcontact/groupchat/get?access_token=" + token,
+                    entity, byte[].class));
+            if (responseBody == null) {
+                log.warn("<< 无法解析: AccessToken为空");
+                return null;
+            }
             
             JsonNode root = objectMapper.readTree(responseBody);
             
@@ -417,7 +507,7 @@ public class WecomRobotService {
                             }
                             // 内部成员再尝试走通讯录查询
                             if (!StringUtils.hasText(resolvedName) && memberType == 1) {
-                                resolvedName = fetchInternalUserName(token, uid);
+                                resolvedName = fetchInternalUserName(uid);
                             }
 
                             if (StringUtils.hasText(resolvedName)) {
@@ -463,18 +553,16 @@ public class WecomRobotService {
         }
 
         try {
-            String token = getAccessToken();
-            if (token == null) {
-                log.warn("<< 无法解析: AccessToken为空");
-                return null;
-            }
-
             // 3. 尝试作为外部联系人查询 (API)
-            String url = "https://qyapi.weixin.qq.com/cgi-bin/externalcontact/get?access_token=" + token + "&external_userid=" + userId;
             try {
-                log.info("调用企业微信API查询外部联系人: url={}", url);
-                ResponseEntity<byte[]> response = restTemplate.getForEntity(url, byte[].class);
-                String responseBody = new String(response.getBody(), java.nio.charset.StandardCharsets.UTF_8);
+                log.info("调用企业微信API查询外部联系人: userId={}", userId);
+                String responseBody = callWithToken(token -> restTemplate.getForEntity(
+                        "https://qyapi.weixin.qq.com/cgi-bin/externalcontact/get?access_token=" + token
+                                + "&external_userid=" + userId, byte[].class));
+                if (responseBody == null) {
+                    log.warn("<< 无法解析: AccessToken为空");
+                    return null;
+                }
                 
                 JsonNode root = objectMapper.readTree(responseBody);
                 if (root.has("external_contact") && root.get("external_contact").has("name")) {
@@ -490,23 +578,11 @@ public class WecomRobotService {
             }
 
             // 4. 尝试作为内部成员查询 (API)
-            url = "https://qyapi.weixin.qq.com/cgi-bin/user/get?access_token=" + token + "&userid=" + userId;
-            try {
-                log.info("调用企业微信API查询内部成员: url={}", url);
-                ResponseEntity<byte[]> response = restTemplate.getForEntity(url, byte[].class);
-                String responseBody = new String(response.getBody(), java.nio.charset.StandardCharsets.UTF_8);
-
-                JsonNode root = objectMapper.readTree(responseBody);
-                if (root.has("name")) {
-                    String name = root.get("name").asText();
-                    redisTemplate.opsForValue().set(cacheKey, name, 7, TimeUnit.DAYS);
-                    log.info("<< API解析成功(内部): name={}", name);
-                    return name;
-                } else {
-                    log.warn("API查询内部成员失败. 完整响应: {}", responseBody);
-                }
-            } catch (Exception e) {
-                log.warn("查询内部成员异常: userId={}, error={}", userId, e.getMessage());
+            String name = fetchInternalUserName(userId);
+            if (StringUtils.hasText(name)) {
+                redisTemplate.opsForValue().set(cacheKey, name, 7, TimeUnit.DAYS);
+                log.info("<< API解析成功(内部): name={}", name);
+                return name;
             }
 
         } catch (Exception e) {
@@ -515,14 +591,17 @@ public class WecomRobotService {
         return null;
     }
 
-    private String fetchInternalUserName(String token, String userId) {
-        if (!StringUtils.hasText(token) || !StringUtils.hasText(userId)) {
+    private String fetchInternalUserName(String userId) {
+        if (!StringUtils.hasText(userId)) {
             return null;
         }
         try {
-            String url = "https://qyapi.weixin.qq.com/cgi-bin/user/get?access_token=" + token + "&userid=" + userId;
-            ResponseEntity<byte[]> response = restTemplate.getForEntity(url, byte[].class);
-            String responseBody = new String(response.getBody(), java.nio.charset.StandardCharsets.UTF_8);
+            String responseBody = callWithToken(token -> restTemplate.getForEntity(
+                    "https://qyapi.weixin.qq.com/cgi-bin/user/get?access_token=" + token + "&userid=" + userId,
+                    byte[].class));
+            if (responseBody == null) {
+                return null;
+            }
             JsonNode root = objectMapper.readTree(responseBody);
             if (root.has("name")) {
                 return root.get("name").asText();
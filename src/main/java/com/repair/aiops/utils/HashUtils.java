@@ -0,0 +1,47 @@
+package com.repair.aiops.utils;
+
+/**
+ * 非加密哈希工具
+ * 用于去重等只需要“足够分散”的场景，比 MD5/SHA 便宜得多；不要用于安全相关的校验
+ */
+public final class HashUtils {
+
+    private static final long FNV64_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV64_PRIME = 0x100000001b3L;
+
+    private HashUtils() {
+    }
+
+    /**
+     * 64 位 FNV-1a 哈希（按 UTF-16 字符逐字节计算，不做字符集编码）
+     */
+    public static long fnv1a64(CharSequence input) {
+        long hash = FNV64_OFFSET_BASIS;
+        if (input == null) {
+            return hash;
+        }
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            hash ^= (c & 0xff);
+            hash *= FNV64_PRIME;
+            hash ^= (c >>> 8);
+            hash *= FNV64_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * 64 位 FNV-1a 哈希的 16 位十六进制字符串
+     */
+    public static String fnv1a64Hex(CharSequence input) {
+        String hex = Long.toHexString(fnv1a64(input));
+        if (hex.length() == 16) {
+            return hex;
+        }
+        StringBuilder sb = new StringBuilder(16);
+        for (int i = hex.length(); i < 16; i++) {
+            sb.append('0');
+        }
+        return sb.append(hex).toString();
+    }
+}
@@ -0,0 +1,7 @@
+-- owners.sender_id 唯一索引：业主绑定改为 INSERT ... ON DUPLICATE KEY UPDATE 批量写入，依赖该索引判重
+-- 执行前先清理重复数据（同一 sender_id 只保留 id 最大的一条）
+
+DELETE o1 FROM owners o1
+JOIN owners o2 ON o1.sender_id = o2.sender_id AND o1.id < o2.id;
+
+ALTER TABLE owners ADD UNIQUE KEY uk_owners_sender_id (sender_id);
@@ -0,0 +1,4 @@
+-- 侧边栏待处理草稿游标分页：WHERE group_id = ? AND status = 0 AND (create_time, id) < (?, ?)
+-- ORDER BY create_time DESC, id DESC LIMIT ?，复合索引使查询只扫描一页的行数，耗时不随表增长
+
+ALTER TABLE work_order_drafts ADD INDEX idx_drafts_group_status_time (group_id, status, create_time, id);
@@ -0,0 +1,23 @@
+-- 下单发件箱：草稿与发件箱记录同一事务写入，后台按 next_attempt_time 轮询发送
+
+CREATE TABLE IF NOT EXISTS order_outbox (
+    id                BIGINT       NOT NULL AUTO_INCREMENT,
+    draft_id          BIGINT       NULL,
+    trace_id          VARCHAR(64)  NULL,
+    idempotency_key   VARCHAR(64)  NOT NULL,
+    group_id          VARCHAR(128) NULL,
+    sender_id         VARCHAR(128) NULL,
+    content           TEXT         NULL,
+    payload           TEXT         NOT NULL,
+    status            TINYINT      NOT NULL DEFAULT 0 COMMENT '0-待发送, 1-发送中, 2-成功, 3-失败',
+    attempts          INT          NOT NULL DEFAULT 0,
+    next_attempt_time DATETIME     NOT NULL,
+    last_error        VARCHAR(512) NULL,
+    order_id          VARCHAR(64)  NULL,
+    create_time       DATETIME     NOT NULL,
+    update_time       DATETIME     NOT NULL,
+    PRIMARY KEY (id),
+    UNIQUE KEY uk_order_outbox_idempotency_key (idempotency_key),
+    KEY idx_order_outbox_status_next (status, next_attempt_time),
+    KEY idx_order_outbox_status_update (status, update_time)
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4;
@@ -0,0 +1,7 @@
+-- 待处理草稿索引重建：WHERE status = 0（只查列表需要的列），status 在首列才能走索引；
+-- 侧边栏游标分页 WHERE status = 0 AND group_id = ? AND (create_time, id) < (?, ?) ORDER BY create_time DESC, id DESC
+-- 两个等值条件在前，同一个索引仍只扫描一页的行数。替换 V2 中以 group_id 开头、重建扫描用不上的索引
+
+ALTER TABLE work_order_drafts
+    DROP INDEX idx_drafts_group_status_time,
+    ADD INDEX idx_drafts_status_group_time (status, group_id, create_time, id);
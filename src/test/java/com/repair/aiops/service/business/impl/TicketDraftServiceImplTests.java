@@ -0,0 +1,58 @@
+package com.repair.aiops.service.business.impl;
+
+import com.repair.aiops.model.entity.TicketDraftEntity;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 待处理草稿分页游标
+ */
+class TicketDraftServiceImplTests {
+
+    private static final LocalDateTime TIME = LocalDateTime.of(2024, 5, 1, 10, 0, 0, 123_000_000);
+
+    @Test
+    void cursorRoundTripsAndOrdersByTimeThenId() {
+        String encoded = TicketDraftServiceImpl.DraftCursor.of(draft(TIME, 42L)).encode();
+        TicketDraftServiceImpl.DraftCursor cursor = TicketDraftServiceImpl.DraftCursor.decode(encoded);
+
+        assertTrue(cursor.isBefore(draft(TIME, 41L)));
+        assertTrue(cursor.isBefore(draft(TIME.minusNanos(1), 100L)));
+        assertFalse(cursor.isBefore(draft(TIME, 42L)));
+        assertFalse(cursor.isBefore(draft(TIME, 43L)));
+        assertFalse(cursor.isBefore(draft(TIME.plusSeconds(1), 1L)));
+    }
+
+    @Test
+    void unsavedDraftSortsFirstWithinSameTime() {
+        TicketDraftServiceImpl.DraftCursor cursor = TicketDraftServiceImpl.DraftCursor.of(draft(TIME, 42L));
+
+        assertFalse(cursor.isBefore(draft(TIME, null)));
+        assertTrue(TicketDraftServiceImpl.DraftCursor.of(draft(TIME, null)).isBefore(draft(TIME, 42L)));
+    }
+
+    @Test
+    void emptyCursorMeansFirstPage() {
+        assertNull(TicketDraftServiceImpl.DraftCursor.decode(null));
+        assertNull(TicketDraftServiceImpl.DraftCursor.decode(""));
+    }
+
+    @Test
+    void malformedCursorIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> TicketDraftServiceImpl.DraftCursor.decode("%%%"));
+        assertThrows(IllegalArgumentException.class, () -> TicketDraftServiceImpl.DraftCursor.decode("bm90LWEtY3Vyc29y"));
+    }
+
+    private static TicketDraftEntity draft(LocalDateTime createTime, Long id) {
+        TicketDraftEntity draft = new TicketDraftEntity();
+        draft.setCreateTime(createTime);
+        draft.setId(id);
+        return draft;
+    }
+}
@@ -0,0 +1,101 @@
+package com.repair.aiops.service.classify.impl;
+
+import com.repair.aiops.model.dto.GroupMsgDTO;
+import com.repair.aiops.model.dto.TicketDraft;
+import com.repair.aiops.model.enums.IntentType;
+import com.repair.aiops.service.memory.ISessionMemoryService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 规则预分类：哪些消息直接判定为闲聊、哪些交给大模型
+ */
+class RuleBasedPreClassifierTests {
+
+    private ISessionMemoryService memoryService;
+    private RuleBasedPreClassifier classifier;
+
+    @BeforeEach
+    void setUp() {
+        memoryService = mock(ISessionMemoryService.class);
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("aiops.preclassify.group-allow.g-allow", "^收到$");
+        classifier = new RuleBasedPreClassifier(environment, new SimpleMeterRegistry(), memoryService, "来了, ");
+        ReflectionTestUtils.setField(classifier, "enabled", true);
+        ReflectionTestUtils.setField(classifier, "maxLength", 20);
+        ReflectionTestUtils.setField(classifier, "latinMaxLength", 3);
+    }
+
+    @Test
+    void classifiesSmallTalkAsNoise() {
+        for (String content : new String[]{"", "302", "收到", "好的好的，谢谢！", "哈哈哈", "OK", "hi", "来了", "[微笑]👍！"}) {
+            TicketDraft draft = classifier.classify(msg("g1", content));
+            assertNotNull(draft, content);
+            assertEquals(IntentType.NOISE, draft.getIntent(), content);
+            assertFalse(draft.isActionable(), content);
+            assertEquals("u1", draft.getSenderId(), content);
+        }
+    }
+
+    @Test
+    void passesBusinessMessagesToLlm() {
+        assertNull(classifier.classify(msg("g1", "卫生间漏水")));
+        assertNull(classifier.classify(msg("g1", "hello")));
+        assertNull(classifier.classify(msg("g1", "收到".repeat(11))));
+        verify(memoryService, never()).hasMessageContext(any());
+    }
+
+    @Test
+    void passesMessagesWithImage() {
+        GroupMsgDTO msg = msg("g1", "收到");
+        msg.setImageUrl("https://example.com/a.jpg");
+
+        assertNull(classifier.classify(msg));
+    }
+
+    @Test
+    void groupAllowRuleBypassesClassification() {
+        assertNull(classifier.classify(msg("g-allow", "收到")));
+        assertNotNull(classifier.classify(msg("g-allow", "好的")));
+    }
+
+    @Test
+    void shortRepliesDeferToLlmDuringActiveSession() {
+        when(memoryService.hasMessageContext("u1")).thenReturn(true);
+
+        assertNull(classifier.classify(msg("g1", "302")));
+        assertNull(classifier.classify(msg("g1", "对")));
+        assertNull(classifier.classify(msg("g1", "ok")));
+        // 空内容、纯符号不是有效回答
+        assertNotNull(classifier.classify(msg("g1", "")));
+        assertNotNull(classifier.classify(msg("g1", "？？")));
+    }
+
+    @Test
+    void disabledClassifierPassesEverything() {
+        ReflectionTestUtils.setField(classifier, "enabled", false);
+
+        assertNull(classifier.classify(msg("g1", "收到")));
+    }
+
+    private static GroupMsgDTO msg(String groupId, String content) {
+        GroupMsgDTO msg = new GroupMsgDTO();
+        msg.setSenderUserId("u1");
+        msg.setGroupId(groupId);
+        msg.setContent(content);
+        return msg;
+    }
+}
@@ -0,0 +1,80 @@
+package com.repair.aiops.service.core;
+
+import com.alibaba.fastjson.JSON;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 批量分类：提示词中的数组格式说明与结果回填
+ */
+class LlmBatchClassifierTests {
+
+    private static final Set<String> IDS = Set.of("m1", "m2", "m3");
+
+    private LlmBatchClassifier classifier;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        PromptService promptService = new PromptService();
+        ReflectionTestUtils.setField(promptService, "systemPromptResource", new ClassPathResource("prompt/system-prompt.st"));
+        promptService.init();
+        classifier = new LlmBatchClassifier(null, promptService, null, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void systemPromptAsksForIdKeyedArray() {
+        String prompt = classifier.buildSystemPrompt();
+
+        assertTrue(prompt.contains("只输出一个 JSON 数组"), prompt);
+        assertTrue(prompt.contains("{\"id\": \"消息编号\", \"draft\": 分析结果}"), prompt);
+        assertTrue(prompt.contains("\"intent\""), "分析结果的字段格式应出现在提示词中");
+    }
+
+    @Test
+    void mapsWellFormedArrayBackToMessageIds() {
+        String output = "```json\n["
+                + "{\"id\": \"m2\", \"draft\": {\"actionable\": false, \"intent\": \"NOISE\"}},"
+                + "{\"id\": \"m1\", \"draft\": {\"actionable\": true, \"intent\": \"REPAIR\", \"missingInfo\": []}},"
+                + "{\"id\": \"m3\", \"draft\": {\"actionable\": true, \"intent\": \"INQUIRY\"}}"
+                + "]\n```";
+
+        Map<String, String> drafts = classifier.parse(output, IDS);
+
+        assertEquals(IDS, drafts.keySet());
+        assertEquals("REPAIR", JSON.parseObject(drafts.get("m1")).getString("intent"));
+        assertEquals("NOISE", JSON.parseObject(drafts.get("m2")).getString("intent"));
+        assertEquals("INQUIRY", JSON.parseObject(drafts.get("m3")).getString("intent"));
+    }
+
+    @Test
+    void skipsUnknownDuplicateAndInvalidElements() {
+        String output = "["
+                + "{\"id\": \"m1\", \"draft\": {\"intent\": \"REPAIR\"}},"
+                + "{\"id\": \"m1\", \"draft\": {\"intent\": \"NOISE\"}},"
+                + "{\"id\": \"m9\", \"draft\": {\"intent\": \"NOISE\"}},"
+                + "{\"id\": \"m2\", \"draft\": {\"actionable\": true}}"
+                + "]";
+
+        Map<String, String> drafts = classifier.parse(output, IDS);
+
+        assertEquals(Set.of("m1"), drafts.keySet());
+        assertEquals("REPAIR", JSON.parseObject(drafts.get("m1")).getString("intent"));
+    }
+
+    @Test
+    void singleDraftIsNotMistakenForArray() {
+        String output = "{\"actionable\": false, \"intent\": \"REPAIR\", \"missingInfo\": [\"位置\"]}";
+
+        assertTrue(classifier.parse(output, IDS).isEmpty());
+        assertTrue(classifier.parse(null, IDS).isEmpty());
+    }
+}
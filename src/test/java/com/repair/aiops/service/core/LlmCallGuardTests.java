@@ -0,0 +1,203 @@
+package com.repair.aiops.service.core;
+
+import com.repair.aiops.exception.LlmUnavailableException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 大模型调用保护：滑动窗口、熔断打开/半开/关闭、慢调用
+ */
+class LlmCallGuardTests {
+
+    private static final double CLOSED = 0;
+    private static final double OPEN = 1;
+    private static final double HALF_OPEN = 2;
+
+    private SimpleMeterRegistry meterRegistry;
+    private LlmCallGuard guard;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        guard = new LlmCallGuard(meterRegistry, 2, 4);
+        ReflectionTestUtils.setField(guard, "acquireTimeoutMs", 20L);
+        ReflectionTestUtils.setField(guard, "callTimeoutMs", 5000L);
+        ReflectionTestUtils.setField(guard, "slowCallMs", 5000L);
+        ReflectionTestUtils.setField(guard, "minCalls", 4);
+        ReflectionTestUtils.setField(guard, "failureRateThreshold", 0.5);
+        ReflectionTestUtils.setField(guard, "openDurationMs", 60_000L);
+        ReflectionTestUtils.setField(guard, "halfOpenCalls", 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        guard.shutdown();
+    }
+
+    @Test
+    void tripsOnlyAfterMinCallsAndThreshold() {
+        fail();
+        fail();
+        fail();
+        // 不足 min-calls 次不打开
+        assertEquals(CLOSED, circuitState());
+
+        assertEquals("ok", guard.call(() -> "ok"));
+        // 3/4 失败
+        assertEquals(OPEN, circuitState());
+        assertFalse(guard.isCallPermitted());
+        assertThrows(LlmUnavailableException.class, () -> guard.call(() -> "ok"));
+        assertEquals(1.0, rejected("open"));
+    }
+
+    @Test
+    void windowEvictsOldestResult() {
+        fail();
+        succeed();
+        succeed();
+        succeed();
+        // 1/4，随后最早的失败被挤出窗口
+        succeed();
+        fail();
+        assertEquals(CLOSED, circuitState());
+
+        fail();
+        // 窗口为 [S, F, F, S]：2/4 达到阈值
+        assertEquals(OPEN, circuitState());
+    }
+
+    @Test
+    void slowSuccessCountsAsFailure() {
+        ReflectionTestUtils.setField(guard, "slowCallMs", 10L);
+        for (int i = 0; i < 4; i++) {
+            // 慢调用照常返回结果，但计入失败
+            assertEquals("slow", guard.call(() -> {
+                sleep(30);
+                return "slow";
+            }));
+        }
+        assertEquals(OPEN, circuitState());
+    }
+
+    @Test
+    void halfOpensAfterOpenDurationAndClosesOnTrialSuccess() {
+        tripOpen();
+        assertEquals(OPEN, circuitState());
+
+        ReflectionTestUtils.setField(guard, "openDurationMs", 0L);
+        assertEquals(HALF_OPEN, circuitState());
+        assertTrue(guard.isCallPermitted());
+        assertFalse(guard.isClosed());
+
+        succeed();
+        assertEquals(CLOSED, circuitState());
+        assertTrue(guard.isClosed());
+    }
+
+    @Test
+    void failedTrialReopens() {
+        tripOpen();
+        ReflectionTestUtils.setField(guard, "openDurationMs", 0L);
+        assertEquals(HALF_OPEN, circuitState());
+
+        fail();
+        ReflectionTestUtils.setField(guard, "openDurationMs", 60_000L);
+        assertEquals(OPEN, circuitState());
+    }
+
+    @Test
+    void halfOpenAdmitsOnlyConfiguredTrials() throws Exception {
+        tripOpen();
+        ReflectionTestUtils.setField(guard, "openDurationMs", 0L);
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        CompletableFuture<String> trial = CompletableFuture.supplyAsync(() -> guard.call(() -> {
+            started.countDown();
+            await(finish);
+            return "trial";
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // 唯一的试探名额已被占用
+        assertThrows(LlmUnavailableException.class, () -> guard.call(() -> "ok"));
+        assertEquals(1.0, rejected("open"));
+
+        finish.countDown();
+        assertEquals("trial", trial.get(5, TimeUnit.SECONDS));
+        assertEquals(CLOSED, circuitState());
+    }
+
+    @Test
+    void bulkheadRejectionReturnsTrialSlot() throws Exception {
+        tripOpen();
+        ReflectionTestUtils.setField(guard, "openDurationMs", 0L);
+        Semaphore permits = (Semaphore) ReflectionTestUtils.getField(guard, "permits");
+        permits.acquire(2);
+
+        // 拿到试探名额但等不到许可：名额归还，熔断仍为半开
+        assertThrows(LlmUnavailableException.class, () -> guard.call(() -> "ok"));
+        assertEquals(1.0, rejected("bulkhead"));
+        assertEquals(HALF_OPEN, circuitState());
+
+        permits.release(2);
+        succeed();
+        assertEquals(CLOSED, circuitState());
+        assertEquals(0.0, rejected("open"));
+    }
+
+    private void tripOpen() {
+        for (int i = 0; i < 4; i++) {
+            fail();
+        }
+    }
+
+    private void succeed() {
+        assertEquals("ok", guard.call(() -> "ok"));
+    }
+
+    private void fail() {
+        assertThrows(IllegalStateException.class, () -> guard.call(() -> {
+            throw new IllegalStateException("模型服务异常");
+        }));
+    }
+
+    private double circuitState() {
+        return meterRegistry.get("aiops.llm.circuit.state").gauge().value();
+    }
+
+    private double rejected(String reason) {
+        Counter counter = meterRegistry.find("aiops.llm.guard.rejected").tag("reason", reason).counter();
+        return counter != null ? counter.count() : 0;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.repair.aiops.service.core;
+
+import com.repair.aiops.service.storage.OssStorageService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 决策缓存键：图片按内容摘要参与，外部地址不使用缓存
+ */
+class LlmDecisionCacheTests {
+
+    private static final String BASE = "https://cdn.example.com/wecom/images/";
+    private static final String DIGEST_A = "ab" + "0".repeat(62);
+    private static final String DIGEST_B = "cd" + "1".repeat(62);
+
+    private LlmDecisionCache cache;
+
+    @BeforeEach
+    void setUp() {
+        OssStorageService oss = new OssStorageService(null, new SimpleMeterRegistry(), null);
+        ReflectionTestUtils.setField(oss, "bucket", "repair");
+        ReflectionTestUtils.setField(oss, "endpoint", "oss-cn-hangzhou.aliyuncs.com");
+        ReflectionTestUtils.setField(oss, "publicUrl", "https://cdn.example.com/");
+        ReflectionTestUtils.setField(oss, "objectPrefix", "wecom/images/");
+        cache = new LlmDecisionCache(new SimpleMeterRegistry(), oss, 100, 30);
+    }
+
+    @Test
+    void keysOnImageContent() {
+        String original = cache.keyOf("owner", "history", "卫生间漏水", List.of(BASE + "sha256/ab/" + DIGEST_A + ".jpg"));
+        String derived = cache.keyOf("owner", "history", "卫生间漏水",
+                List.of(BASE + "derived/ab/" + DIGEST_A + "_1280q80o.jpg"));
+        String other = cache.keyOf("owner", "history", "卫生间漏水", List.of(BASE + "sha256/cd/" + DIGEST_B + ".jpg"));
+
+        assertNotNull(original);
+        assertNotNull(derived);
+        assertNotEquals(original, derived);
+        assertNotEquals(original, other);
+        assertEquals(original, cache.keyOf(" owner ", "history", "卫生间漏水",
+                List.of(" " + BASE + "sha256/ab/" + DIGEST_A + ".jpg")));
+    }
+
+    @Test
+    void skipsCacheForForeignImageUrls() {
+        String ours = BASE + "sha256/ab/" + DIGEST_A + ".jpg";
+
+        assertNull(cache.keyOf("owner", "", "漏水", List.of(ours, "https://example.com/a.jpg")));
+        assertNull(cache.keyOf("owner", "", "漏水", List.of("https://other.example.com/wecom/images/sha256/ab/" + DIGEST_A + ".jpg")));
+        // 目录与摘要前两位不一致、摘要长度不对
+        assertNull(cache.keyOf("owner", "", "漏水", List.of(BASE + "sha256/cd/" + DIGEST_A + ".jpg")));
+        assertNull(cache.keyOf("owner", "", "漏水", List.of(BASE + "sha256/ab/abc.jpg")));
+        assertNull(cache.get(null));
+    }
+
+    @Test
+    void textOnlyKeyIgnoresImages() {
+        assertNotNull(cache.keyOf("owner", "", "漏水", List.of()));
+        assertEquals(cache.keyOf("owner", "", "漏水", null), cache.keyOf("owner", "", "漏水", List.of()));
+    }
+}
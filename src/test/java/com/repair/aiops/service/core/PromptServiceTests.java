@@ -0,0 +1,54 @@
+package com.repair.aiops.service.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 提示词模板编译与渲染
+ */
+class PromptServiceTests {
+
+    @Test
+    void rendersSlotsBetweenLiterals() {
+        PromptService.CompiledTemplate template = PromptService.compile("业主：{ownerInfo}\n时间：{currentTime}。");
+
+        assertEquals("业主：302室, 张三\n时间：2024-05-01 10:00。",
+                template.render(Map.of("ownerInfo", "302室, 张三", "currentTime", "2024-05-01 10:00")));
+    }
+
+    @Test
+    void missingVariableRendersEmpty() {
+        PromptService.CompiledTemplate template = PromptService.compile("[{historyContext}]");
+
+        assertEquals("[]", template.render(Map.of()));
+    }
+
+    @Test
+    void keepsNonIdentifierBracesAsLiteral() {
+        String source = "输出 JSON：{\"intent\": \"REPAIR\"}，空对象 {}，未闭合 {format";
+        PromptService.CompiledTemplate template = PromptService.compile(source);
+
+        assertEquals(source, template.render(Map.of("format", "x", "intent", "y")));
+    }
+
+    @Test
+    void rendersAdjacentAndRepeatedSlots() {
+        PromptService.CompiledTemplate template = PromptService.compile("{a}{b}-{a}");
+        Map<String, String> vars = new HashMap<>();
+        vars.put("a", "1");
+        vars.put("b", "2");
+
+        assertEquals("12-1", template.render(vars));
+    }
+
+    @Test
+    void valuesAreNotReinterpretedAsTemplate() {
+        PromptService.CompiledTemplate template = PromptService.compile("{format}");
+
+        assertEquals("{ownerInfo}", template.render(Map.of("format", "{ownerInfo}", "ownerInfo", "x")));
+    }
+}
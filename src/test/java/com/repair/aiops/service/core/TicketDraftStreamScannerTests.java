@@ -0,0 +1,72 @@
+package com.repair.aiops.service.core;
+
+import com.repair.aiops.model.enums.IntentType;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 流式输出的增量字段识别
+ */
+class TicketDraftStreamScannerTests {
+
+    @Test
+    void reportsFieldsAsSoonAsTheyComplete() {
+        String output = "```json\n{\"intent\": \"NOISE\", \"actionable\": false, \"reply\": {\"a\": [1, 2]}, \"n\": 3}\n```";
+        int intentEnd = output.indexOf("\"NOISE\"") + "\"NOISE\"".length();
+        int actionableEnd = output.indexOf("false,") + "false,".length();
+        TicketDraftStreamScanner scanner = new TicketDraftStreamScanner();
+
+        for (int i = 0; i < output.length(); i++) {
+            scanner.feed(String.valueOf(output.charAt(i)));
+            int fed = i + 1;
+            assertEquals(fed >= intentEnd ? IntentType.NOISE : null, scanner.intent(), "fed=" + fed);
+            assertEquals(fed >= actionableEnd ? Boolean.FALSE : null, scanner.actionable(), "fed=" + fed);
+        }
+    }
+
+    @Test
+    void ignoresQuotesAndBracesInsideStrings() {
+        TicketDraftStreamScanner scanner = new TicketDraftStreamScanner();
+        scanner.feed("{\"summary\": \"卫生间漏水\\\"}, \\\"intent\\\": \\\"NOISE\", ");
+        assertNull(scanner.intent());
+
+        scanner.feed("\"intent\": \"REPAIR\", \"actionable\": true}");
+        assertEquals(IntentType.REPAIR, scanner.intent());
+        assertEquals(Boolean.TRUE, scanner.actionable());
+    }
+
+    @Test
+    void incompleteOrUnknownValuesAreNull() {
+        TicketDraftStreamScanner partial = new TicketDraftStreamScanner();
+        partial.feed("{\"intent\": \"REP");
+        assertNull(partial.intent());
+
+        TicketDraftStreamScanner unknown = new TicketDraftStreamScanner();
+        unknown.feed("{\"intent\": \"OTHER\", \"actionable\": \"yes\"}");
+        assertNull(unknown.intent());
+        assertNull(unknown.actionable());
+    }
+
+    @Test
+    void stopsAtEndOfOuterObject() {
+        TicketDraftStreamScanner scanner = new TicketDraftStreamScanner();
+        scanner.feed("{\"intent\": \"NOISE\"}");
+        scanner.feed("{\"intent\": \"REPAIR\"}");
+
+        assertEquals(IntentType.NOISE, scanner.intent());
+        assertEquals("{\"intent\": \"NOISE\"}", scanner.text());
+    }
+
+    @Test
+    void tracksCutOff() {
+        TicketDraftStreamScanner scanner = new TicketDraftStreamScanner();
+        assertFalse(scanner.isCutOff());
+
+        scanner.markCutOff();
+        assertTrue(scanner.isCutOff());
+    }
+}
@@ -0,0 +1,79 @@
+package com.repair.aiops.service.memory;
+
+import com.repair.aiops.model.dto.MessageContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * 按 token 预算截取会话上下文
+ */
+class ContextWindowBuilderTests {
+
+    private ISessionMemoryService memoryService;
+    private ContextWindowBuilder builder;
+
+    @BeforeEach
+    void setUp() {
+        memoryService = mock(ISessionMemoryService.class);
+        builder = new ContextWindowBuilder(memoryService, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(builder, "tokenBudget", 6);
+        ReflectionTestUtils.setField(builder, "summaryTokenBudget", 4);
+        ReflectionTestUtils.setField(builder, "summaryFragmentChars", 3);
+    }
+
+    @Test
+    void emptyContextBuildsNothing() {
+        assertEquals("", builder.build("u1", null, "漏水"));
+        assertEquals("", builder.build("u1", new MessageContext(), "漏水"));
+    }
+
+    @Test
+    void keepsNewestWithinBudgetAndSummarizesOlder() {
+        MessageContext context = contextOf("卫生间漏水", "在二楼", "很急");
+
+        assertEquals("（早前消息摘要）卫生间…；在二楼；很急", builder.build("u1", context, "请尽快"));
+        verify(memoryService).saveContextSummary("u1", "1-1-1", "卫生间…");
+        assertEquals("1-1-1", context.getSummaryRange());
+    }
+
+    @Test
+    void reusesCachedSummaryForSameRange() {
+        MessageContext context = contextOf("卫生间漏水", "在二楼", "很急");
+        context.setSummaryRange("1-1-1");
+        context.setSummary("旧摘要");
+
+        assertEquals("（早前消息摘要）旧摘要；在二楼；很急", builder.build("u1", context, "请尽快"));
+        verify(memoryService, never()).saveContextSummary(any(), any(), any());
+    }
+
+    @Test
+    void dropsFragmentsAlreadyPresent() {
+        MessageContext context = contextOf("卫生间漏水", "很急", "很急");
+
+        assertEquals("很急", builder.build("u1", context, "卫生间漏水了"));
+        verify(memoryService, never()).saveContextSummary(any(), any(), any());
+    }
+
+    @Test
+    void truncatesNewestMessageOverBudget() {
+        MessageContext context = contextOf("一二三四五六七八九十");
+
+        assertEquals("一二三四五六…", builder.build("u1", context, ""));
+    }
+
+    private static MessageContext contextOf(String... contents) {
+        MessageContext context = new MessageContext();
+        for (int i = 0; i < contents.length; i++) {
+            context.addMessage(contents[i], (long) (i + 1), null);
+        }
+        return context;
+    }
+}
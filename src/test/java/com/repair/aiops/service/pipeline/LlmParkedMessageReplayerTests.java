@@ -0,0 +1,116 @@
+package com.repair.aiops.service.pipeline;
+
+import com.repair.aiops.model.dto.GroupMsgDTO;
+import com.repair.aiops.service.core.LlmCallGuard;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 暂存消息重放：按熔断状态决定每轮取出的条数
+ */
+class LlmParkedMessageReplayerTests {
+
+    private LlmParkingLot parkingLot;
+    private LlmCallGuard llmCallGuard;
+    private MessagePipeline messagePipeline;
+    private LlmParkedMessageReplayer replayer;
+
+    @BeforeEach
+    void setUp() {
+        parkingLot = mock(LlmParkingLot.class);
+        llmCallGuard = mock(LlmCallGuard.class);
+        messagePipeline = mock(MessagePipeline.class);
+        replayer = new LlmParkedMessageReplayer(parkingLot, llmCallGuard, messagePipeline);
+        ReflectionTestUtils.setField(replayer, "batchSize", 3);
+    }
+
+    @Test
+    void skipsWhileCircuitOpen() {
+        when(llmCallGuard.isCallPermitted()).thenReturn(false);
+
+        replayer.replay();
+
+        verify(parkingLot, never()).poll();
+        verify(messagePipeline, never()).submit(any(), anyString());
+    }
+
+    @Test
+    void replaysUpToBatchSizeWhenClosed() {
+        when(llmCallGuard.isCallPermitted()).thenReturn(true);
+        when(llmCallGuard.isClosed()).thenReturn(true);
+        when(parkingLot.poll()).thenReturn(parked("t1"), parked("t2"), parked("t3"), parked("t4"));
+
+        replayer.replay();
+
+        verify(messagePipeline).submit(any(), eq("t1"));
+        verify(messagePipeline).submit(any(), eq("t2"));
+        verify(messagePipeline).submit(any(), eq("t3"));
+        verify(messagePipeline, never()).submit(any(), eq("t4"));
+        verify(parkingLot, times(3)).markReplayed();
+        verify(parkingLot).refreshSize();
+    }
+
+    @Test
+    void replaysSingleTrialWhenHalfOpen() {
+        when(llmCallGuard.isCallPermitted()).thenReturn(true);
+        when(llmCallGuard.isClosed()).thenReturn(false);
+        when(parkingLot.poll()).thenReturn(parked("t1"), parked("t2"));
+
+        replayer.replay();
+
+        verify(parkingLot, times(1)).poll();
+        verify(messagePipeline).submit(any(), eq("t1"));
+        verify(parkingLot).markReplayed();
+    }
+
+    @Test
+    void pushesBackAndStopsWhenPipelineFull() {
+        when(llmCallGuard.isCallPermitted()).thenReturn(true);
+        when(llmCallGuard.isClosed()).thenReturn(true);
+        LlmParkingLot.ParkedMessage first = parked("t1");
+        when(parkingLot.poll()).thenReturn(first, parked("t2"));
+        when(messagePipeline.submit(any(), eq("t1"))).thenThrow(new RejectedExecutionException("full"));
+
+        replayer.replay();
+
+        verify(parkingLot).pushBack(first);
+        verify(parkingLot, times(1)).poll();
+        verify(parkingLot, never()).markReplayed();
+    }
+
+    @Test
+    void stopsWhenParkingLotEmpty() {
+        when(llmCallGuard.isCallPermitted()).thenReturn(true);
+        when(llmCallGuard.isClosed()).thenReturn(true);
+        when(parkingLot.poll()).thenReturn(parked("t1"), (LlmParkingLot.ParkedMessage) null);
+
+        replayer.replay();
+
+        verify(parkingLot, times(2)).poll();
+        verify(parkingLot).markReplayed();
+    }
+
+    private static LlmParkingLot.ParkedMessage parked(String traceId) {
+        GroupMsgDTO msg = new GroupMsgDTO();
+        msg.setSenderUserId("u1");
+        msg.setGroupId("g1");
+        msg.setContent("卫生间漏水");
+        LlmParkingLot.ParkedMessage parked = new LlmParkingLot.ParkedMessage();
+        parked.setTraceId(traceId);
+        parked.setMsg(msg);
+        parked.setParkedAt(System.currentTimeMillis());
+        return parked;
+    }
+}
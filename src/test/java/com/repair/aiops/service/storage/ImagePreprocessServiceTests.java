@@ -0,0 +1,188 @@
+package com.repair.aiops.service.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * EXIF 方向读取与像素转正
+ */
+class ImagePreprocessServiceTests {
+
+    // 3x2 源图，每个像素颜色不同
+    private static final int W = 3;
+    private static final int H = 2;
+
+    @Test
+    void orientation3RotatesHalfTurn() {
+        BufferedImage src = source();
+        BufferedImage dst = ImagePreprocessService.orient(src, 3);
+
+        assertEquals(W, dst.getWidth());
+        assertEquals(H, dst.getHeight());
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                assertEquals(rgb(src, x, y), rgb(dst, W - 1 - x, H - 1 - y), "(" + x + "," + y + ")");
+            }
+        }
+    }
+
+    @Test
+    void orientation6RotatesClockwiseAndSwapsSize() {
+        BufferedImage src = source();
+        BufferedImage dst = ImagePreprocessService.orient(src, 6);
+
+        assertEquals(H, dst.getWidth());
+        assertEquals(W, dst.getHeight());
+        // 左上角转到右上角
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                assertEquals(rgb(src, x, y), rgb(dst, H - 1 - y, x), "(" + x + "," + y + ")");
+            }
+        }
+    }
+
+    @Test
+    void orientation8RotatesCounterClockwiseAndSwapsSize() {
+        BufferedImage src = source();
+        BufferedImage dst = ImagePreprocessService.orient(src, 8);
+
+        assertEquals(H, dst.getWidth());
+        assertEquals(W, dst.getHeight());
+        // 左上角转到左下角
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                assertEquals(rgb(src, x, y), rgb(dst, y, W - 1 - x), "(" + x + "," + y + ")");
+            }
+        }
+    }
+
+    @Test
+    void normalOrUnknownOrientationKeepsImage() {
+        BufferedImage src = source();
+
+        assertSame(src, ImagePreprocessService.orient(src, 1));
+        assertSame(src, ImagePreprocessService.orient(src, 0));
+        assertSame(src, ImagePreprocessService.orient(src, 9));
+    }
+
+    @Test
+    void readsBigEndianOrientation() {
+        assertEquals(6, ImagePreprocessService.readExifOrientation(jpeg(exif(ByteOrder.BIG_ENDIAN, 3, 6))));
+        assertEquals(8, ImagePreprocessService.readExifOrientation(jpeg(exif(ByteOrder.BIG_ENDIAN, 3, 8))));
+    }
+
+    @Test
+    void readsLittleEndianOrientation() {
+        assertEquals(6, ImagePreprocessService.readExifOrientation(jpeg(exif(ByteOrder.LITTLE_ENDIAN, 3, 6))));
+        assertEquals(3, ImagePreprocessService.readExifOrientation(jpeg(exif(ByteOrder.LITTLE_ENDIAN, 3, 3))));
+    }
+
+    @Test
+    void skipsSegmentsBeforeExif() {
+        byte[] app0 = segment(0xE0, "JFIF\0".getBytes(StandardCharsets.US_ASCII));
+
+        assertEquals(8, ImagePreprocessService.readExifOrientation(jpeg(app0, exif(ByteOrder.BIG_ENDIAN, 3, 8))));
+    }
+
+    @Test
+    void malformedExifFallsBackToNormal() {
+        // 不是 JPEG
+        assertEquals(1, ImagePreprocessService.readExifOrientation(new byte[]{'P', 'N', 'G', 0}));
+        assertEquals(1, ImagePreprocessService.readExifOrientation(null));
+
+        // 段长度超出数据末尾
+        byte[] truncated = jpeg(exif(ByteOrder.BIG_ENDIAN, 3, 6));
+        assertEquals(1, ImagePreprocessService.readExifOrientation(Arrays.copyOf(truncated, 20)));
+
+        // 字节序标记无效
+        byte[] badOrder = exif(ByteOrder.BIG_ENDIAN, 3, 6);
+        badOrder[10] = 'X';
+        badOrder[11] = 'X';
+        assertEquals(1, ImagePreprocessService.readExifOrientation(jpeg(badOrder)));
+
+        // IFD 偏移超出段范围
+        byte[] badOffset = exif(ByteOrder.BIG_ENDIAN, 3, 6);
+        badOffset[16] = 0x7F;
+        assertEquals(1, ImagePreprocessService.readExifOrientation(jpeg(badOffset)));
+
+        // 条目数超出段范围（首个条目不是 Orientation，继续读到段外）
+        byte[] badCount = exif(ByteOrder.BIG_ENDIAN, 3, 6);
+        badCount[19] = 5;
+        badCount[20] = 0x01;
+        badCount[21] = 0x00;
+        assertEquals(1, ImagePreprocessService.readExifOrientation(jpeg(badCount)));
+
+        // 类型不是 SHORT、取值超出 1-8
+        assertEquals(1, ImagePreprocessService.readExifOrientation(jpeg(exif(ByteOrder.BIG_ENDIAN, 4, 6))));
+        assertEquals(1, ImagePreprocessService.readExifOrientation(jpeg(exif(ByteOrder.LITTLE_ENDIAN, 3, 9))));
+    }
+
+    @Test
+    void exifAfterImageDataIsIgnored() {
+        byte[] sos = segment(0xDA, new byte[]{0, 0});
+
+        assertEquals(1, ImagePreprocessService.readExifOrientation(jpeg(sos, exif(ByteOrder.BIG_ENDIAN, 3, 6))));
+    }
+
+    private static BufferedImage source() {
+        BufferedImage image = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                image.setRGB(x, y, (x + 1) * 0x400000 | (y + 1) * 0x0040);
+            }
+        }
+        return image;
+    }
+
+    private static int rgb(BufferedImage image, int x, int y) {
+        return image.getRGB(x, y) & 0xFFFFFF;
+    }
+
+    /**
+     * APP1(Exif) 段内容：Exif 头 + TIFF 头 + 只有 Orientation 一个条目的 IFD0
+     * 偏移：0-3 段标记和长度，4-9 Exif 头，10-11 字节序，14-17 IFD 偏移，18-19 条目数，20-21 首个条目的标记
+     */
+    private static byte[] exif(ByteOrder order, int type, int orientation) {
+        ByteBuffer buf = ByteBuffer.allocate(6 + 8 + 2 + 12 + 4).order(order);
+        buf.put("Exif\0\0".getBytes(StandardCharsets.US_ASCII));
+        buf.put(order == ByteOrder.BIG_ENDIAN ? "MM".getBytes(StandardCharsets.US_ASCII) : "II".getBytes(StandardCharsets.US_ASCII));
+        buf.putShort((short) 42);
+        buf.putInt(8);
+        buf.putShort((short) 1);
+        buf.putShort((short) 0x0112);
+        buf.putShort((short) type);
+        buf.putInt(1);
+        buf.putShort((short) orientation);
+        buf.putShort((short) 0);
+        buf.putInt(0);
+        return segment(0xE1, buf.array());
+    }
+
+    private static byte[] segment(int marker, byte[] payload) {
+        ByteBuffer buf = ByteBuffer.allocate(4 + payload.length);
+        buf.put((byte) 0xFF).put((byte) marker).putShort((short) (payload.length + 2)).put(payload);
+        return buf.array();
+    }
+
+    private static byte[] jpeg(byte[]... segments) {
+        int length = 4;
+        for (byte[] s : segments) {
+            length += s.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.put((byte) 0xFF).put((byte) 0xD8);
+        for (byte[] s : segments) {
+            buf.put(s);
+        }
+        buf.put((byte) 0xFF).put((byte) 0xD9);
+        return buf.array();
+    }
+}
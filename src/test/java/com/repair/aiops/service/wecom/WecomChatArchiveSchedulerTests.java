@@ -0,0 +1,73 @@
+package com.repair.aiops.service.wecom;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 存档进度（watermark）计算
+ */
+class WecomChatArchiveSchedulerTests {
+
+    @Test
+    void advancesToNextSeqWhenAllDone() {
+        List<WecomChatArchiveScheduler.BatchEntry> entries = List.of(done(11L), done(12L), done(13L));
+
+        assertEquals(14L, WecomChatArchiveScheduler.computeWatermark(entries, 10L, 14L));
+    }
+
+    @Test
+    void stopsBeforeFirstUnfinishedEntry() {
+        List<WecomChatArchiveScheduler.BatchEntry> entries = List.of(
+                done(11L), pending(12L), done(13L));
+
+        assertEquals(11L, WecomChatArchiveScheduler.computeWatermark(entries, 10L, 14L));
+    }
+
+    @Test
+    void undeliveredEntryBlocksProgress() {
+        List<WecomChatArchiveScheduler.BatchEntry> entries = List.of(
+                done(11L), done(12L), new WecomChatArchiveScheduler.BatchEntry(13L, null));
+
+        assertEquals(12L, WecomChatArchiveScheduler.computeWatermark(entries, 10L, 14L));
+    }
+
+    @Test
+    void failedEntryBlocksProgressUntilSettled() {
+        List<WecomChatArchiveScheduler.BatchEntry> entries = List.of(
+                done(11L), failed(12L), done(13L));
+
+        assertEquals(11L, WecomChatArchiveScheduler.computeWatermark(entries, 10L, 14L));
+        assertEquals(10L, WecomChatArchiveScheduler.computeWatermark(List.of(failed(11L)), 10L, 12L));
+    }
+
+    @Test
+    void neverMovesBackwards() {
+        List<WecomChatArchiveScheduler.BatchEntry> entries = List.of(pending(11L), done(12L));
+
+        assertEquals(10L, WecomChatArchiveScheduler.computeWatermark(entries, 10L, 13L));
+        assertEquals(10L, WecomChatArchiveScheduler.computeWatermark(
+                List.of(new WecomChatArchiveScheduler.BatchEntry(null, null)), 10L, 13L));
+    }
+
+    @Test
+    void keepsCurrentSeqWhenNextSeqMissing() {
+        assertEquals(10L, WecomChatArchiveScheduler.computeWatermark(List.of(done(11L)), 10L, null));
+        assertEquals(10L, WecomChatArchiveScheduler.computeWatermark(List.of(), 10L, null));
+    }
+
+    private static WecomChatArchiveScheduler.BatchEntry done(Long seq) {
+        return new WecomChatArchiveScheduler.BatchEntry(seq, CompletableFuture.completedFuture(true));
+    }
+
+    private static WecomChatArchiveScheduler.BatchEntry failed(Long seq) {
+        return new WecomChatArchiveScheduler.BatchEntry(seq, CompletableFuture.completedFuture(false));
+    }
+
+    private static WecomChatArchiveScheduler.BatchEntry pending(Long seq) {
+        return new WecomChatArchiveScheduler.BatchEntry(seq, new CompletableFuture<Boolean>());
+    }
+}
@@ -0,0 +1,130 @@
+package com.repair.aiops.service.wecom;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 媒体分片下载：用脚本化的 WecomMediaSdk 代替 Finance 本地库
+ */
+class WecomChatArchiveServiceTests {
+
+    private final Deque<WecomMediaSdk.MediaChunk> script = new ArrayDeque<>();
+    private final List<String> requestedIndexes = new ArrayList<>();
+    private WecomChatArchiveService service;
+
+    @BeforeEach
+    void setUp() {
+        WecomMediaSdk fakeSdk = (sdk, sdkFileId, indexBuf, timeoutSeconds) -> {
+            requestedIndexes.add(indexBuf);
+            return script.isEmpty() ? WecomMediaSdk.MediaChunk.failed(-1) : script.poll();
+        };
+        service = new WecomChatArchiveService(fakeSdk, new SimpleMeterRegistry(), 2);
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "corpId", "corp");
+        ReflectionTestUtils.setField(service, "corpSecret", "secret");
+        // 句柄非 0 时不再初始化本地库
+        ReflectionTestUtils.setField(service, "sdk", 1L);
+        ReflectionTestUtils.setField(service, "mediaMaxBytes", 1024L);
+        ReflectionTestUtils.setField(service, "mediaChunkTimeoutSeconds", 1L);
+        ReflectionTestUtils.setField(service, "mediaChunkRetries", 2);
+        ReflectionTestUtils.setField(service, "mediaAcquireTimeoutMs", 100L);
+    }
+
+    @Test
+    void downloadsAllChunksInOrder() throws IOException {
+        byte[] first = {(byte) 0xFF, (byte) 0xD8, 1, 2};
+        byte[] second = {3, 4, 5};
+        byte[] third = {6};
+        script.add(chunk(first, "idx-1", false));
+        script.add(chunk(second, "idx-2", false));
+        script.add(chunk(third, null, true));
+
+        WecomMediaFile file = service.downloadMedia("file-1");
+        assertNotNull(file);
+        try (file) {
+            assertEquals(8, file.getSize());
+            assertEquals("image/jpeg", file.getContentType());
+            assertArrayEquals(new byte[]{(byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, 5, 6}, Files.readAllBytes(file.getPath()));
+            assertEquals(List.of("", "idx-1", "idx-2"), requestedIndexes);
+        }
+        assertFalse(Files.exists(file.getPath()));
+    }
+
+    @Test
+    void abortsWhenSizeCapExceeded() throws IOException {
+        ReflectionTestUtils.setField(service, "mediaMaxBytes", 10L);
+        script.add(chunk(new byte[8], "idx-1", false));
+        script.add(chunk(new byte[8], "idx-2", false));
+        script.add(chunk(new byte[8], null, true));
+        Set<Path> before = mediaTempFiles();
+
+        assertNull(service.downloadMedia("file-1"));
+        // 超限后不再拉取后续分片
+        assertEquals(List.of("", "idx-1"), requestedIndexes);
+        assertEquals(before, mediaTempFiles());
+    }
+
+    @Test
+    void retriesFailedChunkWithSameIndex() {
+        script.add(chunk(new byte[]{1, 2}, "idx-1", false));
+        script.add(WecomMediaSdk.MediaChunk.failed(10001));
+        script.add(chunk(new byte[]{3}, null, true));
+
+        try (WecomMediaFile file = service.downloadMedia("file-1")) {
+            assertNotNull(file);
+            assertEquals(3, file.getSize());
+            assertEquals(List.of("", "idx-1", "idx-1"), requestedIndexes);
+        }
+    }
+
+    @Test
+    void givesUpAfterRetriesAndRemovesTempFile() throws IOException {
+        script.add(chunk(new byte[]{1, 2}, "idx-1", false));
+        Set<Path> before = mediaTempFiles();
+
+        assertNull(service.downloadMedia("file-1"));
+        // 首次 + 2 次重试
+        assertEquals(List.of("", "idx-1", "idx-1", "idx-1"), requestedIndexes);
+        assertEquals(before, mediaTempFiles());
+    }
+
+    @Test
+    void rejectsUnfinishedChunkWithoutIndex() throws IOException {
+        script.add(chunk(new byte[]{1, 2}, "", false));
+        Set<Path> before = mediaTempFiles();
+
+        assertNull(service.downloadMedia("file-1"));
+        assertEquals(List.of(""), requestedIndexes);
+        assertEquals(before, mediaTempFiles());
+    }
+
+    private static WecomMediaSdk.MediaChunk chunk(byte[] data, String outIndexBuf, boolean finished) {
+        return new WecomMediaSdk.MediaChunk(0, data, outIndexBuf, finished);
+    }
+
+    private static Set<Path> mediaTempFiles() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(p -> p.getFileName().toString().startsWith("wecom-media-"))
+                    .collect(Collectors.toSet());
+        }
+    }
+}
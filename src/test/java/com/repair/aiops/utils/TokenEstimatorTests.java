@@ -0,0 +1,35 @@
+package com.repair.aiops.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TokenEstimatorTests {
+
+    @Test
+    void emptyTextIsZero() {
+        assertEquals(0, TokenEstimator.estimate(null));
+        assertEquals(0, TokenEstimator.estimate(""));
+        assertEquals(0, TokenEstimator.estimate("  \n"));
+    }
+
+    @Test
+    void cjkCharactersCountOneEach() {
+        assertEquals(3, TokenEstimator.estimate("漏水了"));
+        // 全角标点按中文计
+        assertEquals(4, TokenEstimator.estimate("漏水了，"));
+    }
+
+    @Test
+    void otherCharactersRoundUpByFour() {
+        assertEquals(1, TokenEstimator.estimate("abcd"));
+        assertEquals(2, TokenEstimator.estimate("abcde"));
+        // 空白不计
+        assertEquals(1, TokenEstimator.estimate("a b c d"));
+    }
+
+    @Test
+    void mixedText() {
+        assertEquals(4, TokenEstimator.estimate("302室漏水"));
+    }
+}